@@ -15,6 +15,12 @@ public class MCSSourceFile extends SourceUnit {
 	// la machine cible
 	private AbstractMachine machine;
 	private String machName;
+	// ecrire le graphe de flot de chaque fonction
+	private boolean dumpAnalysis = false;
+	// niveau d'optimisation (-O0, -O1, -O2)
+	private int optimize = 0;
+	// taille maximale d'une fonction mise en ligne (-inline=N)
+	private int inlineLimit = -1;
 
 	public MCSSourceFile(String[] args) throws MCSException {
 		super(args[0]);
@@ -43,25 +49,37 @@ public class MCSSourceFile extends SourceUnit {
 		int argc = args.length;
 		// nom du fichier
 		fileName = args[0];
-		// machine cible ?
-		if (argc == 1) {
-			// machine tam par defaut
-			setMachine("arm");
-		} else {
-			// nom de la machine ?
-			for (int i = 1; i < argc; i++) {
-				String a = args[i];
-				if ("-m".equals(a)) { //$NON-NLS-1$
-					if (i + 1 < argc) {
-						i++;
-						setMachine(args[i]);
-					} else
-						usage(a);
-				} else {
+		// machine arm par defaut
+		setMachine("arm");
+		// autres options
+		for (int i = 1; i < argc; i++) {
+			String a = args[i];
+			if ("-m".equals(a)) { //$NON-NLS-1$
+				if (i + 1 < argc) {
+					i++;
+					setMachine(args[i]);
+				} else
+					usage(a);
+			} else if ("-cfg".equals(a)) { //$NON-NLS-1$
+				dumpAnalysis = true;
+			} else if (a.matches("-O[0-2]")) { //$NON-NLS-1$
+				optimize = a.charAt(2) - '0';
+			} else if (a.matches("-inline=[0-9]+")) { //$NON-NLS-1$
+				// Trop grand pour un int
+				try {
+					inlineLimit = Integer.parseInt(a.substring(8));
+				} catch (NumberFormatException e) {
 					usage(a);
 				}
+			} else {
+				usage(a);
 			}
 		}
+		if (machine != null) {
+			machine.setDumpAnalysis(dumpAnalysis);
+			machine.setOptimize(optimize);
+			machine.setInlineLimit(inlineLimit);
+		}
 	}
 
 	/**
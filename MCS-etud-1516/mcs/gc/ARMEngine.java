@@ -8,28 +8,86 @@ package mcs.gc;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.ListIterator;
 import java.time.LocalDateTime;
 import java.util.Map;
+import java.util.Set;
 import mcs.symtab.*;
 import mcs.compiler.*;
 import mcs.obj.*;
+import mcs.ir.BasicBlock;
+import mcs.ir.Cond;
+import mcs.ir.ConstantPropagation;
+import mcs.ir.ControlFlowGraph;
+import mcs.ir.DefUse;
+import mcs.ir.Dominators;
+import mcs.ir.Immediates;
+import mcs.ir.InductionVariables;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Liveness;
+import mcs.ir.LoopInvariants;
+import mcs.ir.Opcode;
+import mcs.ir.Peephole;
+import mcs.ir.Selector;
+import mcs.ir.Printer;
+import mcs.ir.SSA;
+import mcs.ir.Shift;
+import mcs.ir.ValueNumbering;
 
 public class ARMEngine extends AbstractMachine {
     /**
      * Number of registers.
      * ARM has in fact 15 "multi-purpose registers", but three of them is used for stack, link and program counter.
      * Plus, we decided to use R12 as the heap top and R11 as the stack base, as they are not implemented directly into ARM.
-     * Moreover, we use R10 as a register for storing the object's class id when we jump from methods to vtables.
+     * Moreover, we use R10 as a register for storing the object's class id when we jump from methods to vtables,
+     * and R9 for the function return.
      */
-    static private final int NUM_REGISTER = 10;
+    static private final int NUM_REGISTER = 9;
     static private final String ExitLabel = "___exit___";
-    static private final String Prefix = "\t\t", Spacing = "\t\t";  // For a nice code
+    static private final int InlineLimit = 20;                        // Default size of an inlined function, at -O2
+    static private final int CopiedTest = 8;                          // Biggest condition of a while copied below its body, at -O2
+    static private final String Prefix = Printer.Prefix;              // For a nice code
     private List<Register> registers;							// List of registers on the machine
     private Register sp, lr, pc, ht, sb, oi, fr;	// Special registers
     private int heapbase = 0;											// Manual heap base calculus
     private int condition_nb = 0;									// Number of if-then-else structures
     private int loop_nb = 0;                      // Number of when strctures
+    private int rotated_nb = 0, copied_nb = 0;    // Number of while structures tested at the bottom, with their condition copied
+    private int cold_nb = 0;                      // Number of blocks moved to the end of their function
+    private int logical_nb = 0;                   // Number of logical and/or evaluated in part
+    private int multiplied_nb = 0, divided_nb = 0; // Number of multiplications, and of divisions or modulos, by a constant made without MUL nor SDIV
+    private int call_nb = 0;                      // Number of inlined method calls
+    private DefUse defuse;                        // Registers read and written by instructions
+    private BitSet exitLive;                      // Registers live when a function returns
+    private RegisterAllocator allocator;          // Gives registers to the virtual ones
+    private RegisterAllocator baseline;           // Default allocator, run for comparison at -O2
+    private int virtual_nb = DefUse.FirstVirtual; // Number of the next virtual register
+    private List<VariableInfo> promoted = new ArrayList<VariableInfo>();          // Locals of the function kept in a register
+    private Map<Integer, VariableInfo> locals = new HashMap<Integer, VariableInfo>(); // Locals in scope, by displacement
+    private Set<VariableInfo> addressed = new HashSet<VariableInfo>();            // Locals whose address is used
+    private Map<Integer, VariableInfo> addresses = new HashMap<Integer, VariableInfo>(); // Locals whose address is computed, by register
+    private List<Register> arguments = new ArrayList<Register>();  // Arguments of the calls being generated, passed at the call
+    private CallingConvention convention;         // Where the arguments of a call are passed
+    private Map<VariableInfo, Integer> parameters = new LinkedHashMap<VariableInfo, Integer>(); // Parameters of the function, by word
+    private Inliner inliner;                      // Puts small functions in place of their calls
+    private Peephole peephole;                    // Rewrites short sequences of the final code
+    private LoopInvariants invariants;            // Moves the computations made again at each iteration out of the loops
+    private Immediates immediates;                // Puts the constants in the instructions, and in literal pools
+    private ValueNumbering numbering;             // Removes the computations made again
+    private InductionVariables induction;         // Makes the array accesses of the loops through incremented pointers
+    private Selector selector;                    // Folds the single use operations in the instructions reading them
+    private boolean selection = true;             // Whether the selector runs (from level 1)
+    private Map<Integer, Integer> constants = new HashMap<Integer, Integer>();    // Values of the registers holding a constant, by number
+    private Map<Integer, Register> negated = new HashMap<Integer, Register>();    // Operand of the registers holding a NEG, by number
+    private Map<Integer, Register> complemented = new HashMap<Integer, Register>(); // Operand of the registers holding a NOT, by number
+    private Map<Integer, Cond> compared = new HashMap<Integer, Cond>();          // Condition of the registers holding a comparison, by number
+    private long ssaTime = 0, propagationTime = 0; // Time spent in the constant propagation, in ns (see propagateConstants)
+    private int propagatedFunctions = 0, propagatedInstructions = 0, phis = 0, largest = 0, propagated = 0;
 
     /**
      * Constructor
@@ -48,6 +106,91 @@ public class ARMEngine extends AbstractMachine {
         sb = new Register("r", 11, "SB");
         oi = new Register("r", 10, "OI");
         fr = new Register("r", 9, "FR");
+
+        // Calling convention: the object (for a method) then the arguments, one
+        // word each, in r0 to r3 and then on the stack, popped by the caller
+        // (see CallingConvention); the result is in FR (the handle of the
+        // value for a composite type); the callee may change any register but
+        // the stack base and pointer
+        convention = new CallingConvention(registers);
+        Map<String, Integer> aliases = new HashMap<String, Integer>();
+        BitSet callUses = new BitSet(), callDefs = new BitSet();
+        for (Register r : new Register[] { ht, sb, oi, fr }) {
+            aliases.put(r.alias(), r.num());
+        }
+        callUses.set(DefUse.id(ht));
+        callUses.set(DefUse.id(sb));
+        callUses.set(DefUse.SP);
+        callDefs.set(0, DefUse.id(oi) + 1);
+        callDefs.set(DefUse.id(ht));
+        defuse = new DefUse(callUses, callDefs, aliases);
+
+        exitLive = new BitSet();
+        exitLive.set(DefUse.id(fr));
+        exitLive.set(DefUse.id(ht));
+        exitLive.set(DefUse.id(sb));
+        exitLive.set(DefUse.SP);
+        exitLive.set(DefUse.LR);
+
+        allocator = new LinearScanAllocator(defuse, exitLive, registers.toArray(new Register[NUM_REGISTER]));
+        inliner = new Inliner(this, sb, 0);
+        peephole = new Peephole(defuse, exitLive);
+        invariants = new LoopInvariants(defuse, exitLive, DefUse.id(sb));
+        immediates = new Immediates(defuse);
+        numbering = new ValueNumbering(defuse, DefUse.id(sb));
+        induction = new InductionVariables(defuse);
+        selector = new Selector(defuse);
+    }
+
+    /**
+     * Set the optimization level: from 2, registers are allocated by graph
+     * colouring; the default allocator still runs on a copy of each function,
+     * so that the spills saved and the time spent can be reported. The
+     * invariants of the loops are then moved out of them (see LoopInvariants),
+     * and their array accesses made through pointers (see InductionVariables):
+     * the registers they keep along the loops are weighed by the colouring.
+     * @param level the level
+     */
+    @Override
+    public void setOptimize(int level) {
+        super.setOptimize(level);
+        Register[] pool = registers.toArray(new Register[NUM_REGISTER]);
+        if (level >= 2) {
+            allocator = new ColoringAllocator(defuse, exitLive, pool);
+            baseline = new LinearScanAllocator(defuse, exitLive, pool);
+        } else {
+            allocator = new LinearScanAllocator(defuse, exitLive, pool);
+            baseline = null;
+        }
+        setInlineLimit(inlineLimit);
+    }
+
+    /**
+     * Tell whether the operations read once are folded in the instructions
+     * reading them, from level 1 (see Selector); on by default
+     * @param on false to keep one instruction per operation
+     */
+    public void setSelection(boolean on) {
+        selection = on;
+    }
+
+    /**
+     * Set the biggest number of instructions of a function put in place of
+     * its calls (see Inliner); by default, none below level 2
+     * @param limit the number of instructions, -1 for the default
+     */
+    @Override
+    public void setInlineLimit(int limit) {
+        super.setInlineLimit(limit);
+        inliner = new Inliner(this, sb, (limit >= 0 ? limit : optimize >= 2 ? InlineLimit : 0));
+    }
+
+    /**
+     * Registers read and written by the instructions of this machine
+     * @return the description of the registers, for the analyses
+     */
+    public DefUse defUse() {
+        return defuse;
     }
 
     /**
@@ -58,39 +201,19 @@ public class ARMEngine extends AbstractMachine {
     }
 
     /**
-     * Write the given code to a file.
-     * This will : 1) Build the introduction to the file 2) Write the code to the file
-     * @param fileName name of the file
-     * @param code code to write
+     * Generate the beginning of the file : comments, sections and register aliases
+     * @return the generated code
      */
     @Override
-    public void writeCode(String fileName, String code) throws MCSException {
-        // main function is of the form "int main()"
-        FunctionInfo mainfi = new FunctionInfo("main", new IntegerType(), new DefaultNamespaceInfo(), fr);
-
-        // Generate the vtables
-        String vtables =
-            generateAllVtables() +
-            "\n" +
-            generateComment("@@", "");
-
-        // Generate the exit
-        String exit = 
-            generateLabel(ARMEngine.ExitLabel) +
-            generateInstruction("MOV", this.registers.get(0), fr) +
-            generateInstruction("MOV", this.registers.get(7), 1) +
-            generateInstruction("SVC", 0) +
-            "\n";
-
-        // Generate preliminary
-        String preliminary = 
+    public Code generateHeader() throws MCSException {
+        return new Code(
             // Header
             generateMultiComments(
                     "@@\n" +
                     "File generated by microC# compilator for ARM (v7)\n" +
                     "On: " + LocalDateTime.now() +  "\n" +
                     "@@\n",
-                    "") +
+                    ""),
             ".arm\n" +
             "\n" +
             ".data\n" +
@@ -98,50 +221,95 @@ public class ARMEngine extends AbstractMachine {
             ".text\n" +
             "\n" +
             "\n" +
-            ".global _start\n" +
+            ".global _start\n",
             // Declarations
-            generateComment("Preliminary definitions : heap top, stack base, object id, function return", "") +
+            generateComment("Preliminary definitions : heap top, stack base, object id, function return", ""),
             ht.alias() + "\t.req\t" + ht.name() + "\n" +
             //sb.alias() + "\t.req\t" + sb.name() + "\n" +
             oi.alias() + "\t.req\t" + oi.name() + "\n" +
             fr.alias() + "\t.req\t" + fr.name() + "\n" +
-            "\n";
+            "\n");
+    }
+
+    /**
+     * Generate the end of the file : virtual tables, exit and entry point.
+     * The entry point comes last, as the heap base depends on the size of
+     * the whole code.
+     * @return the generated code
+     */
+    @Override
+    public Code generateTrailer() throws MCSException {
+        // main function is of the form "int main()"
+        FunctionInfo mainfi = new FunctionInfo("main", new IntegerType(), new DefaultNamespaceInfo(), fr);
+
+        // Generate the vtables
+        Code vtables = new Code(
+            generateAllVtables(),
+            "\n",
+            generateComment("@@", ""));
+
+        // Generate the exit
+        Code exit = new Code(
+            generateLabel(ARMEngine.ExitLabel),
+            generateInstruction(Opcode.MOV, this.registers.get(0), fr),
+            generateInstruction(Opcode.MOV, this.registers.get(7), 1),
+            generateInstruction(Opcode.SVC, 0),
+            "\n");
 
         // Generate the init
-        String init =
-            generateLabel("_start") +
-            generateComment("Initialize registers", "") +
-            generateInstruction("MOV", ht, (heapbase+4)*4) +
-            generateInstruction("MOV", sb, sp) +
-            "\n" +
-            generateComment("Call main entry point", "") +
-            generateInstruction("BL", mainfi.label()) +
-            generateInstruction("B", ARMEngine.ExitLabel) + 
-            "\n";
-
-        // Actually write the code to the file
-        super.writeCode(fileName,
-                preliminary +
-                init +
-                vtables +
-                code +
-                exit +
+        Code init = new Code(
+            generateLabel("_start"),
+            generateComment("Initialize registers", ""),
+            generateInstruction(Opcode.MOV, ht, (heapbase+4)*4),
+            generateInstruction(Opcode.MOV, sb, sp),
+            "\n",
+            generateComment("Call main entry point", ""),
+            generateInstruction(Opcode.BL, mainfi.label()),
+            generateInstruction(Opcode.B, ARMEngine.ExitLabel),
+            "\n");
+
+        return new Code(
+                vtables,
+                exit,
+                init,
                 "END"
         );
     }
 
+    /**
+     * Write the code of a top-level entity. The code generated outside of
+     * any function (global variables) still has virtual registers: they are
+     * allocated here, without spilling.
+     * @param code the code of the entity
+     */
+    @Override
+    public void writeEntity(Code code) throws MCSException {
+        InstructionList list = code.instructions();
+        BitSet regs = new BitSet();
+        for (Instruction inst : list) {
+            defuse.uses(inst, regs);
+            defuse.defs(inst, regs);
+        }
+
+        if (regs.nextSetBit(DefUse.FirstVirtual) >= 0) {
+            code.clear();
+            code = new Code(allocateRegisters(list, null, 0));
+        }
+        super.writeEntity(code);
+    }
+
     /**
      * Generate every virtual tables recorded so far.
      * @return the code
      */
-    private String generateAllVtables() throws MCSException {
-        String code = generateMultiComments(
+    private Code generateAllVtables() throws MCSException {
+        Code code = generateMultiComments(
                 "@@\n" +
                 "Code for virtual tables\n" +
                 "@@\n", "");
 
         for (MethodInfo mi : VirtualTableCentral.instance().vtables().keySet()) {
-            code += generateVtable(mi);
+            code.append(generateVtable(mi));
         }
 
         return code;
@@ -150,23 +318,22 @@ public class ARMEngine extends AbstractMachine {
     /**
      * Generate the code for a virtual table
      */
-    public String generateVtable(MethodInfo mi) throws MCSException {
+    public Code generateVtable(MethodInfo mi) throws MCSException {
         // Retrieve the vtable for this method
         VirtualTable vt = VirtualTableCentral.instance().vtables().get(mi);
 
         // Generate a little header
-        String code =
-            generateComment("Virtual Table for method " + mi.shortLabel(), "") +
-            generateLabel(mi.shortLabel() + ".vtable");
+        Code code = new Code(
+            generateComment("Virtual Table for method " + mi.shortLabel(), ""),
+            generateLabel(mi.shortLabel() + ".vtable"));
 
         // Generate the code for each entry
         for (int key : vt.allKeys()) {
-            code +=
-                generateInstruction("CMP", oi, key) +
-                generateInstruction("BEQ", vt.get(key));
+            code.append(generateInstruction(Opcode.CMP, oi, key));
+            code.append(generateInstruction(Opcode.B, Cond.EQ, vt.get(key), null));
         }
 
-        return code + "\n";
+        return code.append("\n");
     }
 
     /**********************************************************
@@ -182,13 +349,20 @@ public class ARMEngine extends AbstractMachine {
      * @param rout (out) register in which the value will be
      * @return the generated code
      */
-    public String generateLoadValue(VariableInfo info, RegisterWrapper rout) throws MCSException  {
-        String code = "";
+    public Code generateLoadValue(VariableInfo info, RegisterWrapper rout) throws MCSException  {
+        Code code = new Code();
 
         if (info instanceof ConstantInfo)
-            code += generateLoadConstant((ConstantInfo)info, rout);
-        else {
-            code += generateLoadFromStack(info.displacement(), rout);
+            code.append(generateLoadConstant((ConstantInfo)info, rout));
+        else if (info.register() != null) {
+            // Kept in a register (see generateAllocateLocal)
+            Register r = nextVirtualRegister();
+            rout.set(r);
+            code.append(
+                generateInstruction(Opcode.MOV, r, info.register()));
+            r.setStatus(Register.Status.Loaded);
+        } else {
+            code.append(generateLoadFromStack(info.displacement(), rout));
         }
 
         return code;
@@ -201,21 +375,21 @@ public class ARMEngine extends AbstractMachine {
      * @param rout (out) register in which the value will be
      * @return the generated code
      */
-    public String generateLoadValue(VariableInfo info, int disp, RegisterWrapper rout) throws MCSException  {
-        String code = "";
-        Register r = getNextUnusedRegister();
+    public Code generateLoadValue(VariableInfo info, int disp, RegisterWrapper rout) throws MCSException  {
+        Code code = new Code();
+        Register r = nextVirtualRegister();
         rout.set(r);
         RegisterWrapper raddr = new RegisterWrapper();
         Object odisp;
 
         if (info.type() instanceof CompositeType) {
-            code += generateLoadFromStack(info.displacement(), raddr);
+            code.append(generateLoadFromStack(info.displacement(), raddr));
 
             if (disp < 65536) {
                 odisp = disp;
             } else {
                 RegisterWrapper rdisp = new RegisterWrapper();
-                code += generateLoadConstant(new ConstantInfo(new IntegerType(), disp), rdisp);
+                code.append(generateLoadConstant(new ConstantInfo(new IntegerType(), disp), rdisp));
                 odisp = rdisp.get();
                 rdisp.get().setStatus(Register.Status.Used);
             }
@@ -223,11 +397,11 @@ public class ARMEngine extends AbstractMachine {
             raddr.get().setStatus(Register.Status.Used);
         } else {
             // we shouldn't be using this function, don't we ?
-            return "";
+            return new Code();
         }
 
-        code +=
-            generateInstruction("LDR", true, r, raddr.get(), odisp);
+        code.append(
+            generateInstruction(Opcode.LDR, true, r, raddr.get(), odisp));
 
         r.setStatus(Register.Status.Loaded);
 
@@ -241,20 +415,20 @@ public class ARMEngine extends AbstractMachine {
      * @param rout (out) register in which the value will be
      * @return the generated code
      */
-    public String generateLoadValue(VariableInfo info, Register rdisp, RegisterWrapper rout) throws MCSException {
+    public Code generateLoadValue(VariableInfo info, Register rdisp, RegisterWrapper rout) throws MCSException {
         RegisterWrapper raddr = new RegisterWrapper();
-        Register r = getNextUnusedRegister();
+        Register r = nextVirtualRegister();
         rout.set(r);
-        String code = "";
+        Code code = new Code();
         Type t = info.type();
 
         if (t instanceof CompositeType) {
-            code +=
-                generateLoadFromStack(info.displacement(), raddr) +
-                generateInstruction("LDR", true, r, raddr.get(), rdisp);
+            code.append(
+                generateLoadFromStack(info.displacement(), raddr),
+                generateInstruction(Opcode.LDR, true, r, raddr.get(), rdisp));
         } else {
             // not supposed to be called, isn't it ?
-            return "";
+            return new Code();
         }
 
         raddr.get().setStatus(Register.Status.Used);
@@ -271,22 +445,22 @@ public class ARMEngine extends AbstractMachine {
      * @param rout (out) register in which the value will be
      * @return the generated code
      */
-    public String generateLoadFromStack(int disp, RegisterWrapper rout) throws MCSException  {
-        Register r = getNextUnusedRegister();
+    public Code generateLoadFromStack(int disp, RegisterWrapper rout) throws MCSException  {
+        Register r = nextVirtualRegister();
         rout.set(r);
-        String code = "";
+        Code code = new Code();
         Object snd;
 
         if (disp < 65536) {
             snd = -disp;
         } else {
             RegisterWrapper rval = new RegisterWrapper();
-            code += generateLoadConstant(new ConstantInfo(new IntegerType(), -disp), rval);
+            code.append(generateLoadConstant(new ConstantInfo(new IntegerType(), -disp), rval));
             snd = rval.get();
             rval.get().setStatus(Register.Status.Used);
         }
-        code +=
-            generateInstruction("LDR", true, r, sb, snd);
+        code.append(
+            generateInstruction(Opcode.LDR, true, r, sb, snd));
 
         r.setStatus(Register.Status.Loaded);
 
@@ -295,15 +469,17 @@ public class ARMEngine extends AbstractMachine {
 
     /**
      * Generate the code for loading a constant itneger into a register.
+     * From level 1, the value is kept with the register, so that the
+     * operations on constants are made at compile time (see generateOperation).
      * @param info info of the constant to load
      * @param rout register where the value is put, for later referencing
      * @return the generated code
      */
-    public String generateLoadConstant(ConstantInfo info, RegisterWrapper rout) throws MCSException  {
+    public Code generateLoadConstant(ConstantInfo info, RegisterWrapper rout) throws MCSException  {
         //trace System.out.println("gLCst : " + (info == null ? "NULL" : ""));
         //trace System.out.println("gLCst : " + info);
-        String code = "";
-        Register r = getNextUnusedRegister();
+        Code code = new Code();
+        Register r = nextVirtualRegister();
         rout.set(r);
         Type t = info.type();
 
@@ -319,16 +495,15 @@ public class ARMEngine extends AbstractMachine {
                 val = (Integer)o;
             else if (t instanceof CharacterType)
                 val = Character.getNumericValue((Character)o);
+            else if (t instanceof BooleanType && o instanceof Boolean)
+                val = ((Boolean)o ? 1 : 0);
 
             //trace System.out.println("We tried casting the constant into an Integer, there is de result : " + val);
 
-            code +=
-                generateInstruction("MOV", r, (val & 0x0000FFFF));
-
-            if (val >= 65536) {
-                code +=
-                    generateInstruction("MOVT", r, (val >> 16));
-            }
+            for (Instruction inst : Immediates.load(r, val))
+                code.append(generateInstruction(inst));
+            if (optimize >= 1)
+                constants.put(DefUse.id(r), val);
         } else if (t instanceof StructType) {
         } else if (t instanceof ArrayType) {
         } else if (t instanceof Klass) {
@@ -346,20 +521,20 @@ public class ARMEngine extends AbstractMachine {
      * @param rout register where the value is put
      * @return the generated code
      */
-    public String generateLoadFromHeap(Register raddr, int disp, RegisterWrapper rout) throws MCSException  {
-        Register r = new Register();
-        String code = "";
+    public Code generateLoadFromHeap(Register raddr, int disp, RegisterWrapper rout) throws MCSException  {
+        Code code = new Code();
 
         if (disp < 65536) {
-            r = getNextUnusedRegister();
+            Register r = nextVirtualRegister();
             rout.set(r);
-            code += 
-                generateInstruction("LDR", true, r, raddr, disp);
+            code.append(
+                generateInstruction(Opcode.LDR, true, r, raddr, disp));
             r.setStatus(Register.Status.Loaded);
             raddr.setStatus(Register.Status.Used);
         } else {
-            code += generateLoadConstant(new ConstantInfo(new IntegerType(), disp), rout);
-            code += generateLoadFromHeap(raddr, r, rout);
+            RegisterWrapper rdisp = new RegisterWrapper();
+            code.append(generateLoadConstant(new ConstantInfo(new IntegerType(), disp), rdisp));
+            code.append(generateLoadFromHeap(raddr, rdisp.get(), rout));
         }
 
         return code;
@@ -372,13 +547,13 @@ public class ARMEngine extends AbstractMachine {
      * @param rout register where the value is put
      * @return the generated code
      */
-    public String generateLoadFromHeap(Register raddr, Register rdisp, RegisterWrapper rout) throws MCSException  {
-        String code = "";
-        Register r = getNextUnusedRegister();
+    public Code generateLoadFromHeap(Register raddr, Register rdisp, RegisterWrapper rout) throws MCSException  {
+        Code code = new Code();
+        Register r = nextVirtualRegister();
         rout.set(r);
 
-        code +=
-            generateInstruction("LDR", true, r, raddr, rdisp);
+        code.append(
+            generateInstruction(Opcode.LDR, true, r, raddr, rdisp));
 
         raddr.setStatus(Register.Status.Used);
         rdisp.setStatus(Register.Status.Used);
@@ -395,17 +570,21 @@ public class ARMEngine extends AbstractMachine {
      * @param rin value to put in the variabe
      * @return the generated code
      */
-    public String generateStoreVariable(VariableInfo vinfo, Register rin) throws MCSException  {
+    public Code generateStoreVariable(VariableInfo vinfo, Register rin) throws MCSException  {
         //trace System.out.println("generateStoreVariable " + vinfo);
 
         Type t = vinfo.type();
-        String code = "";
+        Code code = new Code();
 
         //trace System.out.println("generateStoreVariable " + t + " " + rin.debug());
 
-        if (t instanceof SimpleType) {
-            code +=
-                generateInstruction("STR", true, rin, sb, -vinfo.displacement());
+        if (vinfo.register() != null) {
+            code.append(
+                generateInstruction(Opcode.MOV, vinfo.register(), rin));
+        } else if (t instanceof SimpleType) {
+            code.append(
+                generateInstruction(Opcode.STR, true, rin, sb, -vinfo.displacement()));
+            rin.setStatus(Register.Status.Used);
         } else if (t instanceof StructType) {
             // Shouldn't be called like that
         } else if (t instanceof ArrayType) {
@@ -424,15 +603,15 @@ public class ARMEngine extends AbstractMachine {
      * @param rin value to put in the variabe
      * @return the generated code
      */
-    public String generateStoreVariable(VariableInfo vinfo, int disp, Register rin) throws MCSException  {
-        String code = "", addr = "";
+    public Code generateStoreVariable(VariableInfo vinfo, int disp, Register rin) throws MCSException  {
+        Code code = new Code();
         Type t = vinfo.type();
 
         if (t instanceof CompositeType) {
             RegisterWrapper raddr = new RegisterWrapper();
-            code +=
-                generateLoadFromStack(vinfo.displacement(), raddr) +
-                generateStoreInHeap(raddr.get(), disp, rin);
+            code.append(
+                generateLoadFromStack(vinfo.displacement(), raddr),
+                generateStoreInHeap(raddr.get(), disp, rin));
         } else {
             // Shouldn't be called ?
         }
@@ -447,15 +626,15 @@ public class ARMEngine extends AbstractMachine {
      * @param rin value to put in the variabe
      * @return the generated code
      */
-    public String generateStoreVariable(VariableInfo vinfo, Register rdisp, Register rin) throws MCSException  {
-        String code = "";
+    public Code generateStoreVariable(VariableInfo vinfo, Register rdisp, Register rin) throws MCSException  {
+        Code code = new Code();
         Type t = vinfo.type();
 
         if (t instanceof CompositeType) {
             RegisterWrapper raddr = new RegisterWrapper();
-            code +=
-                generateLoadFromStack(vinfo.displacement(), raddr) +
-                generateStoreInHeap(raddr.get(), rdisp, rin);
+            code.append(
+                generateLoadFromStack(vinfo.displacement(), raddr),
+                generateStoreInHeap(raddr.get(), rdisp, rin));
         } else {
             // Shouldn't be called ?
         }
@@ -470,19 +649,19 @@ public class ARMEngine extends AbstractMachine {
      * @param rin register containing the value to be stored
      * @return the generated code
      */
-    public String generateStoreInHeap(Register raddr, int disp, Register rin) throws MCSException  {
-        String code = "", addr = raddr + ", ";
+    public Code generateStoreInHeap(Register raddr, int disp, Register rin) throws MCSException  {
+        Code code = new Code();
 
         raddr.setStatus(Register.Status.Used);
 
         if (disp < 65536) {
-            code +=
-                generateInstruction("STR", true, rin, raddr, disp);
+            code.append(
+                generateInstruction(Opcode.STR, true, rin, raddr, disp));
         } else {
             RegisterWrapper r = new RegisterWrapper();
-            code +=
-                generateLoadConstant(new ConstantInfo(new IntegerType(), disp), r) +
-                generateInstruction("STR", true, rin, raddr, r.get());
+            code.append(
+                generateLoadConstant(new ConstantInfo(new IntegerType(), disp), r),
+                generateInstruction(Opcode.STR, true, rin, raddr, r.get()));
             r.get().setStatus(Register.Status.Used);
         }
 
@@ -498,9 +677,9 @@ public class ARMEngine extends AbstractMachine {
      * @param rin register containing the value to be stored
      * @return the generated code
      */
-    public String generateStoreInHeap(Register raddr, Register rdisp, Register rin) throws MCSException  {
-        String code =
-            generateInstruction("STR", true, rin, raddr, rdisp);
+    public Code generateStoreInHeap(Register raddr, Register rdisp, Register rin) throws MCSException  {
+        Code code = new Code(
+            generateInstruction(Opcode.STR, true, rin, raddr, rdisp));
         raddr.setStatus(Register.Status.Used);
         rdisp.setStatus(Register.Status.Used);
         rin.setStatus(Register.Status.Used);
@@ -512,9 +691,9 @@ public class ARMEngine extends AbstractMachine {
      * @param type type to allocate
      * @return the generated code
      */
-    public String generateAllocateInStack(Type type) throws MCSException  {
+    public Code generateAllocateInStack(Type type) throws MCSException  {
         //trace System.out.println("gAIS : allouer " + type + " dans la face");
-        String code = "";
+        Code code = new Code();
 
         if (type instanceof CompositeType || type instanceof PointerType) {
             Type t = type;
@@ -524,14 +703,14 @@ public class ARMEngine extends AbstractMachine {
 
             //trace System.out.println("gAIS : c'est un type composite ou un pointeur");
             RegisterWrapper raddr = new RegisterWrapper();
-            code +=
-                generateAllocate(t, raddr, null) +
-                generateInstruction("PUSH", new RegisterList(raddr.get()));
+            code.append(
+                generateAllocate(t, raddr, null),
+                generateInstruction(Opcode.PUSH, new RegisterList(raddr.get())));
             raddr.get().setStatus(Register.Status.Used);
         } else {
             //trace System.out.println("gAIS : c'est un type simple");
-            code +=
-                generateInstruction("ADD", sp, sp, type.size());
+            code.append(
+                generateInstruction(Opcode.ADD, sp, sp, type.size()));
         }
 
         //trace System.out.println("gAIS : code = " + code);
@@ -539,6 +718,48 @@ public class ARMEngine extends AbstractMachine {
         return code;
     }
 
+    /**
+     * Generate the code for allocating a local variable of a function. Its
+     * room is part of the frame of the function, made once in the prologue
+     * (see generateFunctionDeclaration): only a composite or a pointer
+     * variable needs code, to store the address of its block. From level 1,
+     * an int, char, bool or pointer variable is kept in a virtual register for
+     * its whole lifetime; it goes back to its room in the frame if its address
+     * is used (see demote).
+     * @param info info of the variable
+     * @return the generated code
+     */
+    public Code generateAllocateLocal(VariableInfo info) throws MCSException {
+        Type type = info.type();
+        locals.put(info.displacement(), info);
+        boolean keep = optimize >= 1 && type instanceof SimpleType;
+        Code code = new Code();
+
+        if (type instanceof CompositeType || type instanceof PointerType) {
+            Type t = type;
+            if (type instanceof PointerType)
+                t = ((PointerType)type).getType();
+
+            // The variable starts with the address of a new block
+            RegisterWrapper raddr = new RegisterWrapper();
+            code.append(generateAllocate(t, raddr, null));
+            if (keep) {
+                Register v = nextVirtualRegister();
+                code.append(generateInstruction(Opcode.MOV, v, raddr.get()));
+                info.assignRegister(v);
+            } else {
+                code.append(generateInstruction(Opcode.STR, true, raddr.get(), sb, -info.displacement()));
+            }
+            raddr.get().setStatus(Register.Status.Used);
+        } else if (keep) {
+            info.assignRegister(nextVirtualRegister());
+        }
+
+        if (keep)
+            promoted.add(info);
+        return code;
+    }
+
     /**
      * Generate the code for allocating a block in the heap
      * @param type type to allocate
@@ -546,14 +767,14 @@ public class ARMEngine extends AbstractMachine {
      * @param rsize register containing the size of the block (array only)
      * @return the generated code
      */
-    public String generateAllocate(Type type, RegisterWrapper raddr, Register rsize) throws MCSException  {
+    public Code generateAllocate(Type type, RegisterWrapper raddr, Register rsize) throws MCSException  {
         // Init the output register
-        Register reg = getNextUnusedRegister();
+        Register reg = nextVirtualRegister();
         raddr.set(reg);
         
         // The register is set to the current value of the heap's top
-        String code =
-            generateInstruction("MOV", reg, ht);
+        Code code = new Code(
+            generateInstruction(Opcode.MOV, reg, ht));
         reg.setStatus(Register.Status.Loaded);
 
         /* For structures, we allocate room for each field and then allocate
@@ -573,15 +794,15 @@ public class ARMEngine extends AbstractMachine {
             StructType ts = (StructType)type;
             RegisterWrapper r = new RegisterWrapper();
             // Allocate room for all the fields
-            code +=
-                generateInstruction("ADD", ht, ht, ts.realSize());
+            code.append(
+                generateInstruction(Opcode.ADD, ht, ht, ts.realSize()));
             // Allocate every composite type fields
             for (String f : ts.fields()) {
                 Type t = ts.find(f);
                 if (t instanceof CompositeType) {
-                    code +=
-                        generateAllocate(t, r, null) +
-                        generateInstruction("STR", true, r.get(), reg, ts.fieldDisplacement(f)); 
+                    code.append(
+                        generateAllocate(t, r, null),
+                        generateInstruction(Opcode.STR, true, r.get(), reg, ts.fieldDisplacement(f))); 
         
 										r.get().setStatus(Register.Status.Used);
 								}
@@ -592,15 +813,15 @@ public class ARMEngine extends AbstractMachine {
             Klass k = (Klass)type;
             RegisterWrapper r = new RegisterWrapper();
             // Allocate room for all the fields
-            code +=
-                generateInstruction("ADD", ht, ht, k.realSize());
+            code.append(
+                generateInstruction(Opcode.ADD, ht, ht, k.realSize()));
             // Allocate every composite type fields
             Map<Integer,Type> dl = k.displacementList();
             for (Integer disp : dl.keySet()) {
                 if (dl.get(disp) instanceof CompositeType) {
-                    code +=
-                        generateAllocate(dl.get(disp), r, null) +
-                        generateInstruction("STR", true, r.get(), reg, disp); 
+                    code.append(
+                        generateAllocate(dl.get(disp), r, null),
+                        generateInstruction(Opcode.STR, true, r.get(), reg, disp)); 
         
 						   			r.get().setStatus(Register.Status.Used);
 								}
@@ -612,18 +833,18 @@ public class ARMEngine extends AbstractMachine {
          */
         else if (type instanceof ArrayType) {
             ArrayType t = (ArrayType)type;
-            Register rs = getNextUnusedRegister();
-            code +=
-                generateInstruction("UMUL", rs, rsize, t.getType().size()) +
-                generateInstruction("ST", true, rs, ht) +
-                generateInstruction("ADD", ht, ht, 4) +
-                generateInstruction("ADD", ht, ht, rs);
+            Register rs = nextVirtualRegister();
+            code.append(
+                generateInstruction(Opcode.MUL, rs, rsize, t.getType().size()),
+                generateInstruction(Opcode.STR, true, rs, ht),
+                generateInstruction(Opcode.ADD, ht, ht, 4),
+                generateInstruction(Opcode.ADD, ht, ht, rs));
             rsize.setStatus(Register.Status.Used);
         }
         else {
             //trace System.out.println("gAll : c'est un type simple");
-            code +=
-                generateInstruction("ADD", ht, ht, type.size());
+            code.append(
+                generateInstruction(Opcode.ADD, ht, ht, type.size()));
         }
 
         //trace System.out.println("gAll : code = " + code);
@@ -633,34 +854,24 @@ public class ARMEngine extends AbstractMachine {
     }
 
     /**
-     * Generate the code for flushing the stack top variable
+     * Generate the code for flushing the stack top variable. Nothing to do:
+     * the variables of a function are in its frame, freed by its epilogue
      * @param type type of the variable
      * @return the generated code
      */
-    public String generateFlushVariable(Type type) throws MCSException  {
-        // This is a dummy register, as POP needs a register
-        Register reg = getNextUnusedRegister();
-        return generateInstruction("POP", new RegisterList(reg));
+    public Code generateFlushVariable(Type type) throws MCSException  {
+        return new Code();
     }
 
     /**
      * Generate the code for flushing every variable of a symbol table
-     * Note: used when going out from a block
+     * Note: used when going out from a block; nothing to do, as the room of
+     * the variables of a block is in the frame of the function
      * @param symtab the symbol table
      * @return the generated code
      */
-    public String generateFlush(SymbolTable symtab) throws MCSException  {
-        Register reg = getNextUnusedRegister();
-        String code = "";
-
-        // Remark: we flush the symbol table starting from the end, as we use a stack
-        ListIterator<Type> iter = symtab.symbolsTypes().listIterator(symtab.symbols().size());
-
-        while (iter.hasPrevious()) {
-            code += generateFlushVariable(iter.previous());
-        }
-
-        return code;
+    public Code generateFlush(SymbolTable symtab) throws MCSException  {
+        return new Code();
     }
 
     /**
@@ -669,8 +880,8 @@ public class ARMEngine extends AbstractMachine {
      * @param rin address of the original
      * @param rout address of the copy
      */
-    public String generateCopy(Type t, Register rin, RegisterWrapper rout) throws MCSException {
-        String code = "";
+    public Code generateCopy(Type t, Register rin, RegisterWrapper rout) throws MCSException {
+        Code code = new Code();
 
         if (t instanceof CompositeType) {
         }
@@ -682,100 +893,958 @@ public class ARMEngine extends AbstractMachine {
     /// Functions related
 
     /**
-     * Generate the code for the beginning of declaring a function
+     * Instructions of the prologue and of the epilogue of a function, fixed
+     * once its registers are allocated (see finishFunction)
+     */
+    private static class Frame {
+        Instruction home, save, base, reserve;      // Prologue
+        Instruction release, restore, unhome, ret;  // Epilogue
+        Instruction loop;                           // Start of the body, for self tail calls
+        Instruction body;                           // End of the setting of the parameters
+        Instruction fallback;                       // Default return, null if none
+        int words;                                  // Words passed in registers
+        int call;                                   // Words of a call
+        boolean object;                             // The first one is an object
+        boolean value;                              // A value is returned in FR
+        String self, end;                           // Labels of the function and of its epilogue
+    }
+
+    /**
+     * Declare a parameter of the function being declared: from level 1, an
+     * int, char, bool or pointer parameter is kept in a virtual register,
+     * set at the entry from the register or the stack word it is passed in
+     * (see generateFunctionDeclaration); it goes back to its word if its
+     * address is used (see demote).
+     * @param info info of the function
+     * @param n number of the parameter, from 0
+     * @param vi info of the parameter
+     */
+    public void bindParameter(FunctionInfo info, int n, VariableInfo vi) throws MCSException {
+        locals.put(vi.displacement(), vi);
+        parameters.put(vi, convention.word(info, n));
+        if (optimize >= 1 && vi.type() instanceof SimpleType) {
+            vi.assignRegister(nextVirtualRegister());
+            promoted.add(vi);
+        }
+    }
+
+    /**
+     * Generate the code for the beginning of declaring a function.
+     * The frame of the function is made once: the stack base is 12 below the
+     * words of the call, where the link register and the stack base are
+     * saved; the variables of all the blocks of the function go below it (at
+     * their displacement, see VariableTable), then the spill slots; the words
+     * of the call are above, the first one at 12 (see FunctionInfo.displacement).
+     * The words passed in registers are only pushed there when one of them is
+     * read from the stack (see CallingConvention).
      * @param info the info of the function
      * @param code code generated for the content of the function
      * @return the generated code
      */
-    public String generateFunctionDeclaration(FunctionInfo info, String blockcode) throws MCSException {
+    public Code generateFunctionDeclaration(FunctionInfo info, Code blockcode) throws MCSException {
+        return generateFunctionDeclaration(info, new Code(), new Code(), blockcode);
+    }
+
+    /**
+     * Generate the code for declaring a function
+     * @param info the info of the function
+     * @param head code put before the label of the function
+     * @param entry code run at the entry, before the frame is made
+     * @param blockcode code generated for the content of the function
+     * @return the generated code
+     */
+    private Code generateFunctionDeclaration(FunctionInfo info, Code head, Code entry, Code blockcode) throws MCSException {
         String label = info.label();
+        // Saved registers and room for the variables and the spill slots, once
+        // the code is allocated
+        RegisterList homed = new RegisterList();
+        Frame frame = new Frame();
+        frame.words = convention.inRegisters(info);
+        frame.call = convention.words(info);
+        frame.object = convention.hasObject(info);
+        for (int w = 0; w < frame.words; w++)
+            homed.add(convention.register(w));
+        RegisterList saved = new RegisterList(sb);
+        saved.add(lr);
+        RegisterList restored = new RegisterList(sb);
+        restored.add(pc);
+        frame.home = new Instruction(Opcode.PUSH, homed);
+        frame.save = new Instruction(Opcode.PUSH, saved);
+        frame.base = new Instruction(Opcode.SUB, sb, sp, 4);
+        frame.reserve = new Instruction(Opcode.SUB, sp, sp, 0);
+        frame.release = new Instruction(Opcode.ADD, sp, sb, 4);
+        frame.restore = new Instruction(Opcode.POP, restored);
+        frame.unhome = new Instruction(Opcode.ADD, sp, sp, 4 * frame.words);
+        frame.ret = new Instruction(Opcode.BX, lr);
+        frame.loop = Instruction.label(label + "_loop");
+        frame.value = !(info.returnType() instanceof VoidType);
+        frame.self = label;
+        frame.end = label + "_end";
+        frame.body = Instruction.text("\n");
+        // The variables of the inlined calls go below the ones of the function
+        inliner.finish(info);
+
+        // Parameters kept in a register are set from their word
+        Code params = new Code();
+        for (Map.Entry<VariableInfo, Integer> e : parameters.entrySet()) {
+            VariableInfo vi = e.getKey();
+            Register r = convention.register(e.getValue());
+            if (vi.register() == null)
+                continue;
+            if (r != null)
+                params.append(generateInstruction(Opcode.MOV, vi.register(), r));
+            else
+                params.append(generateInstruction(Opcode.LDR, true, vi.register(), sb, -vi.displacement()));
+        }
 
-        String code =
+        Code code = new Code(
+            head,
             generateMultiComments(
                     "@@\n" +
                     " Function: " + info.toString() + "\n" +
-                    "@@\n", "") +
-            generateLabel(label) +
-            generateComment("Push link register, stack base and stack pointer", ARMEngine.Prefix) +
-            generateInstruction("PUSH", new RegisterList(lr)) +
-            generateInstruction("PUSH", new RegisterList(sb)) +
-            generateInstruction("PUSH", new RegisterList(sp)) +
-            "\n" +
-            generateComment("Body", ARMEngine.Prefix) +
-            blockcode +
-            "\n";
+                    "@@\n", ""),
+            generateLabel(label),
+            entry,
+            generateComment("Push link register and stack base, make the frame", ARMEngine.Prefix),
+            frame.home,
+            frame.save,
+            frame.base,
+            frame.reserve,
+            frame.loop,
+            params,
+            frame.body,
+            generateComment("Body", ARMEngine.Prefix),
+            blockcode,
+            "\n");
 
         // End of the function
         if (!(info.returnType() instanceof VoidType)) {
-            code +=
-                generateComment("Default return. It is not wise to reach this point", ARMEngine.Prefix) +
-                generateInstruction("MOV", info.register(), ht) +
-                generateInstruction("ADD", ht, ht, 4) +
-                "\n";
-        }
-
-        code +=
-            generateLabel(label + "_end") +
-            generateComment("Pop registers", ARMEngine.Prefix) +
-            generateInstruction("POP", new RegisterList(sp)) +
-            generateInstruction("POP", new RegisterList(sb)) +
-            generateInstruction("POP", new RegisterList(lr)) +
-            "\n" +
-            generateComment("Pop arguments", ARMEngine.Prefix);
+            frame.fallback = new Instruction(Opcode.MOV, info.register(), 0);
+            code.append(
+                generateComment("Default return. It is not wise to reach this point", ARMEngine.Prefix),
+                frame.fallback,
+                "\n");
+        }
+
+        code.append(
+            generateLabel(label + "_end"),
+            frame.release,
+            generateComment("Pop registers and jump back to preceding context", ARMEngine.Prefix),
+            frame.restore,
+            frame.unhome,
+            frame.ret,
+            "\n");
+
+        return finishFunction(code, info.frameSize(), frame);
+    }
+
+    /**
+     * Last step of the generation of a function: machine registers are given
+     * to the virtual ones, spill slots being put below the variables of the
+     * function, and a line reports on it. When asked, the control flow graph
+     * and the live registers are written as comments before each block.
+     * The prologue and the epilogue are then fixed: the link register is only
+     * saved when the function calls another one (it returns by popping it in
+     * pc), the stack base when the code uses it, and the room is only made
+     * for the variables left in the stack (see frameRoom) and the spill
+     * slots. The words passed in registers
+     * are pushed by one instruction when one of them may be read from the
+     * stack: the object, when the stack base is used, or a parameter not kept
+     * in a register; the link register
+     * is then popped, and the words dropped, before returning.
+     * @param code the code of the function
+     * @param size size of the variables of the function
+     * @param frame instructions of the prologue and of the epilogue
+     * @return the final code
+     */
+    private Code finishFunction(Code code, int size, Frame frame) throws MCSException {
+        InstructionList list = code.instructions();
+        boolean framed = !addressed.isEmpty();
+        int kept = promoted.size() - demote(list, frame);
+        int changed = propagated;
+        if (optimize >= 1)
+            list = immediates.run(propagateConstants(list, frame));
+        changed = propagated - changed;
+        int removed = (optimize >= 1 ? removeDeadCode(list) : 0);
+        int numbered = numbering.removed();
+        if (optimize >= 1)
+            list = numbering.run(list);
+        numbered = numbering.removed() - numbered;
+        if (numbered > 0)
+            removed += removeDeadCode(list);
+        int hoisted = invariants.moved();
+        if (optimize >= 2)
+            list = invariants.run(list);
+        hoisted = invariants.moved() - hoisted;
+        int indexed = induction.accesses();
+        if (optimize >= 2)
+            list = induction.run(list);
+        indexed = induction.accesses() - indexed;
+        if (indexed > 0)
+            removed += removeDeadCode(list);
+        int selected = selector.saved();
+        if (optimize >= 1 && selection)
+            list = selector.run(list);
+        selected = selector.saved() - selected;
+        boolean homed = false;
+        for (int w = (frame.object ? 1 : 0); w < frame.words; w++)
+            homed |= !parameters.containsValue(w);
+        for (Map.Entry<VariableInfo, Integer> e : parameters.entrySet()) {
+            VariableInfo vi = e.getKey();
+            if (e.getValue() < frame.words)
+                homed |= vi.register() == null || addressed.contains(vi);
+        }
+        inliner.record(frame.self, list, frame.loop, frame.body, frame.end, size, frame.call);
+        for (VariableInfo vi : promoted)
+            vi.freeRegister();
+        promoted.clear();
+        parameters.clear();
+        locals.clear();
+        addressed.clear();
+        addresses.clear();
+        constants.clear();
+        negated.clear();
+        complemented.clear();
+        compared.clear();
+
+        int depth = frameRoom(list, frame, size);
+        list = allocateRegisters(list, sb, depth);
+        int room = depth + 4 * allocator.slots();
+        // The instructions of the frame are not counted yet
+        int before = realInstructions(list) - 8;
+
+        // A call in tail position does not return here: it is not a reason
+        // to save the link register
+        Map<Integer, Integer> tails = tailCalls(list, frame);
+        boolean loops = false;
+        for (int i : tails.keySet())
+            loops |= isSelfCall(list.get(i), frame);
+
+        boolean leaf = true;
+        BitSet regs = new BitSet();
+        for (int i = 0; i < list.size(); i++) {
+            Instruction inst = list.get(i);
+            if (inst == frame.home || inst == frame.save || inst == frame.base || inst == frame.release
+                    || inst == frame.restore || inst == frame.unhome || tails.containsKey(i))
+                continue;
+            leaf &= inst.opcode().kind() != Opcode.Kind.Call || inst.opcode() == Opcode.SVC;
+            defuse.uses(inst, regs);
+            defuse.defs(inst, regs);
+        }
+        framed |= room > 0 || regs.get(DefUse.id(sb));
+        // The object is read from the stack, if ever, through the stack base
+        homed = (homed || (frame.object && regs.get(DefUse.id(sb)))) && frame.words > 0;
+        // A loop puts the words back where they were pushed
+        framed |= homed && loops;
+
+        // The stack base stays 12 below the words of the call, whatever is
+        // saved, and pushed
+        RegisterList saved = new RegisterList(), restored = new RegisterList();
+        if (framed) {
+            saved.add(sb);
+            restored.add(sb);
+        }
+        if (!leaf) {
+            saved.add(lr);
+            restored.add(homed ? lr : pc);
+        }
+        int below = 12 - 4 * saved.size() + (homed ? 0 : 4 * frame.words);
+        frame.save.setOperand(0, saved);
+        frame.restore.setOperand(0, restored);
+        frame.base.setOperand(2, below);
+        frame.release.setOperand(2, below);
+        frame.reserve.setOperand(2, room + below - 4);
+
+        Set<Instruction> dropped = new HashSet<Instruction>();
+        if (!homed) {
+            dropped.add(frame.home);
+            dropped.add(frame.unhome);
+        }
+        if (saved.isEmpty()) {
+            dropped.add(frame.save);
+            dropped.add(frame.restore);
+        }
+        if (!framed)
+            dropped.add(frame.base);
+        if (room == 0) {
+            dropped.add(frame.reserve);
+            dropped.add(frame.release);
+        }
+        if (!leaf && !homed)
+            dropped.add(frame.ret);
+        if (!loops)
+            dropped.add(frame.loop);
+
+        InstructionList done = new InstructionList(list.size() + 1);
+        boolean reported = false;
+        for (int i = 0; i < list.size(); i++) {
+            Instruction inst = list.get(i);
+            if (inst.isLabel() && !reported) {
+                done.add(Instruction.text("// Registers: " + allocator.report()
+                            + (kept > 0 ? ", " + kept + " locals kept in registers" : "")
+                            + (changed > 0 ? ", " + changed + " instructions made constant or unreachable" : "")
+                            + (removed > 0 ? ", " + removed + " useless instructions removed" : "")
+                            + (numbered > 0 ? ", " + numbered + " computations made again removed" : "")
+                            + (hoisted > 0 ? ", " + hoisted + " instructions moved out of loops" : "")
+                            + (indexed > 0 ? ", " + indexed + " accesses made through pointers" : "")
+                            + (selected > 0 ? ", " + selected + " instructions folded by the selector" : "") + "\n"));
+                reported = true;
+            }
+            if (tails.containsKey(i)) {
+                done.addAll(tailBranch(inst, frame, homed, saved, dropped.contains(frame.release) ? -1 : below));
+                i = tails.get(i);
+            } else if (!dropped.contains(inst)) {
+                done.add(inst);
+            }
+        }
+        if (optimize >= 2)
+            done = moveColdBlocks(done, frame);
+        int words = immediates.words();
+        if (optimize >= 1)
+            done = immediates.pool(peephole.run(done), frame.self);
+        heapbase += realInstructions(done) - before + immediates.words() - words;
+
+        if (!dumpAnalysis)
+            return new Code(done);
+
+        ControlFlowGraph cfg = new ControlFlowGraph(done);
+        Liveness live = new Liveness(cfg, defuse, exitLive).solve();
+
+        Code annotated = new Code();
+        for (BasicBlock b : cfg.blocks()) {
+            String succ = "";
+            for (int s : cfg.successors(b.index()))
+                succ += " B" + s;
+            if (cfg.isExit(b.index()))
+                succ += " exit";
+
+            annotated.append(
+                generateComment("B" + b.index() + " ->" + succ
+                    + " | in: " + registerNames(live.liveIn(b.index()))
+                    + " | out: " + registerNames(live.liveOut(b.index())), ""));
+
+            for (int i = b.start(); i < b.end(); i++)
+                annotated.append(done.get(i));
+        }
+
+        return annotated;
+    }
 
-        // As we push arguments in one order, we need to pop them in the
-        // other
-        if (info instanceof MethodInfo) { // It's a method ! We must first pop the object
-            code +=
-                generateFlushVariable(new IntegerType());
+    /**
+     * Put the blocks unlikely to run at the end of the function, after its
+     * return, so that the likely path falls through (no profile is known):
+     * - a block returning early, right after a conditional branch over it,
+     *   the branch being turned to go to it: the return is taken to be the
+     *   exceptional path, unless the other one is the default return;
+     * - the default return, when it is only reached by a branch: the return
+     *   before it then falls into the epilogue, and it branches to it.
+     * @param list the code of the function, once allocated
+     * @param frame the frame of the function
+     * @return the new code
+     */
+    private InstructionList moveColdBlocks(InstructionList list, Frame frame) {
+        ControlFlowGraph cfg = new ControlFlowGraph(list);
+        BasicBlock end = cfg.block(frame.end);
+        if (end == null)
+            return list;
+
+        // The default return, if alone in its block
+        int fallback = -1;
+        for (BasicBlock b : cfg.blocks()) {
+            if (b.last() == frame.fallback && frame.fallback != null && b.index() + 1 == end.index())
+                fallback = b.index();
+        }
+        if (fallback >= 0) {
+            BasicBlock b = cfg.block(fallback);
+            for (int i = b.start(); i < b.end(); i++) {
+                if (!list.get(i).opcode().isPseudo() && list.get(i) != frame.fallback)
+                    fallback = -1;
+            }
         }
 
-        ListIterator<Type> iter = info.parameters().listIterator(info.parameters().size());
-        while (iter.hasPrevious()) {
-            code += generateFlushVariable(iter.previous());
+        Map<Integer, Instruction> turned = new HashMap<Integer, Instruction>();
+        List<BasicBlock> cold = new ArrayList<BasicBlock>();
+        Map<BasicBlock, String> labels = new HashMap<BasicBlock, String>();
+        for (BasicBlock b : cfg.blocks()) {
+            int i = b.index();
+            Instruction last = b.last();
+            if (i == 0 || i + 1 >= cfg.size() || last == null || last.isConditional()
+                    || last.opcode() != Opcode.B || !frame.end.equals(last.target()))
+                continue;
+            if (cfg.predecessors(i).length != 1 || cfg.predecessors(i)[0] != i - 1 || b.label() != null)
+                continue;
+            BasicBlock before = cfg.block(i - 1);
+            Instruction branch = before.last();
+            // Blocks left unreachable (the branch over an else) are skipped
+            int after = i + 1;
+            while (after + 1 < cfg.size() && cfg.predecessors(after).length == 0 && cfg.block(after).label() == null)
+                after++;
+            String next = cfg.block(after).label();
+            if (branch == null || !branch.isConditional() || next == null || !next.equals(branch.target())
+                    || after == fallback || after == end.index())
+                continue;
+
+            String label = frame.self + "_cold_" + cold_nb++;
+            Instruction inverse = branch.copy();
+            if (branch.opcode() == Opcode.B) {
+                inverse.setCond(branch.cond().invert());
+                inverse.setOperand(0, label);
+            } else {
+                inverse.setOpcode(branch.opcode() == Opcode.CBZ ? Opcode.CBNZ : Opcode.CBZ);
+                inverse.setOperand(1, label);
+            }
+            turned.put(i - 1, inverse);
+            cold.add(b);
+            labels.put(b, label);
+        }
+        if (fallback >= 0) {
+            BasicBlock b = cfg.block(fallback);
+            if (cfg.predecessors(fallback).length > 0 && !cfg.block(fallback - 1).fallsThrough()) {
+                cold.add(b);
+                cold_nb++;
+            }
+        }
+        if (cold.isEmpty())
+            return list;
+
+        InstructionList done = new InstructionList(list.size() + 2 * cold.size());
+        for (BasicBlock b : cfg.blocks()) {
+            if (cold.contains(b))
+                continue;
+            for (int i = b.start(); i < b.end(); i++) {
+                Instruction inst = list.get(i);
+                done.add(inst == b.last() && turned.containsKey(b.index()) ? turned.get(b.index()) : inst);
+            }
         }
+        for (BasicBlock b : cold) {
+            if (labels.containsKey(b))
+                done.add(Instruction.label(labels.get(b)));
+            for (int i = b.start(); i < b.end(); i++)
+                done.add(list.get(i));
+            if (b.index() == fallback)
+                done.add(new Instruction(Opcode.B, frame.end));
+        }
+        return done;
+    }
+
+    /**
+     * Find the calls in tail position: the ones followed by nothing but the
+     * copies of their result to FR and the branch to the epilogue (or the
+     * epilogue itself). Only the calls passing all their words in registers
+     * are taken, the frame of the caller being gone when the callee runs.
+     * @param list the code of the function, once allocated
+     * @param frame the frame of the function
+     * @return the index of each tail call, with the index of the last
+     *         instruction it makes useless
+     */
+    private Map<Integer, Integer> tailCalls(InstructionList list, Frame frame) {
+        Map<Integer, Integer> tails = new HashMap<Integer, Integer>();
+        BitSet result = new BitSet();
+        for (int i = 0; i < list.size(); i++) {
+            Instruction call = list.get(i);
+            if (call.opcode() != Opcode.BL || call.isConditional() || call.target() == null)
+                continue;
+
+            result.clear();
+            result.set(DefUse.id(fr));
+            for (int j = i + 1; j < list.size(); j++) {
+                Instruction inst = list.get(j);
+                boolean end = inst.isLabel() && inst.text().equals(frame.end);
+                boolean branch = inst.opcode() == Opcode.B && !inst.isConditional() && frame.end.equals(inst.target());
+                if (end || branch) {
+                    if (!frame.value || result.get(DefUse.id(fr)))
+                        tails.put(i, (branch ? j : j - 1));
+                    break;
+                }
+                if (inst.isText())
+                    continue;
+                if (inst.opcode() != Opcode.MOV || inst.isConditional() || !inst.isRegister(0) || !inst.isRegister(1))
+                    break;
+                // A copy: its destination holds the result if its source does
+                result.set(DefUse.id((Register)inst.operand(0)), result.get(DefUse.id((Register)inst.operand(1))));
+            }
+        }
+        return tails;
+    }
 
-        code +=
-            generateComment("Jump back to preceding context", ARMEngine.Prefix) +
-            generateInstruction("BX", lr) + "\n";
+    /**
+     * Tell if a call in tail position can loop back to the start of the body:
+     * a call of the function itself, unless it is a method (the object may
+     * be of another class)
+     */
+    private boolean isSelfCall(Instruction call, Frame frame) {
+        return !frame.object && frame.self.equals(call.target());
+    }
+
+    /**
+     * Code replacing a call in tail position. A call of the function itself
+     * puts the words pushed back in their place and loops to the start of the
+     * body; another call undoes the frame, as the epilogue does, and branches
+     * to the callee, which returns to the caller of the function. The words
+     * passed in registers are kept in both cases.
+     * @param call the call
+     * @param frame the frame of the function
+     * @param homed the register words are pushed
+     * @param saved registers saved by the prologue
+     * @param below displacement of the stack pointer from the stack base before the
+     *              registers are restored (-1 if it is already there)
+     * @return the code
+     */
+    private InstructionList tailBranch(Instruction call, Frame frame, boolean homed, RegisterList saved, int below) {
+        InstructionList code = new InstructionList();
+        if (isSelfCall(call, frame)) {
+            for (int w = 0; homed && w < frame.words; w++)
+                code.add(new Instruction(Opcode.STR, Cond.AL, false, Instruction.Addressing.Offset,
+                            convention.register(w), sb, 12 + 4 * w, null));
+            code.add(new Instruction(Opcode.B, frame.loop.text()));
+            return code;
+        }
 
+        if (below >= 0)
+            code.add(new Instruction(Opcode.ADD, sp, sb, below));
+        if (!saved.isEmpty()) {
+            RegisterList restored = new RegisterList();
+            restored.addAll(saved);
+            code.add(new Instruction(Opcode.POP, restored));
+        }
+        if (homed)
+            code.add(new Instruction(Opcode.ADD, sp, sp, 4 * frame.words));
+        code.add(new Instruction(Opcode.B, call.target()));
         return code;
     }
 
+    /**
+     * Propagate the constants through the variables and across the branches
+     * (see SSA and ConstantPropagation): an operation whose result is always
+     * the same constant becomes a load of this constant, a branch whose
+     * condition is known becomes a branch or nothing, and the instructions
+     * of the blocks never reached are removed, the labels and the frame
+     * being kept. The operations whose result is no longer read go next
+     * (see removeDeadCode).
+     * @param list the code of the function
+     * @param frame the frame of the function
+     * @return the new code
+     */
+    private InstructionList propagateConstants(InstructionList list, Frame frame) {
+        long start = System.nanoTime();
+        ControlFlowGraph cfg = new ControlFlowGraph(list);
+        SSA ssa = new SSA(cfg, new Dominators(cfg), defuse);
+        ssaTime += System.nanoTime() - start;
+        ConstantPropagation cp = new ConstantPropagation(ssa);
+        propagationTime += cp.time();
+        int size = realInstructions(list);
+        propagatedFunctions++;
+        propagatedInstructions += size;
+        largest = Math.max(largest, size);
+        phis += ssa.phiCount();
+
+        Set<Instruction> kept = new HashSet<Instruction>();
+        for (Instruction inst : new Instruction[] { frame.home, frame.save, frame.base, frame.reserve,
+                    frame.release, frame.restore, frame.unhome, frame.ret })
+            kept.add(inst);
+
+        InstructionList done = new InstructionList(list.size());
+        for (BasicBlock b : cfg.blocks()) {
+            for (int i = b.start(); i < b.end(); i++) {
+                Instruction inst = list.get(i);
+                Boolean taken = cp.taken(i);
+                Integer c = cp.constant(i);
+                if (inst.opcode().isPseudo() || kept.contains(inst)) {
+                    done.add(inst);
+                } else if (!cp.isReached(b.index())) {
+                    propagated++;
+                } else if (taken != null) {
+                    if (taken)
+                        done.add(new Instruction(Opcode.B, inst.target()));
+                    propagated++;
+                } else if (c != null && !inst.setsFlags() && !isConstantLoad(inst, c)) {
+                    for (Instruction load : Immediates.load((Register)inst.operand(0), c))
+                        done.add(load);
+                    propagated++;
+                } else {
+                    done.add(inst);
+                }
+            }
+        }
+        return done;
+    }
 
     /**
-     * Generate the code for the 'return' keyword
+     * Tell if an instruction already loads a constant (or its upper half)
+     */
+    private static boolean isConstantLoad(Instruction inst, int c) {
+        if (inst.isConditional())
+            return false;
+        if (inst.opcode() == Opcode.MOVT)
+            return true;
+        if (inst.opcode() == Opcode.MVN)
+            return Integer.valueOf(~c).equals(inst.operand(1)) && inst.operand(2) == null;
+        return (inst.opcode() == Opcode.MOV || inst.opcode() == Opcode.MOVW)
+            && Integer.valueOf(c).equals(inst.operand(1)) && inst.operand(2) == null;
+    }
+
+    /**
+     * Report on the constant propagation of all the functions so far
+     */
+    public String logPropagation() {
+        if (propagatedFunctions == 0)
+            return "No constant propagation\n";
+        return String.format("%d functions, %d instructions (%d in the biggest), %d phis: "
+                + "SSA built in %.2f ms (%.0f ns per instruction), propagation in %.2f ms; "
+                + "%d instructions made constant or unreachable\n",
+                propagatedFunctions, propagatedInstructions, largest, phis,
+                ssaTime / 1e6, (double)ssaTime / Math.max(propagatedInstructions, 1),
+                propagationTime / 1e6, propagated);
+    }
+
+    /**
+     * Remove the operations whose result is never read: the loads of the
+     * constants an operation was made on at compile time, the conditions of
+     * the branches dropped (see generateSimplified). Only the operations
+     * writing a virtual register, without setting the flags, are removed; an
+     * operation reading the register it writes (MOVT, a variable increased)
+     * does not count as a read. The comparisons whose flags are never read
+     * are removed too (see removeDeadFlags).
+     * @param list the code of the function
+     * @return the number of instructions removed
+     */
+    private int removeDeadCode(InstructionList list) {
+        int removed = 0;
+        boolean changed = true;
+        BitSet read = new BitSet(), uses = new BitSet(), defs = new BitSet();
+        while (changed) {
+            int flags = removeDeadFlags(list);
+            removed += flags;
+            read.clear();
+            for (Instruction inst : list) {
+                uses.clear();
+                defuse.uses(inst, uses);
+                if (isPureOperation(inst)) {
+                    defs.clear();
+                    defuse.defs(inst, defs);
+                    uses.andNot(defs);
+                }
+                read.or(uses);
+            }
+
+            changed = false;
+            for (int i = 0; i < list.size(); i++) {
+                Instruction inst = list.get(i);
+                if (!isPureOperation(inst))
+                    continue;
+                defs.clear();
+                defuse.defs(inst, defs);
+                if (!defs.intersects(read)) {
+                    list.set(i, null);
+                    removed++;
+                    changed = true;
+                }
+            }
+            changed |= flags > 0;
+            list.compact();
+        }
+        return removed;
+    }
+
+    /**
+     * Drop the flags no instruction reads: a comparison is removed, an
+     * operation loses its S suffix. The flags are followed from block to
+     * block; they are not read after a return, and hand-written code may
+     * read them.
+     * @param list the code of the function
+     * @return the number of comparisons removed
+     */
+    private int removeDeadFlags(InstructionList list) {
+        ControlFlowGraph cfg = new ControlFlowGraph(list);
+        int n = cfg.size();
+        boolean[] exposed = new boolean[n], through = new boolean[n], in = new boolean[n];
+        for (BasicBlock b : cfg.blocks()) {
+            through[b.index()] = true;
+            for (int i = b.start(); i < b.end() && through[b.index()]; i++) {
+                Instruction inst = list.get(i);
+                exposed[b.index()] |= readsFlags(inst);
+                through[b.index()] = !inst.setsFlags() && inst.opcode().kind() != Opcode.Kind.Compare
+                    || inst.isConditional();
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = n - 1; b >= 0; b--) {
+                boolean live = exposed[b];
+                for (int s : cfg.successors(b))
+                    live |= through[b] && in[s];
+                if (live != in[b]) {
+                    in[b] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        int removed = 0;
+        for (BasicBlock b : cfg.blocks()) {
+            boolean live = false;
+            for (int s : cfg.successors(b.index()))
+                live |= in[s];
+            for (int i = b.end() - 1; i >= b.start(); i--) {
+                Instruction inst = list.get(i);
+                boolean compare = inst.opcode().kind() == Opcode.Kind.Compare;
+                if ((compare || inst.setsFlags()) && !live) {
+                    if (compare) {
+                        list.set(i, null);
+                        removed++;
+                        continue;
+                    }
+                    inst.setFlags(false);
+                } else if ((compare || inst.setsFlags()) && !inst.isConditional()) {
+                    live = false;
+                }
+                live |= readsFlags(inst);
+            }
+        }
+        list.compact();
+        return removed;
+    }
+
+    /**
+     * Tell if an instruction may read the flags
+     */
+    private static boolean readsFlags(Instruction inst) {
+        return inst.cond() != Cond.AL || inst.opcode() == Opcode.ADC || inst.opcode() == Opcode.RAW;
+    }
+
+    /**
+     * Tell if an instruction only writes virtual registers, from its operands
+     */
+    private boolean isPureOperation(Instruction inst) {
+        if (inst.opcode().kind() != Opcode.Kind.Data || inst.setsFlags())
+            return false;
+        BitSet defs = new BitSet();
+        defuse.defs(inst, defs);
+        return !defs.isEmpty() && defs.nextSetBit(0) >= DefUse.FirstVirtual;
+    }
+
+    /**
+     * Put back in the stack the promoted variables whose address is used:
+     * the copies from and to their register become loads and stores. An
+     * address computed but never read (before a call) does not count. A
+     * parameter passed in a register is then pushed in its word at the
+     * entry (see finishFunction): its copy at the start of the body goes.
+     * @param list the code of the function
+     * @param frame the prologue and the epilogue of the function
+     * @return the number of variables put back
+     */
+    private int demote(InstructionList list, Frame frame) {
+        BitSet regs = new BitSet();
+        for (Instruction inst : list)
+            defuse.uses(inst, regs);
+        for (Map.Entry<Integer, VariableInfo> e : addresses.entrySet()) {
+            if (regs.get(e.getKey()))
+                addressed.add(e.getValue());
+        }
+
+        Map<Integer, VariableInfo> back = new HashMap<Integer, VariableInfo>();
+        for (VariableInfo vi : promoted) {
+            if (addressed.contains(vi))
+                back.put(DefUse.id(vi.register()), vi);
+        }
+        if (back.isEmpty())
+            return 0;
+
+        boolean entry = false;
+        for (int i = 0; i < list.size(); i++) {
+            Instruction inst = list.get(i);
+            if (inst == frame.loop || inst == frame.body)
+                entry = (inst == frame.loop);
+            if (inst.opcode() != Opcode.MOV || !inst.isRegister(0) || !inst.isRegister(1))
+                continue;
+
+            VariableInfo to = back.get(DefUse.id((Register)inst.operand(0)));
+            VariableInfo from = back.get(DefUse.id((Register)inst.operand(1)));
+            Integer w = (to == null ? null : parameters.get(to));
+            Register word = (w == null ? null : convention.register(w));
+            if (entry && word != null && DefUse.id(word) == DefUse.id((Register)inst.operand(1)))
+                list.set(i, null);
+            else if (to != null)
+                list.set(i, new Instruction(Opcode.STR, inst.cond(), false, Instruction.Addressing.Offset,
+                            inst.operand(1), sb, -to.displacement(), null));
+            else if (from != null)
+                list.set(i, new Instruction(Opcode.LDR, inst.cond(), false, Instruction.Addressing.Offset,
+                            inst.operand(0), sb, -from.displacement(), null));
+        }
+        list.compact();
+        return back.size();
+    }
+
+    /**
+     * Room the variables of a function take below the stack base: down to
+     * the deepest word the body reads, writes or takes the address of there
+     * (a variable kept in the stack, put back in it, or of an inlined call),
+     * none when they are all in registers. When the stack base is used in
+     * another way (inline assembly), every variable has its room.
+     * @param list the code of the function, before the allocation
+     * @param frame the prologue and the epilogue of the function
+     * @param size size of the variables of the function
+     * @return the room, the first spill slot going below it
+     */
+    private int frameRoom(InstructionList list, Frame frame, int size) {
+        int depth = 0;
+        BitSet regs = new BitSet();
+        for (Instruction inst : list) {
+            if (inst == frame.home || inst == frame.save || inst == frame.base || inst == frame.reserve
+                    || inst == frame.release || inst == frame.restore || inst == frame.unhome)
+                continue;
+            regs.clear();
+            defuse.uses(inst, regs);
+            defuse.defs(inst, regs);
+            if (!regs.get(DefUse.id(sb)))
+                continue;
+
+            regs.clear();
+            defuse.defs(inst, regs);
+            Opcode.Kind kind = inst.opcode().kind();
+            boolean fromBase = !regs.get(DefUse.id(sb)) && inst.isRegister(1)
+                && DefUse.id((Register)inst.operand(1)) == DefUse.id(sb)
+                && inst.operand(2) instanceof Integer && inst.operand(3) == null;
+            int disp;
+            if (fromBase && (kind == Opcode.Kind.Load || kind == Opcode.Kind.Store)
+                    && inst.addressing() == Instruction.Addressing.Offset
+                    && inst.isRegister(0) && DefUse.id((Register)inst.operand(0)) != DefUse.id(sb))
+                disp = (Integer)inst.operand(2);
+            else if (fromBase && (inst.opcode() == Opcode.ADD || inst.opcode() == Opcode.SUB))
+                disp = (inst.opcode() == Opcode.ADD ? 1 : -1) * (Integer)inst.operand(2);
+            else
+                return size;
+            // The words above the stack base are saved registers and parameters
+            if (disp <= 0)
+                depth = Math.max(depth, 4 - disp);
+        }
+        return depth;
+    }
+
+    /**
+     * Names of a set of registers (utility)
+     * @param regs the numbers of the registers
+     * @return the names, separated by spaces
+     */
+    private String registerNames(BitSet regs) {
+        String names = "";
+        for (int r = regs.nextSetBit(0); r >= 0; r = regs.nextSetBit(r + 1))
+            names += (names.isEmpty() ? "" : " ") + DefUse.name(r);
+        return names;
+    }
+
+
+    /**
+     * Generate the code for the 'return' keyword. The value is left in the
+     * function return register; a composite value is returned by its handle,
+     * the block it designates being the storage the caller sees.
      * @param info the info of the fuunction
      * @param rval the register containing the value to be returned
      * @return the generated code
      */
-    public String generateFunctionReturn(FunctionInfo info, Register rval) throws MCSException {
-        String code = "", label = info.label();
+    public Code generateFunctionReturn(FunctionInfo info, Register rval) throws MCSException {
+        Code code = new Code();
+        String label = info.label();
 
         if (!(info.returnType() instanceof VoidType)) {
-            code +=
-                generateInstruction("MOV", info.register(), ht) +
-                generateInstruction("STMIA", generateRegister(ht) + "!", new RegisterList(rval));
+            code.append(
+                generateInstruction(Opcode.MOV, info.register(), rval));
 
             info.register().setStatus(Register.Status.Loaded);
             rval.setStatus(Register.Status.Used);
         }
 
-        code +=
-            generateInstruction("B", label + "_end") + "\n";
+        code.append(
+            generateInstruction(Opcode.B, label + "_end"),
+            "\n");
 
         return code;
     }
 
     /**
-     * Generate the code for pushing an argument
+     * Generate the code for pushing an argument. The arguments are
+     * evaluated from the first one, but only passed at the call, once they
+     * are all known (see generateCall)
      * @param reg register in which the argument is stored
      * @return the generated code
      */
-    public String generateFunctionPushArgument(Register reg) throws MCSException  { 
-        String code =
-            generateInstruction("PUSH", new RegisterList(reg));
+    public Code generateFunctionPushArgument(Register reg) throws MCSException  { 
+        arguments.add(reg);
         reg.setStatus(Register.Status.Used);
+        return new Code();
+    }
+
+    /**
+     * Generate the code for a call: a small function is put in place of it
+     * (see Inliner); otherwise the words passed on the stack are pushed
+     * from the last one, the others are copied in their register, then the
+     * branch is made and the stack words are popped (see CallingConvention)
+     * @param label label of the function
+     * @param info info of the function
+     * @param robj register containing the object (method), null if none or
+     *             if the callee makes it (constructor)
+     * @return the generated code
+     */
+    private Code generateCall(String label, FunctionInfo info, Register robj) throws MCSException {
+        int n = info.parameters().size();
+        List<Register> words = new ArrayList<Register>();
+        if (convention.hasObject(info))
+            words.add(robj);
+        List<Register> args = arguments.subList(arguments.size() - n, arguments.size());
+        words.addAll(args);
+        args.clear();
+
+        // A small function is put in place of the call; a method only when
+        // the object runs it, and not the one of the virtual table
+        InstructionList inlined = null;
+        if (!(info instanceof ConstructorInfo) && label.equals(info.label()))
+            inlined = inliner.expand(label, words, convention);
+        if (inlined == null)
+            return generateCallWords(label, info, words);
+        if (!convention.hasObject(info))
+            return new Code(generateComment("Inlined " + label, ARMEngine.Prefix), inlined);
+
+        String call = label + "_call_" + call_nb, join = label + "_join_" + call_nb;
+        call_nb++;
+        return new Code(
+            generateComment("Inlined " + label + ", unless the virtual table is used", ARMEngine.Prefix),
+            generateInstruction(Opcode.LDR, true, oi, robj),
+            generateInstruction(Opcode.CMP, oi, ((MethodInfo)info).parent().classId()),
+            generateInstruction(Opcode.B, Cond.EQ, call, null),
+            inlined,
+            generateInstruction(Opcode.B, join),
+            generateLabel(call),
+            generateCallWords(label, info, words),
+            generateLabel(join));
+    }
+
+    /**
+     * Generate the code for a call, once its words are known (see generateCall)
+     * @param label label of the function
+     * @param info info of the function
+     * @param words registers holding the words of the call (the object may be null)
+     * @return the generated code
+     */
+    private Code generateCallWords(String label, FunctionInfo info, List<Register> words) throws MCSException {
+        Code code = new Code();
+        for (int w = words.size() - 1; w >= CallingConvention.Registers; w--)
+            code.append(generateInstruction(Opcode.PUSH, new RegisterList(words.get(w))));
+
+        List<Register> passed = new ArrayList<Register>();
+        for (int w = 0; w < convention.inRegisters(info); w++) {
+            if (words.get(w) == null)
+                continue;
+            code.append(generateInstruction(Opcode.MOV, convention.register(w), words.get(w)));
+            passed.add(convention.register(w));
+        }
+
+        Instruction bl = new Instruction(Opcode.BL, label);
+        bl.setArguments(passed);
+        code.append(generateInstruction(bl));
+        if (convention.stackSize(info) > 0)
+            code.append(generateInstruction(Opcode.ADD, sp, sp, convention.stackSize(info)));
         return code;
     }
 
@@ -785,10 +1854,8 @@ public class ARMEngine extends AbstractMachine {
      * @param info info of the function
      * @return the generated code
      */
-    public String generateFunctionCall(FunctionInfo info) throws MCSException  {
-        String code =
-            generateInstruction("BL", info.label());
-        return code;
+    public Code generateFunctionCall(FunctionInfo info) throws MCSException  {
+        return generateCall(info.label(), info, null);
     }
 
     /**
@@ -797,25 +1864,26 @@ public class ARMEngine extends AbstractMachine {
      * @param blockcode code of the content of the method
      * @return the generated code
      */
-    public String generateMethodDeclaration(MethodInfo info, String blockcode) throws MCSException {
+    public Code generateMethodDeclaration(MethodInfo info, Code blockcode) throws MCSException {
         Klass kmeth = info.parent();
-        String code =
-            generateComment("Vtable redirection", ARMEngine.Prefix) +
-            // We need to retrieve the object's id. First, we get the address of the object,
-            // which is just below the context, so with a displacement of -16
-            generateInstruction("LDR", true, oi, sb, kmeth.thisDisplacement(this)) +
-            // Then we load the very first field of the object (displacement 0)
-            generateInstruction("LDR", true, oi, oi) +
+        Code entry = new Code(
+            generateComment("Vtable redirection", ARMEngine.Prefix),
+            // We need to retrieve the object's id: it is the very first field
+            // (displacement 0) of the object, passed in the first register,
+            // before the frame is made, so that the method found in the vtable
+            // gets the registers and the stack of the call
+            generateInstruction(Opcode.LDR, true, oi, convention.register(0)),
             // We then compare the id of the retrieved object to the id of the class
-            generateInstruction("CMP", oi, kmeth.classId()) +
+            generateInstruction(Opcode.CMP, oi, kmeth.classId()),
             // Then we branch to the vtable if needed
-            generateInstruction("BEQ", info.shortLabel() + ".vtable") +
-            "\n" +
+            generateInstruction(Opcode.B, Cond.EQ, info.shortLabel() + ".vtable", null),
+            "\n");
+        Code code = new Code(
             // Next part is the "real code" that we labellize with .body
-            generateLabel(info.label() + "_body") +
-            blockcode;
+            generateLabel(info.label() + "_body"),
+            blockcode);
 
-        return generateFunctionDeclaration(info, code);
+        return generateFunctionDeclaration(info, new Code(), entry, code);
     }
 
     /**
@@ -824,10 +1892,9 @@ public class ARMEngine extends AbstractMachine {
      * @param robj register containing the address of the object on which we call the method
      * @return the generated code
      */
-    public String generateMethodCall(MethodInfo info, Register robj) throws MCSException {
-        String code =
-            generateFunctionPushArgument(robj) +
-            generateFunctionCall(info);
+    public Code generateMethodCall(MethodInfo info, Register robj) throws MCSException {
+        Code code = generateCall(info.label(), info, robj);
+        robj.setStatus(Register.Status.Used);
         return code;
     }
 
@@ -839,38 +1906,45 @@ public class ARMEngine extends AbstractMachine {
      * @param bcode code of the block
      * @return the generated code
      */
-    public String generateConstructorDeclaration(ConstructorInfo info, ConstructorInfo base, String pcode, String bcode) throws MCSException {
-        Register r = getNextUnusedRegister();
-
-        String codeinst =
-            generateLabel(info.label() + "_inst") +
-            generateComment("Instanciate the class", ARMEngine.Prefix) +
-            generateInstruction("MOV", info.register(), ht) +
-            generateComment("Real ID of the object", ARMEngine.Prefix) +
-            generateInstruction("MOV", r, info.parent().classId()) +
-            generateInstruction("STR", true, r, info.register()) +
-            generateComment("Instanciate attributes", ARMEngine.Prefix);
+    public Code generateConstructorDeclaration(ConstructorInfo info, ConstructorInfo base, Code pcode, Code bcode) throws MCSException {
+        Register r = nextVirtualRegister();
+
+        Code codeinst = new Code(
+            generateLabel(info.label() + "_inst"),
+            generateComment("Instanciate the class", ARMEngine.Prefix),
+            generateInstruction(Opcode.MOV, info.register(), ht),
+            generateComment("Real ID of the object", ARMEngine.Prefix),
+            generateInstruction(Opcode.MOV, r, info.parent().classId()),
+            generateInstruction(Opcode.STR, true, r, info.register()),
+            generateComment("Instanciate attributes", ARMEngine.Prefix));
 
         RegisterWrapper raddr = new RegisterWrapper();
         Klass k = info.parent();
-        codeinst +=
-            generateAllocate(k, raddr, null);
-
-        // this is the last argument, we push it
-        codeinst +=
-            generateInstruction("PUSH", new RegisterList(raddr.get()));
+        codeinst.append(
+            generateAllocate(k, raddr, null));
+
+        // The object is the first word of the call, the arguments being
+        // already in the next registers: this part is allocated with the
+        // constructor, so that they are kept (see generateConstructorCall)
+        codeinst.append(
+            generateInstruction(Opcode.MOV, convention.register(0), raddr.get()));
+        raddr.get().setStatus(Register.Status.Used);
 
         info.register().setStatus(Register.Status.Loaded);
 
-        String ecode = bcode;
+        Code ecode = bcode;
 
-        if (base != null)
-            ecode =
-                pcode +
-                generateInstruction("BL", base.label()) +
-                bcode;
+        // The base constructor is given the arguments and the object
+        if (base != null) {
+            RegisterWrapper rthis = new RegisterWrapper();
+            ecode = new Code(
+                pcode,
+                generateLoadFromStack(info.parent().thisDisplacement(this), rthis),
+                generateCall(base.label(), base, rthis.get()),
+                bcode);
+        }
 
-        return codeinst + generateFunctionDeclaration(info, ecode);
+        return generateFunctionDeclaration(info, codeinst, new Code(), ecode);
     }
 
     /**
@@ -878,10 +1952,9 @@ public class ARMEngine extends AbstractMachine {
      * @param info info of the constructor to call
      * @return the generated code
      */
-    public String generateConstructorCall(ConstructorInfo info) throws MCSException {
-        String code =
-            generateInstruction("BL", info.label() + "_inst");
-        return code;
+    public Code generateConstructorCall(ConstructorInfo info) throws MCSException {
+        // The object is made by the constructor (see generateConstructorDeclaration)
+        return generateCall(info.label() + "_inst", info, null);
     }
 
     ////////////////////////////// MISC ///////////////////////////////
@@ -892,58 +1965,85 @@ public class ARMEngine extends AbstractMachine {
      * @param enclose enclose the last parameters in brackets (for addressing)
      * @return the generated code
      */
-    public String generateInstruction(String inst, List<Object> params) throws MCSException {
-        
-        heapbase++;
-        boolean first = true;
-        String code =
-            ARMEngine.Prefix + inst;
+    public Code generateInstruction(String inst, List<Object> params) throws MCSException {
+        if (params.size() > 4)
+            throw new MCSWrongUseException("generateInstruction()", "an instruction has at most 4 operands, not " + params.size());
 
-        for (Object o : params) {
-            code += (first ? "" : ",") + ARMEngine.Spacing + format(o);
-            if (first) first = false;
-        }
+        Object[] p = new Object[4];
+        for (int i = 0; i < params.size(); i++)
+            p[i] = params.get(i);
 
-        return code + "\n";
-        
+        inliner.assembly();
+        return generateInstruction(Instruction.fromMnemonic(inst, Instruction.Addressing.None, p[0], p[1], p[2], p[3]));
     }
 
-    public String generateInstruction(String inst, boolean enclose, Object p1, Object p2, Object p3) throws MCSException {
-        
-        heapbase++;
-        String code =
-            ARMEngine.Prefix + inst;
+    public Code generateInstruction(String inst, boolean enclose, Object p1, Object p2, Object p3) throws MCSException {
+        return generateInstruction(Instruction.fromMnemonic(inst,
+                    (enclose ? Instruction.Addressing.Offset : Instruction.Addressing.None), p1, p2, p3, null));
+    }
 
-        if (p1 != null)
-            code += ARMEngine.Spacing + format(p1);
+    public Code generateInstruction(String inst, Object p1, Object p2, Object p3) throws MCSException {
+        return generateInstruction(inst, false, p1, p2, p3);
+    }
 
-        if (p2 != null)
-            code += "," + ARMEngine.Spacing +  (enclose ? "[" : "") + format(p2);
+    public Code generateInstruction(String inst, boolean enclose, Object p1, Object p2) throws MCSException {
+        return generateInstruction(inst, enclose, p1, p2, null);
+    }
 
-        if (p3 != null)
-            code += "," + (enclose ? " " : ARMEngine.Spacing) + format(p3);
+    public Code generateInstruction(String inst, Object p1, Object p2) throws MCSException {
+        return generateInstruction(inst, false, p1, p2);
+    }
 
-        if (p2 != null && enclose)
-            code += "]";
+    public Code generateInstruction(String inst, Object p1) throws MCSException {
+        return generateInstruction(inst, p1, null);
+    }
 
-        return code + "\n";
-        
+    /**
+     * Generate an instruction from its opcode (same parameters as above)
+     */
+    private Code generateInstruction(Opcode op, boolean enclose, Object p1, Object p2, Object p3) throws MCSException {
+        return generateInstruction(new Instruction(op, Cond.AL, false,
+                    (enclose ? Instruction.Addressing.Offset : Instruction.Addressing.None), p1, p2, p3, null));
     }
 
-    public String generateInstruction(String inst, Object p1, Object p2, Object p3) throws MCSException {
-        return generateInstruction(inst, false, p1, p2, p3);
+    private Code generateInstruction(Opcode op, Object p1, Object p2, Object p3) throws MCSException {
+        return generateInstruction(op, false, p1, p2, p3);
     }
 
-    public String generateInstruction(String inst, boolean enclose, Object p1, Object p2) throws MCSException {
-        return generateInstruction(inst, enclose, p1, p2, null);
+    private Code generateInstruction(Opcode op, boolean enclose, Object p1, Object p2) throws MCSException {
+        return generateInstruction(op, enclose, p1, p2, null);
     }
 
-    public String generateInstruction(String inst, Object p1, Object p2) throws MCSException {
-        return generateInstruction(inst, false, p1, p2);
+    private Code generateInstruction(Opcode op, Object p1, Object p2) throws MCSException {
+        return generateInstruction(op, false, p1, p2);
     }
 
-    public String generateInstruction(String inst, Object p1) throws MCSException {
-        return generateInstruction(inst, p1, null);
+    private Code generateInstruction(Opcode op, Object p1) throws MCSException {
+        return generateInstruction(op, p1, null);
+    }
+
+    /**
+     * Generate a conditional instruction
+     * @param op opcode
+     * @param cond condition
+     * @param p1,p2 parameters
+     * @return the generated code
+     */
+    private Code generateInstruction(Opcode op, Cond cond, Object p1, Object p2) throws MCSException {
+        return generateInstruction(new Instruction(op, cond, p1, p2, null));
+    }
+
+    /**
+     * Wrap an instruction into code, after checking its operands
+     * @param inst the instruction
+     * @return the generated code
+     */
+    private Code generateInstruction(Instruction inst) throws MCSException {
+        for (int i = 0; i < 4; i++)
+            checkOperand(inst.operand(i));
+
+        heapbase++;
+        return new Code(inst);
     }
 
     /**
@@ -951,8 +2051,8 @@ public class ARMEngine extends AbstractMachine {
      * @param label
      * @return the generated code
      */
-    public String generateLabel(String label) throws MCSException {
-        return label + ":\n";
+    public Code generateLabel(String label) throws MCSException {
+        return new Code(Instruction.label(label));
     }
 
     /**
@@ -973,6 +2073,17 @@ public class ARMEngine extends AbstractMachine {
         return "$" + val;
     }
 
+    /**
+     * Generate the address of a variable, for inline assembly. A variable
+     * kept in a register goes back to the stack (see demote).
+     * @param info info of the variable
+     * @return the generated code
+     */
+    public String generateVariableAddress(VariableInfo info) throws MCSException {
+        addressed.add(info);
+        return "[sb, " + generateDirect(-info.displacement()) + "]";
+    }
+
     /**
      * Generate a register
      * @param reg the register
@@ -1034,17 +2145,12 @@ public class ARMEngine extends AbstractMachine {
         return code + "}";
     }
 
-    private String format(Object o) throws MCSException {
-        if (o instanceof String)
-            return (String)o;
-        else if (o instanceof Integer)
-            return generateDirect((Integer)o);
-        else if (o instanceof Register)
-            return generateRegister((Register)o);
-        else if (o instanceof RegisterList)
-            return generateRegisterList((RegisterList)o);
+    private void checkOperand(Object o) throws MCSException {
+        if (o == null || o instanceof String || o instanceof Integer || o instanceof Shift
+                || o instanceof Register || o instanceof RegisterList)
+            return;
 
-        throw new MCSWrongUseException("format()", "you used it with an object of type '" + o.getClass().getName() + "'");
+        throw new MCSWrongUseException("generateInstruction()", "you used it with an object of type '" + o.getClass().getName() + "'");
     }
 
     /**
@@ -1053,12 +2159,12 @@ public class ARMEngine extends AbstractMachine {
      * @param indent indent to apply
      * @return the generated code
      */
-    public String generateComment(String com, String indent) throws MCSException {
+    public Code generateComment(String com, String indent) throws MCSException {
         
         if (com.equals("@@"))
-            return indent + "////////////////////////////////////////////////////////////////////\n";
+            return new Code(indent + "////////////////////////////////////////////////////////////////////\n");
         else
-            return indent + "// " + com + "\n";
+            return new Code(indent + "// " + com + "\n");
         
     }
 
@@ -1068,12 +2174,12 @@ public class ARMEngine extends AbstractMachine {
      * @param indent indent to apply
      * @return the generated code
      */
-    public String generateMultiComments(String com, String indent) throws MCSException {
-        String code = "";
+    public Code generateMultiComments(String com, String indent) throws MCSException {
+        Code code = new Code();
 
         String[] lines = com.split("\n");
         for (String l : lines)
-            code += generateComment(l, indent);
+            code.append(generateComment(l, indent));
 
         return code;
     }
@@ -1093,7 +2199,7 @@ public class ARMEngine extends AbstractMachine {
      * @param raddr (out) register that will contain the address
      * @return the generated code
      */
-    public String generateMakeAddress(DisplacementList dlist, RegisterWrapper rvalue, RegisterWrapper raddr) throws MCSException {
+    public Code generateMakeAddress(DisplacementList dlist, RegisterWrapper rvalue, RegisterWrapper raddr) throws MCSException {
         return generateMakeAddress(dlist, sb, rvalue, raddr);
     }
 
@@ -1106,42 +2212,66 @@ public class ARMEngine extends AbstractMachine {
      * @param raddr (out) register that will contain the address
      * @return the generated code
      */
-    public String generateMakeAddress(DisplacementList dlist, Register rbaseaddr, RegisterWrapper rvalue, RegisterWrapper raddr) throws MCSException {
-        String code = "", codeaddr = "";
+    public Code generateMakeAddress(DisplacementList dlist, Register rbaseaddr, RegisterWrapper rvalue, RegisterWrapper raddr) throws MCSException {
+        Code code = new Code();
 
-        Register ra = getNextUnusedRegister();
+        Register ra = nextVirtualRegister();
         raddr.set(ra);
         ra.setStatus(Register.Status.Loaded);
         
-        Register rv = getNextUnusedRegister();
+        Register rv = nextVirtualRegister();
         rvalue.set(rv);
         rv.setStatus(Register.Status.Loaded);
         
         DisplacementPair dp;
 
+        // Nothing to follow (result of a call): the value is the base register,
+        // copied at once since the next call changes it
+        if (dlist.isEmpty()) {
+            rbaseaddr.setStatus(Register.Status.Used);
+            return generateInstruction(Opcode.MOV, rv, rbaseaddr);
+        }
+
+        // Each step writes a new register, so that the steps made again by
+        // the next access to the same object can be found (see ValueNumbering)
+
         // First displacement is the one of the struct itself
         // it is special because it is relative to the stack
         ListIterator<DisplacementPair> iter = dlist.listIterator();
         dp = iter.next();
-        code +=
-            generateInstruction("LDR", true, rv, rbaseaddr, -dp.disp);
+        VariableInfo local = (rbaseaddr == sb ? locals.get(dp.disp) : null);
+        if (local != null && local.register() != null) {
+            code.append(
+                generateInstruction(Opcode.MOV, rv, local.register()));
+            if (!iter.hasNext())
+                addresses.put(DefUse.id(ra), local);
+        } else {
+            code.append(
+                generateInstruction(Opcode.LDR, true, rv, rbaseaddr, -dp.disp));
+        }
 
         if (!iter.hasNext())
-            code += generateInstruction("ADD", ra, rbaseaddr, -dp.disp);
+            code.append(generateInstruction(Opcode.ADD, ra, rbaseaddr, -dp.disp));
 
         while (iter.hasNext()) {
             dp = iter.next();
             if (dp.deref) {
-                code +=
-                    generateInstruction("LDR", true, rv, rv);
+                Register next = nextVirtualRegister();
+                code.append(
+                    generateInstruction(Opcode.LDR, true, next, rv));
+                rv = next;
             }
 
             if (!iter.hasNext())
-                code += generateInstruction("ADD", ra, rv, dp.disp);
+                code.append(generateInstruction(Opcode.ADD, ra, rv, dp.disp));
             
-            code +=
-                generateInstruction("LDR", true, rv, rv, dp.disp);
+            Register next = nextVirtualRegister();
+            code.append(
+                generateInstruction(Opcode.LDR, true, next, rv, dp.disp));
+            rv = next;
         }
+        rvalue.set(rv);
+        rv.setStatus(Register.Status.Loaded);
 
         rbaseaddr.setStatus(Register.Status.Used);
 
@@ -1149,27 +2279,68 @@ public class ARMEngine extends AbstractMachine {
     }
 
     /**
-     * Generate the code for an if-then-else structure
+     * Generate the branch taken when a condition is false. From level 1, a
+     * condition which is a comparison is tested on the flags it has just set
+     * (its code comes right before the branch, see generateRelOperation):
+     * the boolean is no longer read, and is removed unless it is stored or
+     * passed (see removeDeadCode).
+     * @param rcond register containing the result of the condition
+     * @param label where to go
+     * @return the generated code
+     */
+    private Code generateBranchIfFalse(Register rcond, String label) throws MCSException {
+        Cond cc = compared.get(DefUse.id(rcond));
+        if (cc != null)
+            return generateInstruction(Opcode.B, cc.invert(), label, null);
+        return generateInstruction(Opcode.CBZ, rcond, label);
+    }
+
+    /**
+     * Generate the branch taken when a condition is true (see
+     * generateBranchIfFalse)
+     * @param rcond register containing the result of the condition
+     * @param label where to go
+     * @return the generated code
+     */
+    private Code generateBranchIfTrue(Register rcond, String label) throws MCSException {
+        Cond cc = compared.get(DefUse.id(rcond));
+        if (cc != null)
+            return generateInstruction(Opcode.B, cc, label, null);
+        return generateInstruction(Opcode.CBNZ, rcond, label);
+    }
+
+    /**
+     * Generate the code for an if-then-else structure. When the condition
+     * is known, only the branch taken is kept.
      * @param rcond register containing the result of the condition
      * @param cif code for the if branch
      * @param celse code for the else branch
      * @return the generated code
      */
-    public String generateIfThenElse(Register rcond, String cif, String celse) throws MCSException {
+    public Code generateIfThenElse(Register rcond, Code cif, Code celse) throws MCSException {
+        Integer known = constants.get(DefUse.id(rcond));
+        if (known != null) {
+            rcond.setStatus(Register.Status.Used);
+            return new Code((known != 0 ? cif : celse), "\n");
+        }
+
         boolean else_present = !(celse.isEmpty());
-        String code = 
-            generateInstruction("CBZ", rcond, (else_present ? "else" : "end" + "_" + condition_nb)) +
-            cif + "\n";
+        Code code = new Code(
+            generateBranchIfFalse(rcond, (else_present ? "else" : "end") + "_" + condition_nb),
+            cif,
+            "\n");
 
         if (else_present) {
-            code +=
-                generateInstruction("B", "end_" + condition_nb) +
-                generateLabel("else_" + condition_nb) +
-                celse + "\n";
+            code.append(
+                generateInstruction(Opcode.B, "end_" + condition_nb),
+                generateLabel("else_" + condition_nb),
+                celse,
+                "\n");
         }
 
-        code +=
-            generateLabel("end_" + condition_nb) + "\n";
+        code.append(
+            generateLabel("end_" + condition_nb),
+            "\n");
 
         rcond.setStatus(Register.Status.Used);
         condition_nb++;
@@ -1178,28 +2349,86 @@ public class ARMEngine extends AbstractMachine {
     }
 
     /**
-     * Generate the code for a while structure
+     * Generate the code for a while structure. When the condition is known,
+     * the body is dropped if it is false, and the condition is not tested if
+     * it is true. From level 2, the loop is tested at the bottom, so that an
+     * iteration only runs one branch, taken back to the body: a small
+     * condition is tested once before the loop and copied after the body;
+     * a bigger one is only put after the body, the loop being entered by a
+     * branch to it.
      * @param cond code for the  condition
      * @param rcond register containing the result of the condition calculus
      * @param bcode code of the bloc
      * @return the generated code
      */
-    public String generateWhile(String cond, Register rcond, String bcode) throws MCSException {
-        String code =
-            generateLabel("loop_" + loop_nb) +
-            cond +
-            generateInstruction("CBZ", rcond, "end_loop_" + loop_nb) +
-            "\n" +
-            bcode +
-            "\n" +
-            generateInstruction("B", "loop_" + loop_nb) +
-            "\n" +
-            generateLabel("end_loop_" + loop_nb) +
-            "\n";
+    public Code generateWhile(Code cond, Register rcond, Code bcode) throws MCSException {
+        Integer known = constants.get(DefUse.id(rcond));
+        if (known != null && known == 0)
+            return new Code(cond, "\n");
+
+        Code code;
+        if (optimize >= 2 && known == null) {
+            InstructionList test = cond.instructions();
+            boolean copied = realInstructions(test) <= CopiedTest;
+            code = new Code(
+                (copied ? new Code(test, generateBranchIfFalse(rcond, "end_loop_" + loop_nb))
+                        : generateInstruction(Opcode.B, "test_" + loop_nb)),
+                "\n",
+                generateLabel("loop_" + loop_nb),
+                bcode,
+                "\n",
+                (copied ? copyCondition(test) : new Code(generateLabel("test_" + loop_nb), test)),
+                generateBranchIfTrue(rcond, "loop_" + loop_nb),
+                "\n",
+                generateLabel("end_loop_" + loop_nb),
+                "\n");
+            rotated_nb++;
+            copied_nb += (copied ? 1 : 0);
+        } else {
+            code = new Code(
+                generateLabel("loop_" + loop_nb),
+                cond,
+                (known != null ? new Code() : generateBranchIfFalse(rcond, "end_loop_" + loop_nb)),
+                "\n",
+                bcode,
+                "\n",
+                generateInstruction(Opcode.B, "loop_" + loop_nb),
+                "\n",
+                generateLabel("end_loop_" + loop_nb),
+                "\n");
+        }
         loop_nb++;
         return code;
     }
 
+    /**
+     * Copy of the code of a condition, tested again at the bottom of a loop:
+     * its labels (of a logical and/or, of an inlined call) are renamed
+     * @param test the code of the condition
+     * @return the copy
+     */
+    private Code copyCondition(InstructionList test) throws MCSException {
+        Set<String> labels = new HashSet<String>();
+        for (Instruction inst : test) {
+            if (inst.isLabel())
+                labels.add(inst.text());
+        }
+
+        Code code = new Code();
+        for (Instruction inst : test) {
+            if (inst.isLabel()) {
+                code.append(generateLabel(inst.text() + "_bottom"));
+                continue;
+            }
+            Instruction c = inst.copy();
+            String target = c.target();
+            if (target != null && !c.isCall() && labels.contains(target))
+                c.setOperand(c.opcode() == Opcode.B ? 0 : 1, target + "_bottom");
+            code.append(c);
+        }
+        return code;
+    }
+
     /**
      * Return the function return register
      * @return the register
@@ -1213,11 +2442,29 @@ public class ARMEngine extends AbstractMachine {
 
     /// Calculus
 
-    public String generateOperation(int op, Register r1, Register r2, RegisterWrapper rout) throws MCSException {
+    /**
+     * Generate a binary operation. From level 1, an operation on constants
+     * is made at compile time, and an operation whose result is one of its
+     * operands (x + 0, x * 1...) or a constant (x * 0) is not made (see
+     * generateSimplified); a multiplication, a division or a modulo by a
+     * constant is made with shifts and additions (see generateReduced).
+     * @param op the operator
+     * @param r1 first operand
+     * @param r2 second operand
+     * @param rout (out) register of the result
+     * @return the generated code
+     */
+    public Code generateOperation(int op, Register r1, Register r2, RegisterWrapper rout) throws MCSException {
         
         Operator oop = IMachine.IntToOperator[op];
+        Code simplified = (optimize >= 1 && oop != Operator.NOP ? generateSimplified(oop, r1, r2, rout) : null);
+        if (simplified != null)
+            return simplified;
+        Code reduced = (optimize >= 1 ? generateReduced(oop, r1, r2, rout) : null);
+        if (reduced != null)
+            return reduced;
         if (oop == Operator.NOP)
-            return "";
+            return new Code();
         else if (oop.isArithmetic())
             return generateArithOperation(oop, r1, r2, rout);
         else
@@ -1225,11 +2472,148 @@ public class ARMEngine extends AbstractMachine {
         
     }
 
-    public String generateOperation(int op, Register r1, RegisterWrapper rout) throws MCSException {
+    /**
+     * Generate a logical and (RAND) or or (ROR). The left operand is tested
+     * first, and the right one is evaluated only if the left one does not
+     * decide: the result is set to the value the left one would decide, and
+     * the code of the right operand is skipped. From level 1, when both are
+     * comparisons (see generateRelOperation) the branches test their flags;
+     * and when the right one only computes registers before it compares
+     * them, it is compared under the condition of the left one instead
+     * (CMP a, b; CMPcc c, d), without any branch.
+     * @param op the operator
+     * @param r1 the left operand, whose code comes right before
+     * @param right code of the right operand
+     * @param r2 the right operand
+     * @param rout (out) register of the result
+     * @return the generated code
+     */
+    public Code generateLogicalOperation(int op, Register r1, Code right, Register r2, RegisterWrapper rout) throws MCSException {
+        Operator oop = IMachine.IntToOperator[op];
+        if (oop != Operator.RAND && oop != Operator.ROR)
+            return new Code(right, generateOperation(op, r1, r2, rout));
+        boolean and = oop == Operator.RAND;
+
+        Cond c1 = compared.get(DefUse.id(r1)), c2 = compared.get(DefUse.id(r2));
+        r1.setStatus(Register.Status.Used);
+        r2.setStatus(Register.Status.Used);
+        Register r = nextVirtualRegister();
+        rout.set(r);
+
+        Code chain = (c1 != null && c2 != null ? generateCompareChain(and, c1, right, r2, c2) : null);
+        if (chain != null) {
+            chain.append(
+                generateInstruction(Opcode.MOV, r, 0),
+                generateInstruction(Opcode.MOV, c1, r, 1));
+            compared.put(DefUse.id(r), c1);
+            r.setStatus(Register.Status.Loaded);
+            return chain;
+        }
+
+        String skip = (and ? "and_" : "or_") + logical_nb++;
+        Code code = new Code(
+            generateInstruction(Opcode.MOV, r, (and ? 0 : 1)));
+        if (c1 != null)
+            code.append(generateInstruction(Opcode.B, (and ? c1.invert() : c1), skip, null));
+        else
+            code.append(generateInstruction((and ? Opcode.CBZ : Opcode.CBNZ), r1, skip));
+        code.append(right);
+        if (c2 != null) {
+            code.append(generateInstruction(Opcode.MOV, (and ? c2 : c2.invert()), r, (and ? 1 : 0)));
+        } else {
+            code.append(
+                generateInstruction(Opcode.CMP, r2, 0),
+                generateInstruction(Opcode.MOV, (and ? Cond.NE : Cond.EQ), r, (and ? 1 : 0)));
+        }
+        code.append(generateLabel(skip));
+
+        // Both ways, the flags tell the result when both conditions are the same
+        if (c1 != null && c1 == c2)
+            compared.put(DefUse.id(r), c1);
+        r.setStatus(Register.Status.Loaded);
+        return code;
+    }
+
+    /**
+     * Compare the right operand of a logical operation under the condition
+     * of the left one: the flags are then the ones of the left comparison
+     * when it decides, of the right one otherwise. This needs the same
+     * condition on both sides (the operands of the right comparison may be
+     * swapped for it), and a right operand computing nothing but registers
+     * before its comparison, a variable kept in a register excepted: it is
+     * computed whatever the left one.
+     * @param and true for a logical and, false for an or
+     * @param c1 condition of the left comparison
+     * @param right code of the right operand
+     * @param r2 the right operand
+     * @param c2 condition of the right comparison
+     * @return the code of the right operand, compared under condition; null
+     *         if it can not be done
+     */
+    private Code generateCompareChain(boolean and, Cond c1, Code right, Register r2, Cond c2) throws MCSException {
+        InstructionList list = right.instructions();
+        int last = list.size() - 1;
+        while (last >= 0 && list.get(last).isText())
+            last--;
+        int cmp = last - 1;
+        while (cmp >= 0 && list.get(cmp).isText())
+            cmp--;
+        if (cmp < 0 || list.get(cmp).opcode() != Opcode.CMP || list.get(cmp).cond() != Cond.AL
+                || list.get(last).opcode() != Opcode.MOV || list.get(last).cond() != c2 || !list.get(last).isRegister(0)
+                || DefUse.id((Register)list.get(last).operand(0)) != DefUse.id(r2))
+            return null;
+
+        Instruction compare = list.get(cmp);
+        boolean swap = c2 != c1;
+        if (swap && (c2.swap() != c1 || !compare.isRegister(1)))
+            return null;
+
+        Code code = new Code();
+        for (int i = 0; i < list.size(); i++) {
+            Instruction inst = list.get(i);
+            if (i == last)
+                continue;
+            if (i == cmp) {
+                code.append(generateInstruction(new Instruction(Opcode.CMP, (and ? c1 : c1.invert()),
+                                compare.operand(swap ? 1 : 0), compare.operand(swap ? 0 : 1), null)));
+            } else if (!inst.isText()
+                    && (inst.opcode().kind() != Opcode.Kind.Data || inst.isConditional() || inst.setsFlags()
+                        || isVariable((Register)inst.operand(0)))) {
+                return null;
+            } else {
+                code.append(inst);
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Tell if a register is the one of a variable (see generateAllocateLocal)
+     */
+    private boolean isVariable(Register r) {
+        for (VariableInfo vi : promoted) {
+            if (vi.register() != null && DefUse.id(vi.register()) == DefUse.id(r))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Generate a unary operation. From level 1, an operation on a constant
+     * is made at compile time, and a double negation (-(-x), ~~x) is not made.
+     * @param op the operator
+     * @param r1 the operand
+     * @param rout (out) register of the result
+     * @return the generated code
+     */
+    public Code generateOperation(int op, Register r1, RegisterWrapper rout) throws MCSException {
         
         Operator oop = IMachine.IntToOperator[op];
+        Code simplified = (optimize >= 1 && oop != Operator.NOP ? generateSimplified(oop, r1, rout) : null);
+        if (simplified != null)
+            return simplified;
         if (oop == Operator.NOP)
-            return "";
+            return new Code();
         else if (oop.isArithmetic())
             return generateArithOperation(oop, r1, rout);
         else
@@ -1237,6 +2621,291 @@ public class ARMEngine extends AbstractMachine {
         
     }
 
+    /**
+     * Code of an operation whose result is known, or is one of its operands
+     * @param op the operator
+     * @param r1 first operand
+     * @param r2 second operand
+     * @param rout (out) register of the result
+     * @return the code, null if the operation is to be made
+     */
+    private Code generateSimplified(Operator op, Register r1, Register r2, RegisterWrapper rout) throws MCSException {
+        Integer c1 = constants.get(DefUse.id(r1)), c2 = constants.get(DefUse.id(r2));
+        Integer value = null;
+        Register same = null;
+
+        if (c1 != null && c2 != null) {
+            value = fold(op, c1, c2);
+        } else if (c1 != null || c2 != null) {
+            // Identities: the constant is r1 or r2, the other one is x
+            int c = (c1 != null ? c1 : c2);
+            Register x = (c1 != null ? r2 : r1);
+            boolean right = (c2 != null);
+            switch (op) {
+                case ADD: case OR:
+                    same = (c == 0 ? x : null);
+                    break;
+                case SUB: case DIV:
+                    same = (right && c == (op == Operator.SUB ? 0 : 1) ? x : null);
+                    break;
+                case MUL:
+                    same = (c == 1 ? x : null);
+                    value = (c == 0 ? Integer.valueOf(0) : null);
+                    break;
+                case AND:
+                    value = (c == 0 ? Integer.valueOf(0) : null);
+                    break;
+                default:
+            }
+        }
+        if (value == null && same == null)
+            return null;
+
+        r1.setStatus(Register.Status.Used);
+        r2.setStatus(Register.Status.Used);
+        if (value != null)
+            return generateLoadConstant(new ConstantInfo(new IntegerType(), value), rout);
+        return generateMove(same, rout);
+    }
+
+    /**
+     * Code of a unary operation whose result is known, or is a register
+     * already computed
+     * @param op the operator
+     * @param rin the operand
+     * @param rout (out) register of the result
+     * @return the code, null if the operation is to be made
+     */
+    private Code generateSimplified(Operator op, Register rin, RegisterWrapper rout) throws MCSException {
+        Integer c = constants.get(DefUse.id(rin));
+        Integer value = null;
+        Register same = null;
+
+        switch (op) {
+            case NEG:
+                value = (c != null ? Integer.valueOf(-c) : null);
+                same = negated.get(DefUse.id(rin));
+                break;
+            case NOT:
+                value = (c != null ? Integer.valueOf(~c) : null);
+                same = complemented.get(DefUse.id(rin));
+                break;
+            case PLS:
+                value = c;
+                break;
+            case RNOT:
+                value = (c != null ? Integer.valueOf(c == 0 ? 1 : 0) : null);
+                break;
+            default:
+        }
+        if (value == null && same == null)
+            return null;
+
+        rin.setStatus(Register.Status.Used);
+        if (value != null)
+            return generateLoadConstant(new ConstantInfo(new IntegerType(), value), rout);
+        return generateMove(same, rout);
+    }
+
+    /**
+     * Code of a multiplication, a division or a modulo by a constant, without
+     * MUL nor SDIV when it can (the constant is then left unread, see
+     * removeDeadCode):
+     * - x * c, c being 2^k, or 2^k + 1 or 2^k - 1 times a power of 2: a shift,
+     *   an ADD or RSB of x and x shifted, or both; x * -1 is a negation;
+     * - x / 2^k: x is biased by 2^k - 1 when negative (its sign shifted right),
+     *   then shifted right, which rounds toward zero; x % 2^k is x minus that
+     *   quotient shifted left;
+     * - x / c and x % c for any other c: the quotient is the high word of x
+     *   times a magic number (see magic), corrected by the sign of x; the
+     *   modulo is then x - q * c (MLS).
+     * A negative divisor gives the quotient negated, and the same modulo.
+     * @param op the operator
+     * @param r1 first operand
+     * @param r2 second operand
+     * @param rout (out) register of the result
+     * @return the code, null if the operation is to be made as it is
+     */
+    private Code generateReduced(Operator op, Register r1, Register r2, RegisterWrapper rout) throws MCSException {
+        Integer c1 = constants.get(DefUse.id(r1)), c2 = constants.get(DefUse.id(r2));
+        Register x = r1;
+        Integer constant = c2;
+        if (op == Operator.MUL && c2 == null) {
+            x = r2;
+            constant = c1;
+        }
+        if (constant == null || (op != Operator.MUL && op != Operator.DIV && op != Operator.MOD))
+            return null;
+        int c = constant;
+        if (c == 0 || c == Integer.MIN_VALUE || (op != Operator.MUL && (c == 1 || c == -1)))
+            return null;
+
+        int a = Math.abs(c);
+        int k = Integer.numberOfTrailingZeros(a), odd = a >>> k;
+        // x * 2^k * odd, odd being 1, 2^j + 1 or 2^j - 1, in two instructions at most
+        int j = 31 - Integer.numberOfLeadingZeros(odd);
+        Opcode combine = (odd == 1 ? Opcode.NOP : odd == (1 << j) + 1 ? Opcode.ADD
+                          : odd == (2 << j) - 1 ? Opcode.RSB : null);
+        if (op == Operator.MUL
+                && (combine == null || (combine != Opcode.NOP ? 1 : 0) + (k > 0 ? 1 : 0) + (c < 0 ? 1 : 0) > 2))
+            return null;
+
+        Code code = new Code();
+        Register r = nextVirtualRegister();
+        if (op == Operator.MUL) {
+            Register t = x;
+            if (combine != Opcode.NOP) {
+                t = (k == 0 && c > 0 ? r : nextVirtualRegister());
+                code.append(generateShifted(combine, t, x, x, Opcode.LSL, (combine == Opcode.ADD ? j : j + 1)));
+            }
+            if (k > 0) {
+                Register u = (c > 0 ? r : nextVirtualRegister());
+                code.append(generateInstruction(Opcode.LSL, u, t, k));
+                t = u;
+            }
+            if (c < 0)
+                code.append(generateInstruction(Opcode.RSB, r, t, 0));
+        } else if (odd == 1) {
+            // Biased by 2^k - 1 when negative: the sign, shifted right
+            Register sign = x, biased = nextVirtualRegister();
+            if (k > 1) {
+                sign = nextVirtualRegister();
+                code.append(generateInstruction(Opcode.ASR, sign, x, 31));
+            }
+            code.append(generateShifted(Opcode.ADD, biased, x, sign, Opcode.LSR, 32 - k));
+            if (op == Operator.MOD) {
+                Register q = nextVirtualRegister();
+                code.append(
+                    generateInstruction(Opcode.ASR, q, biased, k),
+                    generateShifted(Opcode.SUB, r, x, q, Opcode.LSL, k));
+            } else {
+                code.append(generateInstruction(Opcode.ASR, (c > 0 ? r : biased), biased, k));
+                if (c < 0)
+                    code.append(generateInstruction(Opcode.RSB, r, biased, 0));
+            }
+        } else {
+            int[] m = magic(a);
+            RegisterWrapper magic = new RegisterWrapper();
+            Register q = nextVirtualRegister();
+            code.append(
+                generateLoadConstant(new ConstantInfo(new IntegerType(), m[0]), magic),
+                generateInstruction(Opcode.SMMUL, q, x, magic.get()));
+            magic.get().setStatus(Register.Status.Used);
+            if (m[0] < 0)
+                code.append(generateInstruction(Opcode.ADD, q, q, x));
+            if (m[1] > 0)
+                code.append(generateInstruction(Opcode.ASR, q, q, m[1]));
+            // One more when x is negative, to round toward zero
+            Register quotient = (op == Operator.DIV && c > 0 ? r : nextVirtualRegister());
+            code.append(generateShifted(Opcode.ADD, quotient, q, x, Opcode.LSR, 31));
+            if (op == Operator.DIV && c < 0) {
+                code.append(generateInstruction(Opcode.RSB, r, quotient, 0));
+            } else if (op == Operator.MOD) {
+                Register divisor = r2;
+                if (c < 0) {
+                    RegisterWrapper d = new RegisterWrapper();
+                    code.append(generateLoadConstant(new ConstantInfo(new IntegerType(), a), d));
+                    divisor = d.get();
+                    divisor.setStatus(Register.Status.Used);
+                }
+                code.append(generateInstruction(new Instruction(Opcode.MLS, Cond.AL, false, Instruction.Addressing.None,
+                                r, quotient, divisor, x)));
+            }
+        }
+
+        r1.setStatus(Register.Status.Used);
+        r2.setStatus(Register.Status.Used);
+        rout.set(r);
+        r.setStatus(Register.Status.Loaded);
+        if (op == Operator.MUL)
+            multiplied_nb++;
+        else
+            divided_nb++;
+        return code;
+    }
+
+    /**
+     * Generate a data processing instruction whose last operand is shifted
+     * (op r, a, b, shift #n)
+     */
+    private Code generateShifted(Opcode op, Register r, Register a, Register b, Opcode shift, int n)
+            throws MCSException {
+        return generateInstruction(new Instruction(op, Cond.AL, false, Instruction.Addressing.None,
+                    r, a, b, new Shift(shift, n)));
+    }
+
+    /**
+     * Magic number of a signed division by a constant (Hacker's Delight,
+     * 10-1): x / d is the high word of x * M, plus x when M is negative,
+     * shifted right by s, plus one when x is negative
+     * @param d the divisor, 3 or more
+     * @return M and s
+     */
+    private static int[] magic(int d) {
+        final long two31 = 0x80000000L, mask = 0xFFFFFFFFL;
+        long anc = two31 - 1 - two31 % d;           // Absolute value of nc
+        long q1 = two31 / anc, r1 = two31 - q1 * anc;
+        long q2 = two31 / d, r2 = two31 - q2 * d;
+        long delta;
+        int p = 31;
+        do {
+            p++;
+            q1 = (2 * q1) & mask;
+            r1 = (2 * r1) & mask;
+            if (r1 >= anc) {
+                q1 = (q1 + 1) & mask;
+                r1 -= anc;
+            }
+            q2 = (2 * q2) & mask;
+            r2 = (2 * r2) & mask;
+            if (r2 >= d) {
+                q2 = (q2 + 1) & mask;
+                r2 -= d;
+            }
+            delta = d - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+        return new int[] { (int)(q2 + 1), p - 32 };
+    }
+
+    /**
+     * Value of a binary operation on constants, as the machine computes it
+     * @return the value, null if it is not computed (division by zero)
+     */
+    private static Integer fold(Operator op, int a, int b) {
+        switch (op) {
+            case ADD: return a + b;
+            case SUB: return a - b;
+            case MUL: return a * b;
+            case DIV: return (b == 0 ? null : Integer.valueOf(a / b));
+            case MOD: return (b == 0 ? null : Integer.valueOf(a % b));
+            case AND: return a & b;
+            case OR: return a | b;
+            case EQ: return (a == b ? 1 : 0);
+            case NEQ: return (a != b ? 1 : 0);
+            case LT: return (a < b ? 1 : 0);
+            case LEQ: return (a <= b ? 1 : 0);
+            case GT: return (a > b ? 1 : 0);
+            case GEQ: return (a >= b ? 1 : 0);
+            case RAND: return (a != 0 && b != 0 ? 1 : 0);
+            case ROR: return (a != 0 || b != 0 ? 1 : 0);
+            default: return null;
+        }
+    }
+
+    /**
+     * Copy of a register in a new one, for an operation whose result is
+     * the operand
+     * @param rin the register
+     * @param rout (out) the new register
+     * @return the generated code
+     */
+    private Code generateMove(Register rin, RegisterWrapper rout) throws MCSException {
+        Register r = nextVirtualRegister();
+        rout.set(r);
+        r.setStatus(Register.Status.Loaded);
+        return generateInstruction(Opcode.MOV, r, rin);
+    }
+
     /**
      * Generate an arithmetic binary operation
      * @param r1 first register
@@ -1244,34 +2913,35 @@ public class ARMEngine extends AbstractMachine {
      * @param rout output register
      * @return the generated code
      */
-    private String generateArithOperation(Operator op, Register r1, Register r2, RegisterWrapper rout) throws MCSException  {
+    private Code generateArithOperation(Operator op, Register r1, Register r2, RegisterWrapper rout) throws MCSException  {
         // TODO: wrong operation type
         // The last part of the code never changes : xxx Rx, R<1>, R<2>
         
-        String code = "", instr = "";
+        Code code = new Code();
+        Opcode instr = Opcode.NOP;
 
         // Get the next register
-        Register r = getNextUnusedRegister();
+        Register r = nextVirtualRegister();
         rout.set(r);
 
         switch (op) {
             case ADD:
-                instr = "ADD";
+                instr = Opcode.ADD;
                 break;
             case SUB:
-                instr = "SUB";
+                instr = Opcode.SUB;
                 break;
             case MUL:
-                instr = "MUL";
+                instr = Opcode.MUL;
                 break;
             case DIV:
-                instr = "DIV";
+                instr = Opcode.SDIV;
                 break;
             case AND:
-                instr = "AND";
+                instr = Opcode.AND;
                 break;
             case OR:
-                instr = "OR";
+                instr = Opcode.ORR;
                 break;
             case MOD:
                 // nop
@@ -1279,14 +2949,14 @@ public class ARMEngine extends AbstractMachine {
         }
 
         if (op != Operator.MOD) {
-            code +=
-                generateInstruction(instr, r, r1, r2);
+            code.append(
+                generateInstruction(instr, r, r1, r2));
         } else {	
-            // Do this : q = a/b, b*q, a-bq = r
-            code +=
-                generateInstruction("SDIV", r, r1, r2) +
-                generateInstruction("MUL", r, r2, r) +
-                generateInstruction("SUB", r, r1, r);
+            // Do this : q = a/b, a-bq = r
+            code.append(
+                generateInstruction(Opcode.SDIV, r, r1, r2),
+                generateInstruction(new Instruction(Opcode.MLS, Cond.AL, false, Instruction.Addressing.None,
+                                r, r, r2, r1)));
         }
 
         // Source register are no longer used
@@ -1307,32 +2977,40 @@ public class ARMEngine extends AbstractMachine {
      * @param rout destination register
      * @return the generated code
      */
-    private String generateArithOperation(Operator op, Register rin, RegisterWrapper rout) throws MCSException  {
+    private Code generateArithOperation(Operator op, Register rin, RegisterWrapper rout) throws MCSException  {
         
         // Find the operation code
-        String opcode = "", code = "";
+        Opcode opcode = Opcode.NOP;
+        Code code = new Code();
         switch (op) {
             case NEG:
-                opcode = "RSB";
+                opcode = Opcode.RSB;
                 break;
             case NOT:
-                opcode = "MVN";
+                opcode = Opcode.MVN;
                 break;
             case PLS:
-                break;
+                // Nothing to compute: the operand is the result
+                rout.set(rin);
+                return code;
         }
 
         // Source register are no longer used
         rin.setStatus(Register.Status.Used);
 
         // Retrieve next register
-        Register r = getNextUnusedRegister();
+        Register r = nextVirtualRegister();
         rout.set(r);
 
         // Generate code
-        if (op != Operator.PLS) {
-            code =
-                generateInstruction(opcode, r, rin, 0);
+        if (op == Operator.NEG) {
+            code.append(
+                generateInstruction(opcode, r, rin, 0));
+            negated.put(DefUse.id(r), rin);
+        } else if (op == Operator.NOT) {
+            code.append(
+                generateInstruction(opcode, r, rin));
+            complemented.put(DefUse.id(r), rin);
         }
 
         // Manage register
@@ -1343,52 +3021,58 @@ public class ARMEngine extends AbstractMachine {
         
     }
 
-    private String generateRelOperation(Operator op, Register r1, Register r2, RegisterWrapper rout) throws MCSException  {
+    private Code generateRelOperation(Operator op, Register r1, Register r2, RegisterWrapper rout) throws MCSException  {
         
-        Register r = getNextUnusedRegister();
+        Register r = nextVirtualRegister();
         rout.set(r);
-        String cc = "", operand = "";
-        String code = 
-            generateInstruction("MOV", r, 0);
+        Cond cc = Cond.AL;
+        Opcode operand = Opcode.CMP;
+        boolean flags = false;
+        Code code = new Code(
+            generateInstruction(Opcode.MOV, r, 0));
 
         switch (op) {
             case EQ:
-                cc = "EQ";
-                operand = "CMP";
+                cc = Cond.EQ;
+                operand = Opcode.CMP;
                 break;
             case NEQ:
-                cc = "NE";
-                operand = "CMP";
+                cc = Cond.NE;
+                operand = Opcode.CMP;
                 break;
             case LT:
-                cc = "LT";
-                operand = "CMP";
+                cc = Cond.LT;
+                operand = Opcode.CMP;
                 break;
             case LEQ:
-                cc = "LE";
-                operand = "CMP";
+                cc = Cond.LE;
+                operand = Opcode.CMP;
                 break;
             case GT:
-                cc = "GT";
-                operand = "CMP";
+                cc = Cond.GT;
+                operand = Opcode.CMP;
                 break;
             case GEQ:
-                cc = "GE";
-                operand = "CMP";
+                cc = Cond.GE;
+                operand = Opcode.CMP;
                 break;
             case RAND:
-                operand = "ANDS";
-                cc = "EQ";
+                operand = Opcode.AND;
+                flags = true;
+                cc = Cond.NE;
                 break;
             case ROR:
-                operand = "ORRS";
-                cc = "EQ";
+                operand = Opcode.ORR;
+                flags = true;
+                cc = Cond.NE;
                 break;
         }
 
-        code +=
-            generateInstruction(operand, r1, r2) +
-            generateInstruction("MOV" + cc, r, 1);
+        code.append(
+            generateInstruction(new Instruction(operand, Cond.AL, flags, Instruction.Addressing.None, r1, r2, null, null)),
+            generateInstruction(Opcode.MOV, cc, r, 1));
+        if (optimize >= 1 && operand == Opcode.CMP)
+            compared.put(DefUse.id(r), cc);
 
         // Information about register
         r1.setStatus(Register.Status.Used);
@@ -1407,18 +3091,29 @@ public class ARMEngine extends AbstractMachine {
      * @param rout output register
      * @return the generated code
      */
-    private String generateRelOperation(Operator op, Register rin, RegisterWrapper rout) throws MCSException {
+    private Code generateRelOperation(Operator op, Register rin, RegisterWrapper rout) throws MCSException {
         
-        Register r = getNextUnusedRegister();
+        Register r = nextVirtualRegister();
         rout.set(r);
-        String code =
-            generateInstruction("MOV", r, 0);
+        Code code = new Code(
+            generateInstruction(Opcode.MOV, r, 0));
 
         switch (op) {
             case RNOT:
-                code +=
-                    generateInstruction("CMP", rin, 0) +
-                    generateInstruction("MOVNE", r, 1);
+                // The negation of a comparison just made reads its flags
+                Cond cc = compared.get(DefUse.id(rin));
+                if (cc != null) {
+                    cc = cc.invert();
+                    code.append(
+                        generateInstruction(Opcode.MOV, cc, r, 1));
+                } else {
+                    cc = Cond.EQ;
+                    code.append(
+                        generateInstruction(Opcode.CMP, rin, 0),
+                        generateInstruction(Opcode.MOV, Cond.EQ, r, 1));
+                }
+                if (optimize >= 1)
+                    compared.put(DefUse.id(r), cc);
                 break;
         }
 
@@ -1435,32 +3130,154 @@ public class ARMEngine extends AbstractMachine {
 
     /**************************************************/
     /**
-     * Get the next unused register in the register database
+     * Get a new virtual register. Machine registers are given once the code
+     * of the function is complete (see finishFunction).
      * @return the register
      */
-    private Register getNextUnusedRegister() throws MCSException {
-        for (int i = 0; i < registers.size(); i++) {
-            if ((registers.get(i).status() == Register.Status.Empty)||(registers.get(i).status() == Register.Status.Used))
-                return registers.get(i);
+    Register nextVirtualRegister() throws MCSException {
+        return new Register("v", virtual_nb++);
+    }
+
+    /**
+     * Allocate the registers of a piece of code
+     * @param list the code
+     * @param base register the spill slots are relative to (null if spilling is not possible)
+     * @param start displacement of the first spill slot
+     * @return the code, with machine registers only
+     */
+    private InstructionList allocateRegisters(InstructionList list, Register base, int start) throws MCSException {
+        if (baseline != null) {
+            try {
+                baseline.allocate(list.copy(), base, start);
+            } catch (MCSRegisterLimitReachedException e) {
+                // Only the real allocation matters
+            }
         }
 
-        throw new MCSRegisterLimitReachedException();
+        int before = realInstructions(list);
+        list = allocator.allocate(list, base, start);
+        heapbase += realInstructions(list) - before;
+        return list;
     }
 
+    /**
+     * Number of real instructions of a list (utility)
+     */
+    private static int realInstructions(InstructionList list) {
+        int n = 0;
+        for (Instruction inst : list) {
+            if (!inst.opcode().isPseudo())
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Report on the register allocation of all the functions so far
+     */
     public String logRegisters() {
-        String txt = "";
-        for (Register r : this.registers) {
-            txt += r.debug() + "\n";
+        String log = allocator.totalReport() + "\n";
+        if (baseline != null) {
+            log += baseline.totalReport() + "\n"
+                + String.format("%d spills saved (%d loads and stores), allocation time %.1f ms instead of %.1f ms\n",
+                    baseline.totalSpilled() - allocator.totalSpilled(),
+                    baseline.totalSpillCode() - allocator.totalSpillCode(),
+                    allocator.totalTime(), baseline.totalTime());
         }
-        return txt;
+        return log;
+    }
+
+    /**
+     * Report on the calls put in place of the functions so far
+     */
+    public String logInlining() {
+        return inliner.report();
+    }
+
+    /**
+     * Report on the rewrites of the final code of the functions so far
+     */
+    public String logPeephole() {
+        if (optimize < 1)
+            return "No peephole optimization\n";
+        return peephole.report();
+    }
+
+    /**
+     * Report on the invariants moved out of the loops of the functions so far
+     */
+    public String logInvariants() {
+        if (optimize < 2)
+            return "No loop invariant motion\n";
+        return invariants.report();
+    }
+
+    /**
+     * Report on the accesses of the loops made through incremented pointers
+     * in the functions so far
+     */
+    public String logInduction() {
+        if (optimize < 2)
+            return "No induction variable\n";
+        return induction.report();
+    }
+
+    /**
+     * Report on the instructions folded by the selector in the functions so far
+     */
+    public String logSelection() {
+        if (optimize < 1 || !selection)
+            return "No instruction selection\n";
+        return selector.report();
+    }
+
+    /**
+     * Report on the operations by a constant made with shifts and additions
+     * in the functions so far
+     */
+    public String logReduction() {
+        if (optimize < 1)
+            return "No strength reduction\n";
+        return multiplied_nb + " multiplications and " + divided_nb + " divisions or modulos by a constant reduced\n";
+    }
+
+    /**
+     * Report on the computations made again removed from the functions so
+     * far
+     */
+    public String logNumbering() {
+        if (optimize < 1)
+            return "No value numbering\n";
+        return numbering.report();
+    }
+
+    /**
+     * Report on the constants put in the instructions and in literal pools
+     * in the functions so far
+     */
+    public String logImmediates() {
+        if (optimize < 1)
+            return "No immediate folding nor literal pool\n";
+        return immediates.report();
+    }
+
+    /**
+     * Report on the layout of the loops and of the blocks of the functions so
+     * far
+     */
+    public String logLayout() {
+        if (optimize < 2)
+            return "No loop rotation nor block layout\n";
+        return rotated_nb + " loops tested at the bottom, " + copied_nb + " of them with their condition copied; "
+            + cold_nb + " blocks moved to the end of their function\n";
     }
 
     /**
      * Return the size of the context.
-     * As we use only 3 registers, this context is 12 (4*3)
+     * The link register and the stack base are saved: this context is 8 (4*2)
      */
     public int contextSize() {
-        return 12;
+        return 8;
     }
 }
 
@@ -1,8 +1,12 @@
 package mcs.gc;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 import mcs.compiler.MCSException;
 
@@ -14,26 +18,116 @@ import mcs.compiler.MCSException;
  */
 public abstract class AbstractMachine implements IMachine {
 
+	private Writer out;		// Fichier cible, lorsque le code est ecrit au fil de l'eau
+	private Path target, partial;	// Nom final et fichier en cours d'ecriture
+	protected boolean dumpAnalysis = false;	// Ecrire le graphe de flot de chaque fonction
+	protected int optimize = 0;		// Niveau d'optimisation (option -O)
+	protected int inlineLimit = -1;	// Taille maximale d'une fonction mise en ligne (option -inline, -1 : selon le niveau)
+
+	/**
+	 * Demande d'ecrire, en commentaire, le graphe de flot de controle et les
+	 * registres vivants de chaque fonction.
+	 * 
+	 * @param dump
+	 */
+	public void setDumpAnalysis(boolean dump) {
+		dumpAnalysis = dump;
+	}
+
+	/**
+	 * Fixe le niveau d'optimisation : 0 par defaut, 1 pour garder les variables
+	 * locales simples dans des registres, 2 pour une allocation des registres
+	 * plus lente mais qui vide moins de registres en memoire.
+	 * 
+	 * @param level
+	 */
+	public void setOptimize(int level) {
+		optimize = level;
+	}
+
+	/**
+	 * Fixe le nombre maximal d'instructions d'une fonction mise en ligne a la
+	 * place de ses appels : 0 pour n'en mettre aucune ; par defaut, aucune
+	 * avant le niveau 2.
+	 * 
+	 * @param limit
+	 */
+	public void setInlineLimit(int limit) {
+		inlineLimit = limit;
+	}
+
 	/**
 	 * Ecrit le code dans un fichier à partir du nom du fichier source et du
-	 * suffixe
+	 * suffixe. Le code est mis a plat une seule fois, directement dans le fichier.
 	 * 
 	 * @param fileName
 	 * @param code
 	 * @throws MCSException
 	 */
 	@Override
-	public void writeCode(String fname, String code) throws MCSException {
+	public void writeCode(String fname, Code code) throws MCSException {
+		beginCode(fname);
+		writeEntity(code);
+		endCode();
+	}
+
+	/**
+	 * Ouvre le fichier cible (nom du fichier source, avec le suffixe de la
+	 * machine) et y ecrit l'en-tete. Le code est d'abord ecrit dans un fichier
+	 * temporaire, qui ne remplace le fichier cible qu'a la fin : une compilation
+	 * interrompue ne laisse pas de fichier tronque.
+	 * 
+	 * @param fname
+	 * @throws MCSException
+	 */
+	@Override
+	public void beginCode(String fname) throws MCSException {
 		try {
 			// pre verifiee au lancement
 			int pt = fname.lastIndexOf('.');
 			String name = fname.substring(0, pt);
 			String asmName = name + "." + getSuffix();
 			System.err.println("Ecriture du code dans " + asmName);
-			PrintWriter pw = new PrintWriter(new FileOutputStream(asmName));
-			pw.print(code);
-			pw.close();
-		} catch (FileNotFoundException e) {
+			target = Paths.get(asmName).toAbsolutePath();
+			partial = target.resolveSibling(target.getFileName() + ".part");
+			partial.toFile().deleteOnExit();
+			out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8);
+			generateHeader().writeTo(out);
+		} catch (IOException e) {
+			throw new MCSException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Ecrit le code d'une entite et le vide : la memoire utilisee ne depend
+	 * que de la plus grosse entite, pas du programme entier.
+	 * 
+	 * @param code
+	 * @throws MCSException
+	 */
+	@Override
+	public void writeEntity(Code code) throws MCSException {
+		try {
+			code.writeTo(out);
+			code.clear();
+		} catch (IOException e) {
+			throw new MCSException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Ecrit la fin du programme et ferme le fichier cible.
+	 * 
+	 * @throws MCSException
+	 */
+	@Override
+	public void endCode() throws MCSException {
+		try {
+			generateTrailer().writeTo(out);
+			out.close();
+			out = null;
+			Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
 			throw new MCSException(e.getMessage());
 		}
 	}
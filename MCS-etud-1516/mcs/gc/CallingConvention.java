@@ -0,0 +1,87 @@
+/**
+ * CallingConvention -- where the arguments of a call are passed
+ *
+ * Every argument is one word: its value, or the handle of a composite value.
+ * The words of a call are its arguments, after the object for a method or a
+ * constructor. The first four words are passed in r0 to r3, the next ones on
+ * the stack, the first of them on top; the caller pops them after the call.
+ * A callee that needs the words passed in registers in memory pushes them at
+ * its entry: they then lie just below the ones passed on the stack, as if all
+ * the words had been pushed (see FunctionInfo.displacement).
+ *
+ * @version 0.1
+ */
+package mcs.gc;
+
+import java.util.List;
+import mcs.obj.MethodInfo;
+import mcs.symtab.FunctionInfo;
+
+public class CallingConvention {
+    public static final int Registers = 4;      // Words passed in registers
+
+    private Register[] registers;
+
+    /**
+     * Constructor
+     * @param registers registers of the machine, the ones of the arguments first
+     */
+    public CallingConvention(List<Register> registers) {
+        this.registers = registers.subList(0, Registers).toArray(new Register[Registers]);
+    }
+
+    /**
+     * Tell if the words of a call start with an object
+     * @param info info of the function called
+     * @return true for a method or a constructor
+     */
+    public boolean hasObject(FunctionInfo info) {
+        return info instanceof MethodInfo;
+    }
+
+    /**
+     * Number of words of a call
+     * @param info info of the function called
+     * @return the number of arguments, plus one for the object
+     */
+    public int words(FunctionInfo info) {
+        return info.parameters().size() + (hasObject(info) ? 1 : 0);
+    }
+
+    /**
+     * Word of an argument
+     * @param info info of the function called
+     * @param n number of the argument, from 0
+     * @return the number of the word
+     */
+    public int word(FunctionInfo info, int n) {
+        return n + (hasObject(info) ? 1 : 0);
+    }
+
+    /**
+     * Number of words of a call passed in registers
+     * @param info info of the function called
+     * @return the number of words
+     */
+    public int inRegisters(FunctionInfo info) {
+        return Math.min(words(info), Registers);
+    }
+
+    /**
+     * Register a word is passed in
+     * @param word number of the word
+     * @return the register, null if the word is passed on the stack
+     */
+    public Register register(int word) {
+        return (word < Registers ? this.registers[word] : null);
+    }
+
+    /**
+     * Size of the words of a call passed on the stack
+     * @param info info of the function called
+     * @return the size, in bytes
+     */
+    public int stackSize(FunctionInfo info) {
+        return 4 * (words(info) - inRegisters(info));
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Code -- an append-only buffer of generated code
+ *
+ * Appending a fragment (a string, an instruction or another Code) only links
+ * it into the buffer, nothing is copied; the whole text is flattened once,
+ * when it is written. Hence building the code of a function is linear in its
+ * size, whatever the depth of the grammar rules that produced it.
+ * Instructions stay objects (see mcs.ir) until they are printed.
+ * Note: a Code appended to another one must not be modified afterwards.
+ *
+ * @version 0.1
+ */
+package mcs.gc;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Printer;
+
+public class Code {
+    private List<Object> parts;     // Fragments : String, Instruction or Code
+    private int size;               // Number of strings and instructions
+
+    /**
+     * Constructor
+     * Create a code from a list of fragments (String, Instruction or Code)
+     * @param parts the fragments, in order
+     */
+    public Code(Object... parts) {
+        this.parts = new ArrayList<Object>(parts.length);
+        this.size = 0;
+        this.append(parts);
+    }
+
+    /**
+     * Append fragments at the end of the code
+     * @param parts the fragments (String, Instruction, InstructionList or Code), in order
+     * @return this code
+     */
+    public Code append(Object... parts) {
+        for (Object o : parts)
+            this.link(o);
+
+        return this;
+    }
+
+    /**
+     * Link a single fragment at the end of the code
+     * @param o the fragment
+     */
+    private void link(Object o) {
+        if (o instanceof Code) {
+            Code c = (Code)o;
+            if (c.size > 0) {
+                this.parts.add(c);
+                this.size += c.size;
+            }
+        } else if (o instanceof Instruction) {
+            this.parts.add(o);
+            this.size++;
+        } else if (o instanceof InstructionList) {
+            for (Instruction i : (InstructionList)o)
+                this.link(i);
+        } else if (o != null) {
+            String s = o.toString();
+            if (s.length() > 0) {
+                this.parts.add(s);
+                this.size++;
+            }
+        }
+    }
+
+    /**
+     * Get the number of fragments of the code
+     * @return the number of strings and instructions
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Tell if there is no code at all
+     * @return true if the code is empty
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Forget every fragment, once the code has been written
+     */
+    public void clear() {
+        this.parts = new ArrayList<Object>();
+        this.size = 0;
+    }
+
+    /**
+     * Flatten the code into a list of instructions; strings become TEXT
+     * pseudo-instructions, so that nothing is lost
+     * @return the instructions, in order
+     */
+    public InstructionList instructions() {
+        InstructionList list = new InstructionList(this.size);
+        Deque<Iterator<Object>> stack = new ArrayDeque<Iterator<Object>>();
+        stack.push(this.parts.iterator());
+
+        while (!stack.isEmpty()) {
+            Iterator<Object> iter = stack.peek();
+
+            if (!iter.hasNext()) {
+                stack.pop();
+            } else {
+                Object o = iter.next();
+                if (o instanceof Code)
+                    stack.push(((Code)o).parts.iterator());
+                else if (o instanceof Instruction)
+                    list.add((Instruction)o);
+                else
+                    list.add(Instruction.text((String)o));
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Write the flattened code into the given output
+     * Note: the tree of fragments is walked iteratively, as it may be very deep
+     * @param out the output
+     */
+    public void writeTo(Appendable out) throws IOException {
+        Deque<Iterator<Object>> stack = new ArrayDeque<Iterator<Object>>();
+        stack.push(this.parts.iterator());
+
+        while (!stack.isEmpty()) {
+            Iterator<Object> iter = stack.peek();
+
+            if (!iter.hasNext()) {
+                stack.pop();
+            } else {
+                Object o = iter.next();
+                if (o instanceof Code)
+                    stack.push(((Code)o).parts.iterator());
+                else if (o instanceof Instruction)
+                    Printer.print((Instruction)o, out);
+                else
+                    out.append((String)o);
+            }
+        }
+    }
+
+    /**
+     * Flatten the code into a string
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(this.size * 16);
+        try {
+            this.writeTo(sb);
+        } catch (IOException e) {
+            // A StringBuilder never throws
+        }
+        return sb.toString();
+    }
+}
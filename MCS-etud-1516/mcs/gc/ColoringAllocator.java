@@ -0,0 +1,357 @@
+/**
+ * ColoringAllocator -- register allocation by colouring the interference graph
+ *
+ * Two registers interfere when one is written while the other is live (the
+ * source of a copy excepted). The registers of the pool written or read by
+ * the code itself are nodes of the graph with a fixed colour.
+ *
+ * Copies are coalesced first, as long as it can not make the graph harder to
+ * colour: the merged register has less than K neighbours of degree K or
+ * more (Briggs), or, when merged with a register of the pool, its neighbours
+ * of degree K or more already interfere with it (George). The copies in the
+ * deepest loops are tried first.
+ *
+ * The graph is then simplified: a node with less than K neighbours is
+ * removed, since it can always be coloured; when there is none, the node of
+ * lowest cost per neighbour is removed anyway (Chaitin). Each use or
+ * definition costs 10 to the power of its loop depth; constants, which are
+ * loaded again instead of going through memory, cost half as much. Nodes are
+ * coloured in the reverse order, preferably with the colour of a register
+ * they are copied from or to; the ones that find no colour are spilled
+ * (Briggs' optimistic colouring).
+ *
+ * @version 0.1
+ */
+package mcs.gc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import mcs.compiler.MCSException;
+import mcs.compiler.MCSRegisterLimitReachedException;
+import mcs.ir.BasicBlock;
+import mcs.ir.ControlFlowGraph;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Liveness;
+import mcs.ir.Loops;
+
+public class ColoringAllocator extends RegisterAllocator {
+    private static final int MaxDepth = 6;      // Beyond, the costs would not fit
+
+    private BitSet[] adj;           // Neighbours of each node, by register number
+    private int[] degree;
+    private double[] cost;
+    private int[] alias;            // Node each register was merged into
+    private int[] color;            // Index in the pool, -1 if none
+    private List<int[]> copies;     // Destination, source and weight of each copy
+
+    /**
+     * Constructor
+     * @param du registers read and written by the instructions
+     * @param exitLive registers live when a function returns
+     * @param pool registers that may be assigned
+     */
+    public ColoringAllocator(DefUse du, BitSet exitLive, Register[] pool) {
+        super(du, exitLive, pool);
+    }
+
+    @Override
+    public String name() {
+        return "graph colouring";
+    }
+
+    @Override
+    protected boolean rematerializes() {
+        return true;
+    }
+
+    @Override
+    protected void assign(InstructionList code, Map<Integer, Register> assignment, BitSet spill) throws MCSException {
+        BitSet nodes = build(code);
+        coalesce();
+
+        int k = this.pool.length;
+        BitSet left = new BitSet();
+        for (int v = nodes.nextSetBit(0); v >= 0; v = nodes.nextSetBit(v + 1)) {
+            if (find(v) == v)
+                left.set(v);
+        }
+
+        // Simplify
+        int[] deg = this.degree.clone();
+        List<Integer> stack = new ArrayList<Integer>();
+        List<Integer> low = new ArrayList<Integer>();
+        for (int v = left.nextSetBit(0); v >= 0; v = left.nextSetBit(v + 1)) {
+            if (deg[v] < k)
+                low.add(v);
+        }
+
+        while (!left.isEmpty()) {
+            int v = -1;
+            while (!low.isEmpty() && v < 0) {
+                int c = low.remove(low.size() - 1);
+                if (left.get(c))
+                    v = c;
+            }
+            if (v < 0)
+                v = cheapest(left, deg);
+
+            left.clear(v);
+            stack.add(v);
+            for (int t = this.adj[v].nextSetBit(0); t >= 0; t = this.adj[v].nextSetBit(t + 1)) {
+                if (left.get(t) && --deg[t] == k - 1)
+                    low.add(t);
+            }
+        }
+
+        // Select
+        BitSet spilled = new BitSet();
+        BitSet used = new BitSet();
+        for (int j = stack.size() - 1; j >= 0; j--) {
+            int v = stack.get(j);
+            used.clear();
+            for (int t = this.adj[v].nextSetBit(0); t >= 0; t = this.adj[v].nextSetBit(t + 1)) {
+                if (this.color[t] >= 0)
+                    used.set(this.color[t]);
+            }
+
+            int c = preferred(v, used);
+            if (c < 0)
+                c = used.nextClearBit(0);
+            if (c < k) {
+                this.color[v] = c;
+            } else if (this.unspillable.get(v)) {
+                throw new MCSRegisterLimitReachedException();
+            } else {
+                spilled.set(v);
+            }
+        }
+
+        for (int v = nodes.nextSetBit(0); v >= 0; v = nodes.nextSetBit(v + 1)) {
+            int r = find(v);
+            if (spilled.get(r))
+                spill.set(v);
+            else
+                assignment.put(v, this.pool[this.color[r]]);
+        }
+    }
+
+    @Override
+    protected boolean conflict(int a, int b) {
+        int x = find(a), y = find(b);
+        return x != y && this.adj[x].get(y);
+    }
+
+    /**
+     * Build the interference graph
+     * @return the virtual registers of the code
+     */
+    private BitSet build(InstructionList code) {
+        ControlFlowGraph cfg = new ControlFlowGraph(code);
+        Liveness live = new Liveness(cfg, this.du, this.exitLive).solve();
+        Loops loops = new Loops(cfg);
+
+        int n = DefUse.FirstVirtual;
+        BitSet regs = new BitSet();
+        for (Instruction inst : code) {
+            regs.clear();
+            this.du.uses(inst, regs);
+            this.du.defs(inst, regs);
+            n = Math.max(n, regs.length());
+        }
+
+        this.adj = new BitSet[n];
+        this.degree = new int[n];
+        this.cost = new double[n];
+        this.alias = new int[n];
+        this.color = new int[n];
+        for (int r = 0; r < n; r++) {
+            this.adj[r] = new BitSet();
+            this.alias[r] = r;
+            this.color[r] = (DefUse.isVirtual(r) ? -1 : poolIndex(r));
+        }
+        this.copies = new ArrayList<int[]>();
+
+        BitSet nodes = new BitSet();
+        BitSet defs = new BitSet();
+        int[] first = new int[n], last = new int[n];     // Range of the code using each register
+        for (BasicBlock b : cfg.blocks()) {
+            int w = (int)Math.pow(10, Math.min(loops.depth(b.index()), MaxDepth));
+            BitSet l = (BitSet)live.liveOut(b.index()).clone();
+
+            for (int i = b.end() - 1; i >= b.start(); i--) {
+                Instruction inst = code.get(i);
+                regs.clear();
+                defs.clear();
+                this.du.uses(inst, regs);
+                this.du.defs(inst, defs);
+                regs.or(defs);
+                for (int r = regs.nextSetBit(0); r >= 0; r = regs.nextSetBit(r + 1)) {
+                    if (DefUse.isVirtual(r)) {
+                        if (!nodes.get(r))
+                            first[r] = last[r] = i;
+                        nodes.set(r);
+                        this.cost[r] += w;
+                        first[r] = Math.min(first[r], i);
+                        last[r] = Math.max(last[r], i);
+                    }
+                }
+
+                // The source of a copy may share the register of its destination
+                BitSet after = l;
+                if (isCopy(inst)) {
+                    int d = DefUse.id((Register)inst.operand(0)), s = DefUse.id((Register)inst.operand(1));
+                    this.copies.add(new int[] { d, s, w });
+                    after = (BitSet)l.clone();
+                    after.clear(s);
+                }
+
+                for (int d = defs.nextSetBit(0); d >= 0; d = defs.nextSetBit(d + 1)) {
+                    for (int r = after.nextSetBit(0); r >= 0; r = after.nextSetBit(r + 1))
+                        addEdge(d, r);
+                    for (int r = defs.nextSetBit(d + 1); r >= 0; r = defs.nextSetBit(r + 1))
+                        addEdge(d, r);
+                }
+
+                live.stepBack(i, l);
+            }
+        }
+
+        for (int v = nodes.nextSetBit(0); v >= 0; v = nodes.nextSetBit(v + 1)) {
+            if (isConstant(v))
+                this.cost[v] /= 2;
+            // Spilling a register used right after being written frees nothing
+            else if (last[v] == first[v] || (last[v] == first[v] + 1
+                        && !code.get(first[v]).endsBlock() && !code.get(last[v]).isLabel()))
+                this.cost[v] = Double.MAX_VALUE;
+        }
+        return nodes;
+    }
+
+    /**
+     * Tell if a register is a node of the graph: virtual, or in the pool
+     */
+    private boolean isNode(int r) {
+        return r < this.color.length && (DefUse.isVirtual(r) || this.color[r] >= 0);
+    }
+
+    private void addEdge(int a, int b) {
+        if (a == b || !isNode(a) || !isNode(b) || (!DefUse.isVirtual(a) && !DefUse.isVirtual(b)))
+            return;
+        if (this.adj[a].get(b))
+            return;
+        this.adj[a].set(b);
+        this.adj[b].set(a);
+        this.degree[a]++;
+        this.degree[b]++;
+    }
+
+    private int find(int r) {
+        while (this.alias[r] != r)
+            r = this.alias[r];
+        return r;
+    }
+
+    /**
+     * Coalesce the copies that do not make the graph harder to colour
+     */
+    private void coalesce() {
+        Collections.sort(this.copies, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                return b[2] - a[2];
+            }
+        });
+
+        int k = this.pool.length;
+        for (int[] c : this.copies) {
+            int a = find(c[0]), b = find(c[1]);
+            if (a == b || !isNode(a) || !isNode(b) || this.adj[a].get(b))
+                continue;
+            if (this.unspillable.get(a) || this.unspillable.get(b))
+                continue;
+
+            boolean ok;
+            if (!DefUse.isVirtual(a) || !DefUse.isVirtual(b)) {
+                if (!DefUse.isVirtual(b)) {
+                    int t = a;
+                    a = b;
+                    b = t;
+                }
+                if (!DefUse.isVirtual(b))
+                    continue;
+                ok = true;
+                for (int t = this.adj[b].nextSetBit(0); t >= 0 && ok; t = this.adj[b].nextSetBit(t + 1))
+                    ok = !DefUse.isVirtual(t) || this.degree[t] < k || this.adj[t].get(a);
+            } else {
+                BitSet both = (BitSet)this.adj[a].clone();
+                both.or(this.adj[b]);
+                int significant = 0;
+                for (int t = both.nextSetBit(0); t >= 0; t = both.nextSetBit(t + 1)) {
+                    int d = this.degree[t] - (this.adj[t].get(a) && this.adj[t].get(b) ? 1 : 0);
+                    if (!DefUse.isVirtual(t) || d >= k)
+                        significant++;
+                }
+                ok = significant < k;
+            }
+
+            if (ok)
+                merge(a, b);
+        }
+    }
+
+    /**
+     * Merge a node into another one
+     * @param into the node that remains
+     * @param v the node merged into it
+     */
+    private void merge(int into, int v) {
+        this.alias[v] = into;
+        for (int t = this.adj[v].nextSetBit(0); t >= 0; t = this.adj[v].nextSetBit(t + 1)) {
+            this.adj[t].clear(v);
+            this.degree[t]--;
+            addEdge(into, t);
+        }
+        this.adj[v].clear();
+        this.degree[v] = 0;
+        this.cost[into] += this.cost[v];
+    }
+
+    /**
+     * Node of lowest spill cost per neighbour, the short-lived registers of
+     * the spill code being taken last
+     */
+    private int cheapest(BitSet left, int[] deg) {
+        int best = -1;
+        double bestCost = 0;
+        for (int v = left.nextSetBit(0); v >= 0; v = left.nextSetBit(v + 1)) {
+            double c = (this.unspillable.get(v) ? Double.POSITIVE_INFINITY : this.cost[v] / Math.max(deg[v], 1));
+            if (best < 0 || c < bestCost) {
+                best = v;
+                bestCost = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Colour of a register a node is copied from or to, if it is free
+     * @return the colour, -1 if there is none
+     */
+    private int preferred(int v, BitSet used) {
+        for (int[] c : this.copies) {
+            int other = -1;
+            if (find(c[0]) == v)
+                other = find(c[1]);
+            else if (find(c[1]) == v)
+                other = find(c[0]);
+            if (other >= 0 && other < this.color.length && this.color[other] >= 0 && !used.get(this.color[other]))
+                return this.color[other];
+        }
+        return -1;
+    }
+}
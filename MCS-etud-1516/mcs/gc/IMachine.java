@@ -83,7 +83,44 @@ public interface IMachine {
      * @throws MCSException
      */
 
-    void writeCode(String fileName, String code) throws MCSException;
+    void writeCode(String fileName, Code code) throws MCSException;
+
+    /**
+     * Ouvre le fichier cible et y ecrit l'en-tete du programme ; le code est
+     * ensuite ecrit au fil de l'eau par writeEntity, puis termine par endCode
+     * 
+     * @param fileName
+     * @throws MCSException
+     */
+    void beginCode(String fileName) throws MCSException;
+
+    /**
+     * Ecrit le code d'une entite de plus haut niveau dans le fichier cible,
+     * puis l'oublie
+     * 
+     * @param code
+     * @throws MCSException
+     */
+    void writeEntity(Code code) throws MCSException;
+
+    /**
+     * Ecrit la fin du programme et ferme le fichier cible
+     * 
+     * @throws MCSException
+     */
+    void endCode() throws MCSException;
+
+    /**
+     * Generate the beginning of the target file (before any entity)
+     * @return the generated code
+     */
+    Code generateHeader() throws MCSException;
+
+    /**
+     * Generate the end of the target file (after every entity)
+     * @return the generated code
+     */
+    Code generateTrailer() throws MCSException;
 
     /**********************************************************
      * Generation function
@@ -99,7 +136,7 @@ public interface IMachine {
      * @param rout (out) register in which the value will be
      * @return the generated code
      */
-    String generateLoadValue(VariableInfo info, RegisterWrapper rout) throws MCSException;
+    Code generateLoadValue(VariableInfo info, RegisterWrapper rout) throws MCSException;
 
     /**
      * Generate the code for loading a variable into a register, with an optionnal field name (for structs)
@@ -108,7 +145,7 @@ public interface IMachine {
      * @param rout (out) register in which the value will be
      * @return the generated code
      */
-    String generateLoadValue(VariableInfo info, int disp, RegisterWrapper rout) throws MCSException;
+    Code generateLoadValue(VariableInfo info, int disp, RegisterWrapper rout) throws MCSException;
 
     /**
      * Generate the code for loading a variable into a register, with an optionnal displacement register (for arrays)
@@ -117,7 +154,7 @@ public interface IMachine {
      * @param rout (out) register in which the value will be
      * @return the generated code
      */
-    String generateLoadValue(VariableInfo info, Register rdisp, RegisterWrapper rout) throws MCSException;
+    Code generateLoadValue(VariableInfo info, Register rdisp, RegisterWrapper rout) throws MCSException;
 
     /**
      * Generate the code for loading a value from the stack to a register
@@ -125,7 +162,7 @@ public interface IMachine {
      * @param rout (out) register in which the value will be
      * @return the generated code
      */
-    String generateLoadFromStack(int disp, RegisterWrapper rout) throws MCSException;
+    Code generateLoadFromStack(int disp, RegisterWrapper rout) throws MCSException;
 
     /**
      * Generate the code for loading a constant itneger into a register.
@@ -133,7 +170,7 @@ public interface IMachine {
      * @param rout register where the value is put, for later referencing
      * @return the generated code
      */
-    String generateLoadConstant(ConstantInfo info, RegisterWrapper rout) throws MCSException;
+    Code generateLoadConstant(ConstantInfo info, RegisterWrapper rout) throws MCSException;
 
     /**
      * Generate the code for loading a variable from the heap into a register
@@ -142,7 +179,7 @@ public interface IMachine {
      * @param rout register where the value is put
      * @return the generated code
      */
-    String generateLoadFromHeap(Register raddr, int disp, RegisterWrapper rout) throws MCSException;
+    Code generateLoadFromHeap(Register raddr, int disp, RegisterWrapper rout) throws MCSException;
 
     /**
      * Generate the code for loading a variable from the heap into a register, with an optionnal register displacement
@@ -151,7 +188,7 @@ public interface IMachine {
      * @param rout register where the value is put
      * @return the generated code
      */
-    String generateLoadFromHeap(Register raddr, Register rdisp, RegisterWrapper rout) throws MCSException;
+    Code generateLoadFromHeap(Register raddr, Register rdisp, RegisterWrapper rout) throws MCSException;
 
     ///////////// STORE ////////////
 
@@ -161,7 +198,7 @@ public interface IMachine {
      * @param rin value to put in the variabe
      * @return the generated code
      */
-    String generateStoreVariable(VariableInfo vinfo, Register rin) throws MCSException;
+    Code generateStoreVariable(VariableInfo vinfo, Register rin) throws MCSException;
 
     /**
      * Generate the code for 'updating' the value of a variable
@@ -170,7 +207,7 @@ public interface IMachine {
      * @param rin value to put in the variabe
      * @return the generated code
      */
-    String generateStoreVariable(VariableInfo vinfo, int disp, Register rin) throws MCSException;
+    Code generateStoreVariable(VariableInfo vinfo, int disp, Register rin) throws MCSException;
 
     /**
      * Generate the code for 'updating' the value of a variable
@@ -179,7 +216,7 @@ public interface IMachine {
      * @param rin value to put in the variabe
      * @return the generated code
      */
-    String generateStoreVariable(VariableInfo vinfo, Register rdisp, Register rin) throws MCSException;
+    Code generateStoreVariable(VariableInfo vinfo, Register rdisp, Register rin) throws MCSException;
 
     /**
      * Generate the code for storing a variable into the heap
@@ -188,7 +225,7 @@ public interface IMachine {
      * @param rin register containing the value to be stored
      * @return the generated code
      */
-    String generateStoreInHeap(Register raddr, int disp, Register rin) throws MCSException;
+    Code generateStoreInHeap(Register raddr, int disp, Register rin) throws MCSException;
 
     /**
      * Generate the code for storing a variable into the heap, with optionnal register displacement
@@ -197,7 +234,7 @@ public interface IMachine {
      * @param rin register containing the value to be stored
      * @return the generated code
      */
-    String generateStoreInHeap(Register raddr, Register rdisp, Register rin) throws MCSException;
+    Code generateStoreInHeap(Register raddr, Register rdisp, Register rin) throws MCSException;
 
     /////// MEMORY MANAGEMENT ///////
     /**
@@ -205,7 +242,15 @@ public interface IMachine {
      * @param type type to allocate
      * @return the generated code
      */
-    String generateAllocateInStack(Type type) throws MCSException;
+    Code generateAllocateInStack(Type type) throws MCSException;
+
+    /**
+     * Generate the code for allocating a local variable of a function
+     * Note: the machine may keep the variable in a register instead
+     * @param info info of the variable
+     * @return the generated code
+     */
+    Code generateAllocateLocal(VariableInfo info) throws MCSException;
 
     /**
      * Generate the code for allocating a block in the heap
@@ -214,14 +259,14 @@ public interface IMachine {
      * @param rsize register containing the size of the block (array only)
      * @return the generated code
      */
-    String generateAllocate(Type type, RegisterWrapper addr, Register rsize) throws MCSException;
+    Code generateAllocate(Type type, RegisterWrapper addr, Register rsize) throws MCSException;
 
     /**
      * Generate the code for flushing the stack top variable
      * @param type type of the variable
      * @return the generated code
      */
-    String generateFlushVariable(Type type) throws MCSException;
+    Code generateFlushVariable(Type type) throws MCSException;
 
     /**
      * Generate the code for flushing every variable of a symbol table
@@ -229,7 +274,7 @@ public interface IMachine {
      * @param symtab the symbol table
      * @return the generated code
      */
-    String generateFlush(SymbolTable symtab) throws MCSException;
+    Code generateFlush(SymbolTable symtab) throws MCSException;
 
     /**
      * Generate the code for copying a variable
@@ -237,17 +282,26 @@ public interface IMachine {
      * @param rin address of the original
      * @param rout address of the copy
      */
-    String generateCopy(Type t, Register rin, RegisterWrapper rout) throws MCSException;
+    Code generateCopy(Type t, Register rin, RegisterWrapper rout) throws MCSException;
 
     /////////////////////// FUNCTION MANAGEMENT ///////////////////////
 
+    /**
+     * Declare a parameter of the function being declared
+     * Note: the machine may keep the parameter in a register instead
+     * @param info info of the function
+     * @param n number of the parameter, from 0
+     * @param vi info of the parameter
+     */
+    void bindParameter(FunctionInfo info, int n, VariableInfo vi) throws MCSException;
+
     /**
      * Generate the code for the beginning of declaring a function
      * @param info the info of the function
      * @param code code generated for the content of the function
      * @return the generated code
      */
-    String generateFunctionDeclaration(FunctionInfo info, String code) throws MCSException;
+    Code generateFunctionDeclaration(FunctionInfo info, Code code) throws MCSException;
 
     /**
      * Generate the code for the 'return' keyword
@@ -255,21 +309,21 @@ public interface IMachine {
      * @param rval the register containing the value to be returned
      * @return the generated code
      */
-    String generateFunctionReturn(FunctionInfo info, Register rval) throws MCSException;
+    Code generateFunctionReturn(FunctionInfo info, Register rval) throws MCSException;
 
     /**
      * Generate the code for pushing an argument
      * @param reg register in which the argument is stored
      * @return the generated code
      */
-    String generateFunctionPushArgument(Register reg) throws MCSException;
+    Code generateFunctionPushArgument(Register reg) throws MCSException;
 
     /**
      * Generate the code for the call to a function
      * @param info info of the function
      * @return the generated code
      */
-    String generateFunctionCall(FunctionInfo info) throws MCSException;
+    Code generateFunctionCall(FunctionInfo info) throws MCSException;
 
     /**
      * Generate the code for the declaration of a method
@@ -277,7 +331,7 @@ public interface IMachine {
      * @param code code of the block
      * @return the generated code
      */
-    String generateMethodDeclaration(MethodInfo info, String code) throws MCSException;
+    Code generateMethodDeclaration(MethodInfo info, Code code) throws MCSException;
 
     /**
      * Generate the code for the call of a method
@@ -285,7 +339,7 @@ public interface IMachine {
      * @param robj register containing the address of the object on which we call the method
      * @return the generated code
      */
-    String generateMethodCall(MethodInfo info, Register robj) throws MCSException;
+    Code generateMethodCall(MethodInfo info, Register robj) throws MCSException;
 
     /**
      * Generate the code for declaring a constructor
@@ -295,14 +349,14 @@ public interface IMachine {
      * @param code code of the block
      * @return the generated code
      */
-    String generateConstructorDeclaration(ConstructorInfo info, ConstructorInfo base, String pcode, String code) throws MCSException;
+    Code generateConstructorDeclaration(ConstructorInfo info, ConstructorInfo base, Code pcode, Code code) throws MCSException;
 
     /**
      * Generate the code for calling a constructor
      * @param info info of the constructor to call
      * @return the generated code
      */
-    String generateConstructorCall(ConstructorInfo info) throws MCSException;
+    Code generateConstructorCall(ConstructorInfo info) throws MCSException;
 
     ////////////////////////////// MISC ///////////////////////////////
     /**
@@ -312,19 +366,19 @@ public interface IMachine {
      * @param enclose enclose the last parameters in brackets (for addressing)
      * @return the generated code
      */
-    String generateInstruction(String inst, List<Object> params) throws MCSException;
-    String generateInstruction(String inst, boolean enclose, Object p1, Object p2, Object p3) throws MCSException;
-    String generateInstruction(String inst, Object p1, Object p2, Object p3) throws MCSException;
-    String generateInstruction(String inst, boolean enclose, Object p1, Object p2) throws MCSException;
-    String generateInstruction(String inst, Object p1, Object p2) throws MCSException;
-    String generateInstruction(String inst, Object p1) throws MCSException;
+    Code generateInstruction(String inst, List<Object> params) throws MCSException;
+    Code generateInstruction(String inst, boolean enclose, Object p1, Object p2, Object p3) throws MCSException;
+    Code generateInstruction(String inst, Object p1, Object p2, Object p3) throws MCSException;
+    Code generateInstruction(String inst, boolean enclose, Object p1, Object p2) throws MCSException;
+    Code generateInstruction(String inst, Object p1, Object p2) throws MCSException;
+    Code generateInstruction(String inst, Object p1) throws MCSException;
 
     /**
      * Generate a label
      * @param label
      * @return the generated code
      */
-    String generateLabel(String label) throws MCSException;
+    Code generateLabel(String label) throws MCSException;
 
     /**
      * Generate a direct constant for use in instructions
@@ -340,6 +394,14 @@ public interface IMachine {
      */
     String generateDirect(String val) throws MCSException;
 
+    /**
+     * Generate the address of a variable, for inline assembly
+     * Note: the variable then has to stay in memory
+     * @param info info of the variable
+     * @return the generated code
+     */
+    String generateVariableAddress(VariableInfo info) throws MCSException;
+
     /**
      * Generate a register
      * @param reg the register
@@ -390,7 +452,7 @@ public interface IMachine {
      * @param raddr (out) register that will contain the address
      * @return the generated code
      */
-    String generateMakeAddress(DisplacementList dlist, RegisterWrapper rvalue, RegisterWrapper raddr) throws MCSException;
+    Code generateMakeAddress(DisplacementList dlist, RegisterWrapper rvalue, RegisterWrapper raddr) throws MCSException;
 
     /**
      * Generate the code for making an address from a list of displacement pair,
@@ -401,7 +463,7 @@ public interface IMachine {
      * @param raddr (out) register that will contain the address
      * @return the generated code
      */
-    String generateMakeAddress(DisplacementList dlist, Register rbaseaddr, RegisterWrapper rvalue, RegisterWrapper raddr) throws MCSException;
+    Code generateMakeAddress(DisplacementList dlist, Register rbaseaddr, RegisterWrapper rvalue, RegisterWrapper raddr) throws MCSException;
 
     /**
      * Generate the code for an if-then-else structure
@@ -410,7 +472,7 @@ public interface IMachine {
      * @param celse code for the else branch
      * @return the generated code
      */
-    String generateIfThenElse(Register rcond, String cif, String celse) throws MCSException;
+    Code generateIfThenElse(Register rcond, Code cif, Code celse) throws MCSException;
 
     /**
      * Generate the code for a while structure
@@ -419,7 +481,7 @@ public interface IMachine {
      * @param bcode code of the bloc
      * @return the generated code
      */
-    String generateWhile(String cond, Register rcond, String bcode) throws MCSException;
+    Code generateWhile(Code cond, Register rcond, Code bcode) throws MCSException;
 
     /**
      * Generate a comment
@@ -427,7 +489,7 @@ public interface IMachine {
      * @param ident indenting to apply
      * @return the generated code
      */
-    String generateComment(String comm, String indent) throws MCSException;
+    Code generateComment(String comm, String indent) throws MCSException;
 
     /**
      * Generate a multiline comment (utility)
@@ -435,7 +497,7 @@ public interface IMachine {
      * @param indent indent to apply
      * @return the generated code
      */
-    String generateMultiComments(String com, String indent) throws MCSException;
+    Code generateMultiComments(String com, String indent) throws MCSException;
 
     /**
      * Return the function return register
@@ -452,7 +514,7 @@ public interface IMachine {
      * @param rout output register
      * @return the generated code
      */
-    String generateOperation(int op, Register r1, Register r2, RegisterWrapper rout) throws MCSException;
+    Code generateOperation(int op, Register r1, Register r2, RegisterWrapper rout) throws MCSException;
 
     /**
      * Generate an arithmetic unary operation
@@ -460,7 +522,19 @@ public interface IMachine {
      * @param rout destination register
      * @return the generated code
      */
-    String generateOperation(int op, Register rin, RegisterWrapper rout) throws MCSException;
+    Code generateOperation(int op, Register rin, RegisterWrapper rout) throws MCSException;
+
+    /**
+     * Generate a logical and (RAND) or or (ROR): the right operand is only
+     * evaluated when the left one does not decide the result
+     * @param op the operator
+     * @param r1 register of the left operand, whose code comes right before
+     * @param right code of the right operand
+     * @param r2 register of the right operand
+     * @param rout output register
+     * @return the generated code, with the one of the right operand
+     */
+    Code generateLogicalOperation(int op, Register r1, Code right, Register r2, RegisterWrapper rout) throws MCSException;
 
     // For debug
     /** 
@@ -468,6 +542,56 @@ public interface IMachine {
 		 */
 		String logRegisters();
 
+    /**
+     * Returns the calls replaced by the body of the function.
+     */
+    String logInlining();
+
+    /**
+     * Returns the constants propagated, and the time spent on it.
+     */
+    String logPropagation();
+
+    /**
+     * Returns the rewrites made by each rule of the peephole optimizer.
+     */
+    String logPeephole();
+
+    /**
+     * Returns the instructions moved out of the loops.
+     */
+    String logInvariants();
+
+    /**
+     * Returns the accesses of the loops made through incremented pointers.
+     */
+    String logInduction();
+
+    /**
+     * Returns the instructions folded by the selector.
+     */
+    String logSelection();
+
+    /**
+     * Returns the operations by a constant made without multiplying nor dividing.
+     */
+    String logReduction();
+
+    /**
+     * Returns the constants put in the instructions and in literal pools.
+     */
+    String logImmediates();
+
+    /**
+     * Returns the computations made again that were removed.
+     */
+    String logNumbering();
+
+    /**
+     * Returns the loops tested at the bottom and the blocks moved out of the way.
+     */
+    String logLayout();
+
     /**
      * Returns the size of the context
      */
@@ -0,0 +1,328 @@
+/**
+ * Inliner -- put the body of small functions in place of their calls
+ *
+ * The body of each function is kept once it is generated, before its
+ * registers are allocated: virtual registers, its variables relative to the
+ * stack base and the words of its calls above it. At a call, the body is
+ * copied with new virtual registers and labels; its variables go to a room
+ * below the ones of the caller, shared by all the calls of the caller (see
+ * finish); a word the callee only loads is replaced by the register of the
+ * argument, the others are stored in the same room; a return branches to a
+ * label after the body, the result being in FR as after a call.
+ *
+ * A body is not put in place of a call when it is bigger than a limit, when
+ * it calls itself, or when it uses the stack base in another way; the
+ * decision taken for each call is reported.
+ *
+ * @version 0.1
+ */
+package mcs.gc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import mcs.compiler.MCSException;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.FunctionInfo;
+
+public class Inliner {
+    /**
+     * Body of a function, as it is kept
+     */
+    private static class Body {
+        InstructionList code;       // From the parameters to the default return
+        int params;                 // Number of instructions setting the parameters
+        int frame;                  // Size of the variables
+        int words;                  // Words of a call
+        String end;                 // Label of the epilogue
+        BitSet stored;              // Words not only loaded from the stack
+        BitSet entry;               // Words stored from their register when the parameters are set
+        int size;                   // Number of instructions
+        String reason;              // Why it is not put in place of a call, null if it is
+    }
+
+    /**
+     * Reference to the room of the inlined variables, fixed once the frame
+     * of the caller is known
+     */
+    private static class Slot {
+        Instruction inst;
+        int operand, disp;
+
+        Slot(Instruction inst, int operand, int disp) {
+            this.inst = inst;
+            this.operand = operand;
+            this.disp = disp;
+        }
+    }
+
+    private ARMEngine machine;
+    private Register sb;
+    private int limit;                                      // Biggest body put in place of a call
+    private Map<String, Body> bodies = new HashMap<String, Body>();
+    private List<Slot> slots = new ArrayList<Slot>();       // References of the function being generated
+    private int room = 0;                                   // Room of the function being generated
+    private List<String[]> sites = new ArrayList<String[]>(); // Callee and decision, for the function being generated
+    private List<String> log = new ArrayList<String>();
+    private int inlined = 0, calls = 0, number = 0;
+    private boolean assembly = false;                       // Inline assembly since the last function
+
+    /**
+     * Constructor
+     * @param machine the machine, for new virtual registers
+     * @param sb the stack base register
+     * @param limit biggest number of instructions of a body put in place of a call (0: none)
+     */
+    public Inliner(ARMEngine machine, Register sb, int limit) {
+        this.machine = machine;
+        this.sb = sb;
+        this.limit = limit;
+    }
+
+    /**
+     * Tell that inline assembly is generated: the registers it uses are not
+     * known, the function it is in is never put in place of a call
+     */
+    public void assembly() {
+        this.assembly = true;
+    }
+
+    /**
+     * Keep the body of a function
+     * @param label label of the function
+     * @param list code of the function, with virtual registers
+     * @param start instruction before the one setting the parameters
+     * @param body instruction after the ones setting the parameters
+     * @param end label of the epilogue
+     * @param frame size of the variables of the function
+     * @param words number of words of a call
+     */
+    public void record(String label, InstructionList list, Instruction start, Instruction body, String end,
+            int frame, int words) {
+        Body b = new Body();
+        b.code = new InstructionList();
+        b.frame = frame;
+        b.words = words;
+        b.end = end;
+        b.stored = new BitSet();
+        b.entry = new BitSet();
+        if (this.assembly)
+            b.reason = "inline assembly";
+        this.assembly = false;
+
+        boolean in = false;
+        for (Instruction inst : list) {
+            if (inst.isLabel() && inst.text().equals(end))
+                break;
+            if (inst == body)
+                b.params = b.code.size();
+            if (in && !inst.isText())
+                b.code.add(inst.copy());
+            in |= (inst == start);
+        }
+
+        for (int i = 0; i < b.code.size(); i++) {
+            Instruction inst = b.code.get(i);
+            if (!inst.opcode().isPseudo())
+                b.size++;
+            if (b.reason == null)
+                b.reason = check(inst, label, b);
+            if (i < b.params && inst.opcode() == Opcode.STR && uses(inst.operand(1), this.sb)
+                    && inst.operand(2) instanceof Integer && (Integer)inst.operand(2) >= 12)
+                b.entry.set(((Integer)inst.operand(2) - 12) / 4);
+        }
+        if (b.reason == null && b.size > this.limit)
+            b.reason = "too big: " + b.size + " instructions, limit " + this.limit;
+        this.bodies.put(label, b);
+    }
+
+    /**
+     * Why an instruction keeps its function from being put in place of a call
+     * @return the reason, null if there is none
+     */
+    private String check(Instruction inst, String label, Body b) {
+        if (inst.isCall() && label.equals(inst.target()))
+            return "recursive";
+
+        for (int k = 0; k < 4; k++) {
+            Object o = inst.operand(k);
+            if (o instanceof String && !o.equals(inst.target()))
+                return "label used";
+            if (!uses(o, this.sb))
+                continue;
+
+            // Only [SB, #d] and SB + d are known
+            if (k != 1 || !(inst.operand(2) instanceof Integer) || inst.operand(3) != null)
+                return "stack base used";
+            boolean access = inst.opcode() == Opcode.LDR || inst.opcode() == Opcode.STR;
+            if (access && inst.addressing() != Instruction.Addressing.Offset)
+                return "stack base used";
+            if (!access && inst.opcode() != Opcode.ADD)
+                return "stack base used";
+
+            int d = (Integer)inst.operand(2);
+            if (d > 0 && (d < 12 || (d - 12) % 4 != 0 || (d - 12) / 4 >= b.words))
+                return "stack base used";
+            if (d > 0 && inst.opcode() != Opcode.LDR)
+                b.stored.set((d - 12) / 4);
+            // The room covers every word read, even out of the variables
+            if (d <= 0)
+                b.frame = Math.max(b.frame, 4 - d);
+        }
+        return null;
+    }
+
+    private static boolean uses(Object o, Register r) {
+        if (o instanceof List) {
+            for (Object x : (List<?>)o) {
+                if (uses(x, r))
+                    return true;
+            }
+        }
+        return o instanceof Register && DefUse.id((Register)o) == DefUse.id(r);
+    }
+
+    /**
+     * Body of a function put in place of a call
+     * @param label label of the function
+     * @param words registers holding the words of the call
+     * @param registers registers the words are passed in
+     * @return the code, null if the call is kept
+     */
+    public InstructionList expand(String label, List<Register> words, CallingConvention registers)
+            throws MCSException {
+        Body b = this.bodies.get(label);
+        this.calls++;
+        if (b == null || b.reason != null) {
+            this.sites.add(new String[] { label, "called (" + (b == null ? "not generated yet" : b.reason) + ")" });
+            return null;
+        }
+        this.inlined++;
+        this.number++;
+        this.sites.add(new String[] { label, "inlined (" + b.size + " instructions)" });
+        this.room = Math.max(this.room, b.frame + 4 * b.stored.length());
+
+        String join = label + "_inline_" + this.number;
+        Map<Integer, Register> renamed = new HashMap<Integer, Register>();
+        InstructionList code = new InstructionList(b.code.size() + b.words + 1);
+
+        // The words not only loaded are stored in their place, unless the
+        // setting of the parameters does it
+        for (int w = b.stored.nextSetBit(0); w >= 0; w = b.stored.nextSetBit(w + 1)) {
+            if (!b.entry.get(w))
+                code.add(slot(new Instruction(Opcode.STR, Cond.AL, false, Instruction.Addressing.Offset,
+                            words.get(w), this.sb, 0, null), b.frame + 4 * w));
+        }
+
+        for (int i = 0; i < b.code.size(); i++) {
+            Instruction inst = b.code.get(i);
+            if (inst.isLabel()) {
+                code.add(Instruction.label(inst.text() + "_" + this.number));
+                continue;
+            }
+
+            Instruction c = inst.copy();
+            for (int k = 0; k < 4; k++)
+                c.setOperand(k, rename(c.operand(k), renamed, (i < b.params ? words : null), registers));
+
+            String target = c.target();
+            if (target != null && !c.isCall()) {
+                int k = (c.opcode() == Opcode.B ? 0 : 1);
+                c.setOperand(k, (target.equals(b.end) ? join : target + "_" + this.number));
+            }
+
+            if (uses(c.operand(1), this.sb)) {
+                int d = (Integer)c.operand(2);
+                int w = (d - 12) / 4;
+                if (d <= 0)
+                    c = slot(c, -d);
+                else if (b.stored.get(w))
+                    c = slot(c, b.frame + 4 * w);
+                else
+                    c = new Instruction(Opcode.MOV, c.cond(), c.operand(0), words.get(w), null);
+            }
+            code.add(c);
+        }
+
+        code.add(Instruction.label(join));
+        return code;
+    }
+
+    /**
+     * Instruction addressing the room of the inlined variables
+     */
+    private Instruction slot(Instruction inst, int disp) {
+        this.slots.add(new Slot(inst, 2, disp));
+        return inst;
+    }
+
+    /**
+     * Operand of a copied instruction: a virtual register gets a new one, the
+     * register of a word setting a parameter gets the one of the argument
+     */
+    private Object rename(Object o, Map<Integer, Register> renamed, List<Register> words, CallingConvention registers)
+            throws MCSException {
+        if (o instanceof List) {
+            IMachine.RegisterList l = new IMachine.RegisterList();
+            for (Object r : (List<?>)o)
+                l.add((Register)rename(r, renamed, words, registers));
+            return l;
+        }
+        if (!(o instanceof Register))
+            return o;
+
+        int id = DefUse.id((Register)o);
+        if (DefUse.isVirtual(id)) {
+            Register r = renamed.get(id);
+            if (r == null) {
+                r = this.machine.nextVirtualRegister();
+                renamed.put(id, r);
+            }
+            return r;
+        }
+        for (int w = 0; words != null && w < Math.min(words.size(), CallingConvention.Registers); w++) {
+            if (DefUse.id(registers.register(w)) == id)
+                return words.get(w);
+        }
+        return o;
+    }
+
+    /**
+     * Fix the room of the inlined variables of a function, below its own
+     * variables, and make its frame bigger; the decisions taken for its calls
+     * are put in the report
+     * @param info info of the function
+     */
+    public void finish(FunctionInfo info) {
+        int base = info.frameSize();
+        for (Slot s : this.slots)
+            s.inst.setOperand(s.operand, -(base + s.disp));
+        info.setFrameSize(base + this.room);
+
+        // A call of the function itself is met before its body is kept
+        for (String[] s : this.sites) {
+            String decision = (s[0].equals(info.label()) ? "called (recursive)" : s[1]);
+            this.log.add(info.label() + ": " + s[0] + " " + decision);
+        }
+        this.slots.clear();
+        this.sites.clear();
+        this.room = 0;
+    }
+
+    /**
+     * Report on the calls of all the functions so far
+     * @return the report, one line per call
+     */
+    public String report() {
+        String r = this.inlined + " of " + this.calls + " calls inlined (limit " + this.limit + " instructions)\n";
+        for (String s : this.log)
+            r += "  " + s + "\n";
+        return r;
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * LinearScanAllocator -- register allocation by linear scan over live intervals
+ *
+ * Instructions are numbered in the order of the code; instruction i reads
+ * its registers at point 2i and writes them at point 2i+1, so that a register
+ * read for the last time may be given to the one written by the same
+ * instruction. The interval of a virtual register goes from the first to the
+ * last point where it is live (see Liveness); the points where each register
+ * of the pool is used by the code itself are kept apart.
+ *
+ * Intervals are taken by increasing start. Each one gets a register that is
+ * free over the whole interval, preferably the one of a register it is copied
+ * from or to (so that the copy disappears). When there is none, the interval
+ * ending last, among the current one and the ones holding a register, is
+ * spilled (Poletto and Sarkar).
+ *
+ * @version 0.1
+ */
+package mcs.gc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import mcs.compiler.MCSException;
+import mcs.compiler.MCSRegisterLimitReachedException;
+import mcs.ir.BasicBlock;
+import mcs.ir.ControlFlowGraph;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Liveness;
+
+public class LinearScanAllocator extends RegisterAllocator {
+    /**
+     * Live interval of a virtual register
+     */
+    private static class Interval {
+        int reg, start, end;
+        int hint = -1;          // Register it is copied from or to (virtual or of the pool)
+        int assigned = -1;      // Index in the pool
+
+        Interval(int reg, int point) {
+            this.reg = reg;
+            this.start = point;
+            this.end = point;
+        }
+
+        void extend(int point) {
+            this.start = Math.min(this.start, point);
+            this.end = Math.max(this.end, point);
+        }
+    }
+
+    private Map<Integer, Interval> intervals;
+    private BitSet[] fixed;                 // Points where each register of the pool is used by the code
+
+    /**
+     * Constructor
+     * @param du registers read and written by the instructions
+     * @param exitLive registers live when a function returns
+     * @param pool registers that may be assigned
+     */
+    public LinearScanAllocator(DefUse du, BitSet exitLive, Register[] pool) {
+        super(du, exitLive, pool);
+    }
+
+    @Override
+    public String name() {
+        return "linear scan";
+    }
+
+    @Override
+    protected void assign(InstructionList code, Map<Integer, Register> assignment, BitSet spill) throws MCSException {
+        buildIntervals(code);
+
+        List<Interval> sorted = new ArrayList<Interval>(this.intervals.values());
+        Collections.sort(sorted, new Comparator<Interval>() {
+            public int compare(Interval a, Interval b) {
+                return (a.start != b.start ? a.start - b.start : a.reg - b.reg);
+            }
+        });
+
+        List<Interval> active = new ArrayList<Interval>();      // Holding a register, by increasing end
+        Interval[] holder = new Interval[this.pool.length];
+
+        for (Interval cur : sorted) {
+            // Registers of the intervals that are over are free again
+            while (!active.isEmpty() && active.get(0).end < cur.start) {
+                holder[active.get(0).assigned] = null;
+                active.remove(0);
+            }
+
+            int p = choose(cur, holder);
+
+            if (p < 0) {
+                Interval victim = null;
+                for (Interval a : active) {
+                    if (!this.unspillable.get(a.reg) && !usedByCode(a.assigned, cur)
+                            && (victim == null || a.end > victim.end))
+                        victim = a;
+                }
+
+                if (!this.unspillable.get(cur.reg) && (victim == null || victim.end <= cur.end)) {
+                    spill.set(cur.reg);
+                    continue;
+                }
+                if (victim == null)
+                    throw new MCSRegisterLimitReachedException();
+
+                spill.set(victim.reg);
+                active.remove(victim);
+                p = victim.assigned;
+                victim.assigned = -1;
+            }
+
+            cur.assigned = p;
+            holder[p] = cur;
+            int k = 0;
+            while (k < active.size() && active.get(k).end <= cur.end)
+                k++;
+            active.add(k, cur);
+        }
+
+        for (Interval i : this.intervals.values()) {
+            if (i.assigned >= 0)
+                assignment.put(i.reg, this.pool[i.assigned]);
+        }
+    }
+
+    @Override
+    protected boolean conflict(int a, int b) {
+        Interval i = this.intervals.get(a), j = this.intervals.get(b);
+        return i == null || j == null || (i.start <= j.end && j.start <= i.end);
+    }
+
+    /**
+     * Choose a free register for an interval
+     * @param cur the interval
+     * @param holder interval holding each register of the pool
+     * @return the index of the register in the pool, -1 if none is free
+     */
+    private int choose(Interval cur, Interval[] holder) {
+        // The register of the other side of a copy, if it is free
+        int h = -1;
+        if (DefUse.isVirtual(cur.hint)) {
+            Interval other = this.intervals.get(cur.hint);
+            if (other != null)
+                h = other.assigned;
+        } else if (cur.hint >= 0) {
+            h = poolIndex(cur.hint);
+        }
+        if (h >= 0 && holder[h] == null && !usedByCode(h, cur))
+            return h;
+
+        for (int p = 0; p < this.pool.length; p++) {
+            if (holder[p] == null && !usedByCode(p, cur))
+                return p;
+        }
+        return -1;
+    }
+
+    /**
+     * Tell if a register of the pool is used by the code itself during an interval
+     */
+    private boolean usedByCode(int p, Interval cur) {
+        int next = this.fixed[p].nextSetBit(cur.start);
+        return next >= 0 && next <= cur.end;
+    }
+
+    /**
+     * Compute the intervals of the virtual registers and the points where the
+     * registers of the pool are used
+     */
+    private void buildIntervals(InstructionList code) {
+        ControlFlowGraph cfg = new ControlFlowGraph(code);
+        Liveness live = new Liveness(cfg, this.du, this.exitLive).solve();
+
+        this.intervals = new HashMap<Integer, Interval>();
+        this.fixed = new BitSet[this.pool.length];
+        int[] index = new int[DefUse.FirstVirtual];
+        for (int r = 0; r < index.length; r++)
+            index[r] = poolIndex(r);
+        for (int p = 0; p < this.pool.length; p++)
+            this.fixed[p] = new BitSet();
+
+        BitSet regs = new BitSet();
+        for (BasicBlock b : cfg.blocks()) {
+            BitSet l = (BitSet)live.liveOut(b.index()).clone();
+
+            for (int i = b.end() - 1; i >= b.start(); i--) {
+                Instruction inst = code.get(i);
+
+                // Live after the instruction
+                mark(l, 2 * i + 1, index);
+                mark(l, 2 * i + 2, index);
+
+                regs.clear();
+                this.du.defs(inst, regs);
+                mark(regs, 2 * i + 1, index);
+
+                live.stepBack(i, l);
+
+                regs.clear();
+                this.du.uses(inst, regs);
+                mark(regs, 2 * i, index);
+
+                if (isCopy(inst)) {
+                    int d = DefUse.id((Register)inst.operand(0)), s = DefUse.id((Register)inst.operand(1));
+                    hint(d, s);
+                    hint(s, d);
+                }
+            }
+
+            mark(l, 2 * b.start(), index);
+        }
+    }
+
+    private void mark(BitSet regs, int point, int[] index) {
+        for (int r = regs.nextSetBit(0); r >= 0; r = regs.nextSetBit(r + 1)) {
+            if (DefUse.isVirtual(r)) {
+                Interval i = this.intervals.get(r);
+                if (i == null)
+                    this.intervals.put(r, new Interval(r, point));
+                else
+                    i.extend(point);
+            } else if (index[r] >= 0) {
+                this.fixed[index[r]].set(point);
+            }
+        }
+    }
+
+    private void hint(int r, int other) {
+        if (!DefUse.isVirtual(r) || (!DefUse.isVirtual(other) && poolIndex(other) < 0))
+            return;
+        Interval i = this.intervals.get(r);
+        if (i != null && i.hint < 0)
+            i.hint = other;
+    }
+}
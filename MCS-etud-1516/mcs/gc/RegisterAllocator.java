@@ -0,0 +1,473 @@
+/**
+ * RegisterAllocator -- assign machine registers to the virtual registers of a function
+ *
+ * The code generator hands out a new virtual register (see DefUse) for each
+ * value it computes. Once the code of a function is complete, an allocator
+ * gives each virtual register one of the registers of its pool, so that two
+ * registers live at the same time never share a machine register. Registers
+ * of the pool written by the code itself (calls, inline assembly) are taken
+ * into account.
+ *
+ * When the pool is too small, some virtual registers are spilled: each of
+ * their uses is preceded by a load from a stack slot into a new, short-lived
+ * virtual register, and each of their definitions is followed by a store. The
+ * allocation is then done again; the short-lived registers are never spilled.
+ *
+ * An allocator may also rematerialise the registers holding a constant
+ * (MOV, and MOVT for the upper half, as made by generateLoadConstant): the
+ * constant is loaded again before each use instead of going through a slot.
+ *
+ * Finally, copies between two virtual registers that were given the same
+ * register are removed.
+ *
+ * @version 0.1
+ */
+package mcs.gc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import mcs.compiler.MCSException;
+import mcs.compiler.MCSRegisterLimitReachedException;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+
+public abstract class RegisterAllocator {
+    protected DefUse du;
+    protected BitSet exitLive;          // Registers live when the function returns
+    protected Register[] pool;          // Registers that may be assigned, in order of preference
+    protected BitSet unspillable;       // Virtual registers created by the spill code
+    private Map<Integer, Register> virtuals;
+    private Map<Integer, Instruction[]> constants;  // Instructions loading the constant registers
+    private int nextVirtual;
+
+    // Statistics of the last function, and of all of them
+    private int registers, spilled, slots, loads, stores, copies, remats;
+    private int functions, totalRegisters, totalSpilled, totalLoads, totalStores, totalCopies, totalRemats;
+    private long totalTime;                         // In nanoseconds
+
+    /**
+     * Constructor
+     * @param du registers read and written by the instructions
+     * @param exitLive registers live when a function returns
+     * @param pool registers that may be assigned
+     */
+    protected RegisterAllocator(DefUse du, BitSet exitLive, Register[] pool) {
+        this.du = du;
+        this.exitLive = exitLive;
+        this.pool = pool;
+    }
+
+    /**
+     * Name of the allocator, for the reports
+     * @return the name
+     */
+    public abstract String name();
+
+    /**
+     * Give a register of the pool to each virtual register of the code, or
+     * choose the ones to spill
+     * @param code the code
+     * @param assignment (out) register given to each virtual register
+     * @param spill (out) virtual registers to spill; if some are, the
+     *              assignment is ignored and the allocation is done again
+     */
+    protected abstract void assign(InstructionList code, Map<Integer, Register> assignment, BitSet spill) throws MCSException;
+
+    /**
+     * Allocate the registers of a function
+     * @param code the code, with virtual registers; its instructions are modified
+     * @param base register the spill slots are relative to (null if spilling is not possible)
+     * @param start displacement of the first spill slot, slot n being at [base, #-(start + 4n)]
+     * @return the code, with machine registers only
+     */
+    public InstructionList allocate(InstructionList code, Register base, int start) throws MCSException {
+        long begin = System.nanoTime();
+        this.unspillable = new BitSet();
+        this.virtuals = new HashMap<Integer, Register>();
+        this.nextVirtual = DefUse.FirstVirtual;
+        this.registers = this.spilled = this.slots = this.loads = this.stores = this.copies = this.remats = 0;
+
+        for (Instruction inst : code) {
+            for (int k = 0; k < 4; k++)
+                collect(inst.operand(k));
+        }
+        this.registers = this.virtuals.size();
+        this.constants = (rematerializes() ? findConstants(code) : new HashMap<Integer, Instruction[]>());
+
+        Map<Integer, Integer> slotOf = new HashMap<Integer, Integer>();
+        while (true) {
+            Map<Integer, Register> assignment = new HashMap<Integer, Register>();
+            BitSet spill = new BitSet();
+            assign(code, assignment, spill);
+
+            if (spill.isEmpty()) {
+                code = rewrite(code, assignment);
+                break;
+            }
+
+            if (base == null)
+                throw new MCSRegisterLimitReachedException();
+
+            assignSlots(spill, slotOf);
+            for (int v = spill.nextSetBit(0); v >= 0; v = spill.nextSetBit(v + 1)) {
+                if (isConstant(v))
+                    this.remats++;
+                else
+                    this.spilled++;
+            }
+            code = insertSpillCode(code, spill, slotOf, base, start);
+        }
+
+        this.functions++;
+        this.totalRegisters += this.registers;
+        this.totalSpilled += this.spilled;
+        this.totalLoads += this.loads;
+        this.totalStores += this.stores;
+        this.totalCopies += this.copies;
+        this.totalRemats += this.remats;
+        this.totalTime += System.nanoTime() - begin;
+
+        return code;
+    }
+
+    /**
+     * Tell if the allocator rematerialises the constant registers it spills
+     * @return false, unless overridden
+     */
+    protected boolean rematerializes() {
+        return false;
+    }
+
+    /**
+     * Tell if a virtual register holds a constant that may be rematerialised
+     * @param v the register
+     * @return true if it is only written by a MOV of an immediate (and a MOVT)
+     */
+    protected boolean isConstant(int v) {
+        return this.constants.containsKey(v);
+    }
+
+    /**
+     * Find the virtual registers only written by a MOV of an immediate,
+     * possibly followed by a MOVT, or by a MVN of an immediate
+     * @param code the code
+     * @return the instructions writing each of these registers
+     */
+    private Map<Integer, Instruction[]> findConstants(InstructionList code) {
+        Map<Integer, Instruction[]> found = new HashMap<Integer, Instruction[]>();
+        BitSet other = new BitSet(), defs = new BitSet();
+
+        for (int i = 0; i < code.size(); i++) {
+            Instruction inst = code.get(i);
+            defs.clear();
+            this.du.defs(inst, defs);
+
+            int v = virtual(inst.operand(0));
+            boolean load = v >= 0 && (inst.opcode() == Opcode.MOV || inst.opcode() == Opcode.MVN) && !inst.isConditional() && !inst.setsFlags()
+                && inst.operand(1) instanceof Integer && inst.operand(2) == null;
+            if (load && !found.containsKey(v)) {
+                Instruction next = (i + 1 < code.size() ? code.get(i + 1) : null);
+                if (inst.opcode() == Opcode.MOV && next != null && next.opcode() == Opcode.MOVT && !next.isConditional()
+                        && virtual(next.operand(0)) == v && next.operand(1) instanceof Integer) {
+                    found.put(v, new Instruction[] { inst, next });
+                    i++;
+                } else {
+                    found.put(v, new Instruction[] { inst });
+                }
+                continue;
+            }
+            other.or(defs);
+        }
+
+        for (int v = other.nextSetBit(0); v >= 0; v = other.nextSetBit(v + 1))
+            found.remove(v);
+        return found;
+    }
+
+    /**
+     * Tell if two virtual registers spilled by the last call to assign may
+     * be live at the same time; if they may not, they share a stack slot.
+     * @param a,b the registers
+     * @return true, unless overridden
+     */
+    protected boolean conflict(int a, int b) {
+        return true;
+    }
+
+    /**
+     * Give a stack slot to each spilled register, but the rematerialised ones
+     * @param spill the registers spilled by the last call to assign
+     * @param slotOf (out) slot of each register
+     */
+    private void assignSlots(BitSet spill, Map<Integer, Integer> slotOf) {
+        // Registers given each slot created in this round (first fit)
+        int first = this.slots;
+        List<List<Integer>> users = new ArrayList<List<Integer>>();
+        for (int v = spill.nextSetBit(0); v >= 0; v = spill.nextSetBit(v + 1)) {
+            if (isConstant(v))
+                continue;
+
+            int s = -1;
+            for (int k = 0; k < users.size() && s < 0; k++) {
+                boolean free = true;
+                for (int u : users.get(k))
+                    free &= !conflict(u, v);
+                if (free)
+                    s = k;
+            }
+            if (s < 0) {
+                s = users.size();
+                users.add(new ArrayList<Integer>());
+                this.slots++;
+            }
+            users.get(s).add(v);
+            slotOf.put(v, first + s);
+        }
+    }
+
+    private void collect(Object o) {
+        if (o instanceof List) {
+            for (Object r : (List<?>)o)
+                collect(r);
+        } else if (o instanceof Register) {
+            int id = DefUse.id((Register)o);
+            if (DefUse.isVirtual(id)) {
+                this.virtuals.put(id, (Register)o);
+                this.nextVirtual = Math.max(this.nextVirtual, id + 1);
+            }
+        }
+    }
+
+    /**
+     * Tell if an operand is a virtual register (utility)
+     * @param o the operand
+     * @return its number, -1 if it is not a virtual register
+     */
+    protected static int virtual(Object o) {
+        if (!(o instanceof Register))
+            return -1;
+        int id = DefUse.id((Register)o);
+        return (DefUse.isVirtual(id) ? id : -1);
+    }
+
+    /**
+     * Tell if an instruction copies a register into another one
+     * @param inst the instruction
+     * @return true for an unconditional MOV rd, rm
+     */
+    protected static boolean isCopy(Instruction inst) {
+        return inst.opcode() == Opcode.MOV && inst.cond() == Cond.AL && !inst.setsFlags()
+            && inst.operand(0) instanceof Register && inst.operand(1) instanceof Register
+            && inst.operand(2) == null;
+    }
+
+    /**
+     * Index of a register in the pool
+     * @param id number of the register
+     * @return the index, -1 if the register is not in the pool
+     */
+    protected int poolIndex(int id) {
+        for (int p = 0; p < this.pool.length; p++) {
+            if (DefUse.id(this.pool[p]) == id)
+                return p;
+        }
+        return -1;
+    }
+
+    /**
+     * Replace a register in an operand
+     * @param o the operand (register or register list)
+     * @param id number of the register to replace
+     * @param by the new register
+     * @return the new operand
+     */
+    private static Object replace(Object o, int id, Register by) {
+        if (o instanceof List) {
+            IMachine.RegisterList l = new IMachine.RegisterList();
+            for (Object r : (List<?>)o)
+                l.add((Register)replace(r, id, by));
+            return l;
+        }
+        if (o instanceof Register && DefUse.id((Register)o) == id)
+            return by;
+        return o;
+    }
+
+    /**
+     * Add the loads and stores of the spilled registers
+     * @return the new code
+     */
+    private InstructionList insertSpillCode(InstructionList code, BitSet spill, Map<Integer, Integer> slotOf,
+            Register base, int start) {
+        InstructionList out = new InstructionList(code.size() + 16);
+        BitSet use = new BitSet(), def = new BitSet(), both = new BitSet();
+
+        for (Instruction inst : code) {
+            use.clear();
+            def.clear();
+            this.du.uses(inst, use);
+            this.du.defs(inst, def);
+            both.clear();
+            both.or(use);
+            both.or(def);
+            both.and(spill);
+
+            if (both.isEmpty()) {
+                out.add(inst);
+                continue;
+            }
+
+            // The loading of a rematerialised constant goes away
+            int d = virtual(inst.operand(0));
+            if (d >= 0 && spill.get(d) && isConstant(d) && isLoad(inst, d))
+                continue;
+
+            Register[] temp = new Register[both.length()];
+            for (int v = both.nextSetBit(0); v >= 0; v = both.nextSetBit(v + 1)) {
+                Register t = new Register("v", this.nextVirtual++);
+                this.unspillable.set(DefUse.id(t));
+                temp[v] = t;
+                for (int k = 0; k < 4; k++)
+                    inst.setOperand(k, replace(inst.operand(k), v, t));
+
+                if (isConstant(v)) {
+                    // Loaded again where it is used
+                    for (Instruction c : this.constants.get(v)) {
+                        Instruction l = c.copy();
+                        l.setOperand(0, t);
+                        out.add(l);
+                    }
+                } else if (use.get(v) || inst.isConditional()) {
+                    // A conditional instruction may leave the old value
+                    out.add(new Instruction(Opcode.LDR, Cond.AL, false, Instruction.Addressing.Offset,
+                                t, base, -(start + 4 * slotOf.get(v)), null));
+                    this.loads++;
+                }
+            }
+
+            out.add(inst);
+
+            for (int v = both.nextSetBit(0); v >= 0; v = both.nextSetBit(v + 1)) {
+                if (def.get(v) && !isConstant(v)) {
+                    out.add(new Instruction(Opcode.STR, Cond.AL, false, Instruction.Addressing.Offset,
+                                temp[v], base, -(start + 4 * slotOf.get(v)), null));
+                    this.stores++;
+                }
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Tell if an instruction is one of those loading a constant register
+     */
+    private boolean isLoad(Instruction inst, int v) {
+        for (Instruction c : this.constants.get(v)) {
+            if (c == inst)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Put the assigned registers in the code and remove the useless copies
+     * @return the new code
+     */
+    private InstructionList rewrite(InstructionList code, Map<Integer, Register> assignment) {
+        for (int i = 0; i < code.size(); i++) {
+            Instruction inst = code.get(i);
+            boolean copy = isCopy(inst) && (virtual(inst.operand(0)) >= 0 || virtual(inst.operand(1)) >= 0);
+
+            for (int k = 0; k < 4; k++) {
+                Object o = inst.operand(k);
+                if (o instanceof List) {
+                    IMachine.RegisterList l = new IMachine.RegisterList();
+                    for (Object r : (List<?>)o) {
+                        int v = virtual(r);
+                        l.add(v >= 0 ? assignment.get(v) : (Register)r);
+                    }
+                    inst.setOperand(k, l);
+                } else if (virtual(o) >= 0) {
+                    inst.setOperand(k, assignment.get(virtual(o)));
+                }
+            }
+
+            if (copy && inst.operand(0) == inst.operand(1)) {
+                code.set(i, null);
+                this.copies++;
+            }
+        }
+
+        code.compact();
+        return code;
+    }
+
+    /**
+     * Report on the last function
+     * @return the report, on one line
+     */
+    public String report() {
+        return this.registers + " virtual, " + this.spilled + " spilled into " + this.slots
+            + " slots (" + this.loads + " loads, " + this.stores + " stores), "
+            + this.copies + " copies coalesced"
+            + (this.remats > 0 ? ", " + this.remats + " constants rematerialised" : "");
+    }
+
+    /**
+     * Report on all the functions so far
+     * @return the report, on one line
+     */
+    public String totalReport() {
+        return name() + ": " + this.functions + " functions, " + this.totalRegisters + " virtual registers, "
+            + this.totalSpilled + " spilled (" + this.totalLoads + " loads, " + this.totalStores + " stores), "
+            + this.totalCopies + " copies coalesced"
+            + (this.totalRemats > 0 ? ", " + this.totalRemats + " constants rematerialised" : "");
+    }
+
+    /**
+     * Number of spill slots used by the last function
+     * @return the number of slots
+     */
+    public int slots() {
+        return this.slots;
+    }
+
+    /**
+     * Number of registers spilled into stack slots in the last function
+     * @return the number of registers
+     */
+    public int spilled() {
+        return this.spilled;
+    }
+
+    /**
+     * Number of registers spilled into stack slots in all the functions so far
+     * @return the number of registers
+     */
+    public int totalSpilled() {
+        return this.totalSpilled;
+    }
+
+    /**
+     * Number of loads and stores added to all the functions so far
+     * @return the number of instructions
+     */
+    public int totalSpillCode() {
+        return this.totalLoads + this.totalStores;
+    }
+
+    /**
+     * Time spent allocating the registers of all the functions so far
+     * @return the time, in milliseconds
+     */
+    public double totalTime() {
+        return this.totalTime / 1e6;
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * AvailableExpressions -- expressions computed on every path and still valid
+ *
+ * Forward "must" problem. An expression is an unconditional data processing
+ * instruction whose operands are registers or immediates (the copy of a
+ * register excepted), or a load from a register plus an offset. It is
+ * killed when one of its registers is written; a load is also killed by any
+ * store and any call.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AvailableExpressions extends BitVectorDataflow {
+    private DefUse du;
+    private Map<String, Integer> ids;   // Expression => number
+    private List<String> exprs;         // Number => expression
+    private List<BitSet> using;         // Expressions reading each register
+    private BitSet loads;               // Expressions reading memory
+    private BitSet[] gen, kill;
+    private BitSet entry;
+
+    /**
+     * Constructor
+     * @param cfg the graph of the function
+     * @param du registers of each instruction
+     */
+    public AvailableExpressions(ControlFlowGraph cfg, DefUse du) {
+        super(cfg, true, false);
+        this.du = du;
+        this.ids = new HashMap<String, Integer>();
+        this.exprs = new ArrayList<String>();
+        this.using = new ArrayList<BitSet>();
+        this.loads = new BitSet();
+        this.entry = new BitSet();
+
+        int n = cfg.size();
+        this.gen = new BitSet[n];
+        this.kill = new BitSet[n];
+
+        // Number the expressions first: a block kills expressions computed in later blocks
+        for (Instruction inst : cfg.code())
+            expression(inst);
+
+        for (BasicBlock b : cfg.blocks()) {
+            BitSet g = new BitSet(), k = new BitSet();
+            for (int i = b.start(); i < b.end(); i++)
+                step(cfg.code().get(i), g, k);
+            this.gen[b.index()] = g;
+            this.kill[b.index()] = k;
+        }
+    }
+
+    /**
+     * Key of the expression an instruction computes
+     * @param inst the instruction
+     * @return the key, null if the instruction is not an expression
+     */
+    private String key(Instruction inst) {
+        if (inst.isConditional())
+            return null;
+
+        Opcode op = inst.opcode();
+        int first;
+
+        if (op == Opcode.LDR || op == Opcode.LDRB) {
+            if (inst.addressing() != Instruction.Addressing.Offset && inst.addressing() != Instruction.Addressing.None)
+                return null;
+            first = 1;
+        } else if (op.kind() == Opcode.Kind.Data) {
+            if (op == Opcode.MOVT || op == Opcode.SMULL || op == Opcode.UMULL)
+                return null;
+            if (op != Opcode.MOV && op != Opcode.MVN && op != Opcode.MOVW && inst.operand(2) == null)
+                return null;    // Two operand form, reads its destination
+            if (op == Opcode.MOV && !(inst.operand(1) instanceof Integer))
+                return null;    // A copy
+            first = 1;
+        } else {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(op.name());
+        for (int k = first; k < inst.operandCount(); k++) {
+            Object o = inst.operand(k);
+            sb.append(' ');
+            if (o instanceof Integer) {
+                sb.append('$').append(o);
+            } else if (o instanceof Shift) {
+                sb.append(o);
+            } else {
+                int r = this.du.id(o);
+                if (r < 0)
+                    return null;
+                sb.append('r').append(r);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Number of the expression an instruction computes, created if needed
+     * @param inst the instruction
+     * @return the number, -1 if the instruction is not an expression
+     */
+    private int expression(Instruction inst) {
+        String k = key(inst);
+        if (k == null)
+            return -1;
+
+        Integer id = this.ids.get(k);
+        if (id != null)
+            return id;
+
+        int e = this.exprs.size();
+        this.ids.put(k, e);
+        this.exprs.add(k);
+
+        BitSet regs = new BitSet();
+        this.du.uses(inst, regs);
+        for (int r = regs.nextSetBit(0); r >= 0; r = regs.nextSetBit(r + 1)) {
+            while (this.using.size() <= r)
+                this.using.add(new BitSet());
+            this.using.get(r).set(e);
+        }
+        if (inst.opcode().kind() == Opcode.Kind.Load)
+            this.loads.set(e);
+
+        return e;
+    }
+
+    /**
+     * Go over one instruction
+     * @param inst the instruction
+     * @param avail expressions available before it, modified
+     * @param killed expressions killed so far, updated (may be null)
+     */
+    private void step(Instruction inst, BitSet avail, BitSet killed) {
+        BitSet k = new BitSet();
+        BitSet d = new BitSet();
+        this.du.defs(inst, d);
+
+        for (int r = d.nextSetBit(0); r >= 0; r = d.nextSetBit(r + 1)) {
+            if (r < this.using.size())
+                k.or(this.using.get(r));
+        }
+        if (this.du.writesMemory(inst))
+            k.or(this.loads);
+
+        int e = indexOf(inst);
+        if (e >= 0) {
+            // The result is available only if it did not overwrite an operand
+            BitSet u = new BitSet();
+            this.du.uses(inst, u);
+            if (u.intersects(d))
+                e = -1;
+        }
+
+        avail.andNot(k);
+        if (killed != null)
+            killed.or(k);
+        if (e >= 0)
+            avail.set(e);
+    }
+
+    @Override
+    protected int domainSize() {
+        return this.exprs.size();
+    }
+
+    @Override
+    protected BitSet boundary() {
+        return this.entry;
+    }
+
+    @Override
+    protected BitSet transfer(int b, BitSet from) {
+        BitSet to = (BitSet)from.clone();
+        to.andNot(this.kill[b]);
+        to.or(this.gen[b]);
+        return to;
+    }
+
+    @Override
+    public AvailableExpressions solve() {
+        super.solve();
+        return this;
+    }
+
+    /**
+     * Number of distinct expressions of the function
+     * @return the number of expressions
+     */
+    public int count() {
+        return this.exprs.size();
+    }
+
+    /**
+     * Text of an expression: the operation followed by its operands, registers
+     * given by their number
+     * @param e the expression
+     * @return the text
+     */
+    public String expression(int e) {
+        return this.exprs.get(e);
+    }
+
+    /**
+     * Number of the expression an instruction computes
+     * @param inst the instruction
+     * @return the number, -1 if the instruction is not an expression of the function
+     */
+    public int indexOf(Instruction inst) {
+        String k = key(inst);
+        Integer id = (k == null ? null : this.ids.get(k));
+        return (id == null ? -1 : id);
+    }
+
+    /**
+     * Go over one instruction of the function
+     * @param inst the instruction
+     * @param avail expressions available before it, turned into the ones available after it
+     */
+    public void step(Instruction inst, BitSet avail) {
+        step(inst, avail, null);
+    }
+}
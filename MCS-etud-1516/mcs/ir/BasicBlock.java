@@ -0,0 +1,82 @@
+/**
+ * BasicBlock -- a maximal straight-line range of an instruction list
+ *
+ * A block is a view over the list: instructions from start (included) to
+ * end (excluded). Only its first instruction may be a label and only its
+ * last real instruction may be a branch.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+public class BasicBlock {
+    private InstructionList code;
+    private int index, start, end;
+
+    /**
+     * Constructor
+     * @param code the list the block belongs to
+     * @param index number of the block in the function
+     * @param start first instruction
+     * @param end instruction after the last one
+     */
+    public BasicBlock(InstructionList code, int index, int start, int end) {
+        this.code = code;
+        this.index = index;
+        this.start = start;
+        this.end = end;
+    }
+
+    public InstructionList code() {
+        return this.code;
+    }
+
+    public int index() {
+        return this.index;
+    }
+
+    public int start() {
+        return this.start;
+    }
+
+    public int end() {
+        return this.end;
+    }
+
+    /**
+     * Label defined at the beginning of the block
+     * @return the name of the label, null if there is none
+     */
+    public String label() {
+        if (this.start < this.end && this.code.get(this.start).isLabel())
+            return this.code.get(this.start).text();
+        return null;
+    }
+
+    /**
+     * Last real instruction of the block (pseudo instructions are skipped)
+     * @return the instruction, null if the block only has pseudo instructions
+     */
+    public Instruction last() {
+        for (int i = this.end - 1; i >= this.start; i--) {
+            if (!this.code.get(i).opcode().isPseudo())
+                return this.code.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * Tell if the execution may go on with the next block
+     * @return false if the block ends with an unconditional branch or a return
+     */
+    public boolean fallsThrough() {
+        Instruction l = last();
+        return l == null || !(l.endsBlock() && !l.isConditional());
+    }
+
+    @Override
+    public String toString() {
+        return "B" + this.index + "[" + this.start + ", " + this.end + ")"
+            + (label() != null ? " " + label() : "");
+    }
+}
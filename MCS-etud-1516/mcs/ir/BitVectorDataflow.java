@@ -0,0 +1,57 @@
+/**
+ * BitVectorDataflow -- dataflow problems whose values are bit vectors
+ *
+ * The meet is the union ("may" problems) or the intersection ("must"
+ * problems) of the vectors. This fits problems over a small domain, such as
+ * the registers or the expressions of a function.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.BitSet;
+
+public abstract class BitVectorDataflow extends Dataflow<BitSet> {
+    private boolean union;
+
+    /**
+     * Constructor
+     * @param cfg the graph of the function
+     * @param forward true for a forward problem, false for a backward one
+     * @param union true if the meet is the union, false for the intersection
+     */
+    protected BitVectorDataflow(ControlFlowGraph cfg, boolean forward, boolean union) {
+        super(cfg, forward);
+        this.union = union;
+    }
+
+    /**
+     * Number of bits of the vectors (used for the initial value of
+     * intersection problems)
+     * @return the size of the domain
+     */
+    protected abstract int domainSize();
+
+    @Override
+    protected BitSet initial() {
+        BitSet top = new BitSet();
+        if (!this.union)
+            top.set(0, domainSize());
+        return top;
+    }
+
+    @Override
+    protected BitSet meet(int b, BitSet x, BitSet y) {
+        BitSet m = (BitSet)x.clone();
+        if (this.union)
+            m.or(y);
+        else
+            m.and(y);
+        return m;
+    }
+
+    @Override
+    protected boolean same(BitSet a, BitSet b) {
+        return a.equals(b);
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Cond -- ARM condition codes
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+public enum Cond {
+    AL(""), EQ("EQ"), NE("NE"), CS("CS"), CC("CC"), MI("MI"), PL("PL"), VS("VS"), VC("VC"),
+    HI("HI"), LS("LS"), GE("GE"), LT("LT"), GT("GT"), LE("LE");
+
+    private final String suffix;
+
+    private Cond(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * Suffix to append to the mnemonic
+     * @return the suffix (empty for AL)
+     */
+    public String suffix() {
+        return this.suffix;
+    }
+
+    /**
+     * Condition that holds exactly when this one does not
+     * @return the inverse condition (AL has none and is returned as is)
+     */
+    public Cond invert() {
+        switch (this) {
+            case EQ: return NE;
+            case NE: return EQ;
+            case CS: return CC;
+            case CC: return CS;
+            case MI: return PL;
+            case PL: return MI;
+            case VS: return VC;
+            case VC: return VS;
+            case HI: return LS;
+            case LS: return HI;
+            case GE: return LT;
+            case LT: return GE;
+            case GT: return LE;
+            case LE: return GT;
+            default: return AL;
+        }
+    }
+
+    /**
+     * Condition obtained when the operands of the comparison are swapped
+     * @return the swapped condition
+     */
+    public Cond swap() {
+        switch (this) {
+            case GE: return LE;
+            case LE: return GE;
+            case GT: return LT;
+            case LT: return GT;
+            case HI: return CC;
+            case CC: return HI;
+            case LS: return CS;
+            case CS: return LS;
+            default: return this;
+        }
+    }
+
+    /**
+     * Retrieve a condition from its suffix
+     * @param suffix the suffix ("" for AL, "HS" and "LO" are accepted)
+     * @return the condition, null if the suffix is not a condition
+     */
+    public static Cond fromSuffix(String suffix) {
+        if (suffix.equals("HS"))
+            return CS;
+        if (suffix.equals("LO"))
+            return CC;
+
+        for (Cond c : Cond.values()) {
+            if (c.suffix.equals(suffix))
+                return c;
+        }
+
+        return null;
+    }
+}
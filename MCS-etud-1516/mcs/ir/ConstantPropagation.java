@@ -0,0 +1,567 @@
+/**
+ * ConstantPropagation -- sparse conditional constant propagation
+ *
+ * Algorithm of Wegman and Zadeck on the SSA view of a function: each value
+ * is unknown yet (top), a constant, or not a constant (bottom), and only
+ * goes down; each edge of the graph is taken or not yet. A block is only
+ * looked at once an edge to it is taken, a phi only meets the arguments of
+ * the edges taken, and a branch whose condition is known only takes one of
+ * its edges: constants flow through the variables and across the branches,
+ * and the blocks never reached are found.
+ *
+ * The operations on immediates and virtual registers are evaluated (MOV,
+ * MVN, MOVW, MOVT, ADD, SUB, RSB, MUL, MLA, MLS, SDIV, UDIV, AND, ORR, EOR,
+ * BIC and the shifts, with a shifted last operand too); machine registers and memory are not constants. The
+ * flags read by a conditional instruction are the ones of the last
+ * instruction setting them in its block (CMP, CMN, TST, TEQ, or an
+ * operation with the S suffix); they are not known at the start of a block
+ * nor after a call.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.Arrays;
+import mcs.gc.Register;
+
+public class ConstantPropagation {
+    private static final int Top = 0, Const = 1, Bottom = 2;
+    private static final int No = 0, Yes = 1, Maybe = 2, NotYet = 3;
+    private static final int N = 8, Z = 4, C = 2, V = 1, All = 15;
+
+    private SSA ssa;
+    private ControlFlowGraph cfg;
+    private InstructionList code;
+    private int[] state, constant;          // Lattice of each value
+    private boolean[] reached;              // Blocks reached
+    private boolean[][] taken;              // Edges taken, per predecessor of each block
+    private int[] setter;                   // Instruction the flags read come from, -1 if unknown
+    private int[] last;                     // Last real instruction of each block, -1 if none
+    private int[] flow = new int[16], values = new int[16];
+    private int nflow = 0, nvalues = 0;
+    private int result;                     // Constant of the last operand or operation evaluated
+    private long time;
+
+    /**
+     * Constructor: the propagation is made at once
+     * @param ssa SSA view of the function
+     */
+    public ConstantPropagation(SSA ssa) {
+        long start = System.nanoTime();
+        this.ssa = ssa;
+        this.cfg = ssa.graph();
+        this.code = this.cfg.code();
+        int nb = this.cfg.size();
+
+        this.state = new int[ssa.values()];
+        this.constant = new int[ssa.values()];
+        this.state[SSA.Undefined] = Bottom;
+        this.reached = new boolean[nb];
+        this.taken = new boolean[nb][];
+        this.last = new int[nb];
+        this.setter = new int[this.code.size()];
+        for (BasicBlock b : this.cfg.blocks()) {
+            this.taken[b.index()] = new boolean[this.cfg.predecessors(b.index()).length];
+            this.last[b.index()] = -1;
+            int flags = -1;
+            for (int i = b.start(); i < b.end(); i++) {
+                Instruction inst = this.code.get(i);
+                this.setter[i] = flags;
+                if (inst.opcode().isPseudo())
+                    continue;
+                this.last[b.index()] = i;
+                if (setsFlags(inst))
+                    flags = i;
+                else if (inst.isCall() || inst.opcode().kind() == Opcode.Kind.Call
+                        || inst.opcode().kind() == Opcode.Kind.Other)
+                    flags = -1;
+            }
+        }
+
+        if (nb > 0)
+            push(-1, 0);
+        while (this.nflow > 0 || this.nvalues > 0) {
+            while (this.nflow > 0) {
+                this.nflow -= 2;
+                reach(this.flow[this.nflow], this.flow[this.nflow + 1]);
+            }
+            while (this.nvalues > 0) {
+                int v = this.values[--this.nvalues];
+                for (int i : ssa.users(v)) {
+                    if (this.reached[ssa.blockOf(i)])
+                        evaluate(i);
+                }
+                for (int p : ssa.phiUsers(v)) {
+                    if (this.reached[ssa.block(p)])
+                        evaluatePhi(p);
+                }
+            }
+        }
+        this.time = System.nanoTime() - start;
+    }
+
+    private static boolean setsFlags(Instruction inst) {
+        return inst.opcode().kind() == Opcode.Kind.Compare || inst.setsFlags();
+    }
+
+    /**********************************************************
+     * Worklists
+     **********************************************************/
+    private void push(int from, int to) {
+        if (this.nflow + 2 > this.flow.length)
+            this.flow = Arrays.copyOf(this.flow, 2 * this.flow.length);
+        this.flow[this.nflow++] = from;
+        this.flow[this.nflow++] = to;
+    }
+
+    /**
+     * An edge is taken: its phis are evaluated again, and the whole block the
+     * first time
+     */
+    private void reach(int from, int to) {
+        if (from >= 0) {
+            int[] preds = this.cfg.predecessors(to);
+            int j = 0;
+            while (preds[j] != from)
+                j++;
+            if (this.taken[to][j])
+                return;
+            this.taken[to][j] = true;
+        }
+
+        for (int p : this.ssa.phis(to))
+            evaluatePhi(p);
+        if (this.reached[to])
+            return;
+        this.reached[to] = true;
+
+        BasicBlock b = this.cfg.block(to);
+        for (int i = b.start(); i < b.end(); i++)
+            evaluate(i);
+        if (this.last[to] < 0 || !isConditionalBranch(this.code.get(this.last[to])))
+            branch(to);
+    }
+
+    /**
+     * Lower a value: it meets its new state
+     */
+    private void lower(int v, int s, int c) {
+        int old = this.state[v];
+        if (old == Bottom || s == Top || (old == Const && s == Const && this.constant[v] == c))
+            return;
+        if (old == Top && s == Const) {
+            this.state[v] = Const;
+            this.constant[v] = c;
+        } else {
+            this.state[v] = Bottom;
+        }
+        if (this.nvalues == this.values.length)
+            this.values = Arrays.copyOf(this.values, 2 * this.values.length);
+        this.values[this.nvalues++] = v;
+    }
+
+    /**********************************************************
+     * Evaluation
+     **********************************************************/
+    private void evaluatePhi(int p) {
+        int[] args = this.ssa.arguments(p);
+        boolean[] t = this.taken[this.ssa.block(p)];
+        for (int j = 0; j < args.length; j++) {
+            if (t[j])
+                lower(p, this.state[args[j]], this.constant[args[j]]);
+        }
+    }
+
+    /**
+     * Evaluate an instruction of a block reached: the values it defines, the
+     * instructions reading its flags, the edges of the branch ending the block
+     */
+    private void evaluate(int i) {
+        Instruction inst = this.code.get(i);
+        int[] defs = this.ssa.defs(i);
+        for (int k = 0; k < defs.length; k++) {
+            int s = Bottom;
+            if (defs.length == 1 && inst.opcode().kind() == Opcode.Kind.Data)
+                s = operation(i, inst);
+            int c = this.result;
+
+            if (inst.cond() != Cond.AL) {
+                // Not executed, the register keeps its value
+                int prev = this.ssa.previous(i, k);
+                int ps = this.state[prev], pc = this.constant[prev];
+                switch (condition(i)) {
+                    case NotYet:
+                        s = Top;
+                        break;
+                    case No:
+                        s = ps;
+                        c = pc;
+                        break;
+                    case Maybe:
+                        if (s == Top) {
+                            s = ps;
+                            c = pc;
+                        } else if (ps != Top && (s != Const || ps != Const || c != pc)) {
+                            s = Bottom;
+                        }
+                        break;
+                    default:
+                }
+            }
+            lower(defs[k], s, c);
+        }
+
+        if (setsFlags(inst)) {
+            BasicBlock b = this.cfg.block(this.ssa.blockOf(i));
+            for (int j = i + 1; j < b.end() && this.setter[j] == i; j++) {
+                if (this.code.get(j).cond() != Cond.AL)
+                    evaluate(j);
+            }
+        }
+
+        int b = this.ssa.blockOf(i);
+        if (i == this.last[b] && isConditionalBranch(inst))
+            branch(b);
+    }
+
+    private static boolean isConditionalBranch(Instruction inst) {
+        return inst.opcode() == Opcode.CBZ || inst.opcode() == Opcode.CBNZ
+            || (inst.opcode() == Opcode.B && inst.isConditional());
+    }
+
+    /**
+     * Take the edges of a block: both of a conditional branch when its
+     * condition is not known, only one when it is
+     */
+    private void branch(int b) {
+        int[] succ = this.cfg.successors(b);
+        int t = (this.last[b] >= 0 && succ.length == 2 ? decision(this.last[b]) : Maybe);
+        if (t == NotYet)
+            return;
+        if (t == Maybe) {
+            for (int s : succ)
+                push(b, s);
+        } else {
+            push(b, succ[t == Yes ? 1 : 0]);
+        }
+    }
+
+    /**
+     * Tell if a branch is taken
+     */
+    private int decision(int i) {
+        Instruction inst = this.code.get(i);
+        if (inst.opcode() == Opcode.CBZ || inst.opcode() == Opcode.CBNZ) {
+            int s = operand(i, inst.operand(0));
+            if (s != Const)
+                return (s == Top ? NotYet : Maybe);
+            return ((this.result == 0) == (inst.opcode() == Opcode.CBZ) ? Yes : No);
+        }
+        if (isConditionalBranch(inst))
+            return condition(i);
+        return Maybe;
+    }
+
+    /**
+     * State of an operand of an instruction, its constant in result
+     */
+    private int operand(int i, Object o) {
+        if (o instanceof Integer) {
+            this.result = (Integer)o;
+            return Const;
+        }
+        if (o instanceof Register) {
+            int id = DefUse.id((Register)o);
+            if (!DefUse.isVirtual(id))
+                return Bottom;
+            int v = this.ssa.use(i, id);
+            this.result = this.constant[v];
+            return this.state[v];
+        }
+        return Bottom;
+    }
+
+    /**
+     * Result of an operation, the condition aside: its state, the constant in
+     * result
+     */
+    private int operation(int i, Instruction inst) {
+        Opcode op = inst.opcode();
+        Object o1 = inst.operand(0), o2 = inst.operand(1), o3 = inst.operand(2), o4 = inst.operand(3);
+        int a, b, c = 0;
+        int sa, sb, sc = Const;
+
+        switch (op) {
+            case MOV: case MVN: case MOVW:
+                if (o3 != null)
+                    return Bottom;
+                sa = operand(i, o2);
+                a = this.result;
+                if (sa != Const)
+                    return sa;
+                this.result = (op == Opcode.MOV ? a : op == Opcode.MVN ? ~a : a & 0xFFFF);
+                return Const;
+            case MOVT:
+                sa = operand(i, o1);
+                a = this.result;
+                sb = operand(i, o2);
+                b = this.result;
+                if (sa == Bottom || sb == Bottom)
+                    return Bottom;
+                if (sa == Top || sb == Top)
+                    return Top;
+                this.result = (a & 0xFFFF) | (b << 16);
+                return Const;
+            case MLA: case MLS:
+                sc = operand(i, o4);
+                c = this.result;
+                break;
+            case SMULL: case UMULL: case SMMUL:
+                return Bottom;
+            default:
+                if (o4 != null && !(o4 instanceof Shift))
+                    return Bottom;
+        }
+
+        // Two operand form: op rd, rm means rd := rd op rm
+        if (o3 == null) {
+            o3 = o2;
+            o2 = o1;
+        }
+        sa = operand(i, o2);
+        a = this.result;
+        sb = operand(i, o3);
+        b = (o4 instanceof Shift ? ((Shift)o4).apply(this.result) : this.result);
+        if (sa == Bottom || sb == Bottom || sc == Bottom)
+            return Bottom;
+        if (sa == Top || sb == Top || sc == Top)
+            return Top;
+
+        Integer r = fold(op, a, b, c);
+        if (r == null)
+            return Bottom;
+        this.result = r;
+        return Const;
+    }
+
+    /**
+     * Operation on constants, as the machine makes it
+     * @return the result, null if the operation is not known
+     */
+    private static Integer fold(Opcode op, int a, int b, int c) {
+        int s = b & 0xFF;
+        switch (op) {
+            case ADD: return a + b;
+            case SUB: return a - b;
+            case RSB: return b - a;
+            case MUL: return a * b;
+            case MLA: return a * b + c;
+            case MLS: return c - a * b;
+            // A division by zero is left to the machine
+            case SDIV: return (b == 0 ? null : b == -1 ? -a : a / b);
+            case UDIV: return (b == 0 ? null : (Integer)(int)((a & 0xFFFFFFFFL) / (b & 0xFFFFFFFFL)));
+            case AND: return a & b;
+            case ORR: return a | b;
+            case EOR: return a ^ b;
+            case BIC: return a & ~b;
+            case LSL: return (s >= 32 ? 0 : a << s);
+            case LSR: return (s >= 32 ? 0 : a >>> s);
+            case ASR: return (s >= 32 ? a >> 31 : a >> s);
+            case ROR: return Integer.rotateRight(a, s);
+            default: return null;
+        }
+    }
+
+    /**
+     * Tell if the condition of an instruction holds
+     */
+    private int condition(int i) {
+        Instruction inst = this.code.get(i);
+        if (inst.cond() == Cond.AL)
+            return Yes;
+        int f = flags(this.setter[i]);
+        if (f < 0)
+            return (f == -1 ? NotYet : Maybe);
+        return holds(inst.cond(), f & All, f >> 4);
+    }
+
+    /**
+     * Flags set by an instruction: -1 if not known yet, -2 if not known, else
+     * the flags and, above, the ones known
+     */
+    private int flags(int s) {
+        if (s < 0)
+            return -2;
+        Instruction inst = this.code.get(s);
+        int before = -3;
+        if (inst.cond() != Cond.AL) {
+            switch (condition(s)) {
+                case NotYet: return -1;
+                case No: return flags(this.setter[s]);
+                case Maybe: before = flags(this.setter[s]); break;
+                default:
+            }
+            if (before == -1)
+                return -1;
+        }
+
+        int f, known;
+        if (inst.opcode().kind() == Opcode.Kind.Compare) {
+            if (inst.operand(2) != null)
+                return -2;
+            int sa = operand(s, inst.operand(0)), a = this.result;
+            int sb = operand(s, inst.operand(1)), b = this.result;
+            if (sa == Bottom || sb == Bottom)
+                return -2;
+            if (sa == Top || sb == Top)
+                return -1;
+            int r;
+            switch (inst.opcode()) {
+                case CMP:
+                    r = a - b;
+                    f = nz(r) | (Integer.compareUnsigned(a, b) >= 0 ? C : 0) | (((a ^ b) & (a ^ r)) < 0 ? V : 0);
+                    known = All;
+                    break;
+                case CMN:
+                    r = a + b;
+                    f = nz(r) | ((a & 0xFFFFFFFFL) + (b & 0xFFFFFFFFL) > 0xFFFFFFFFL ? C : 0)
+                        | (((a ^ r) & (b ^ r)) < 0 ? V : 0);
+                    known = All;
+                    break;
+                case TST:
+                    f = nz(a & b);
+                    known = N | Z;
+                    break;
+                default:
+                    f = nz(a ^ b);
+                    known = N | Z;
+            }
+        } else {
+            int st = operation(s, inst);
+            if (st == Top)
+                return -1;
+            if (st == Bottom)
+                return -2;
+            f = nz(this.result);
+            known = N | Z;
+        }
+
+        if (before != -3) {
+            // Only the flags that are the same whether the instruction is
+            // executed or not are known
+            if (before < 0)
+                return -2;
+            known &= (before >> 4) & ~(f ^ before);
+        }
+        return f | (known << 4);
+    }
+
+    private static int nz(int r) {
+        return (r < 0 ? N : 0) | (r == 0 ? Z : 0);
+    }
+
+    /**
+     * Tell if a condition holds on flags
+     */
+    private static int holds(Cond cond, int f, int known) {
+        int need;
+        switch (cond) {
+            case EQ: case NE: need = Z; break;
+            case CS: case CC: need = C; break;
+            case MI: case PL: need = N; break;
+            case VS: case VC: need = V; break;
+            case HI: case LS: need = C | Z; break;
+            case GE: case LT: need = N | V; break;
+            default: need = N | Z | V;
+        }
+        if ((known & need) != need)
+            return Maybe;
+
+        boolean n = (f & N) != 0, z = (f & Z) != 0, c = (f & C) != 0, v = (f & V) != 0, r;
+        switch (cond) {
+            case EQ: r = z; break;
+            case NE: r = !z; break;
+            case CS: r = c; break;
+            case CC: r = !c; break;
+            case MI: r = n; break;
+            case PL: r = !n; break;
+            case VS: r = v; break;
+            case VC: r = !v; break;
+            case HI: r = c && !z; break;
+            case LS: r = !c || z; break;
+            case GE: r = n == v; break;
+            case LT: r = n != v; break;
+            case GT: r = !z && n == v; break;
+            default: r = z || n != v;
+        }
+        return (r ? Yes : No);
+    }
+
+    /**********************************************************
+     * Results
+     **********************************************************/
+    /**
+     * Tell if a block may be reached
+     * @param b the block
+     * @return false if no path to it is ever taken
+     */
+    public boolean isReached(int b) {
+        return this.reached[b];
+    }
+
+    /**
+     * Constant an instruction puts in its register
+     * @param i index of the instruction
+     * @return the constant, null if it writes no register, several ones, or
+     *         not always the same value
+     */
+    public Integer constant(int i) {
+        int[] defs = this.ssa.defs(i);
+        if (defs.length != 1 || this.state[defs[0]] != Const)
+            return null;
+        return this.constant[defs[0]];
+    }
+
+    /**
+     * Tell if a value is a constant
+     * @param v the value
+     * @return true if it is
+     */
+    public boolean isConstant(int v) {
+        return this.state[v] == Const;
+    }
+
+    /**
+     * Constant of a value
+     * @param v the value, a constant
+     * @return the constant
+     */
+    public int value(int v) {
+        return this.constant[v];
+    }
+
+    /**
+     * Tell if the conditional branch ending a block reached is taken
+     * @param i index of the branch
+     * @return true if it always is, false if it never is, null if it depends
+     */
+    public Boolean taken(int i) {
+        Instruction inst = this.code.get(i);
+        int b = this.ssa.blockOf(i);
+        if (!this.reached[b] || i != this.last[b] || !isConditionalBranch(inst))
+            return null;
+        switch (decision(i)) {
+            case Yes: return true;
+            case No: return false;
+            default: return null;
+        }
+    }
+
+    /**
+     * Time spent in the propagation
+     * @return the time in nanoseconds
+     */
+    public long time() {
+        return this.time;
+    }
+}
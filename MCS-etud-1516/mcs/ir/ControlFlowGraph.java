@@ -0,0 +1,221 @@
+/**
+ * ControlFlowGraph -- basic blocks of a function and the edges between them
+ *
+ * The graph is built from the flattened code of one function, as produced by
+ * generateFunctionDeclaration. The first block is the entry. A block goes to
+ * the target of its branch (when the label is in the function) and to the
+ * next block, unless it ends with an unconditional branch or a return. A
+ * block that returns (BX lr, POP {..., pc}) or branches to a label outside
+ * the function (the exit of the program for instance) is an exit block.
+ * Calls (BL, BLX) do not end a block: the execution goes on after them.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ControlFlowGraph {
+    private static final int[] None = new int[0];
+
+    private InstructionList code;
+    private List<BasicBlock> blocks;
+    private Map<String, Integer> labels;    // Label => block defining it
+    private int[][] succ, pred;
+    private boolean[] exit;
+    private int[] rpo;                      // Reverse postorder of the reachable blocks
+
+    /**
+     * Constructor
+     * @param code code of the function
+     */
+    public ControlFlowGraph(InstructionList code) {
+        this.code = code;
+        this.blocks = code.blocks();
+        int n = this.blocks.size();
+
+        this.labels = new HashMap<String, Integer>();
+        for (BasicBlock b : this.blocks) {
+            // Consecutive labels: each one but the last begins a block of its own
+            String l = b.label();
+            if (l != null)
+                this.labels.put(l, b.index());
+        }
+
+        // Successors
+        this.succ = new int[n][];
+        this.exit = new boolean[n];
+        int[] npred = new int[n];
+
+        for (BasicBlock b : this.blocks) {
+            int i = b.index();
+            Instruction last = b.last();
+            int target = -1, next = (i + 1 < n ? i + 1 : -1);
+            boolean falls = b.fallsThrough();
+
+            if (last != null && last.endsBlock()) {
+                if (last.isReturn()) {
+                    this.exit[i] = true;
+                } else {
+                    Integer t = (last.target() != null ? this.labels.get(last.target()) : null);
+                    if (t == null)
+                        this.exit[i] = true;       // Leaves the function
+                    else
+                        target = t;
+                }
+            }
+
+            if (falls && next < 0)
+                this.exit[i] = true;            // Falls off the end of the function
+
+            if (!falls)
+                next = -1;
+            if (target == next)
+                target = -1;
+
+            if (target >= 0 && next >= 0)
+                this.succ[i] = new int[] { next, target };
+            else if (target >= 0)
+                this.succ[i] = new int[] { target };
+            else if (next >= 0)
+                this.succ[i] = new int[] { next };
+            else
+                this.succ[i] = None;
+
+            for (int s : this.succ[i])
+                npred[s]++;
+        }
+
+        // Predecessors
+        this.pred = new int[n][];
+        for (int i = 0; i < n; i++)
+            this.pred[i] = (npred[i] == 0 ? None : new int[npred[i]]);
+        for (int i = 0; i < n; i++) {
+            for (int s : this.succ[i])
+                this.pred[s][--npred[s]] = i;
+        }
+
+        computeOrder();
+    }
+
+    /**
+     * Compute the reverse postorder with an explicit stack (functions may be
+     * far too big for a recursive walk)
+     */
+    private void computeOrder() {
+        int n = this.blocks.size();
+        int[] stack = new int[n], edge = new int[n], post = new int[n];
+        boolean[] seen = new boolean[n];
+        int sp = 0, np = 0;
+
+        if (n > 0) {
+            stack[sp++] = 0;
+            seen[0] = true;
+        }
+
+        while (sp > 0) {
+            int b = stack[sp - 1];
+            if (edge[b] < this.succ[b].length) {
+                int s = this.succ[b][edge[b]++];
+                if (!seen[s]) {
+                    seen[s] = true;
+                    stack[sp++] = s;
+                }
+            } else {
+                post[np++] = b;
+                sp--;
+            }
+        }
+
+        this.rpo = new int[np];
+        for (int i = 0; i < np; i++)
+            this.rpo[i] = post[np - 1 - i];
+    }
+
+    /**********************************************************
+     * Accessors
+     **********************************************************/
+    public InstructionList code() {
+        return this.code;
+    }
+
+    public int size() {
+        return this.blocks.size();
+    }
+
+    public List<BasicBlock> blocks() {
+        return this.blocks;
+    }
+
+    public BasicBlock block(int i) {
+        return this.blocks.get(i);
+    }
+
+    /**
+     * Block defined by a label
+     * @param label the label
+     * @return the block, null if the label is not in the function
+     */
+    public BasicBlock block(String label) {
+        Integer i = this.labels.get(label);
+        return (i == null ? null : this.blocks.get(i));
+    }
+
+    public int[] successors(int b) {
+        return this.succ[b];
+    }
+
+    public int[] predecessors(int b) {
+        return this.pred[b];
+    }
+
+    /**
+     * Tell if a block may leave the function
+     * @param b the block
+     * @return true for blocks that return or branch outside the function
+     */
+    public boolean isExit(int b) {
+        return this.exit[b];
+    }
+
+    /**
+     * Blocks reachable from the entry, in reverse postorder (each block comes
+     * before its successors, back edges excepted)
+     * @return the indexes of the blocks (not to be modified)
+     */
+    public int[] reversePostorder() {
+        return this.rpo;
+    }
+
+    /**
+     * Calls made in a block
+     * @param b the block
+     * @return the indexes of the BL/BLX instructions
+     */
+    public List<Integer> calls(int b) {
+        List<Integer> calls = new ArrayList<Integer>();
+        BasicBlock bb = this.blocks.get(b);
+        for (int i = bb.start(); i < bb.end(); i++) {
+            if (this.code.get(i).isCall())
+                calls.add(i);
+        }
+        return calls;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (BasicBlock b : this.blocks) {
+            sb.append(b).append(" ->");
+            for (int s : this.succ[b.index()])
+                sb.append(" B").append(s);
+            if (this.exit[b.index()])
+                sb.append(" exit");
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Dataflow -- worklist solver for dataflow problems
+ *
+ * A problem gives its direction, the value of a block before it is first
+ * visited, the value on the boundary (entry of the function, or its exits
+ * when going backward), the meet of two values and the transfer function of a
+ * block. The solver computes the value at the beginning and at the end of
+ * every block. Values are never modified once given to the solver: meet and
+ * transfer build new ones (or return one of their arguments unchanged).
+ *
+ * The blocks waiting in the worklist are visited in reverse postorder
+ * (postorder when going backward), so that a block is usually visited after
+ * the blocks it depends on: each block is visited a number of times bounded
+ * by the loop nesting depth plus two.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+public abstract class Dataflow<F> {
+    protected ControlFlowGraph cfg;
+    private boolean forward;
+    private List<F> in, out;
+    private int visits;
+
+    /**
+     * Constructor
+     * @param cfg the graph of the function
+     * @param forward true for a forward problem, false for a backward one
+     */
+    protected Dataflow(ControlFlowGraph cfg, boolean forward) {
+        this.cfg = cfg;
+        this.forward = forward;
+    }
+
+    /**
+     * Value of a block before it is visited (top of the lattice)
+     * @return the value
+     */
+    protected abstract F initial();
+
+    /**
+     * Value at the entry of the function (forward) or at its exits (backward)
+     * @return the value
+     */
+    protected abstract F boundary();
+
+    /**
+     * Meet of two values
+     * @param b the block where the values meet
+     * @param x first value
+     * @param y second value
+     * @return the meet
+     */
+    protected abstract F meet(int b, F x, F y);
+
+    /**
+     * Transfer function of a block
+     * @param b the block
+     * @param from value before the block (after it when going backward)
+     * @return value after the block (before it when going backward)
+     */
+    protected abstract F transfer(int b, F from);
+
+    /**
+     * Tell if two values are equal
+     * @param a first value
+     * @param b second value
+     * @return true if they are equal
+     */
+    protected abstract boolean same(F a, F b);
+
+    /**
+     * Solve the problem
+     * @return this
+     */
+    public Dataflow<F> solve() {
+        int n = this.cfg.size();
+        this.in = new ArrayList<F>(n);
+        this.out = new ArrayList<F>(n);
+        this.visits = 0;
+
+        // "before" is the side the meet is done on, "after" the other one
+        List<F> before = (this.forward ? this.in : this.out);
+        List<F> after = (this.forward ? this.out : this.in);
+
+        F top = initial();
+        for (int b = 0; b < n; b++) {
+            before.add(top);
+            after.add(top);
+        }
+
+        // The worklist is kept in reverse postorder (postorder when going
+        // backward): the blocks waiting are taken in this order, going back
+        // to the first one once the end is reached. This makes one sweep
+        // over the function per loop level instead of one wave per back edge.
+        int[] order = new int[n], pos = new int[n];
+        int[] rpo = this.cfg.reversePostorder();
+        boolean[] reached = new boolean[n];
+        int k = 0;
+        for (int j = 0; j < rpo.length; j++) {
+            int b = (this.forward ? rpo[j] : rpo[rpo.length - 1 - j]);
+            order[k++] = b;
+            reached[b] = true;
+        }
+        // Unreachable blocks are still given a value
+        for (int b = 0; b < n; b++) {
+            if (!reached[b])
+                order[k++] = b;
+        }
+        for (int j = 0; j < n; j++)
+            pos[order[j]] = j;
+
+        BitSet pending = new BitSet(n);
+        pending.set(0, n);
+        int cursor = 0;
+
+        while (true) {
+            int p = pending.nextSetBit(cursor);
+            if (p < 0)
+                p = pending.nextSetBit(0);
+            if (p < 0)
+                break;
+            pending.clear(p);
+            cursor = p + 1;
+
+            int b = order[p];
+            this.visits++;
+
+            // Meet
+            int[] from = (this.forward ? this.cfg.predecessors(b) : this.cfg.successors(b));
+            boolean onBoundary = (this.forward ? b == 0 : this.cfg.isExit(b));
+            F m = (onBoundary || from.length == 0 ? boundary() : null);
+
+            for (int q : from)
+                m = (m == null ? after.get(q) : meet(b, m, after.get(q)));
+            before.set(b, m);
+
+            // Transfer
+            F t = transfer(b, m);
+            if (same(t, after.get(b)))
+                continue;
+            after.set(b, t);
+
+            int[] to = (this.forward ? this.cfg.successors(b) : this.cfg.predecessors(b));
+            for (int s : to)
+                pending.set(pos[s]);
+        }
+
+        return this;
+    }
+
+    /**
+     * Value at the beginning of a block
+     * @param b the block
+     * @return the value, not to be modified
+     */
+    public F in(int b) {
+        return this.in.get(b);
+    }
+
+    /**
+     * Value at the end of a block
+     * @param b the block
+     * @return the value, not to be modified
+     */
+    public F out(int b) {
+        return this.out.get(b);
+    }
+
+    /**
+     * Number of blocks visited by the last resolution
+     * @return the number of visits
+     */
+    public int visits() {
+        return this.visits;
+    }
+}
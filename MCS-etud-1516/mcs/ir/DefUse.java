@@ -0,0 +1,340 @@
+/**
+ * DefUse -- registers read and written by an instruction
+ *
+ * Registers are identified by a number: r0 to r12 are 0 to 12, sp, lr and pc
+ * are 13, 14 and 15. Virtual registers, given by the code generator until
+ * the register allocation, are numbered from FirstVirtual on. Calls follow a
+ * convention given to the constructor: the registers a call reads and the
+ * ones it may change; a call also reads the registers of its arguments (see
+ * Instruction.arguments).
+ * Note: the condition flags are not modelled.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import mcs.gc.Register;
+
+public class DefUse {
+    public static final int SP = 13, LR = 14, PC = 15;
+    public static final int FirstVirtual = 16;
+
+    private BitSet callUses, callDefs;
+    private Map<String, Integer> aliases;
+
+    /**
+     * Constructor
+     * @param callUses registers read by a call
+     * @param callDefs registers a call may change
+     * @param aliases names given to registers in hand-written code (may be null)
+     */
+    public DefUse(BitSet callUses, BitSet callDefs, Map<String, Integer> aliases) {
+        this.callUses = callUses;
+        this.callDefs = callDefs;
+        this.aliases = (aliases == null ? new HashMap<String, Integer>() : aliases);
+    }
+
+    /**
+     * Number of a register
+     * @param r the register
+     * @return its number, -1 if it is not a register we know
+     */
+    public static int id(Register r) {
+        if (r.num() >= 0)
+            return r.num();
+        return named(r.name());
+    }
+
+    /**
+     * Tell if a number is the one of a virtual register
+     * @param id number of the register
+     * @return true for a virtual register
+     */
+    public static boolean isVirtual(int id) {
+        return id >= FirstVirtual;
+    }
+
+    /**
+     * Name of a register
+     * @param id number of the register
+     * @return its name
+     */
+    public static String name(int id) {
+        switch (id) {
+            case SP: return "sp";
+            case LR: return "lr";
+            case PC: return "pc";
+            default: return (id >= FirstVirtual ? "v" : "r") + id;
+        }
+    }
+
+    private static int named(String name) {
+        switch (name) {
+            case "sp": return SP;
+            case "lr": return LR;
+            case "pc": return PC;
+            case "fp": return 11;
+            case "ip": return 12;
+            default:
+        }
+
+        if (name.length() > 1 && (name.charAt(0) == 'r' || name.charAt(0) == 'R')) {
+            try {
+                int n = Integer.parseInt(name.substring(1));
+                if (n >= 0 && n <= PC)
+                    return n;
+            } catch (NumberFormatException e) {
+                // Not a register
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of the register an operand designates
+     * @param o the operand: a register or its name
+     * @return the number, -1 if the operand is not a register
+     */
+    public int id(Object o) {
+        if (o instanceof Register)
+            return id((Register)o);
+
+        if (o instanceof String) {
+            String name = (String)o;
+            if (name.endsWith("!"))
+                name = name.substring(0, name.length() - 1);
+            Integer a = this.aliases.get(name);
+            return (a != null ? a : named(name.toLowerCase()));
+        }
+
+        return -1;
+    }
+
+    private void add(Object o, BitSet set) {
+        if (o instanceof List) {
+            for (Object r : (List<?>)o)
+                add(r, set);
+        } else {
+            int n = id(o);
+            if (n >= 0)
+                set.set(n);
+        }
+    }
+
+    /**
+     * Registers read by an instruction
+     * @param inst the instruction
+     * @param set where the registers are added
+     */
+    public void uses(Instruction inst, BitSet set) {
+        Object o1 = inst.operand(0), o2 = inst.operand(1), o3 = inst.operand(2), o4 = inst.operand(3);
+
+        switch (inst.opcode().kind()) {
+            case Data:
+                switch (inst.opcode()) {
+                    case MOVW:
+                        break;
+                    case MOVT:
+                        add(o1, set);
+                        break;
+                    case MOV: case MVN:
+                        add(o2, set);
+                        break;
+                    case SMULL: case UMULL:
+                        add(o3, set);
+                        add(o4, set);
+                        break;
+                    default:
+                        // Two operand form: op rd, rm means rd := rd op rm
+                        if (o3 == null)
+                            add(o1, set);
+                        add(o2, set);
+                        add(o3, set);
+                        add(o4, set);
+                }
+                break;
+            case Compare:
+            case Store:
+                add(o1, set);
+                add(o2, set);
+                add(o3, set);
+                add(o4, set);
+                if (inst.opcode() == Opcode.PUSH)
+                    set.set(SP);
+                break;
+            case Load:
+                if (inst.opcode() == Opcode.POP) {
+                    set.set(SP);
+                } else if (inst.opcode() == Opcode.LDMIA) {
+                    add(o1, set);
+                } else {
+                    add(o2, set);
+                    add(o3, set);
+                    add(o4, set);
+                }
+                break;
+            case Branch:
+                if (inst.opcode() != Opcode.B)
+                    add(o1, set);
+                break;
+            case Call:
+                if (inst.opcode() == Opcode.SVC) {
+                    set.set(0);
+                    set.set(7);
+                } else {
+                    set.or(this.callUses);
+                    add(inst.arguments(), set);
+                    if (inst.opcode() == Opcode.BLX)
+                        add(o1, set);
+                }
+                break;
+            case Other:
+                // Unknown instruction: it may read all its registers
+                if (inst.opcode() == Opcode.RAW) {
+                    add(o1, set);
+                    add(o2, set);
+                    add(o3, set);
+                    add(o4, set);
+                }
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Registers written by an instruction
+     * Note: a conditional instruction may also leave them unchanged
+     * @param inst the instruction
+     * @param set where the registers are added
+     */
+    public void defs(Instruction inst, BitSet set) {
+        Object o1 = inst.operand(0), o2 = inst.operand(1), o3 = inst.operand(2), o4 = inst.operand(3);
+        Instruction.Addressing mode = inst.addressing();
+
+        switch (inst.opcode().kind()) {
+            case Data:
+                add(o1, set);
+                if (inst.opcode() == Opcode.SMULL || inst.opcode() == Opcode.UMULL)
+                    add(o2, set);
+                break;
+            case Load:
+                if (inst.opcode() == Opcode.POP) {
+                    add(o1, set);
+                    set.set(SP);
+                } else if (inst.opcode() == Opcode.LDMIA) {
+                    add(o2, set);
+                    if (mode == Instruction.Addressing.Writeback)
+                        add(o1, set);
+                } else {
+                    add(o1, set);
+                    if (mode == Instruction.Addressing.PreIndex || mode == Instruction.Addressing.PostIndex)
+                        add(o2, set);
+                }
+                break;
+            case Store:
+                if (inst.opcode() == Opcode.PUSH)
+                    set.set(SP);
+                else if (mode == Instruction.Addressing.PreIndex || mode == Instruction.Addressing.PostIndex
+                        || mode == Instruction.Addressing.Writeback)
+                    add(inst.opcode() == Opcode.STMIA ? o1 : o2, set);
+                break;
+            case Call:
+                if (inst.opcode() == Opcode.SVC) {
+                    set.set(0);
+                } else {
+                    set.or(this.callDefs);
+                    set.set(LR);
+                }
+                break;
+            case Other:
+                // Unknown instruction: it may write all its registers
+                if (inst.opcode() == Opcode.RAW) {
+                    add(o1, set);
+                    add(o2, set);
+                    add(o3, set);
+                    add(o4, set);
+                }
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Registers surely written by an instruction of a list. A conditional
+     * instruction writes nothing surely, unless it completes the previous one:
+     * MOVLT r2, #1 followed by MOVGE r2, #0 surely writes r2.
+     * @param code the list
+     * @param i index of the instruction
+     * @param set where the registers are added
+     */
+    public void sureDefs(InstructionList code, int i, BitSet set) {
+        Instruction inst = code.get(i);
+        if (!inst.isConditional()) {
+            defs(inst, set);
+            return;
+        }
+
+        if (inst.setsFlags() || inst.cond() == Cond.AL)
+            return;
+
+        // Previous real instruction, in the same block
+        Instruction prev = null;
+        for (int j = i - 1; j >= 0 && prev == null; j--) {
+            Instruction p = code.get(j);
+            if (p.isLabel())
+                return;
+            if (!p.opcode().isPseudo())
+                prev = p;
+        }
+
+        if (prev == null || prev.setsFlags() || prev.cond() != inst.cond().invert()
+                || prev.opcode().kind() != Opcode.Kind.Data)
+            return;
+
+        BitSet mine = new BitSet(), other = new BitSet();
+        defs(inst, mine);
+        defs(prev, other);
+        other.and(mine);
+        set.or(other);
+    }
+
+    /**
+     * Tell if some address of the frame is kept in a register: an operation
+     * of the code reads the register of the frame (ADD r, SB, #d). Putting
+     * the stack pointer back from it in the epilogue (ADD sp, SB, #d) is no
+     * address kept.
+     * @param code the code of a function
+     * @param base number of the register the frame is read from
+     * @return true if the frame may be read or written through another register
+     */
+    public boolean keepsFrameAddress(InstructionList code, int base) {
+        BitSet regs = new BitSet();
+        for (Instruction inst : code) {
+            if (inst.opcode().kind() != Opcode.Kind.Data)
+                continue;
+            regs.clear();
+            defs(inst, regs);
+            if (regs.get(SP))
+                continue;
+            regs.clear();
+            uses(inst, regs);
+            if (regs.get(base))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tell if an instruction may write memory
+     * @param inst the instruction
+     * @return true for stores, calls and unknown instructions
+     */
+    public boolean writesMemory(Instruction inst) {
+        Opcode.Kind k = inst.opcode().kind();
+        return k == Opcode.Kind.Store || k == Opcode.Kind.Call || inst.opcode() == Opcode.RAW;
+    }
+}
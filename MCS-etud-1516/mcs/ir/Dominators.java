@@ -0,0 +1,225 @@
+/**
+ * Dominators -- dominator tree and dominance frontiers of a function
+ *
+ * A block dominates another one when every path from the entry to the
+ * other one goes through it. The immediate dominators are computed by the
+ * iterative algorithm of Cooper, Harvey and Kennedy: the blocks are visited
+ * in reverse postorder and the dominators of the predecessors are
+ * intersected by walking up the tree being built; on the graphs of the
+ * generated code (if and while only) two sweeps are enough. The frontier
+ * of a block is made of the blocks where its dominance stops: the joins it
+ * reaches without dominating them. Unreachable blocks have no dominator and
+ * are in no frontier.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Dominators {
+    private static final int[] None = new int[0];
+
+    private ControlFlowGraph cfg;
+    private int[] idom;             // Immediate dominator of each block, -1 if none
+    private int[] pos;              // Position of each block in reverse postorder, -1 if unreachable
+    private int[][] children, frontier;
+    private int[] pre, post;        // Numbering of the tree, to tell dominance at once
+
+    /**
+     * Constructor
+     * @param cfg the graph of the function
+     */
+    public Dominators(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        int n = cfg.size();
+        int[] rpo = cfg.reversePostorder();
+
+        this.pos = new int[n];
+        this.idom = new int[n];
+        for (int b = 0; b < n; b++) {
+            this.pos[b] = -1;
+            this.idom[b] = -1;
+        }
+        for (int j = 0; j < rpo.length; j++)
+            this.pos[rpo[j]] = j;
+
+        if (rpo.length == 0) {
+            this.children = new int[n][];
+            this.frontier = new int[n][];
+            for (int b = 0; b < n; b++) {
+                this.children[b] = None;
+                this.frontier[b] = None;
+            }
+            this.pre = new int[n];
+            this.post = new int[n];
+            return;
+        }
+
+        int entry = rpo[0];
+        this.idom[entry] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int j = 1; j < rpo.length; j++) {
+                int b = rpo[j], d = -1;
+                for (int p : cfg.predecessors(b)) {
+                    if (this.idom[p] < 0)
+                        continue;
+                    d = (d < 0 ? p : intersect(p, d));
+                }
+                if (d != this.idom[b]) {
+                    this.idom[b] = d;
+                    changed = true;
+                }
+            }
+        }
+
+        buildTree(entry);
+        buildFrontiers();
+    }
+
+    /**
+     * Nearest common dominator of two blocks, in the tree being built
+     */
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (this.pos[a] > this.pos[b])
+                a = this.idom[a];
+            while (this.pos[b] > this.pos[a])
+                b = this.idom[b];
+        }
+        return a;
+    }
+
+    /**
+     * Children of each block in the tree, and a preorder and postorder
+     * numbering of the tree (with an explicit stack)
+     */
+    private void buildTree(int entry) {
+        int n = this.cfg.size();
+        int[] count = new int[n];
+        for (int b = 0; b < n; b++) {
+            if (this.idom[b] >= 0 && b != entry)
+                count[this.idom[b]]++;
+        }
+        this.children = new int[n][];
+        for (int b = 0; b < n; b++)
+            this.children[b] = (count[b] == 0 ? None : new int[count[b]]);
+        // In reverse postorder, so that the tree is walked in this order
+        for (int b : this.cfg.reversePostorder()) {
+            if (b != entry) {
+                int d = this.idom[b];
+                this.children[d][this.children[d].length - count[d]--] = b;
+            }
+        }
+
+        this.pre = new int[n];
+        this.post = new int[n];
+        int[] stack = new int[n], edge = new int[n];
+        int sp = 0, np = 0, nq = 0;
+        stack[sp++] = entry;
+        this.pre[entry] = np++;
+        while (sp > 0) {
+            int b = stack[sp - 1];
+            if (edge[b] < this.children[b].length) {
+                int c = this.children[b][edge[b]++];
+                this.pre[c] = np++;
+                stack[sp++] = c;
+            } else {
+                this.post[b] = nq++;
+                sp--;
+            }
+        }
+    }
+
+    /**
+     * Frontier of each block: from each join, walk up from its predecessors
+     * to its immediate dominator
+     */
+    private void buildFrontiers() {
+        int n = this.cfg.size();
+        List<List<Integer>> df = new ArrayList<List<Integer>>(n);
+        for (int b = 0; b < n; b++)
+            df.add(null);
+
+        for (int b = 0; b < n; b++) {
+            int[] preds = this.cfg.predecessors(b);
+            if (this.idom[b] < 0 || preds.length < 2)
+                continue;
+            for (int p : preds) {
+                for (int r = p; r >= 0 && this.idom[r] >= 0 && r != this.idom[b]; r = this.idom[r]) {
+                    List<Integer> l = df.get(r);
+                    if (l == null)
+                        df.set(r, l = new ArrayList<Integer>());
+                    if (!l.isEmpty() && l.get(l.size() - 1) == b)
+                        break;
+                    l.add(b);
+                    if (r == this.idom[r])
+                        break;
+                }
+            }
+        }
+
+        this.frontier = new int[n][];
+        for (int b = 0; b < n; b++) {
+            List<Integer> l = df.get(b);
+            this.frontier[b] = (l == null ? None : new int[l.size()]);
+            for (int k = 0; l != null && k < l.size(); k++)
+                this.frontier[b][k] = l.get(k);
+        }
+    }
+
+    /**
+     * Immediate dominator of a block
+     * @param b the block
+     * @return the dominator (the entry for itself), -1 if b is unreachable
+     */
+    public int idom(int b) {
+        return this.idom[b];
+    }
+
+    /**
+     * Tell if a block is reached from the entry
+     * @param b the block
+     * @return true if it is
+     */
+    public boolean isReachable(int b) {
+        return this.pos[b] >= 0;
+    }
+
+    /**
+     * Tell if a block dominates another one (a block dominates itself)
+     * @param a the first block
+     * @param b the second block
+     * @return true if every path to b goes through a
+     */
+    public boolean dominates(int a, int b) {
+        if (this.pos[a] < 0 || this.pos[b] < 0)
+            return false;
+        return this.pre[a] <= this.pre[b] && this.post[a] >= this.post[b];
+    }
+
+    /**
+     * Blocks immediately dominated by a block
+     * @param b the block
+     * @return the blocks, in reverse postorder (not to be modified)
+     */
+    public int[] children(int b) {
+        return this.children[b];
+    }
+
+    /**
+     * Dominance frontier of a block
+     * @param b the block
+     * @return the blocks (not to be modified)
+     */
+    public int[] frontier(int b) {
+        return this.frontier[b];
+    }
+
+    public ControlFlowGraph graph() {
+        return this.cfg;
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * Immediates -- constants put in the instructions reading them
+ *
+ * The last operand of an ARM data processing instruction may be an 8 bit
+ * value rotated right by an even number of bits (a modified immediate).
+ * Before allocation, a virtual register only written by the load of a
+ * constant is replaced by the constant in the instructions reading it, when
+ * it fits: as it is, or negated or complemented with the opposite operation
+ * (ADD and SUB, CMP and CMN, AND and BIC); a shift takes it as its amount.
+ * The loads no longer read are then dead.
+ *
+ * A constant is loaded by a MOV or a MVN when it fits, else by a MOV (of 16
+ * bits, MOVW) and a MOVT. Once the registers are allocated, a value loaded
+ * by a MOV and a MOVT at least PoolUses times in a function is put once in
+ * a literal pool, and loaded by a LDR: a word of code less for each load,
+ * for a memory access. A LDR only reaches a word MaxReach bytes away: a
+ * pool goes after an unconditional branch or a return once its first load
+ * is half that far, or, if none comes before it would be too far, where it
+ * is with a branch over it. A value is put again in each pool it is loaded
+ * from.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import mcs.gc.Register;
+
+public class Immediates {
+    public static final int PoolUses = 2;       // Loads of a value by MOV and MOVT put in a pool instead
+    public static final int MaxReach = 4095;    // Bytes from a LDR (its address + 8) to its word
+
+    private DefUse du;
+    private int folded = 0, negated = 0;        // Operands made immediate, with the opposite operation
+    private int pooled = 0, words = 0;          // Loads from the pools, words in them
+
+    /**
+     * Constructor
+     * @param du registers read and written by the instructions
+     */
+    public Immediates(DefUse du) {
+        this.du = du;
+    }
+
+    /**
+     * Tell if a value is a modified immediate: 8 bits rotated right by an
+     * even number of bits
+     * @param c the value
+     * @return true if it fits in an instruction
+     */
+    public static boolean fits(int c) {
+        for (int rot = 0; rot < 32; rot += 2) {
+            if ((Integer.rotateLeft(c, rot) & ~0xFF) == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Instructions loading a constant: MOV or MVN of an immediate, else MOV
+     * of the lower half (MOVW) and MOVT of the upper one
+     * @param r the register
+     * @param c the constant
+     * @return the instructions
+     */
+    public static Instruction[] load(Register r, int c) {
+        if (fits(c) || (c >>> 16) == 0)
+            return new Instruction[] { new Instruction(Opcode.MOV, r, c) };
+        if (fits(~c))
+            return new Instruction[] { new Instruction(Opcode.MVN, r, ~c) };
+        return new Instruction[] {
+            new Instruction(Opcode.MOV, r, c & 0xFFFF),
+            new Instruction(Opcode.MOVT, r, c >>> 16) };
+    }
+
+    /**
+     * Put the constants in the instructions reading them
+     * @param code the code of a function, with virtual registers
+     * @return the new code (the one given is not modified)
+     */
+    public InstructionList run(InstructionList code) {
+        Map<Integer, Integer> constants = constants(code);
+        InstructionList done = new InstructionList(code.size());
+        for (Instruction inst : code) {
+            Instruction folded = (constants.isEmpty() ? null : fold(inst, constants));
+            done.add(folded != null ? folded : inst);
+        }
+        return done;
+    }
+
+    /**
+     * Values of the virtual registers only written by one load of a
+     * constant (see load)
+     */
+    private Map<Integer, Integer> constants(InstructionList code) {
+        Map<Integer, Integer> found = new HashMap<Integer, Integer>();
+        BitSet other = new BitSet(), defs = new BitSet();
+        for (int i = 0; i < code.size(); i++) {
+            Instruction inst = code.get(i);
+            defs.clear();
+            this.du.defs(inst, defs);
+            int v = this.du.id(inst.operand(0));
+            boolean load = DefUse.isVirtual(v) && (inst.opcode() == Opcode.MOV || inst.opcode() == Opcode.MOVW
+                || inst.opcode() == Opcode.MVN) && !inst.isConditional() && !inst.setsFlags()
+                && inst.operand(1) instanceof Integer && inst.operand(2) == null;
+            if (load && !found.containsKey(v)) {
+                int c = (Integer)inst.operand(1);
+                Instruction next = (i + 1 < code.size() ? code.get(i + 1) : null);
+                if (inst.opcode() == Opcode.MVN) {
+                    c = ~c;
+                } else if (next != null && next.opcode() == Opcode.MOVT && !next.isConditional()
+                        && this.du.id(next.operand(0)) == v && next.operand(1) instanceof Integer) {
+                    c = (c & 0xFFFF) | ((Integer)next.operand(1) << 16);
+                    i++;
+                }
+                found.put(v, c);
+                continue;
+            }
+            other.or(defs);
+        }
+        for (int v = other.nextSetBit(0); v >= 0; v = other.nextSetBit(v + 1))
+            found.remove(v);
+        return found;
+    }
+
+    /**
+     * The instruction with a constant register made immediate, null if none
+     */
+    private Instruction fold(Instruction inst, Map<Integer, Integer> constants) {
+        Opcode op = inst.opcode();
+        if (inst.operand(3) != null)
+            return null;
+
+        if (op.kind() == Opcode.Kind.Compare) {
+            Integer c = value(inst.operand(1), constants);
+            if (c == null || !inst.isRegister(0))
+                return null;
+            Opcode opposite = (op == Opcode.CMP ? Opcode.CMN : op == Opcode.CMN ? Opcode.CMP : null);
+            return immediate(inst, op, opposite, 0, inst.operand(0), c, -c, c != 0 && c != Integer.MIN_VALUE);
+        }
+
+        boolean commutes;
+        switch (op) {
+            case ADD: case AND: case ORR: case EOR:
+                commutes = true;
+                break;
+            case SUB: case RSB: case BIC: case LSL: case LSR: case ASR: case ROR:
+                commutes = false;
+                break;
+            default:
+                return null;
+        }
+
+        // Two operand form: op rd, rm means rd := rd op rm
+        Object d = inst.operand(0), a = inst.operand(1), b = inst.operand(2);
+        if (b == null) {
+            b = a;
+            a = d;
+        }
+        Integer c = value(b, constants);
+        if (c == null && value(a, constants) != null && (commutes || op == Opcode.SUB || op == Opcode.RSB)) {
+            c = value(a, constants);
+            a = b;
+            if (!commutes)
+                op = (op == Opcode.SUB ? Opcode.RSB : Opcode.SUB);
+        }
+        if (c == null || !(a instanceof Register))
+            return null;
+
+        switch (op) {
+            case LSL: case LSR: case ASR: case ROR:
+                return (c >= 1 && c <= 31 ? immediate(inst, op, null, 1, a, c, 0, false) : null);
+            case ADD: case SUB:
+                return immediate(inst, op, (op == Opcode.ADD ? Opcode.SUB : Opcode.ADD), 1, a, c, -c,
+                                 c != 0 && c != Integer.MIN_VALUE);
+            case AND: case BIC:
+                return immediate(inst, op, (op == Opcode.AND ? Opcode.BIC : Opcode.AND), 1, a, c, ~c,
+                                 !inst.setsFlags());
+            default:
+                return immediate(inst, op, null, 1, a, c, 0, false);
+        }
+    }
+
+    /**
+     * The instruction reading the register a and the immediate c, or its
+     * opposite reading the other value; null if neither fits
+     * @param first index of the register operand (the immediate follows)
+     */
+    private Instruction immediate(Instruction inst, Opcode op, Opcode opposite, int first, Object a, int c,
+            int other, boolean otherwise) {
+        Instruction i = inst.copy();
+        if (fits(c)) {
+            i.setOpcode(op);
+            this.folded++;
+        } else if (opposite != null && otherwise && fits(other)) {
+            i.setOpcode(opposite);
+            c = other;
+            this.folded++;
+            this.negated++;
+        } else {
+            return null;
+        }
+        i.setOperand(first, a);
+        i.setOperand(first + 1, c);
+        return i;
+    }
+
+    /**
+     * Constant held by an operand, null if it is not a constant register
+     */
+    private Integer value(Object o, Map<Integer, Integer> constants) {
+        return (o instanceof Register ? constants.get(this.du.id(o)) : null);
+    }
+
+    /**
+     * Put the values loaded by a MOV and a MOVT at least PoolUses times in
+     * literal pools, each one once in a pool, and load them by LDR; a pool
+     * goes where all of its loads reach it (see MaxReach)
+     * @param code the code of the function, once allocated
+     * @param prefix start of the labels of the pools
+     * @return the new code (the one given is not modified)
+     */
+    public InstructionList pool(InstructionList code, String prefix) {
+        Map<Integer, Integer> uses = new HashMap<Integer, Integer>();
+        for (int i = 0; i + 1 < code.size(); i++) {
+            Integer c = pair(code, i);
+            if (c != null)
+                uses.put(c, (uses.containsKey(c) ? uses.get(c) : 0) + 1);
+        }
+        boolean any = false;
+        for (int n : uses.values())
+            any |= n >= PoolUses;
+        if (!any)
+            return code;
+
+        // Words of the pool to come, by value, and the address of its first load
+        Map<Integer, String> labels = new LinkedHashMap<Integer, String>();
+        int address = 0, first = 0, made = 0, branches = 0;
+        InstructionList done = new InstructionList(code.size() + 8);
+        for (int i = 0; i < code.size(); i++) {
+            Instruction inst = code.get(i);
+            Integer c = pair(code, i);
+            if (c != null && uses.get(c) >= PoolUses) {
+                if (labels.isEmpty())
+                    first = address;
+                if (!labels.containsKey(c))
+                    labels.put(c, prefix + "_pool_" + made++);
+                inst = new Instruction(Opcode.LDR, Cond.AL, false, Instruction.Addressing.None,
+                                       inst.operand(0), labels.get(c), null, null);
+                this.pooled++;
+                i++;
+            }
+            done.add(inst);
+            if (!inst.opcode().isPseudo())
+                address += 4;
+            if (labels.isEmpty())
+                continue;
+
+            // From the first load (read at its address + 8) to the last word,
+            // behind a branch over the pool; the next instruction may add a
+            // load and a word
+            boolean end = (inst.opcode() == Opcode.B && !inst.isConditional()) || inst.isReturn();
+            int reach = address + 4 * labels.size() - (first + 8);
+            if (end && address - first >= MaxReach / 2) {
+                address += flush(done, labels);
+            } else if (reach + 8 > MaxReach) {
+                String over = prefix + "_pool_over_" + branches++;
+                done.add(new Instruction(Opcode.B, over));
+                address += 4 + flush(done, labels);
+                done.add(Instruction.label(over));
+            }
+        }
+        flush(done, labels);
+        return done;
+    }
+
+    /**
+     * Put a pool in the code, and start a new one
+     * @param done the code
+     * @param labels the words of the pool, by value
+     * @return the size of the pool, in bytes
+     */
+    private int flush(InstructionList done, Map<Integer, String> labels) {
+        int size = 4 * labels.size();
+        for (Map.Entry<Integer, String> e : labels.entrySet()) {
+            done.add(Instruction.label(e.getValue()));
+            done.add(Instruction.text("\t\t.word " + e.getKey() + "\n"));
+            this.words++;
+        }
+        labels.clear();
+        return size;
+    }
+
+    /**
+     * Value loaded by the MOV and the MOVT at i, null if there are none
+     */
+    private static Integer pair(InstructionList code, int i) {
+        if (i + 1 >= code.size())
+            return null;
+        Instruction mov = code.get(i), movt = code.get(i + 1);
+        if ((mov.opcode() != Opcode.MOV && mov.opcode() != Opcode.MOVW) || mov.isConditional() || mov.setsFlags() || !mov.isRegister(0)
+                || !(mov.operand(1) instanceof Integer) || mov.operand(2) != null
+                || movt.opcode() != Opcode.MOVT || movt.isConditional() || !(movt.operand(1) instanceof Integer)
+                || DefUse.id((Register)mov.operand(0)) != DefUse.id((Register)movt.operand(0)))
+            return null;
+        return ((Integer)mov.operand(1) & 0xFFFF) | ((Integer)movt.operand(1) << 16);
+    }
+
+    /**
+     * Number of words put in the pools so far
+     */
+    public int words() {
+        return this.words;
+    }
+
+    /**
+     * Report on the constants of the functions seen so far
+     */
+    public String report() {
+        return this.folded + " operands made immediate (" + this.negated + " with the opposite operation); "
+            + this.pooled + " loads from " + this.words + " literal pool words\n";
+    }
+}
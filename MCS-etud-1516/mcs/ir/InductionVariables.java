@@ -0,0 +1,661 @@
+/**
+ * InductionVariables -- array accesses made through incremented pointers
+ *
+ * A register of a loop is an induction variable when the value it has at
+ * the head of the loop comes back to it once per iteration, increased by a
+ * constant: through copies and additions or subtractions of immediates
+ * (i = i + 1), on the SSA view of the function. An address computed from
+ * it is base + scale * i + constant, base being invariant (a register not
+ * written in the loop), the index being made of copies, immediates added,
+ * shifts to the left and multiplications by a constant, the scale and the
+ * constant being counted from the value of i at the head of the loop.
+ *
+ * The loads and stores of a block run once per iteration (a block of the
+ * loop, not of an inner one, dominating the branches back to the header)
+ * whose addresses have the same base, variable and scale then go through a
+ * pointer, set in the preheader (see LoopInvariants): the last of them is
+ * post-indexed (LDR r, [p], #scale * step) and moves the pointer to the
+ * next iteration, the ones before read it with an offset. The arithmetic of
+ * the index is then dead, and so is the variable when nothing else reads
+ * it (its test is kept: comparing the pointer to the end of the array
+ * instead would be wrong when the address of the end does not fit in 32
+ * bits). Addresses wrap around as the instructions do, so no overflow has
+ * to be ruled out.
+ *
+ * No program compiled from its source reaches the pass: the language has
+ * no pointer arithmetic, and the grammar never gives a displacement
+ * register to generateLoadValue or generateStoreVariable. Only the code
+ * built through the engine with such a register has these accesses.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mcs.gc.Register;
+
+public class InductionVariables {
+    /** Largest offset of a load or a store */
+    public static final int MaxOffset = 4095;
+
+    /**
+     * A variable increased by step at each iteration
+     */
+    private static class Variable {
+        int phi;                // Value at the head of the loop
+        Register reg;
+        int step;
+        Map<Integer, Integer> offsets = new HashMap<Integer, Integer>();   // Value => what it adds to phi
+        BitSet chain = new BitSet();    // Instructions of the increment
+    }
+
+    /**
+     * base + scale * variable + constant
+     */
+    private static class Address {
+        Variable var;
+        int scale, constant;
+        int base;               // Value of the invariant register, Undefined if there is none
+        Register reg;
+        BitSet arithmetic = new BitSet();   // Instructions computing it
+    }
+
+    private DefUse du;
+    private int accesses = 0, pointers = 0, removed = 0, counters = 0;
+
+    // Function being looked at
+    private InstructionList code;
+    private ControlFlowGraph cfg;
+    private Dominators dom;
+    private SSA ssa;
+    private Loops loops;
+    private int next;               // Number of the next free virtual register
+
+    // Loop being looked at
+    private Loops.Loop loop;
+    private BitSet written;         // Registers written in the loop
+    private Map<Integer, Variable> variables;   // Value => induction variable it is a value of
+
+    /**
+     * Constructor
+     * @param du registers of each instruction
+     */
+    public InductionVariables(DefUse du) {
+        this.du = du;
+    }
+
+    /**
+     * Make the array accesses of the loops of a function through pointers
+     * @param code the code of the function, not modified
+     * @return the new code (the one given if nothing was changed)
+     */
+    public InstructionList run(InstructionList code) {
+        this.code = code;
+        this.cfg = new ControlFlowGraph(code);
+        this.dom = new Dominators(this.cfg);
+        this.ssa = new SSA(this.cfg, this.dom, this.du);
+        this.loops = new Loops(this.cfg);
+        this.next = firstFree(code);
+
+        // Instructions put before each header, by index of the place they go
+        Map<Integer, List<Instruction>> preheaders = new HashMap<Integer, List<Instruction>>();
+        Instruction[] replaced = new Instruction[code.size()];
+        BitSet dead = new BitSet();
+        for (Loops.Loop l : this.loops.loops()) {
+            int at = LoopInvariants.preheader(this.cfg, code, l);
+            if (at < 0)
+                continue;
+            this.loop = l;
+            List<Instruction> pre = new ArrayList<Instruction>();
+            BitSet candidates = new BitSet();
+            List<Variable> used = new ArrayList<Variable>();
+            rewrite(pre, replaced, candidates, used);
+            if (pre.isEmpty())
+                continue;
+            preheaders.put(at, pre);
+
+            BitSet gone = sweep(candidates, used, replaced);
+            this.removed += gone.cardinality();
+            for (Variable v : used) {
+                BitSet left = (BitSet)v.chain.clone();
+                left.andNot(gone);
+                if (left.isEmpty())
+                    this.counters++;
+            }
+            dead.or(gone);
+        }
+
+        InstructionList done = code;
+        if (!preheaders.isEmpty()) {
+            done = new InstructionList(code.size());
+            for (int i = 0; i < code.size(); i++) {
+                List<Instruction> pre = preheaders.get(i);
+                if (pre != null) {
+                    for (Instruction inst : pre)
+                        done.add(inst);
+                }
+                if (!dead.get(i))
+                    done.add(replaced[i] != null ? replaced[i] : code.get(i));
+            }
+        }
+
+        this.code = null;
+        this.cfg = null;
+        this.dom = null;
+        this.ssa = null;
+        this.loops = null;
+        this.loop = null;
+        this.written = null;
+        this.variables = null;
+        return done;
+    }
+
+    /**
+     * Number of the first virtual register a function does not use
+     */
+    private int firstFree(InstructionList code) {
+        int max = DefUse.FirstVirtual - 1;
+        BitSet regs = new BitSet();
+        for (Instruction inst : code) {
+            regs.clear();
+            this.du.defs(inst, regs);
+            this.du.uses(inst, regs);
+            max = Math.max(max, regs.length() - 1);
+        }
+        return max + 1;
+    }
+
+    private Register fresh() {
+        return new Register("v", this.next++);
+    }
+
+    /**
+     * Make the accesses of the loop being looked at through pointers
+     * @param pre where the instructions setting the pointers go
+     * @param replaced where the accesses made through them go, by index
+     * @param candidates where the arithmetic of their addresses goes
+     * @param used where the variables they were computed from go
+     */
+    private void rewrite(List<Instruction> pre, Instruction[] replaced, BitSet candidates, List<Variable> used) {
+        BitSet body = this.loop.body();
+        this.written = new BitSet();
+        for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+            BasicBlock bb = this.cfg.block(b);
+            for (int i = bb.start(); i < bb.end(); i++)
+                this.du.defs(this.code.get(i), this.written);
+        }
+        this.variables = new HashMap<Integer, Variable>();
+        for (int phi : this.ssa.phis(this.loop.header()))
+            variable(phi);
+        if (this.variables.isEmpty())
+            return;
+
+        for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+            if (this.loops.innermost(b) != this.loop || !runsOnce(b))
+                continue;
+
+            // Accesses of the block with the same base, variable and scale
+            Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>();
+            Map<Integer, Address> addresses = new HashMap<Integer, Address>();
+            BasicBlock bb = this.cfg.block(b);
+            for (int i = bb.start(); i < bb.end(); i++) {
+                Address a = access(i);
+                if (a == null)
+                    continue;
+                addresses.put(i, a);
+                String key = a.base + " " + a.var.phi + " " + a.scale;
+                List<Integer> g = groups.get(key);
+                if (g == null) {
+                    g = new ArrayList<Integer>();
+                    groups.put(key, g);
+                }
+                g.add(i);
+            }
+
+            for (List<Integer> g : groups.values()) {
+                int last = g.get(g.size() - 1);
+                Address a = addresses.get(last);
+                Register p = fresh();
+                setPointer(pre, p, a);
+                for (int i : g) {
+                    Instruction inst = this.code.get(i);
+                    int offset = addresses.get(i).constant - a.constant;
+                    if (i == last)
+                        replaced[i] = new Instruction(inst.opcode(), Cond.AL, false, Instruction.Addressing.PostIndex,
+                                                      inst.operand(0), p, a.scale * a.var.step, null);
+                    else if (Math.abs(offset) <= MaxOffset)
+                        replaced[i] = new Instruction(inst.opcode(), Cond.AL, false, Instruction.Addressing.Offset,
+                                                      inst.operand(0), p, (offset != 0 ? offset : null), null);
+                    else
+                        continue;
+                    candidates.or(addresses.get(i).arithmetic);
+                    if (!used.contains(a.var))
+                        used.add(a.var);
+                    this.accesses++;
+                }
+                this.pointers++;
+            }
+        }
+        for (Variable v : used)
+            candidates.or(v.chain);
+    }
+
+    /**
+     * Tell if a block of the loop runs once per iteration: it dominates the
+     * blocks going back to the header
+     */
+    private boolean runsOnce(int b) {
+        for (int l : this.loop.latches()) {
+            if (!this.dom.dominates(b, l))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record a phi of the header as an induction variable, if it is one: the
+     * value coming back from each latch is the same, made from the phi by
+     * copies and immediates added, in the loop itself
+     */
+    private void variable(int phi) {
+        int reg = this.ssa.register(phi);
+        if (!DefUse.isVirtual(reg))
+            return;
+        int[] preds = this.cfg.predecessors(this.loop.header()), args = this.ssa.arguments(phi);
+        int back = SSA.Undefined;
+        for (int k = 0; k < preds.length; k++) {
+            if (!this.loop.contains(preds[k]))
+                continue;
+            if (back != SSA.Undefined && args[k] != back)
+                return;
+            back = args[k];
+        }
+
+        // From the value coming back to the phi, what each instruction adds
+        Variable var = new Variable();
+        var.phi = phi;
+        List<Integer> values = new ArrayList<Integer>(), adds = new ArrayList<Integer>();
+        int v = back;
+        while (v != phi) {
+            if (v == SSA.Undefined || this.ssa.isPhi(v) || !this.loop.contains(this.ssa.block(v)))
+                return;
+            int j = this.ssa.instruction(v);
+            Instruction inst = this.code.get(j);
+            if (inst.isConditional() || inst.setsFlags() || this.loops.innermost(this.ssa.block(v)) != this.loop
+                    || !(inst.operand(1) instanceof Register))
+                return;
+            int add;
+            if (inst.opcode() == Opcode.MOV && inst.operand(2) == null)
+                add = 0;
+            else if (inst.opcode() == Opcode.ADD && inst.operand(2) instanceof Integer)
+                add = (Integer)inst.operand(2);
+            else if (inst.opcode() == Opcode.SUB && inst.operand(2) instanceof Integer)
+                add = -(Integer)inst.operand(2);
+            else
+                return;
+            values.add(v);
+            adds.add(add);
+            var.chain.set(j);
+            if (var.reg == null && DefUse.id((Register)inst.operand(0)) == reg)
+                var.reg = (Register)inst.operand(0);
+            v = this.ssa.use(j, DefUse.id((Register)inst.operand(1)));
+        }
+        if (var.reg == null)
+            return;
+
+        int offset = 0;
+        for (int k = values.size() - 1; k >= 0; k--) {
+            offset += adds.get(k);
+            var.offsets.put(values.get(k), offset);
+        }
+        var.step = offset;
+        if (var.step == 0)
+            return;
+        var.offsets.put(phi, 0);
+        for (int w : var.offsets.keySet())
+            this.variables.put(w, var);
+    }
+
+    /**
+     * Tell if a value is invariant in the loop: it comes from outside, and
+     * the register holding it is not written in the loop (it still holds it
+     * in the preheader)
+     */
+    private boolean isInvariant(int v) {
+        if (v == SSA.Undefined || this.loop.contains(this.ssa.block(v)))
+            return false;
+        int reg = this.ssa.register(v);
+        return DefUse.isVirtual(reg) && !this.written.get(reg);
+    }
+
+    /**
+     * Integer a value is a constant of, null if it is not one
+     */
+    private Integer constant(int v) {
+        if (v == SSA.Undefined || this.ssa.isPhi(v))
+            return null;
+        Instruction inst = this.code.get(this.ssa.instruction(v));
+        if (inst.isConditional() || !(inst.operand(1) instanceof Integer) || inst.operand(2) != null)
+            return null;
+        if (inst.opcode() == Opcode.MOV)
+            return (Integer)inst.operand(1);
+        if (inst.opcode() == Opcode.MVN)
+            return ~(Integer)inst.operand(1);
+        return null;
+    }
+
+    /**
+     * Operation of the loop defining a value, made whatever the flags
+     * @return its index, -1 if there is none
+     */
+    private int operation(int v) {
+        if (v == SSA.Undefined || this.ssa.isPhi(v) || !this.loop.contains(this.ssa.block(v)))
+            return -1;
+        int j = this.ssa.instruction(v);
+        Instruction inst = this.code.get(j);
+        if (inst.opcode().kind() != Opcode.Kind.Data || inst.isConditional() || inst.setsFlags()
+                || this.ssa.defs(j).length != 1 || !(inst.operand(1) instanceof Register))
+            return -1;
+        return j;
+    }
+
+    private int use(int j, int k) {
+        return this.ssa.use(j, DefUse.id((Register)this.code.get(j).operand(k)));
+    }
+
+    /**
+     * Index made from an induction variable: scale * variable + constant
+     * @param v the value
+     * @return the index (with no base), null if it is not one
+     */
+    private Address index(int v) {
+        Variable var = this.variables.get(v);
+        if (var != null) {
+            Address a = new Address();
+            a.var = var;
+            a.scale = 1;
+            a.constant = var.offsets.get(v);
+            a.base = SSA.Undefined;
+            return a;
+        }
+        int j = operation(v);
+        if (j < 0)
+            return null;
+        Instruction inst = this.code.get(j);
+        Object o3 = inst.operand(2);
+        Address a = null;
+        switch (inst.opcode()) {
+            case MOV:
+                if (o3 == null)
+                    a = index(use(j, 1));
+                break;
+            case ADD:
+            case SUB:
+                if (o3 instanceof Integer && (a = index(use(j, 1))) != null)
+                    a.constant += (inst.opcode() == Opcode.ADD ? (Integer)o3 : -(Integer)o3);
+                break;
+            case LSL:
+                if (o3 instanceof Integer && (a = index(use(j, 1))) != null) {
+                    a.scale <<= (Integer)o3;
+                    a.constant <<= (Integer)o3;
+                }
+                break;
+            case MUL:
+                if (!(o3 instanceof Register))
+                    break;
+                Integer c = constant(use(j, 2));
+                a = (c != null ? index(use(j, 1)) : null);
+                if (c == null && (c = constant(use(j, 1))) != null)
+                    a = index(use(j, 2));
+                if (a != null) {
+                    a.scale *= c;
+                    a.constant *= c;
+                }
+                break;
+            default:
+                break;
+        }
+        if (a != null)
+            a.arithmetic.set(j);
+        return a;
+    }
+
+    /**
+     * Index in a register operand, shifted to the left or not when it is
+     * the last one
+     */
+    private Address index(int j, int k) {
+        Instruction inst = this.code.get(j);
+        Object shift = (k == 2 ? inst.operand(3) : null);
+        if (shift != null && !(shift instanceof Shift && ((Shift)shift).opcode() == Opcode.LSL))
+            return null;
+        Address a = index(use(j, k));
+        if (a != null && shift != null) {
+            a.scale <<= ((Shift)shift).amount();
+            a.constant <<= ((Shift)shift).amount();
+        }
+        return a;
+    }
+
+    /**
+     * Address made from an invariant base and an index
+     * @param v the value
+     * @return the address, null if it is not one
+     */
+    private Address address(int v) {
+        int j = operation(v);
+        if (j < 0)
+            return null;
+        Instruction inst = this.code.get(j);
+        Object o3 = inst.operand(2);
+        Address a = null;
+        if (inst.opcode() == Opcode.MOV && o3 == null) {
+            a = address(use(j, 1));
+        } else if ((inst.opcode() == Opcode.ADD || inst.opcode() == Opcode.SUB) && o3 instanceof Integer) {
+            if ((a = address(use(j, 1))) != null)
+                a.constant += (inst.opcode() == Opcode.ADD ? (Integer)o3 : -(Integer)o3);
+        } else if ((inst.opcode() == Opcode.ADD || inst.opcode() == Opcode.SUB) && o3 instanceof Register) {
+            a = based(j, 1, 2);
+            if (a != null && inst.opcode() == Opcode.SUB) {
+                a.scale = -a.scale;
+                a.constant = -a.constant;
+            } else if (a == null && inst.opcode() == Opcode.ADD && inst.operand(3) == null) {
+                a = based(j, 2, 1);
+            }
+        }
+        if (a != null)
+            a.arithmetic.set(j);
+        return a;
+    }
+
+    /**
+     * Address made of an invariant register operand and an index one
+     */
+    private Address based(int j, int base, int index) {
+        int b = use(j, base);
+        if (!isInvariant(b))
+            return null;
+        Address a = index(j, index);
+        if (a == null)
+            return null;
+        a.base = b;
+        a.reg = (Register)this.code.get(j).operand(base);
+
+        // The same base, through the copies made of it
+        while (!this.ssa.isPhi(a.base)) {
+            Instruction copy = this.code.get(this.ssa.instruction(a.base));
+            if (copy.opcode() != Opcode.MOV || copy.isConditional() || !(copy.operand(1) instanceof Register)
+                    || copy.operand(2) != null)
+                break;
+            int from = this.ssa.use(this.ssa.instruction(a.base), DefUse.id((Register)copy.operand(1)));
+            if (!isInvariant(from))
+                break;
+            a.base = from;
+            a.reg = (Register)copy.operand(1);
+        }
+        return a;
+    }
+
+    /**
+     * Address of a load or a store that may go through a pointer
+     * @param i index of the instruction
+     * @return its address, null if it may not
+     */
+    private Address access(int i) {
+        Instruction inst = this.code.get(i);
+        Opcode op = inst.opcode();
+        if ((op != Opcode.LDR && op != Opcode.LDRB && op != Opcode.STR && op != Opcode.STRB)
+                || inst.addressing() != Instruction.Addressing.Offset || inst.isConditional()
+                || !(inst.operand(1) instanceof Register))
+            return null;
+
+        Object o3 = inst.operand(2);
+        Address a;
+        if (o3 instanceof Register) {
+            a = based(i, 1, 2);
+            if (a == null && inst.operand(3) == null)
+                a = based(i, 2, 1);
+        } else {
+            a = address(use(i, 1));
+            if (a != null && o3 != null)
+                a.constant += (Integer)o3;
+        }
+        if (a == null || a.base == SSA.Undefined || a.scale == 0
+                || Math.abs((long)a.scale * a.var.step) > MaxOffset)
+            return null;
+        return a;
+    }
+
+    /**
+     * Set a pointer to an address, before the loop
+     * @param pre where the instructions go
+     * @param p the pointer
+     * @param a the address, for the value the variable has at the head of the loop
+     */
+    private void setPointer(List<Instruction> pre, Register p, Address a) {
+        Register i = a.var.reg;
+        int s = Math.abs(a.scale), k = Integer.numberOfTrailingZeros(s);
+        Opcode op = (a.scale > 0 ? Opcode.ADD : Opcode.SUB);
+        if (s == 1 << k) {
+            pre.add(new Instruction(op, Cond.AL, false, Instruction.Addressing.None, p, a.reg, i,
+                                    (k > 0 ? new Shift(Opcode.LSL, k) : null)));
+        } else {
+            Register t = fresh(), u = fresh();
+            for (Instruction inst : Immediates.load(t, s))
+                pre.add(inst);
+            pre.add(new Instruction(Opcode.MUL, u, i, t));
+            pre.add(new Instruction(op, p, a.reg, u));
+        }
+
+        int c = a.constant;
+        if (c == 0)
+            return;
+        if (Immediates.fits(c)) {
+            pre.add(new Instruction(Opcode.ADD, p, p, c));
+        } else if (Immediates.fits(-c)) {
+            pre.add(new Instruction(Opcode.SUB, p, p, -c));
+        } else {
+            Register t = fresh();
+            for (Instruction inst : Immediates.load(t, c))
+                pre.add(inst);
+            pre.add(new Instruction(Opcode.ADD, p, p, t));
+        }
+    }
+
+    /**
+     * Find which of the arithmetic of the addresses and the increments of
+     * the variables nothing reads any more
+     * @param candidates the instructions that may be dead
+     * @param used the variables
+     * @param replaced the accesses made through pointers
+     * @return the dead instructions
+     */
+    private BitSet sweep(BitSet candidates, List<Variable> used, Instruction[] replaced) {
+        BitSet phis = new BitSet();
+        for (Variable v : used)
+            phis.set(v.phi);
+
+        // Values read by something else, then what they are made from
+        BitSet live = new BitSet();
+        List<Integer> work = new ArrayList<Integer>();
+        for (int j = candidates.nextSetBit(0); j >= 0; j = candidates.nextSetBit(j + 1)) {
+            for (int v : this.ssa.defs(j)) {
+                if (isRead(v, candidates, phis, replaced))
+                    work.add(v);
+            }
+        }
+        for (int phi = phis.nextSetBit(0); phi >= 0; phi = phis.nextSetBit(phi + 1)) {
+            if (isRead(phi, candidates, phis, replaced))
+                work.add(phi);
+        }
+        while (!work.isEmpty()) {
+            int v = work.remove(work.size() - 1);
+            if (live.get(v))
+                continue;
+            live.set(v);
+            if (this.ssa.isPhi(v)) {
+                for (int w : this.ssa.arguments(v))
+                    work.add(w);
+                continue;
+            }
+            int j = this.ssa.instruction(v);
+            if (j < 0 || !candidates.get(j))
+                continue;
+            BitSet regs = new BitSet();
+            this.du.uses(this.code.get(j), regs);
+            for (int r = regs.nextSetBit(DefUse.FirstVirtual); r >= 0; r = regs.nextSetBit(r + 1))
+                work.add(this.ssa.use(j, r));
+        }
+
+        BitSet dead = new BitSet();
+        for (int j = candidates.nextSetBit(0); j >= 0; j = candidates.nextSetBit(j + 1)) {
+            boolean read = false;
+            for (int v : this.ssa.defs(j))
+                read |= live.get(v);
+            if (!read)
+                dead.set(j);
+        }
+        return dead;
+    }
+
+    /**
+     * Tell if a value is read by an instruction that stays, or a phi that is
+     * not the one of a variable: an access made through a pointer only reads
+     * the value it stores
+     */
+    private boolean isRead(int v, BitSet candidates, BitSet phis, Instruction[] replaced) {
+        int reg = this.ssa.register(v);
+        for (int u : this.ssa.users(v)) {
+            if (candidates.get(u))
+                continue;
+            if (replaced[u] == null || (replaced[u].opcode().kind() == Opcode.Kind.Store
+                    && DefUse.id((Register)replaced[u].operand(0)) == reg))
+                return true;
+        }
+        for (int p : this.ssa.phiUsers(v)) {
+            if (!phis.get(p))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of accesses made through pointers so far
+     */
+    public int accesses() {
+        return this.accesses;
+    }
+
+    /**
+     * Accesses made through pointers so far
+     */
+    public String report() {
+        return this.accesses + " accesses made through " + this.pointers + " incremented pointers, "
+            + this.removed + " instructions of their indexes removed (" + this.counters + " counters)\n";
+    }
+}
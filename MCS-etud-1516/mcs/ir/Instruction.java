@@ -0,0 +1,337 @@
+/**
+ * Instruction -- an instruction of the intermediate representation
+ *
+ * An instruction is an opcode, a condition, a flag telling if it sets the
+ * condition flags, an addressing mode and at most four operands. Operands are
+ * registers (mcs.gc.Register), immediates (Integer), register lists, shifts
+ * of the last register (Shift) or strings (labels or anything the
+ * representation does not model). Operands
+ * are shared, never copied: an instruction is only a handful of references.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.List;
+import mcs.gc.Register;
+
+public final class Instruction {
+    /**
+     * How the operands following the first one are read:
+     *  - None      : op1, op2, op3, op4
+     *  - Offset    : op1, [op2, op3, op4]
+     *  - PreIndex  : op1, [op2, op3, op4]!
+     *  - PostIndex : op1, [op2], op3, op4
+     *  - Writeback : op1!, op2, op3, op4 (LDMIA, STMIA)
+     */
+    public enum Addressing { None, Offset, PreIndex, PostIndex, Writeback };
+
+    private Opcode op;
+    private Cond cond;
+    private boolean flags;
+    private Addressing addressing;
+    private String text;                // Label name, verbatim text or unknown mnemonic
+    private Object o1, o2, o3, o4;      // Operands
+    private List<Register> arguments;   // Registers a call passes its arguments in
+
+    /**
+     * Constructor
+     * @param op operation
+     * @param cond condition
+     * @param flags if the instruction sets the flags (S suffix)
+     * @param addressing addressing mode
+     * @param o1,o2,o3,o4 operands (null if absent)
+     */
+    public Instruction(Opcode op, Cond cond, boolean flags, Addressing addressing,
+            Object o1, Object o2, Object o3, Object o4) {
+        this.op = op;
+        this.cond = cond;
+        this.flags = flags;
+        this.addressing = addressing;
+        this.text = null;
+        this.o1 = o1;
+        this.o2 = o2;
+        this.o3 = o3;
+        this.o4 = o4;
+    }
+
+    public Instruction(Opcode op, Cond cond, Object o1, Object o2, Object o3) {
+        this(op, cond, false, Addressing.None, o1, o2, o3, null);
+    }
+
+    public Instruction(Opcode op, Object o1, Object o2, Object o3) {
+        this(op, Cond.AL, o1, o2, o3);
+    }
+
+    public Instruction(Opcode op, Object o1, Object o2) {
+        this(op, Cond.AL, o1, o2, null);
+    }
+
+    public Instruction(Opcode op, Object o1) {
+        this(op, Cond.AL, o1, null, null);
+    }
+
+    /**
+     * Create a label definition
+     * @param name name of the label
+     * @return the instruction
+     */
+    public static Instruction label(String name) {
+        Instruction i = new Instruction(Opcode.LABEL, null);
+        i.text = name;
+        return i;
+    }
+
+    /**
+     * Create a verbatim piece of text (comment, directive...)
+     * @param text the text, with its line feed
+     * @return the instruction
+     */
+    public static Instruction text(String text) {
+        Instruction i = new Instruction(Opcode.TEXT, null);
+        i.text = text;
+        return i;
+    }
+
+    /**
+     * Copy of the instruction, which may be modified without changing this one
+     * Note: the operands are shared
+     * @return the copy
+     */
+    public Instruction copy() {
+        Instruction i = new Instruction(this.op, this.cond, this.flags, this.addressing,
+                                        this.o1, this.o2, this.o3, this.o4);
+        i.text = this.text;
+        i.arguments = this.arguments;
+        return i;
+    }
+
+    /**
+     * Create an instruction from its mnemonic, such as "MOVLT", "ANDS" or "BEQ"
+     * Note: an unknown mnemonic gives a RAW instruction, written as it is
+     * @param mnemonic the mnemonic
+     * @param addressing addressing mode
+     * @param o1,o2,o3,o4 operands (null if absent)
+     * @return the instruction
+     */
+    public static Instruction fromMnemonic(String mnemonic, Addressing addressing,
+            Object o1, Object o2, Object o3, Object o4) {
+        String m = mnemonic.toUpperCase();
+
+        for (Opcode op : Opcode.byLength()) {
+            if (!m.startsWith(op.name()))
+                continue;
+
+            String rest = m.substring(op.name().length());
+            Cond c = Cond.fromSuffix(rest);
+            boolean s = false;
+
+            if (c == null && op.canSetFlags() && rest.startsWith("S")) {
+                c = Cond.fromSuffix(rest.substring(1));
+                s = true;
+            }
+
+            if (c != null)
+                return new Instruction(op, c, s, addressing, o1, o2, o3, o4);
+        }
+
+        Instruction i = new Instruction(Opcode.RAW, Cond.AL, false, addressing, o1, o2, o3, o4);
+        i.text = mnemonic;
+        return i;
+    }
+
+    /**********************************************************
+     * Accessors
+     **********************************************************/
+    public Opcode opcode() {
+        return this.op;
+    }
+
+    public void setOpcode(Opcode op) {
+        this.op = op;
+    }
+
+    public Cond cond() {
+        return this.cond;
+    }
+
+    public void setCond(Cond cond) {
+        this.cond = cond;
+    }
+
+    public boolean setsFlags() {
+        return this.flags;
+    }
+
+    public void setFlags(boolean flags) {
+        this.flags = flags;
+    }
+
+    public Addressing addressing() {
+        return this.addressing;
+    }
+
+    public void setAddressing(Addressing addressing) {
+        this.addressing = addressing;
+    }
+
+    /**
+     * Name of a label, text of a TEXT or mnemonic of a RAW instruction
+     * @return the text, null for other instructions
+     */
+    public String text() {
+        return this.text;
+    }
+
+    /**
+     * Get an operand
+     * @param n index of the operand, from 0 to 3
+     * @return the operand, null if absent
+     */
+    public Object operand(int n) {
+        switch (n) {
+            case 0: return this.o1;
+            case 1: return this.o2;
+            case 2: return this.o3;
+            case 3: return this.o4;
+            default: return null;
+        }
+    }
+
+    /**
+     * Set an operand
+     * @param n index of the operand, from 0 to 3
+     * @param o the new operand
+     */
+    public void setOperand(int n, Object o) {
+        switch (n) {
+            case 0: this.o1 = o; break;
+            case 1: this.o2 = o; break;
+            case 2: this.o3 = o; break;
+            case 3: this.o4 = o; break;
+            default:
+                throw new IndexOutOfBoundsException("operand " + n);
+        }
+    }
+
+    /**
+     * Registers a call passes its arguments in: the call reads them
+     * @return the registers, null if none
+     */
+    public List<Register> arguments() {
+        return this.arguments;
+    }
+
+    public void setArguments(List<Register> arguments) {
+        this.arguments = arguments;
+    }
+
+    /**
+     * Number of operands (index of the last present one, plus one)
+     * @return the number of operands
+     */
+    public int operandCount() {
+        return (o4 != null ? 4 : o3 != null ? 3 : o2 != null ? 2 : o1 != null ? 1 : 0);
+    }
+
+    /**
+     * Full mnemonic, with flag and condition suffixes
+     * @return the mnemonic
+     */
+    public String mnemonic() {
+        if (this.op == Opcode.RAW)
+            return this.text;
+
+        return this.op.name() + (this.flags ? "S" : "") + this.cond.suffix();
+    }
+
+    /**********************************************************
+     * Control flow
+     **********************************************************/
+    public boolean isLabel() {
+        return this.op == Opcode.LABEL;
+    }
+
+    public boolean isText() {
+        return this.op == Opcode.TEXT;
+    }
+
+    /**
+     * Tell if the instruction is a branch (calls excluded)
+     * @return true for B, BX, CBZ and CBNZ
+     */
+    public boolean isBranch() {
+        return this.op.kind() == Opcode.Kind.Branch;
+    }
+
+    /**
+     * Tell if the instruction is a call to a subroutine
+     * @return true for BL and BLX
+     */
+    public boolean isCall() {
+        return this.op == Opcode.BL || this.op == Opcode.BLX;
+    }
+
+    /**
+     * Tell if the instruction is conditionally executed
+     * @return true if the instruction has a condition or is a CBZ/CBNZ
+     */
+    public boolean isConditional() {
+        return this.cond != Cond.AL || this.op == Opcode.CBZ || this.op == Opcode.CBNZ;
+    }
+
+    /**
+     * Tell if the instruction leaves the function (BX lr, POP {..., pc})
+     * @return true if it is a return
+     */
+    public boolean isReturn() {
+        if (this.op == Opcode.BX)
+            return "lr".equals(String.valueOf(this.o1));
+
+        if (this.op == Opcode.POP && this.o1 instanceof List) {
+            for (Object r : (List<?>)this.o1) {
+                if ("pc".equals(String.valueOf(r)))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Tell if the instruction ends a basic block
+     * @return true for branches and returns
+     */
+    public boolean endsBlock() {
+        return isBranch() || isReturn();
+    }
+
+    /**
+     * Label targeted by a branch or a call
+     * @return the label, null if the instruction has none
+     */
+    public String target() {
+        Object t = null;
+
+        if (this.op == Opcode.B || this.op == Opcode.BL)
+            t = this.o1;
+        else if (this.op == Opcode.CBZ || this.op == Opcode.CBNZ)
+            t = this.o2;
+
+        return (t instanceof String ? (String)t : null);
+    }
+
+    /**
+     * Tell if the given operand is a register
+     * @param n index of the operand
+     * @return true if it is a register
+     */
+    public boolean isRegister(int n) {
+        return operand(n) instanceof Register;
+    }
+
+    @Override
+    public String toString() {
+        return Printer.toString(this);
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * InstructionList -- an array-backed sequence of instructions
+ *
+ * This is the form on which the passes work: the code of a function once
+ * flattened. Removing instructions is done by setting them to null and
+ * compacting the list once, so that a pass stays linear.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public class InstructionList implements Iterable<Instruction> {
+    private Instruction[] data;
+    private int size;
+
+    /**
+     * Constructor
+     */
+    public InstructionList() {
+        this(64);
+    }
+
+    /**
+     * Constructor
+     * @param capacity initial capacity
+     */
+    public InstructionList(int capacity) {
+        this.data = new Instruction[Math.max(capacity, 4)];
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public Instruction get(int i) {
+        if (i >= this.size)
+            throw new IndexOutOfBoundsException(i + " >= " + this.size);
+        return this.data[i];
+    }
+
+    /**
+     * Replace an instruction
+     * @param i index
+     * @param inst new instruction; null to remove it at the next compact()
+     */
+    public void set(int i, Instruction inst) {
+        if (i >= this.size)
+            throw new IndexOutOfBoundsException(i + " >= " + this.size);
+        this.data[i] = inst;
+    }
+
+    /**
+     * Add an instruction at the end
+     * @param inst the instruction
+     */
+    public void add(Instruction inst) {
+        if (this.size == this.data.length) {
+            Instruction[] bigger = new Instruction[this.data.length * 2];
+            System.arraycopy(this.data, 0, bigger, 0, this.size);
+            this.data = bigger;
+        }
+        this.data[this.size++] = inst;
+    }
+
+    /**
+     * Add all the instructions of another list at the end
+     * @param other the other list
+     */
+    public void addAll(InstructionList other) {
+        for (int i = 0; i < other.size; i++)
+            this.add(other.data[i]);
+    }
+
+    /**
+     * Copy of the list, whose instructions may be modified without changing
+     * the ones of this list (see Instruction.copy)
+     * @return the copy
+     */
+    public InstructionList copy() {
+        InstructionList c = new InstructionList(this.size);
+        for (int i = 0; i < this.size; i++)
+            c.add(this.data[i].copy());
+        return c;
+    }
+
+    /**
+     * Remove the instructions that were set to null
+     */
+    public void compact() {
+        int n = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (this.data[i] != null)
+                this.data[n++] = this.data[i];
+        }
+        for (int i = n; i < this.size; i++)
+            this.data[i] = null;
+        this.size = n;
+    }
+
+    /**
+     * Split the list into basic blocks. A block begins at the start of the
+     * list, at each label and after each branch or return.
+     * @return the blocks, in order
+     */
+    public List<BasicBlock> blocks() {
+        List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+        int start = 0;
+
+        for (int i = 0; i < this.size; i++) {
+            Instruction inst = this.data[i];
+
+            if (inst.isLabel() && i > start) {
+                blocks.add(new BasicBlock(this, blocks.size(), start, i));
+                start = i;
+            }
+
+            if (inst.endsBlock()) {
+                blocks.add(new BasicBlock(this, blocks.size(), start, i + 1));
+                start = i + 1;
+            }
+        }
+
+        if (start < this.size || blocks.isEmpty())
+            blocks.add(new BasicBlock(this, blocks.size(), start, this.size));
+
+        return blocks;
+    }
+
+    @Override
+    public Iterator<Instruction> iterator() {
+        return new Iterator<Instruction>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            public Instruction next() {
+                if (i >= size)
+                    throw new NoSuchElementException();
+                return data[i++];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.size; i++)
+            sb.append(this.data[i]);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Liveness -- registers that may be read before being written again
+ *
+ * Backward "may" problem over register numbers (see DefUse). A conditional
+ * instruction does not kill the registers it writes, as it may not execute,
+ * unless it completes the previous one (see DefUse.sureDefs).
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.BitSet;
+
+public class Liveness extends BitVectorDataflow {
+    private DefUse du;
+    private BitSet exitLive;
+    private BitSet[] use, def;      // Upward exposed uses and definitions of each block
+    private int domain;
+
+    /**
+     * Constructor
+     * @param cfg the graph of the function
+     * @param du registers of each instruction
+     * @param exitLive registers live when the function returns
+     */
+    public Liveness(ControlFlowGraph cfg, DefUse du, BitSet exitLive) {
+        super(cfg, false, true);
+        this.du = du;
+        this.exitLive = exitLive;
+
+        int n = cfg.size();
+        this.use = new BitSet[n];
+        this.def = new BitSet[n];
+        this.domain = exitLive.length();
+
+        BitSet u = new BitSet(), d = new BitSet();
+        for (BasicBlock b : cfg.blocks()) {
+            BitSet bu = new BitSet(), bd = new BitSet();
+            for (int i = b.start(); i < b.end(); i++) {
+                Instruction inst = cfg.code().get(i);
+                u.clear();
+                d.clear();
+                du.uses(inst, u);
+                du.sureDefs(cfg.code(), i, d);
+
+                u.andNot(bd);
+                bu.or(u);
+                bd.or(d);
+            }
+            this.use[b.index()] = bu;
+            this.def[b.index()] = bd;
+            this.domain = Math.max(this.domain, Math.max(bu.length(), bd.length()));
+        }
+    }
+
+    @Override
+    protected int domainSize() {
+        return this.domain;
+    }
+
+    @Override
+    protected BitSet boundary() {
+        return this.exitLive;
+    }
+
+    @Override
+    protected BitSet transfer(int b, BitSet from) {
+        BitSet to = (BitSet)from.clone();
+        to.andNot(this.def[b]);
+        to.or(this.use[b]);
+        return to;
+    }
+
+    @Override
+    public Liveness solve() {
+        super.solve();
+        return this;
+    }
+
+    /**
+     * Registers live at the beginning of a block
+     * @param b the block
+     * @return the registers, not to be modified
+     */
+    public BitSet liveIn(int b) {
+        return in(b);
+    }
+
+    /**
+     * Registers live at the end of a block
+     * @param b the block
+     * @return the registers, not to be modified
+     */
+    public BitSet liveOut(int b) {
+        return out(b);
+    }
+
+    /**
+     * Go back over one instruction: turn the registers live after it into
+     * the registers live before it
+     * @param i index of the instruction in the function
+     * @param live registers live after the instruction, modified
+     */
+    public void stepBack(int i, BitSet live) {
+        BitSet d = new BitSet();
+        this.du.sureDefs(this.cfg.code(), i, d);
+        live.andNot(d);
+        this.du.uses(this.cfg.code().get(i), live);
+    }
+}
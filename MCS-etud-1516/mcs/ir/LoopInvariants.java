@@ -0,0 +1,411 @@
+/**
+ * LoopInvariants -- computations moved out of the loops
+ *
+ * An instruction of a loop is invariant when each value it reads comes from
+ * outside the loop or from an invariant instruction (on the SSA view of the
+ * function): it gives the same result at each iteration, and is made once,
+ * in a preheader put right before the label of the header, or before the
+ * branch to it. Only the loops entered from one place have one (the while
+ * loops of the code generator, tested at the top or at the bottom); an
+ * outer loop is looked at before the loops it contains, so that an
+ * instruction goes as far out as it can.
+ *
+ * The operations writing virtual registers (without the flags, and
+ * unconditional) are moved, and the loads from an address made of
+ * invariants. A register is moved with all its definitions in the loop,
+ * made in the same block, so that the loop only sees its last value; it
+ * must not be read at the head of the loop nor once it is left. A load may
+ * be made before a loop the body of which is never run: it must read the
+ * frame, or be made before the loop can be left. It must not read what the
+ * loop stores: a loop making calls keeps its loads, and a store only leaves
+ * a load alone if it writes other bytes from the same base (the frame, or
+ * the same value of a register), or if the frame is read from the heap and
+ * no address of the frame is ever computed.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LoopInvariants {
+    private DefUse du;
+    private BitSet exitLive;
+    private int base;               // Register of the frame, never written in the body of a function
+    private int moved = 0, loads = 0, loops = 0;
+
+    // Function being looked at
+    private InstructionList code;
+    private ControlFlowGraph cfg;
+    private Dominators dom;
+    private SSA ssa;
+    private Liveness live;
+    private boolean[] out;          // Instructions moved out of their loop
+    private boolean escapes;        // Some address of the frame is computed
+
+    /**
+     * Constructor
+     * @param du registers of each instruction
+     * @param exitLive registers live when a function returns
+     * @param base number of the register the frame is read from
+     */
+    public LoopInvariants(DefUse du, BitSet exitLive, int base) {
+        this.du = du;
+        this.exitLive = exitLive;
+        this.base = base;
+    }
+
+    /**
+     * Move the invariants of the loops of a function
+     * @param code the code of the function, not modified
+     * @return the new code
+     */
+    public InstructionList run(InstructionList code) {
+        this.code = code;
+        this.cfg = new ControlFlowGraph(code);
+        this.dom = new Dominators(this.cfg);
+        this.ssa = new SSA(this.cfg, this.dom, this.du);
+        this.live = null;
+        this.out = new boolean[code.size()];
+
+        this.escapes = this.du.keepsFrameAddress(code, this.base);
+
+        // Instructions put before each header, by index of the place they go
+        Map<Integer, List<Integer>> preheaders = new HashMap<Integer, List<Integer>>();
+        for (Loops.Loop loop : new Loops(this.cfg).loops()) {
+            int at = preheader(this.cfg, code, loop);
+            if (at < 0)
+                continue;
+            if (this.live == null)
+                this.live = new Liveness(this.cfg, this.du, this.exitLive).solve();
+
+            BitSet moving = invariants(loop);
+            if (moving.isEmpty())
+                continue;
+            List<Integer> pre = new ArrayList<Integer>();
+            for (int i = moving.nextSetBit(0); i >= 0; i = moving.nextSetBit(i + 1)) {
+                this.out[i] = true;
+                pre.add(i);
+                if (code.get(i).opcode().kind() == Opcode.Kind.Load)
+                    this.loads++;
+            }
+            preheaders.put(at, pre);
+            this.moved += pre.size();
+            this.loops++;
+        }
+
+        InstructionList done = code;
+        if (!preheaders.isEmpty()) {
+            done = new InstructionList(code.size());
+            for (int i = 0; i < code.size(); i++) {
+                List<Integer> pre = preheaders.get(i);
+                if (pre != null) {
+                    for (int j : pre)
+                        done.add(code.get(j));
+                }
+                if (!this.out[i])
+                    done.add(code.get(i));
+            }
+        }
+
+        this.code = null;
+        this.cfg = null;
+        this.dom = null;
+        this.ssa = null;
+        this.live = null;
+        this.out = null;
+        return done;
+    }
+
+    /**
+     * Find where the preheader of a loop goes: the loop must be entered from
+     * one block, falling into the header or branching to it
+     * @param cfg the graph of the function
+     * @param code the code of the function
+     * @param loop the loop
+     * @return the index of the label of the header, or of the branch to it;
+     *         -1 if there is none
+     */
+    static int preheader(ControlFlowGraph cfg, InstructionList code, Loops.Loop loop) {
+        int h = loop.header(), from = -1;
+        for (int p : cfg.predecessors(h)) {
+            if (loop.contains(p))
+                continue;
+            if (from >= 0)
+                return -1;
+            from = p;
+        }
+        if (from < 0)
+            return -1;
+
+        BasicBlock before = cfg.block(from);
+        Instruction last = before.last();
+        String label = cfg.block(h).label();
+        boolean branches = last != null && label != null && label.equals(last.target());
+        if (from == h - 1 && !branches)
+            return cfg.block(h).start();
+        if (branches && last.opcode() == Opcode.B && !last.isConditional()) {
+            for (int i = before.end() - 1; i >= before.start(); i--) {
+                if (code.get(i) == last)
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the instructions of a loop to move before it
+     * @param loop the loop
+     * @return the indexes of the instructions
+     */
+    private BitSet invariants(Loops.Loop loop) {
+        BitSet body = loop.body();
+
+        // Definitions and reads of each register in the loop; what is stored
+        Map<Integer, List<Integer>> defs = new HashMap<Integer, List<Integer>>();
+        Map<Integer, List<Integer>> reads = new HashMap<Integer, List<Integer>>();
+        List<Integer> stores = new ArrayList<Integer>();
+        boolean calls = false;
+        BitSet regs = new BitSet();
+        for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+            BasicBlock bb = this.cfg.block(b);
+            for (int i = bb.start(); i < bb.end(); i++) {
+                Instruction inst = this.code.get(i);
+                if (this.out[i])
+                    continue;
+                if (inst.opcode().kind() == Opcode.Kind.Call || inst.opcode() == Opcode.RAW)
+                    calls = true;
+                else if (inst.opcode().kind() == Opcode.Kind.Store)
+                    stores.add(i);
+                regs.clear();
+                this.du.defs(inst, regs);
+                record(defs, regs, i);
+                regs.clear();
+                this.du.uses(inst, regs);
+                record(reads, regs, i);
+            }
+        }
+
+        // Blocks the loop may be left from, and the blocks it goes to
+        List<Integer> exiting = new ArrayList<Integer>();
+        BitSet exits = new BitSet();
+        for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+            boolean leaves = this.cfg.isExit(b);
+            for (int s : this.cfg.successors(b)) {
+                if (!body.get(s)) {
+                    exits.set(s);
+                    leaves = true;
+                }
+            }
+            if (leaves)
+                exiting.add(b);
+        }
+
+        // Candidates, then the invariant ones
+        BitSet moving = new BitSet();
+        BitSet candidates = new BitSet();
+        for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+            BasicBlock bb = this.cfg.block(b);
+            for (int i = bb.start(); i < bb.end(); i++) {
+                if (!this.out[i] && isCandidate(i, calls, stores, exiting))
+                    candidates.set(i);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                if (!moving.get(i) && readsInvariants(i, body, moving)) {
+                    moving.set(i);
+                    changed = true;
+                }
+            }
+        }
+
+        // A register goes out with all its definitions, or stays
+        changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Integer, List<Integer>> e : defs.entrySet()) {
+                int r = e.getKey();
+                List<Integer> ds = e.getValue();
+                boolean in = false;
+                for (int i : ds)
+                    in |= moving.get(i);
+                if (!in || canMove(r, ds, reads.get(r), moving, loop, exits))
+                    continue;
+                for (int i : ds)
+                    moving.clear(i);
+                changed = true;
+            }
+            for (int i = moving.nextSetBit(0); i >= 0; i = moving.nextSetBit(i + 1)) {
+                if (!readsInvariants(i, body, moving)) {
+                    moving.clear(i);
+                    changed = true;
+                }
+            }
+        }
+        return moving;
+    }
+
+    private static void record(Map<Integer, List<Integer>> map, BitSet regs, int i) {
+        for (int r = regs.nextSetBit(DefUse.FirstVirtual); r >= 0; r = regs.nextSetBit(r + 1)) {
+            List<Integer> l = map.get(r);
+            if (l == null) {
+                l = new ArrayList<Integer>();
+                map.put(r, l);
+            }
+            l.add(i);
+        }
+    }
+
+    /**
+     * Tell if an instruction may be moved, its operands aside: an operation
+     * or a load writing virtual registers, reading no machine register but the
+     * frame one
+     */
+    private boolean isCandidate(int i, boolean calls, List<Integer> stores, List<Integer> exiting) {
+        Instruction inst = this.code.get(i);
+        Opcode.Kind kind = inst.opcode().kind();
+        if (inst.isConditional() || inst.setsFlags())
+            return false;
+        boolean load = inst.opcode() == Opcode.LDR || inst.opcode() == Opcode.LDRB;
+        if (kind != Opcode.Kind.Data && !(load && inst.addressing() == Instruction.Addressing.Offset))
+            return false;
+
+        BitSet regs = new BitSet();
+        this.du.defs(inst, regs);
+        if (regs.isEmpty() || regs.nextSetBit(0) < DefUse.FirstVirtual)
+            return false;
+        regs.clear();
+        this.du.uses(inst, regs);
+        for (int r = regs.nextSetBit(0); r >= 0 && r < DefUse.FirstVirtual; r = regs.nextSetBit(r + 1)) {
+            if (r != this.base)
+                return false;
+        }
+        if (!load)
+            return true;
+
+        // Reached before the loop may be left, or from the frame
+        if (calls)
+            return false;
+        if (this.du.id(inst.operand(1)) != this.base) {
+            for (int b : exiting) {
+                if (!this.dom.dominates(this.ssa.blockOf(i), b))
+                    return false;
+            }
+        }
+        for (int s : stores) {
+            if (mayAlias(i, s))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tell if each value an instruction reads comes from outside a loop, or
+     * from an instruction moved out of it
+     */
+    private boolean readsInvariants(int i, BitSet body, BitSet moving) {
+        BitSet regs = new BitSet();
+        this.du.uses(this.code.get(i), regs);
+        for (int r = regs.nextSetBit(DefUse.FirstVirtual); r >= 0; r = regs.nextSetBit(r + 1)) {
+            int v = this.ssa.use(i, r);
+            if (v == SSA.Undefined)
+                return false;
+            if (!body.get(this.ssa.block(v)))
+                continue;
+            int j = this.ssa.instruction(v);
+            if (this.ssa.isPhi(v) || !(this.out[j] || moving.get(j)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tell if a register may be set before a loop rather than in it: all its
+     * definitions are moved, in the same block; it is not read at the head of
+     * the loop nor after it; what stays in the loop reads its last value
+     */
+    private boolean canMove(int r, List<Integer> ds, List<Integer> rs, BitSet moving, Loops.Loop loop, BitSet exits) {
+        int block = this.ssa.blockOf(ds.get(0)), last = -1;
+        for (int i : ds) {
+            if (!moving.get(i) || this.ssa.blockOf(i) != block)
+                return false;
+            last = Math.max(last, i);
+        }
+        if (this.live.liveIn(loop.header()).get(r))
+            return false;
+        for (int s = exits.nextSetBit(0); s >= 0; s = exits.nextSetBit(s + 1)) {
+            if (this.live.liveIn(s).get(r))
+                return false;
+        }
+        int value = this.ssa.def(last, r);
+        if (rs != null) {
+            for (int i : rs) {
+                if (!moving.get(i) && this.ssa.use(i, r) != value)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tell if a store may write what a load reads
+     * @param l index of the load
+     * @param s index of the store
+     */
+    private boolean mayAlias(int l, int s) {
+        Instruction load = this.code.get(l), store = this.code.get(s);
+        if (store.opcode() != Opcode.STR && store.opcode() != Opcode.STRB
+                || store.addressing() != Instruction.Addressing.Offset)
+            return true;
+
+        int lb = this.du.id(load.operand(1)), sb = this.du.id(store.operand(1));
+        boolean lf = lb == this.base, sf = sb == this.base;
+        if (!sf && !DefUse.isVirtual(sb))
+            return true;
+        if (lf != sf)
+            return this.escapes;
+        if (!lf && this.ssa.use(l, lb) != this.ssa.use(s, sb))
+            return true;
+
+        Integer lo = offset(load), so = offset(store);
+        if (lo == null || so == null)
+            return true;
+        return lo < so + size(store) && so < lo + size(load);
+    }
+
+    /**
+     * Constant offset of an access, null if it is in a register
+     */
+    private static Integer offset(Instruction inst) {
+        Object o = inst.operand(2);
+        if (o == null)
+            return 0;
+        return (o instanceof Integer ? (Integer)o : null);
+    }
+
+    private static int size(Instruction inst) {
+        return (inst.opcode() == Opcode.LDRB || inst.opcode() == Opcode.STRB ? 1 : 4);
+    }
+
+    /**
+     * Number of instructions moved out of the loops so far
+     */
+    public int moved() {
+        return this.moved;
+    }
+
+    /**
+     * Instructions moved so far
+     */
+    public String report() {
+        return this.moved + " instructions moved out of " + this.loops + " loops, "
+            + this.loads + " of them loads\n";
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Loops -- natural loops of a function and the loop depth of each block
+ *
+ * An edge going from a block to a block that comes before it in reverse
+ * postorder is a back edge (the code generator only builds reducible graphs:
+ * if and while). Its target is the header of a loop whose body is made of
+ * the blocks reaching the source of the edge without going through the
+ * header. Loops with the same header are merged.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+public class Loops {
+    /**
+     * A natural loop
+     */
+    public static class Loop {
+        private int header;
+        private BitSet body;
+        private List<Integer> latches;      // Sources of the back edges
+
+        Loop(int header) {
+            this.header = header;
+            this.body = new BitSet();
+            this.body.set(header);
+            this.latches = new ArrayList<Integer>();
+        }
+
+        public int header() {
+            return this.header;
+        }
+
+        /**
+         * Blocks of the loop, header included
+         * @return the indexes of the blocks (not to be modified)
+         */
+        public BitSet body() {
+            return this.body;
+        }
+
+        /**
+         * Blocks going back to the header
+         * @return the indexes of the blocks (not to be modified)
+         */
+        public List<Integer> latches() {
+            return this.latches;
+        }
+
+        public boolean contains(int b) {
+            return this.body.get(b);
+        }
+    }
+
+    private ControlFlowGraph cfg;
+    private List<Loop> loops;       // By header, in reverse postorder
+    private int[] depth;
+
+    /**
+     * Constructor
+     * @param cfg the graph of the function
+     */
+    public Loops(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        this.loops = new ArrayList<Loop>();
+        int n = cfg.size();
+        this.depth = new int[n];
+
+        int[] rpo = cfg.reversePostorder();
+        int[] pos = new int[n];
+        for (int b = 0; b < n; b++)
+            pos[b] = -1;
+        for (int j = 0; j < rpo.length; j++)
+            pos[rpo[j]] = j;
+
+        for (int j = 0; j < rpo.length; j++) {
+            int h = rpo[j];
+            Loop loop = null;
+
+            for (int p : cfg.predecessors(h)) {
+                if (pos[p] < j || pos[p] < 0)
+                    continue;
+                if (loop == null)
+                    loop = new Loop(h);
+                loop.latches.add(p);
+
+                // Blocks reaching the latch without going through the header
+                List<Integer> work = new ArrayList<Integer>();
+                work.add(p);
+                while (!work.isEmpty()) {
+                    int b = work.remove(work.size() - 1);
+                    if (loop.body.get(b))
+                        continue;
+                    loop.body.set(b);
+                    for (int q : cfg.predecessors(b)) {
+                        if (pos[q] >= 0)
+                            work.add(q);
+                    }
+                }
+            }
+
+            if (loop != null) {
+                this.loops.add(loop);
+                for (int b = loop.body.nextSetBit(0); b >= 0; b = loop.body.nextSetBit(b + 1))
+                    this.depth[b]++;
+            }
+        }
+    }
+
+    /**
+     * Loops of the function, outer loops before the loops they contain
+     * @return the loops (not to be modified)
+     */
+    public List<Loop> loops() {
+        return this.loops;
+    }
+
+    /**
+     * Number of loops a block is in
+     * @param b the block
+     * @return the depth, 0 outside of any loop
+     */
+    public int depth(int b) {
+        return this.depth[b];
+    }
+
+    /**
+     * Innermost loop a block is in
+     * @param b the block
+     * @return the loop, null if the block is in none
+     */
+    public Loop innermost(int b) {
+        Loop in = null;
+        for (Loop l : this.loops) {
+            if (l.contains(b) && (in == null || in.body.cardinality() > l.body.cardinality()))
+                in = l;
+        }
+        return in;
+    }
+
+    public ControlFlowGraph graph() {
+        return this.cfg;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Opcode -- operation codes of the instruction representation
+ *
+ * Real ARM operations, plus three pseudo operations: LABEL (a label
+ * definition), TEXT (verbatim text such as comments) and RAW (an instruction
+ * the representation does not know, written as it was given).
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+public enum Opcode {
+    // Data processing
+    MOV(Kind.Data), MVN(Kind.Data), MOVW(Kind.Data), MOVT(Kind.Data),
+    ADD(Kind.Data), ADC(Kind.Data), SUB(Kind.Data), RSB(Kind.Data),
+    MUL(Kind.Data), MLA(Kind.Data), MLS(Kind.Data), SMULL(Kind.Data), UMULL(Kind.Data), SMMUL(Kind.Data),
+    SDIV(Kind.Data), UDIV(Kind.Data),
+    AND(Kind.Data), ORR(Kind.Data), EOR(Kind.Data), BIC(Kind.Data),
+    LSL(Kind.Data), LSR(Kind.Data), ASR(Kind.Data), ROR(Kind.Data),
+    // Comparisons (only set the flags)
+    CMP(Kind.Compare), CMN(Kind.Compare), TST(Kind.Compare), TEQ(Kind.Compare),
+    // Memory
+    LDR(Kind.Load), LDRB(Kind.Load), STR(Kind.Store), STRB(Kind.Store),
+    LDMIA(Kind.Load), STMIA(Kind.Store), PUSH(Kind.Store), POP(Kind.Load),
+    // Control flow
+    B(Kind.Branch), BL(Kind.Call), BLX(Kind.Call), BX(Kind.Branch),
+    CBZ(Kind.Branch), CBNZ(Kind.Branch), SVC(Kind.Call), NOP(Kind.Other),
+    // Pseudo operations
+    LABEL(Kind.Pseudo), TEXT(Kind.Pseudo), RAW(Kind.Other);
+
+    public enum Kind { Data, Compare, Load, Store, Branch, Call, Other, Pseudo };
+
+    private final Kind kind;
+
+    // Real opcodes, longest mnemonics first (so that BL is tried before B)
+    private static final Opcode[] ByLength;
+
+    static {
+        Opcode[] ops = Opcode.values();
+        int n = 0;
+        for (Opcode op : ops)
+            if (op.kind != Kind.Pseudo && op != RAW)
+                ops[n++] = op;
+        ByLength = Arrays.copyOf(ops, n);
+        Arrays.sort(ByLength, new Comparator<Opcode>() {
+            public int compare(Opcode a, Opcode b) {
+                return b.name().length() - a.name().length();
+            }
+        });
+    }
+
+    private Opcode(Kind kind) {
+        this.kind = kind;
+    }
+
+    public Kind kind() {
+        return this.kind;
+    }
+
+    /**
+     * Tell if the operation accepts the S suffix
+     * @return true for data processing operations
+     */
+    public boolean canSetFlags() {
+        return this.kind == Kind.Data && this != MOVW && this != MOVT
+            && this != SDIV && this != UDIV && this != SMMUL;
+    }
+
+    /**
+     * Tell if the operation is a pseudo operation (never assembled)
+     * @return true for LABEL and TEXT
+     */
+    public boolean isPseudo() {
+        return this.kind == Kind.Pseudo;
+    }
+
+    /**
+     * Real opcodes, longest mnemonics first
+     * Note: used to decode mnemonics, so that BL is tried before B
+     * @return the opcodes (not to be modified)
+     */
+    static Opcode[] byLength() {
+        return ByLength;
+    }
+}
@@ -0,0 +1,414 @@
+/**
+ * Peephole -- rewriting of short sequences of the final code
+ *
+ * A window slides over the code of a function, once its registers are
+ * allocated, and each rule of a table is tried on the instructions in the
+ * window (the comments are skipped; the labels are not, so no rule ever
+ * matches across a join unless it asks for the label). A rule gives the
+ * instructions to put in place of the window, or nothing if it does not
+ * apply. The code is swept again until no rule applies, a rewrite making
+ * room for another one. A rule only needing the registers live after a
+ * branch asks the pass (see isDeadAfter).
+ *
+ * New rules are added to the table (Rules), or given to the constructor.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import mcs.gc.Register;
+
+public class Peephole {
+    private static final Instruction[] Nothing = new Instruction[0];
+    private static final int MaxSweeps = 4;
+
+    /**
+     * A rule: a window of instructions and the ones to put in its place
+     */
+    public static abstract class Rule {
+        private String name;
+        private int size;
+
+        /**
+         * Constructor
+         * @param name name of the rule, in the report
+         * @param size number of instructions in the window (comments excepted)
+         */
+        public Rule(String name, int size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        public String name() {
+            return this.name;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Rewrite the window; the instructions given are not to be modified
+         * @param w the instructions of the window
+         * @param p the pass, to be asked about the registers
+         * @return the instructions to put in place of the window (possibly
+         *         none), null if the rule does not apply
+         */
+        public abstract Instruction[] rewrite(Instruction[] w, Peephole p);
+    }
+
+    /**
+     * Rules of the pass, tried in this order at each place
+     */
+    public static final Rule[] Rules = {
+        // MOV r, r
+        new Rule("self move", 1) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                if (w[0].opcode() != Opcode.MOV || !isPlain(w[0]) || w[0].operand(2) != null
+                        || !sameRegister(w[0].operand(0), w[0].operand(1)))
+                    return null;
+                return Nothing;
+            }
+        },
+
+        // ADD r, s, #0 and SUB r, s, #0 (sp included)
+        new Rule("add zero", 1) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                Opcode op = w[0].opcode();
+                if ((op != Opcode.ADD && op != Opcode.SUB) || !isPlain(w[0])
+                        || !Integer.valueOf(0).equals(w[0].operand(2)) || w[0].operand(3) != null
+                        || !w[0].isRegister(1))
+                    return null;
+                if (sameRegister(w[0].operand(0), w[0].operand(1)))
+                    return Nothing;
+                return new Instruction[] { new Instruction(Opcode.MOV, w[0].operand(0), w[0].operand(1)) };
+            }
+        },
+
+        // B L; L:
+        new Rule("branch to next", 2) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                if (w[0].opcode() != Opcode.B || w[0].cond() != Cond.AL || w[0].target() == null
+                        || !w[1].isLabel() || !w[0].target().equals(w[1].text()))
+                    return null;
+                return new Instruction[] { w[1] };
+            }
+        },
+
+        // STR r, [b, #d]; LDR s, [b, #d]
+        new Rule("store reload", 2) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                if (w[0].opcode() != Opcode.STR || w[1].opcode() != Opcode.LDR || !sameAddress(w[0], w[1]))
+                    return null;
+                return copyAfter(w[0], w[0].operand(0), w[1].operand(0));
+            }
+        },
+
+        // LDR r, [b, #d]; LDR s, [b, #d], r being neither b nor d
+        new Rule("double load", 2) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                if (w[0].opcode() != Opcode.LDR || w[1].opcode() != Opcode.LDR || !sameAddress(w[0], w[1])
+                        || sameRegister(w[0].operand(0), w[0].operand(1))
+                        || sameRegister(w[0].operand(0), w[0].operand(2)))
+                    return null;
+                return copyAfter(w[0], w[0].operand(0), w[1].operand(0));
+            }
+        },
+
+        // MOV a, b; MOV b, a
+        new Rule("move back", 2) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                if (!isCopy(w[0]) || !isCopy(w[1])
+                        || !sameRegister(w[0].operand(0), w[1].operand(1))
+                        || !sameRegister(w[0].operand(1), w[1].operand(0)))
+                    return null;
+                return new Instruction[] { w[0] };
+            }
+        },
+
+        // LDR r, [b, #d]; MOV r, #1: the first result is never read
+        new Rule("overwritten", 2) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                if (!isPure(w[0]) || !isPure(w[1]) || !sameRegister(w[0].operand(0), w[1].operand(0))
+                        || p.reads(w[1], (Register)w[0].operand(0)))
+                    return null;
+                return new Instruction[] { w[1] };
+            }
+        },
+
+        // MOV r, #0; CMP a, b; MOVcc r, #1; CBZ r, L  =>  CMP a, b; B!cc L
+        new Rule("compare and branch", 4) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                Object r = w[0].operand(0);
+                if (!isLoad(w[0], 0) || w[0].opcode() != Opcode.MOV
+                        || w[1].opcode().kind() != Opcode.Kind.Compare || w[1].cond() != Cond.AL
+                        || sameRegister(r, w[1].operand(0)) || sameRegister(r, w[1].operand(1))
+                        || w[2].cond() == Cond.AL || !isLoad(w[2], 1) || !sameRegister(r, w[2].operand(0))
+                        || !isTest(w[3], r) || !p.isDeadAfter(w[3], (Register)r))
+                    return null;
+                Cond cc = (w[3].opcode() == Opcode.CBZ ? w[2].cond().invert() : w[2].cond());
+                return new Instruction[] { w[1], new Instruction(Opcode.B, cc, w[3].target(), null, null) };
+            }
+        },
+
+        // ANDS r, a, b; MOVNE r, #1; CBZ r, L  =>  ANDS r, a, b; BEQ L
+        new Rule("flags and branch", 3) {
+            public Instruction[] rewrite(Instruction[] w, Peephole p) {
+                Object r = w[0].operand(0);
+                if (w[0].opcode().kind() != Opcode.Kind.Data || !w[0].setsFlags() || w[0].cond() != Cond.AL
+                        || w[1].cond() != Cond.NE || !isLoad(w[1], 1) || !sameRegister(r, w[1].operand(0))
+                        || !isTest(w[2], r) || !p.isDeadAfter(w[2], (Register)r))
+                    return null;
+                Cond cc = (w[2].opcode() == Opcode.CBZ ? Cond.EQ : Cond.NE);
+                return new Instruction[] { w[0], new Instruction(Opcode.B, cc, w[2].target(), null, null) };
+            }
+        },
+    };
+
+    private Rule[] rules;
+    private DefUse du;
+    private BitSet exitLive;
+    private int[] counts;
+
+    // Registers live at the branches of the code being swept, computed when first asked
+    private InstructionList code;
+    private Liveness live;
+    private Map<Instruction, Integer> branches;
+
+    /**
+     * Constructor, with the rules of the table
+     * @param du registers of each instruction
+     * @param exitLive registers live when a function returns
+     */
+    public Peephole(DefUse du, BitSet exitLive) {
+        this(Rules, du, exitLive);
+    }
+
+    /**
+     * Constructor
+     * @param rules the rules, tried in this order
+     * @param du registers of each instruction
+     * @param exitLive registers live when a function returns
+     */
+    public Peephole(Rule[] rules, DefUse du, BitSet exitLive) {
+        this.rules = rules;
+        this.du = du;
+        this.exitLive = exitLive;
+        this.counts = new int[rules.length];
+    }
+
+    /**
+     * Rewrite the code of a function
+     * @param code the code, not modified
+     * @return the new code
+     */
+    public InstructionList run(InstructionList code) {
+        for (int sweep = 0; sweep < MaxSweeps; sweep++) {
+            InstructionList out = new InstructionList(code.size());
+            boolean changed = false;
+            this.code = code;
+            this.live = null;
+
+            int i = 0;
+            while (i < code.size()) {
+                Instruction inst = code.get(i);
+                int next = (inst.isText() ? -1 : tryRules(code, i, out));
+                if (next < 0) {
+                    out.add(inst);
+                    i++;
+                } else {
+                    changed = true;
+                    i = next;
+                }
+            }
+
+            code = out;
+            if (!changed)
+                break;
+        }
+        this.code = null;
+        this.live = null;
+        this.branches = null;
+        return code;
+    }
+
+    /**
+     * Try the rules at one place of the code
+     * @return the index following the window rewritten, -1 if no rule applies
+     */
+    private int tryRules(InstructionList code, int i, InstructionList out) {
+        for (int k = 0; k < this.rules.length; k++) {
+            Rule rule = this.rules[k];
+            Instruction[] w = new Instruction[rule.size()];
+            int j = i, n = 0;
+            for (; j < code.size() && n < w.length; j++) {
+                if (!code.get(j).isText())
+                    w[n++] = code.get(j);
+            }
+            if (n < w.length)
+                continue;
+
+            Instruction[] by = rule.rewrite(w, this);
+            if (by == null)
+                continue;
+
+            this.counts[k]++;
+            for (Instruction inst : by)
+                out.add(inst);
+            // The comments of the window follow what replaces it
+            for (int t = i + 1; t < j; t++) {
+                if (code.get(t).isText())
+                    out.add(code.get(t));
+            }
+            return j;
+        }
+        return -1;
+    }
+
+    /**
+     * Tell if a register is dead once a branch is passed, whether it is
+     * taken or not
+     * @param branch the branch, in the window
+     * @param r the register
+     * @return true if it is not read before being written again
+     */
+    public boolean isDeadAfter(Instruction branch, Register r) {
+        if (this.live == null) {
+            ControlFlowGraph cfg = new ControlFlowGraph(this.code);
+            this.live = new Liveness(cfg, this.du, this.exitLive).solve();
+            this.branches = new IdentityHashMap<Instruction, Integer>();
+            for (BasicBlock b : cfg.blocks()) {
+                if (b.last() != null)
+                    this.branches.put(b.last(), b.index());
+            }
+        }
+        Integer b = this.branches.get(branch);
+        return b != null && branch.endsBlock() && !this.live.liveOut(b).get(DefUse.id(r));
+    }
+
+    /**
+     * Tell if an instruction reads a register
+     * @param inst the instruction
+     * @param r the register
+     * @return true if it does
+     */
+    public boolean reads(Instruction inst, Register r) {
+        BitSet u = new BitSet();
+        this.du.uses(inst, u);
+        return u.get(DefUse.id(r));
+    }
+
+    /**
+     * Number of rewrites made by a rule so far
+     * @param name name of the rule
+     * @return the number, 0 if no rule has this name
+     */
+    public int count(String name) {
+        for (int k = 0; k < this.rules.length; k++) {
+            if (this.rules[k].name().equals(name))
+                return this.counts[k];
+        }
+        return 0;
+    }
+
+    /**
+     * Number of rewrites made by all the rules so far
+     */
+    public int total() {
+        int t = 0;
+        for (int c : this.counts)
+            t += c;
+        return t;
+    }
+
+    /**
+     * Rewrites made by each rule so far
+     */
+    public String report() {
+        String r = total() + " rewrites\n";
+        for (int k = 0; k < this.rules.length; k++)
+            r += "  " + this.rules[k].name() + ": " + this.counts[k] + "\n";
+        return r;
+    }
+
+    /**********************************************************
+     * Matching helpers
+     **********************************************************/
+    /**
+     * Unconditional, without setting the flags
+     */
+    private static boolean isPlain(Instruction inst) {
+        return inst.cond() == Cond.AL && !inst.setsFlags();
+    }
+
+    private static boolean sameRegister(Object a, Object b) {
+        return a instanceof Register && b instanceof Register
+            && DefUse.id((Register)a) == DefUse.id((Register)b);
+    }
+
+    /**
+     * MOV r, s, unconditional
+     */
+    private static boolean isCopy(Instruction inst) {
+        return inst.opcode() == Opcode.MOV && isPlain(inst) && inst.isRegister(0) && inst.isRegister(1)
+            && inst.operand(2) == null;
+    }
+
+    /**
+     * Writes its first register and does nothing else: an unconditional
+     * data processing instruction (MOVT excepted, as it keeps half of the
+     * register) or a load without writeback
+     */
+    private static boolean isPure(Instruction inst) {
+        Opcode op = inst.opcode();
+        if (!isPlain(inst) || !inst.isRegister(0) || op == Opcode.MOVT
+                || op == Opcode.SMULL || op == Opcode.UMULL)
+            return false;
+        if (op == Opcode.LDR || op == Opcode.LDRB)
+            return inst.addressing() == Instruction.Addressing.Offset || inst.addressing() == Instruction.Addressing.None;
+        return op.kind() == Opcode.Kind.Data;
+    }
+
+    /**
+     * MOV r, #c (with any condition), without setting the flags
+     */
+    private static boolean isLoad(Instruction inst, int c) {
+        return inst.opcode() == Opcode.MOV && !inst.setsFlags() && inst.isRegister(0)
+            && Integer.valueOf(c).equals(inst.operand(1)) && inst.operand(2) == null;
+    }
+
+    /**
+     * CBZ r, L or CBNZ r, L
+     */
+    private static boolean isTest(Instruction inst, Object r) {
+        return (inst.opcode() == Opcode.CBZ || inst.opcode() == Opcode.CBNZ)
+            && sameRegister(r, inst.operand(0)) && inst.target() != null;
+    }
+
+    /**
+     * Two unconditional word accesses to the same register plus offset
+     */
+    private static boolean sameAddress(Instruction a, Instruction b) {
+        if (!isPlain(a) || !isPlain(b)
+                || a.addressing() != Instruction.Addressing.Offset || b.addressing() != Instruction.Addressing.Offset
+                || a.operand(3) != null || b.operand(3) != null
+                || !sameRegister(a.operand(1), b.operand(1)))
+            return false;
+        Object d = a.operand(2), e = b.operand(2);
+        return (d == null && e == null) || sameRegister(d, e)
+            || (d instanceof Integer && d.equals(e));
+    }
+
+    /**
+     * The first access, then the copy of its register to the one of the
+     * second access (if not the same)
+     */
+    private static Instruction[] copyAfter(Instruction first, Object from, Object to) {
+        if (sameRegister(from, to))
+            return new Instruction[] { first };
+        return new Instruction[] { first, new Instruction(Opcode.MOV, to, from) };
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Printer -- write instructions as ARM assembly text
+ *
+ * This is the only place where the text of an instruction is produced; the
+ * code generator only builds instructions.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.io.IOException;
+import java.util.List;
+
+public class Printer {
+    public static final String Prefix = "\t\t", Spacing = "\t\t";  // For a nice code
+
+    /**
+     * Write an instruction
+     * @param inst the instruction
+     * @param out where to write
+     */
+    public static void print(Instruction inst, Appendable out) throws IOException {
+        switch (inst.opcode()) {
+            case LABEL:
+                out.append(inst.text()).append(":\n");
+                return;
+            case TEXT:
+                out.append(inst.text());
+                return;
+            default:
+        }
+
+        out.append(Prefix).append(inst.mnemonic());
+
+        Instruction.Addressing mode = inst.addressing();
+        boolean first = true, inside = false;
+        int n = inst.operandCount();
+
+        for (int k = 0; k < n; k++) {
+            Object o = inst.operand(k);
+            if (o == null)
+                continue;
+
+            if (first) {
+                out.append(Spacing);
+                first = false;
+            } else if (inside) {
+                out.append(", ");
+            } else {
+                out.append(",").append(Spacing);
+            }
+
+            if (k == 1 && mode != Instruction.Addressing.None && mode != Instruction.Addressing.Writeback) {
+                out.append("[");
+                inside = true;
+            }
+
+            printOperand(o, out);
+
+            if (k == 0 && mode == Instruction.Addressing.Writeback)
+                out.append("!");
+
+            if (k == 1 && mode == Instruction.Addressing.PostIndex) {
+                out.append("]");
+                inside = false;
+            }
+        }
+
+        if (inside) {
+            out.append("]");
+            if (mode == Instruction.Addressing.PreIndex)
+                out.append("!");
+        }
+
+        out.append("\n");
+    }
+
+    /**
+     * Write an operand
+     * @param o the operand
+     * @param out where to write
+     */
+    public static void printOperand(Object o, Appendable out) throws IOException {
+        if (o instanceof Integer) {
+            out.append("$").append(o.toString());
+        } else if (o instanceof List) {
+            // Register list
+            boolean first = true;
+            out.append("{");
+            for (Object r : (List<?>)o) {
+                if (!first)
+                    out.append(", ");
+                out.append(String.valueOf(r));
+                first = false;
+            }
+            out.append("}");
+        } else {
+            out.append(String.valueOf(o));
+        }
+    }
+
+    /**
+     * Get the text of an instruction
+     * @param inst the instruction
+     * @return the text
+     */
+    public static String toString(Instruction inst) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            print(inst, sb);
+        } catch (IOException e) {
+            // A StringBuilder never throws
+        }
+        return sb.toString();
+    }
+}
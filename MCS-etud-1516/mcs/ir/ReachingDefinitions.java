@@ -0,0 +1,313 @@
+/**
+ * ReachingDefinitions -- definitions that may reach each block
+ *
+ * Forward "may" problem. Only the definitions that can leave their block are
+ * numbered: the last definition of each register in each block. The others
+ * are overwritten before the end of their block, so they never reach another
+ * block; within a block they are found by going through it.
+ *
+ * The sets are factored: a value gives, for each register, a single number
+ * which is either a definition or a merge. A merge is created where several
+ * definitions of a register meet: at the beginning of a block (a join) or at
+ * the end of a block with a conditional definition. A value is then never
+ * larger than the number of registers, and a set of definitions is only
+ * built when asked for (see reaching). Plain sets of definitions grow with
+ * the number of definitions going through a block, which makes the
+ * analysis quadratic on long functions.
+ *
+ * When the liveness of the function is given, a register is dropped from a
+ * value as soon as it is dead: its definitions can not reach any read any
+ * more.
+ *
+ * A value is a sorted array of pairs: register, definition or merge.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+public class ReachingDefinitions extends Dataflow<int[]> {
+    private static final int[] None = new int[0];
+
+    private int[] defInst, defReg;      // Instruction and register of each definition
+    private int ndefs;
+    private List<int[]> merges;         // Block, register and kind (join or not) of each merge
+    private Map<Long, Integer> mergeIds;
+    private int[][] gen;                // Register => definition or merge leaving each block
+    private List<List<Integer>> exposed;// Definitions leaving each block
+    private BitSet[] kill;              // Registers surely written by each block
+    private Liveness live;
+
+    /**
+     * Constructor
+     * @param cfg the graph of the function
+     * @param du registers of each instruction
+     */
+    public ReachingDefinitions(ControlFlowGraph cfg, DefUse du) {
+        this(cfg, du, null);
+    }
+
+    /**
+     * Constructor
+     * @param cfg the graph of the function
+     * @param du registers of each instruction
+     * @param live liveness of the function, to keep only the definitions of
+     *             live registers (may be null)
+     */
+    public ReachingDefinitions(ControlFlowGraph cfg, DefUse du, Liveness live) {
+        super(cfg, true);
+        this.live = live;
+
+        int n = cfg.size();
+        this.defInst = new int[16];
+        this.defReg = new int[16];
+        this.ndefs = 0;
+        this.merges = new ArrayList<int[]>();
+        this.mergeIds = new HashMap<Long, Integer>();
+        this.gen = new int[n][];
+        this.exposed = new ArrayList<List<Integer>>(n);
+        this.kill = new BitSet[n];
+
+        BitSet d = new BitSet(), k = new BitSet();
+        for (BasicBlock b : cfg.blocks()) {
+            BitSet written = new BitSet(), sure = new BitSet();
+            List<Integer> ex = new ArrayList<Integer>();
+
+            // Going backward, the first definition met is the last one of the block
+            for (int i = b.end() - 1; i >= b.start(); i--) {
+                Instruction inst = cfg.code().get(i);
+                d.clear();
+                k.clear();
+                du.defs(inst, d);
+                du.sureDefs(cfg.code(), i, k);
+                sure.or(k);
+
+                for (int r = d.nextSetBit(0); r >= 0; r = d.nextSetBit(r + 1)) {
+                    if (written.get(r))
+                        continue;
+                    ex.add(newDefinition(i, r));
+                    // A conditional definition lets the previous one through
+                    if (k.get(r))
+                        written.set(r);
+                }
+            }
+
+            // What leaves the block for each register it writes: the
+            // definition, or a merge if it may not be the only one
+            Map<Integer, Integer> out = new HashMap<Integer, Integer>();
+            for (int e : ex) {
+                int r = this.defReg[e];
+                if (out.containsKey(r) || !sure.get(r))
+                    out.put(r, merge(b.index(), r, false));
+                else
+                    out.put(r, e);
+            }
+            int[] g = new int[2 * out.size()];
+            int j = 0;
+            for (int r : new TreeSet<Integer>(out.keySet())) {
+                g[j++] = r;
+                g[j++] = out.get(r);
+            }
+
+            this.gen[b.index()] = g;
+            this.exposed.add(ex);
+            this.kill[b.index()] = sure;
+        }
+    }
+
+    private int newDefinition(int inst, int reg) {
+        if (this.ndefs == this.defInst.length) {
+            this.defInst = Arrays.copyOf(this.defInst, this.ndefs * 2);
+            this.defReg = Arrays.copyOf(this.defReg, this.ndefs * 2);
+        }
+        this.defInst[this.ndefs] = inst;
+        this.defReg[this.ndefs] = reg;
+        return this.ndefs++;
+    }
+
+    /**
+     * Merge of the definitions of a register, created if needed
+     * Note: merges are numbered after the definitions, which all exist once
+     * the constructor is done
+     * @param b the block
+     * @param r the register
+     * @param join true for the beginning of the block, false for its end
+     * @return the number of the merge
+     */
+    private int merge(int b, int r, boolean join) {
+        long key = (((long)b << 32) | r) * 2 + (join ? 1 : 0);
+        Integer m = this.mergeIds.get(key);
+        if (m == null) {
+            m = this.merges.size();
+            this.merges.add(new int[] { b, r, (join ? 1 : 0) });
+            this.mergeIds.put(key, m);
+        }
+        return -2 - m;      // Negative, to be told apart from the definitions
+    }
+
+    @Override
+    protected int[] initial() {
+        return None;
+    }
+
+    @Override
+    protected int[] boundary() {
+        return None;
+    }
+
+    @Override
+    protected int[] meet(int b, int[] x, int[] y) {
+        int[] m = new int[x.length + y.length];
+        int i = 0, j = 0, n = 0;
+        while (i < x.length || j < y.length) {
+            if (j == y.length || (i < x.length && x[i] < y[j])) {
+                m[n++] = x[i++];
+                m[n++] = x[i++];
+            } else if (i == x.length || y[j] < x[i]) {
+                m[n++] = y[j++];
+                m[n++] = y[j++];
+            } else {
+                m[n++] = x[i];
+                m[n++] = (x[i + 1] == y[j + 1] ? x[i + 1] : merge(b, x[i], true));
+                i += 2;
+                j += 2;
+            }
+        }
+        return (n == m.length ? m : Arrays.copyOf(m, n));
+    }
+
+    @Override
+    protected int[] transfer(int b, int[] from) {
+        BitSet k = this.kill[b];
+        BitSet l = (this.live != null ? this.live.liveOut(b) : null);
+        int[] g = this.gen[b];
+        int[] to = new int[from.length + g.length];
+        int i = 0, j = 0, n = 0;
+
+        while (i < from.length || j < g.length) {
+            int r, v;
+            if (j == g.length || (i < from.length && from[i] < g[j])) {
+                r = from[i];
+                v = from[i + 1];
+                i += 2;
+                if (k.get(r))
+                    continue;
+            } else {
+                r = g[j];
+                v = g[j + 1];
+                j += 2;
+                if (i < from.length && from[i] == r)
+                    i += 2;
+            }
+
+            if (l == null || l.get(r)) {
+                to[n++] = r;
+                to[n++] = v;
+            }
+        }
+
+        return (n == to.length ? to : Arrays.copyOf(to, n));
+    }
+
+    @Override
+    protected boolean same(int[] a, int[] b) {
+        return Arrays.equals(a, b);
+    }
+
+    @Override
+    public ReachingDefinitions solve() {
+        super.solve();
+        return this;
+    }
+
+    /**
+     * Number of definitions that may leave their block
+     * @return the number of definitions
+     */
+    public int count() {
+        return this.ndefs;
+    }
+
+    /**
+     * Number of merges created
+     * @return the number of merges
+     */
+    public int merges() {
+        return this.merges.size();
+    }
+
+    /**
+     * Instruction of a definition
+     * @param d the definition
+     * @return the index of the instruction in the function
+     */
+    public int instruction(int d) {
+        return this.defInst[d];
+    }
+
+    /**
+     * Register of a definition
+     * @param d the definition
+     * @return the number of the register
+     */
+    public int register(int d) {
+        return this.defReg[d];
+    }
+
+    /**
+     * Value of a register in a value
+     * @return the definition or merge, -1 if there is none
+     */
+    private static int lookup(int[] value, int r) {
+        for (int i = 0; i < value.length; i += 2) {
+            if (value[i] == r)
+                return value[i + 1];
+        }
+        return -1;
+    }
+
+    /**
+     * Definitions of a register that may reach the beginning of a block
+     * @param b the block
+     * @param reg the register
+     * @return the indexes of the instructions, in order
+     */
+    public List<Integer> reaching(int b, int reg) {
+        TreeSet<Integer> insts = new TreeSet<Integer>();
+        BitSet seen = new BitSet();
+        List<Integer> work = new ArrayList<Integer>();
+        work.add(lookup(in(b), reg));
+
+        while (!work.isEmpty()) {
+            int v = work.remove(work.size() - 1);
+            if (v >= 0) {
+                insts.add(this.defInst[v]);
+            } else if (v < -1 && !seen.get(-2 - v)) {
+                seen.set(-2 - v);
+                int[] m = this.merges.get(-2 - v);
+                if (m[2] == 1) {
+                    // Join: what comes from each predecessor
+                    for (int p : this.cfg.predecessors(m[0]))
+                        work.add(lookup(out(p), reg));
+                } else {
+                    // End of a block: its definitions, and what comes in if it may go through
+                    for (int e : this.exposed.get(m[0])) {
+                        if (this.defReg[e] == reg)
+                            work.add(e);
+                    }
+                    if (!this.kill[m[0]].get(reg))
+                        work.add(lookup(in(m[0]), reg));
+                }
+            }
+        }
+
+        return new ArrayList<Integer>(insts);
+    }
+}
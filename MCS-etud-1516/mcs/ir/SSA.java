@@ -0,0 +1,560 @@
+/**
+ * SSA -- static single assignment view of a function
+ *
+ * The instructions are not rewritten: each definition of a virtual register
+ * is given a number, a value, and each read of a virtual register is bound
+ * to the value it sees. Where several values of a register meet (at the end
+ * of an if-then-else, at the head of a while loop) a phi value is placed:
+ * it has one argument per predecessor of its block, in the order of
+ * ControlFlowGraph.predecessors. Machine registers are not followed: until
+ * the register allocation they only carry the words of the calls and the
+ * results.
+ *
+ * Phis are placed at the iterated dominance frontier of the blocks defining
+ * a register, for the registers read in a block before being written in it
+ * (semi-pruned form); the values are then bound by a walk of the dominator
+ * tree. Both steps are linear in the size of the function on the graphs of
+ * the generated code.
+ *
+ * A conditional instruction (MOVLT v1, #1) may leave its register unchanged:
+ * it also reads the value it replaces (see previous). The value Undefined
+ * (0) is the one read before any definition, or from an unreachable block.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import mcs.gc.Register;
+
+public class SSA {
+    public static final int Undefined = 0;
+
+    private static final int[] None = new int[0];
+
+    /**
+     * Growable list of numbers
+     */
+    private static class Ints {
+        int[] a = new int[4];
+        int n = 0;
+
+        void add(int x) {
+            if (this.n == this.a.length)
+                this.a = Arrays.copyOf(this.a, 2 * this.n);
+            this.a[this.n++] = x;
+        }
+
+        int[] toArray() {
+            return (this.n == 0 ? None : Arrays.copyOf(this.a, this.n));
+        }
+    }
+
+    private ControlFlowGraph cfg;
+    private Dominators dom;
+    private InstructionList code;
+    private int[] block;                    // Block of each instruction
+    private int[][] useRegs, useValues;     // Virtual registers read by each instruction, and their values
+    private int[][] defRegs, defValues;     // Virtual registers written by each instruction, and their values
+    private int[][] previous;               // Values replaced by a conditional instruction
+    private int[] valueReg, valueInst, valueBlock;
+    private int[][] phis;                   // Phi values of each block
+    private int[][] arguments;              // Arguments of each phi value (indexed by value - firstPhi)
+    private int firstPhi;
+    private int[][] users, phiUsers;        // Instructions and phis reading each value
+    private long time;
+
+    /**
+     * Constructor
+     * @param cfg graph of the function
+     * @param dom dominators of the graph
+     * @param defuse registers read and written by the instructions
+     */
+    public SSA(ControlFlowGraph cfg, Dominators dom, DefUse defuse) {
+        long start = System.nanoTime();
+        this.cfg = cfg;
+        this.dom = dom;
+        this.code = cfg.code();
+        int n = this.code.size(), nb = cfg.size();
+
+        // Registers of the instructions, each definition getting its value
+        this.block = new int[n];
+        this.useRegs = new int[n][];
+        this.useValues = new int[n][];
+        this.defRegs = new int[n][];
+        this.defValues = new int[n][];
+        this.previous = new int[n][];
+        Map<Integer, Integer> dense = new HashMap<Integer, Integer>();
+        Ints regs = new Ints();
+        // The registers of an instruction are found among its operands: the
+        // set is never scanned, and a bit above all the registers keeps it
+        // from being shrunk, so that clearing a bit takes constant time
+        BitSet set = new BitSet();
+        int top = 0;
+        for (Instruction inst : this.code)
+            top = Math.max(top, highest(inst));
+        set.set(top + 1);
+        int values = 1;
+        for (BasicBlock b : cfg.blocks()) {
+            for (int i = b.start(); i < b.end(); i++) {
+                Instruction inst = this.code.get(i);
+                this.block[i] = b.index();
+                defuse.uses(inst, set);
+                this.useRegs[i] = virtuals(inst, set, dense, regs);
+                this.useValues[i] = new int[this.useRegs[i].length];
+                defuse.defs(inst, set);
+                this.defRegs[i] = virtuals(inst, set, dense, regs);
+                this.defValues[i] = new int[this.defRegs[i].length];
+                for (int k = 0; k < this.defValues[i].length; k++)
+                    this.defValues[i][k] = values++;
+                if (inst.isConditional() && this.defRegs[i].length > 0)
+                    this.previous[i] = new int[this.defRegs[i].length];
+            }
+        }
+        int nr = regs.n;
+
+        // Blocks defining each register, and registers read before written
+        // in a block
+        Ints[] defBlocks = new Ints[nr];
+        int[] last = new int[nr];
+        boolean[] global = new boolean[nr];
+        for (int r = 0; r < nr; r++)
+            last[r] = -1;
+        for (BasicBlock b : cfg.blocks()) {
+            if (!dom.isReachable(b.index()))
+                continue;
+            for (int i = b.start(); i < b.end(); i++) {
+                for (int r : this.useRegs[i])
+                    global[r] |= last[r] != b.index();
+                if (this.previous[i] != null) {
+                    for (int r : this.defRegs[i])
+                        global[r] |= last[r] != b.index();
+                }
+                for (int r : this.defRegs[i]) {
+                    if (last[r] != b.index()) {
+                        if (defBlocks[r] == null)
+                            defBlocks[r] = new Ints();
+                        defBlocks[r].add(b.index());
+                        last[r] = b.index();
+                    }
+                }
+            }
+        }
+
+        // Phis, at the iterated dominance frontier of the definitions
+        Ints[] blockPhis = new Ints[nb];
+        Ints phiRegs = new Ints(), phiBlocks = new Ints();
+        int[] placed = new int[nb], queued = new int[nb];
+        int[] work = new int[nb];
+        this.firstPhi = values;
+        for (int r = 0; r < nr; r++) {
+            if (!global[r] || defBlocks[r] == null)
+                continue;
+            int sp = 0;
+            for (int k = 0; k < defBlocks[r].n; k++) {
+                int b = defBlocks[r].a[k];
+                queued[b] = r + 1;
+                work[sp++] = b;
+            }
+            while (sp > 0) {
+                int b = work[--sp];
+                for (int f : dom.frontier(b)) {
+                    if (placed[f] == r + 1)
+                        continue;
+                    placed[f] = r + 1;
+                    if (blockPhis[f] == null)
+                        blockPhis[f] = new Ints();
+                    blockPhis[f].add(values++);
+                    phiRegs.add(r);
+                    phiBlocks.add(f);
+                    if (queued[f] != r + 1) {
+                        queued[f] = r + 1;
+                        work[sp++] = f;
+                    }
+                }
+            }
+        }
+
+        // Values
+        this.valueReg = new int[values];
+        this.valueInst = new int[values];
+        this.valueBlock = new int[values];
+        this.valueReg[Undefined] = -1;
+        this.valueInst[Undefined] = -1;
+        this.valueBlock[Undefined] = -1;
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < this.defValues[i].length; k++) {
+                int v = this.defValues[i][k];
+                this.valueReg[v] = regs.a[this.defRegs[i][k]];
+                this.valueInst[v] = i;
+                this.valueBlock[v] = this.block[i];
+            }
+        }
+        this.phis = new int[nb][];
+        for (int b = 0; b < nb; b++)
+            this.phis[b] = (blockPhis[b] == null ? None : blockPhis[b].toArray());
+        this.arguments = new int[values - this.firstPhi][];
+        for (int p = this.firstPhi; p < values; p++) {
+            this.valueReg[p] = regs.a[phiRegs.a[p - this.firstPhi]];
+            this.valueInst[p] = -1;
+            this.valueBlock[p] = phiBlocks.a[p - this.firstPhi];
+            this.arguments[p - this.firstPhi] = new int[cfg.predecessors(this.valueBlock[p]).length];
+        }
+
+        rename(phiRegs, nr);
+
+        // Registers are given back their number
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < this.useRegs[i].length; k++)
+                this.useRegs[i][k] = regs.a[this.useRegs[i][k]];
+            for (int k = 0; k < this.defRegs[i].length; k++)
+                this.defRegs[i][k] = regs.a[this.defRegs[i][k]];
+        }
+
+        buildUsers();
+        this.time = System.nanoTime() - start;
+    }
+
+    /**
+     * Virtual registers of an instruction that are in a set, by their dense
+     * number; the set is cleared
+     */
+    private static int[] virtuals(Instruction inst, BitSet set, Map<Integer, Integer> dense, Ints regs) {
+        Ints found = new Ints();
+        for (int k = 0; k < 4; k++)
+            collect(inst.operand(k), set, found);
+        collect(inst.arguments(), set, found);
+        set.clear(0, DefUse.FirstVirtual);
+        if (found.n == 0)
+            return None;
+
+        int[] r = new int[found.n];
+        for (int k = 0; k < found.n; k++) {
+            Integer d = dense.get(found.a[k]);
+            if (d == null) {
+                d = regs.n;
+                dense.put(found.a[k], d);
+                regs.add(found.a[k]);
+            }
+            r[k] = d;
+        }
+        return r;
+    }
+
+    private static void collect(Object o, BitSet set, Ints found) {
+        if (o instanceof List) {
+            for (Object x : (List<?>)o)
+                collect(x, set, found);
+        } else if (o instanceof Register) {
+            int id = DefUse.id((Register)o);
+            if (DefUse.isVirtual(id) && set.get(id)) {
+                set.clear(id);
+                found.add(id);
+            }
+        }
+    }
+
+    /**
+     * Highest register number in the operands of an instruction
+     */
+    private static int highest(Instruction inst) {
+        int h = DefUse.FirstVirtual;
+        for (int k = 0; k < 5; k++) {
+            Object o = (k < 4 ? inst.operand(k) : inst.arguments());
+            if (o instanceof List) {
+                for (Object x : (List<?>)o) {
+                    if (x instanceof Register)
+                        h = Math.max(h, DefUse.id((Register)x));
+                }
+            } else if (o instanceof Register) {
+                h = Math.max(h, DefUse.id((Register)o));
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Bind the values read: walk of the dominator tree, with the current
+     * value of each register, the values replaced being undone on the way
+     * back (explicit stacks)
+     */
+    private void rename(Ints phiRegs, int nr) {
+        int nb = this.cfg.size();
+        int[] rpo = this.cfg.reversePostorder();
+        if (rpo.length == 0)
+            return;
+
+        int[] current = new int[nr];
+        Ints undo = new Ints();             // Register, value replaced
+        int[] mark = new int[nb];
+        Ints stack = new Ints();
+        stack.add(rpo[0]);
+        while (stack.n > 0) {
+            int b = stack.a[--stack.n];
+            if (b < 0) {
+                // Leaving the block
+                b = -b - 1;
+                while (undo.n > mark[b]) {
+                    undo.n -= 2;
+                    current[undo.a[undo.n]] = undo.a[undo.n + 1];
+                }
+                continue;
+            }
+
+            mark[b] = undo.n;
+            for (int p : this.phis[b]) {
+                int r = phiRegs.a[p - this.firstPhi];
+                undo.add(r);
+                undo.add(current[r]);
+                current[r] = p;
+            }
+            BasicBlock bb = this.cfg.block(b);
+            for (int i = bb.start(); i < bb.end(); i++) {
+                for (int k = 0; k < this.useRegs[i].length; k++)
+                    this.useValues[i][k] = current[this.useRegs[i][k]];
+                for (int k = 0; k < this.defRegs[i].length; k++) {
+                    int r = this.defRegs[i][k];
+                    if (this.previous[i] != null)
+                        this.previous[i][k] = current[r];
+                    undo.add(r);
+                    undo.add(current[r]);
+                    current[r] = this.defValues[i][k];
+                }
+            }
+            for (int s : this.cfg.successors(b)) {
+                int[] preds = this.cfg.predecessors(s);
+                int j = 0;
+                while (preds[j] != b)
+                    j++;
+                for (int p : this.phis[s])
+                    this.arguments[p - this.firstPhi][j] = current[phiRegs.a[p - this.firstPhi]];
+            }
+
+            stack.add(-b - 1);
+            int[] children = this.dom.children(b);
+            for (int k = children.length - 1; k >= 0; k--)
+                stack.add(children[k]);
+        }
+    }
+
+    /**
+     * Instructions and phis reading each value: counted first, then put in
+     * one array per value
+     */
+    private void buildUsers() {
+        int values = this.valueReg.length;
+        int[] count = new int[values], phiCount = new int[values];
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1) {
+                this.users = new int[values][];
+                this.phiUsers = new int[values][];
+                for (int v = 0; v < values; v++) {
+                    this.users[v] = (count[v] == 0 ? None : new int[count[v]]);
+                    this.phiUsers[v] = (phiCount[v] == 0 ? None : new int[phiCount[v]]);
+                    count[v] = 0;
+                    phiCount[v] = 0;
+                }
+            }
+            for (int i = 0; i < this.code.size(); i++) {
+                if (!this.dom.isReachable(this.block[i]))
+                    continue;
+                for (int v : this.useValues[i])
+                    add(this.users, count, v, i, pass);
+                if (this.previous[i] != null) {
+                    for (int v : this.previous[i])
+                        add(this.users, count, v, i, pass);
+                }
+            }
+            for (int p = this.firstPhi; p < values; p++) {
+                for (int v : this.arguments[p - this.firstPhi])
+                    add(this.phiUsers, phiCount, v, p, pass);
+            }
+        }
+    }
+
+    private static void add(int[][] lists, int[] count, int v, int x, int pass) {
+        if (pass == 1)
+            lists[v][count[v]] = x;
+        count[v]++;
+    }
+
+    /**********************************************************
+     * Accessors
+     **********************************************************/
+    public ControlFlowGraph graph() {
+        return this.cfg;
+    }
+
+    public Dominators dominators() {
+        return this.dom;
+    }
+
+    /**
+     * Number of values, Undefined included
+     * @return the number of values
+     */
+    public int values() {
+        return this.valueReg.length;
+    }
+
+    /**
+     * Number of phi values
+     * @return the number of phis
+     */
+    public int phiCount() {
+        return this.valueReg.length - this.firstPhi;
+    }
+
+    /**
+     * Time spent building the view (dominators not included)
+     * @return the time in nanoseconds
+     */
+    public long time() {
+        return this.time;
+    }
+
+    /**
+     * Register of a value
+     * @param v the value
+     * @return the number of the register, -1 for Undefined
+     */
+    public int register(int v) {
+        return this.valueReg[v];
+    }
+
+    /**
+     * Instruction defining a value
+     * @param v the value
+     * @return the index of the instruction, -1 for a phi or Undefined
+     */
+    public int instruction(int v) {
+        return this.valueInst[v];
+    }
+
+    public boolean isPhi(int v) {
+        return v >= this.firstPhi;
+    }
+
+    /**
+     * Block of a value
+     * @param v the value
+     * @return the block of its phi or of its instruction, -1 for Undefined
+     */
+    public int block(int v) {
+        return this.valueBlock[v];
+    }
+
+    /**
+     * Block of an instruction
+     * @param i index of the instruction
+     * @return the block
+     */
+    public int blockOf(int i) {
+        return this.block[i];
+    }
+
+    /**
+     * Phi values placed at the beginning of a block
+     * @param b the block
+     * @return the values (not to be modified)
+     */
+    public int[] phis(int b) {
+        return this.phis[b];
+    }
+
+    /**
+     * Arguments of a phi value
+     * @param p the phi value
+     * @return a value per predecessor of its block (not to be modified)
+     */
+    public int[] arguments(int p) {
+        return this.arguments[p - this.firstPhi];
+    }
+
+    /**
+     * Value of a register read by an instruction
+     * @param i index of the instruction
+     * @param reg number of the register
+     * @return the value, Undefined if the instruction does not read it
+     */
+    public int use(int i, int reg) {
+        for (int k = 0; k < this.useRegs[i].length; k++) {
+            if (this.useRegs[i][k] == reg)
+                return this.useValues[i][k];
+        }
+        return Undefined;
+    }
+
+    /**
+     * Values defined by an instruction
+     * @param i index of the instruction
+     * @return the values (not to be modified)
+     */
+    public int[] defs(int i) {
+        return this.defValues[i];
+    }
+
+    /**
+     * Value of a register defined by an instruction
+     * @param i index of the instruction
+     * @param reg number of the register
+     * @return the value, Undefined if the instruction does not write it
+     */
+    public int def(int i, int reg) {
+        for (int k = 0; k < this.defRegs[i].length; k++) {
+            if (this.defRegs[i][k] == reg)
+                return this.defValues[i][k];
+        }
+        return Undefined;
+    }
+
+    /**
+     * Value a conditional instruction leaves when it is not executed
+     * @param i index of the instruction
+     * @param k number of the value in defs(i)
+     * @return the value before the instruction, Undefined if it is not conditional
+     */
+    public int previous(int i, int k) {
+        return (this.previous[i] == null ? Undefined : this.previous[i][k]);
+    }
+
+    /**
+     * Instructions reading a value (as an operand, or as the value a
+     * conditional instruction may leave)
+     * @param v the value
+     * @return the indexes of the instructions (not to be modified)
+     */
+    public int[] users(int v) {
+        return this.users[v];
+    }
+
+    /**
+     * Phis having a value as argument
+     * @param v the value
+     * @return the phi values (not to be modified)
+     */
+    public int[] phiUsers(int v) {
+        return this.phiUsers[v];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (BasicBlock b : this.cfg.blocks()) {
+            s.append("B" + b.index() + ":");
+            for (int p : this.phis[b.index()]) {
+                s.append(" %" + p + " = phi " + DefUse.name(this.valueReg[p]) + "(");
+                int[] args = arguments(p);
+                for (int k = 0; k < args.length; k++)
+                    s.append((k > 0 ? ", " : "") + "%" + args[k]);
+                s.append(")");
+            }
+            s.append("\n");
+        }
+        return s.toString();
+    }
+}
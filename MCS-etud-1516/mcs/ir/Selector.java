@@ -0,0 +1,835 @@
+/**
+ * Selector -- instructions chosen by covering trees of operations
+ *
+ * The code generator makes one instruction per operation. An operation
+ * writing a virtual register that only one instruction of the same block
+ * reads (on the SSA view of the function), whose registers are not written
+ * in between, is a subtree of it; the other operands are leaves. Each tree
+ * is labelled bottom-up, as in BURS: a node gets, for each goal (a value in
+ * a register, a shifted register, a product, an address), the cheapest rule
+ * making it, the cost of a rule being the one of the instruction it makes
+ * (see Costs) plus the ones of its operands. The root is then reduced to an
+ * instruction, from the top: a subtree reduced to a register keeps its
+ * instruction, the others are folded in their parent:
+ *  - a + (b << k) and the like take a shifted operand (ADD r, a, b, LSL #k)
+ *  - a * b + c and c - a * b are MLA and MLS
+ *  - a load or a store from base + i * 4 or base + d takes the index
+ *    (LDR r, [base, i, LSL #2]) or the displacement; the grammar never
+ *    makes an access through a register index, only the engine API does
+ * New rules are added to the table (Rules).
+ *
+ * A comparison of a register with 0 goes when the operation making it is
+ * in its block, with no instruction setting or reading the flags in
+ * between: the operation sets them (ADDS, SUBS...). It only gives N and Z
+ * as CMP does, so the conditions read must be EQ, NE, LT (MI) or GE (PL).
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+
+import mcs.gc.Register;
+
+public class Selector {
+    private static final int Infinite = Integer.MAX_VALUE / 8;
+
+    /**
+     * What a tree is reduced to: an instruction of its own (a value in a
+     * register, for an operation), a register shifted by an immediate, the
+     * operands of a multiplication, an address (a base and an offset)
+     */
+    public enum Goal { Register, Shifted, Product, Address };
+
+    /**
+     * Cost of the instructions, in cycles of a simple core issuing one
+     * instruction at a time; a shift of the last operand by an immediate is
+     * free (barrel shifter). Unlisted: 1
+     */
+    public static final Map<Opcode, Integer> Costs = new EnumMap<Opcode, Integer>(Opcode.class);
+    static {
+        cost(1, Opcode.MOV, Opcode.MVN, Opcode.MOVW, Opcode.MOVT, Opcode.ADD, Opcode.ADC, Opcode.SUB, Opcode.RSB,
+             Opcode.AND, Opcode.ORR, Opcode.EOR, Opcode.BIC, Opcode.LSL, Opcode.LSR, Opcode.ASR, Opcode.ROR,
+             Opcode.CMP, Opcode.CMN, Opcode.TST, Opcode.TEQ, Opcode.STR, Opcode.STRB, Opcode.NOP);
+        cost(2, Opcode.MUL, Opcode.MLA, Opcode.MLS, Opcode.LDR, Opcode.LDRB);
+        cost(3, Opcode.SMULL, Opcode.UMULL, Opcode.SMMUL, Opcode.B, Opcode.BX, Opcode.CBZ, Opcode.CBNZ);
+        cost(4, Opcode.BL, Opcode.BLX);
+        cost(12, Opcode.SDIV, Opcode.UDIV);
+    }
+
+    private static void cost(int c, Opcode... ops) {
+        for (Opcode op : ops)
+            Costs.put(op, c);
+    }
+
+    /**
+     * Cost of an instruction
+     * @param op its operation
+     * @return the cost (see Costs)
+     */
+    public static int cost(Opcode op) {
+        Integer c = Costs.get(op);
+        return (c == null ? 1 : c);
+    }
+
+    /**
+     * Cost of some code
+     * @param code the code
+     * @return the sum of the costs of its instructions (labels and comments excepted)
+     */
+    public static int cost(InstructionList code) {
+        int c = 0;
+        for (Instruction inst : code) {
+            if (!inst.opcode().isPseudo())
+                c += cost(inst.opcode());
+        }
+        return c;
+    }
+
+    /**
+     * A node of a tree: an instruction, or a register read as it is (a leaf)
+     */
+    public static class Node {
+        private int index;
+        private Instruction inst;
+        private Node[] kids = new Node[4];      // By operand, null if the operand is no register read
+        private int[] cost = new int[Goal.values().length];
+        private Rule[] rule = new Rule[Goal.values().length];
+
+        Node(int index, Instruction inst) {
+            this.index = index;
+            this.inst = inst;
+        }
+
+        /**
+         * Instruction of the node, null for a leaf
+         */
+        public Instruction instruction() {
+            return this.inst;
+        }
+
+        /**
+         * Node of an operand
+         * @param k number of the operand
+         * @return the node, null if the operand is no register read
+         */
+        public Node kid(int k) {
+            return this.kids[k];
+        }
+
+        /**
+         * Tell if a node may be reduced to a goal
+         */
+        public boolean can(Goal g) {
+            return this.cost[g.ordinal()] < Infinite;
+        }
+
+        /**
+         * Tell if an operand may be reduced to a goal
+         */
+        public boolean can(int k, Goal g) {
+            return this.kids[k] != null && this.kids[k].can(g);
+        }
+    }
+
+    /**
+     * A rule: the shape of a tree, the goals of its operands, and what it
+     * is reduced to
+     */
+    public static abstract class Rule {
+        private String name;
+        private Goal goal;
+        private Opcode paid;
+
+        /**
+         * Constructor
+         * @param name name of the rule, in the report
+         * @param goal what the tree is reduced to
+         * @param paid instruction made, null for the one of the node (none if
+         *        the tree is folded in its parent)
+         */
+        public Rule(String name, Goal goal, Opcode paid) {
+            this.name = name;
+            this.goal = goal;
+            this.paid = paid;
+        }
+
+        public String name() {
+            return this.name;
+        }
+
+        public Goal goal() {
+            return this.goal;
+        }
+
+        /**
+         * Cost of the instruction the rule makes of a node, its operands excepted
+         */
+        public int cost(Node n) {
+            if (this.paid != null)
+                return Selector.cost(this.paid);
+            return (this.goal == Goal.Register ? Selector.cost(n.inst.opcode()) : 0);
+        }
+
+        /**
+         * Match a node, its operands being labelled
+         * @param n the node (not a leaf)
+         * @return the goal of each operand of the node (Register for the
+         *         ones it reads as they are), null if the rule does not apply
+         */
+        public abstract Goal[] match(Node n);
+
+        /**
+         * Reduce a node matched
+         * @param n the node
+         * @param kids what each operand was reduced to: its register for a
+         *        Register, { register, shift } for a Shifted, { register,
+         *        register } for a Product, { base, offset, shift } for an
+         *        Address
+         * @return the instruction for a Register goal, what the goal is made of otherwise
+         */
+        public abstract Object reduce(Node n, Object[] kids);
+    }
+
+    /**
+     * Rules of the selector; the first one keeps an instruction as it is
+     */
+    public static final Rule[] Rules = {
+        new Rule("as is", Goal.Register, null) {
+            public Goal[] match(Node n) {
+                return operands(n);
+            }
+            public Object reduce(Node n, Object[] kids) {
+                return n.inst;
+            }
+        },
+
+        // LSL r, a, #k, folded in its parent
+        new Rule("shift", Goal.Shifted, null) {
+            public Goal[] match(Node n) {
+                Opcode op = n.inst.opcode();
+                if ((op != Opcode.LSL && op != Opcode.LSR && op != Opcode.ASR && op != Opcode.ROR)
+                        || !(n.inst.operand(2) instanceof Integer) || n.kids[1] == null)
+                    return null;
+                int k = (Integer)n.inst.operand(2);
+                return (k >= 1 && k <= 31 ? operands(n) : null);
+            }
+            public Object reduce(Node n, Object[] kids) {
+                return new Object[] { kids[1], new Shift(n.inst.opcode(), (Integer)n.inst.operand(2)) };
+            }
+        },
+
+        // ADD r, a, (LSL b, #k)  =>  ADD r, a, b, LSL #k
+        new Rule("shifted operand", Goal.Register, null) {
+            public Goal[] match(Node n) {
+                int k = last(n);
+                if (k < 0 || !n.can(k, Goal.Shifted))
+                    return null;
+                Goal[] g = operands(n);
+                g[k] = Goal.Shifted;
+                return g;
+            }
+            public Object reduce(Node n, Object[] kids) {
+                int k = last(n);
+                Object[] s = (Object[])kids[k];
+                Instruction inst = n.inst;
+                return new Instruction(inst.opcode(), inst.cond(), inst.setsFlags(), Instruction.Addressing.None,
+                                       inst.operand(0), kids[1], s[0], s[1]);
+            }
+        },
+
+        // ADD r, (LSL a, #k), b  =>  ADD r, b, a, LSL #k; SUB becomes RSB
+        new Rule("shifted operand", Goal.Register, null) {
+            public Goal[] match(Node n) {
+                if (swapped(n.inst.opcode()) == null || last(n) != 2 || !n.can(1, Goal.Shifted)
+                        || n.kids[2] == null)
+                    return null;
+                Goal[] g = operands(n);
+                g[1] = Goal.Shifted;
+                return g;
+            }
+            public Object reduce(Node n, Object[] kids) {
+                Object[] s = (Object[])kids[1];
+                Instruction inst = n.inst;
+                return new Instruction(swapped(inst.opcode()), inst.cond(), inst.setsFlags(),
+                                       Instruction.Addressing.None, inst.operand(0), kids[2], s[0], s[1]);
+            }
+        },
+
+        // MUL r, a, b, folded in its parent
+        new Rule("product", Goal.Product, null) {
+            public Goal[] match(Node n) {
+                if (n.inst.opcode() != Opcode.MUL || n.kids[1] == null || n.kids[2] == null)
+                    return null;
+                return operands(n);
+            }
+            public Object reduce(Node n, Object[] kids) {
+                return new Object[] { kids[1], kids[2] };
+            }
+        },
+
+        // ADD r, (MUL a, b), c  =>  MLA r, a, b, c
+        new Rule("multiply and add", Goal.Register, Opcode.MLA) {
+            public Goal[] match(Node n) {
+                int k = product(n);
+                if (n.inst.opcode() != Opcode.ADD || k < 0)
+                    return null;
+                Goal[] g = operands(n);
+                g[k] = Goal.Product;
+                return g;
+            }
+            public Object reduce(Node n, Object[] kids) {
+                int k = product(n);
+                Object[] p = (Object[])kids[k];
+                return new Instruction(Opcode.MLA, n.inst.cond(), n.inst.setsFlags(), Instruction.Addressing.None,
+                                       n.inst.operand(0), p[0], p[1], kids[3 - k]);
+            }
+        },
+
+        // SUB r, c, (MUL a, b)  =>  MLS r, a, b, c
+        new Rule("multiply and subtract", Goal.Register, Opcode.MLS) {
+            public Goal[] match(Node n) {
+                if (n.inst.opcode() != Opcode.SUB || n.inst.setsFlags() || n.kids[1] == null
+                        || n.inst.operand(3) != null || !n.can(2, Goal.Product))
+                    return null;
+                Goal[] g = operands(n);
+                g[2] = Goal.Product;
+                return g;
+            }
+            public Object reduce(Node n, Object[] kids) {
+                Object[] p = (Object[])kids[2];
+                return new Instruction(Opcode.MLS, n.inst.cond(), false, Instruction.Addressing.None,
+                                       n.inst.operand(0), p[0], p[1], kids[1]);
+            }
+        },
+
+        // ADD r, b, #d and SUB r, b, #d, folded in a load or a store
+        new Rule("displaced address", Goal.Address, null) {
+            public Goal[] match(Node n) {
+                Opcode op = n.inst.opcode();
+                if ((op != Opcode.ADD && op != Opcode.SUB) || n.kids[1] == null
+                        || !(n.inst.operand(2) instanceof Integer))
+                    return null;
+                return operands(n);
+            }
+            public Object reduce(Node n, Object[] kids) {
+                int d = (Integer)n.inst.operand(2);
+                return new Object[] { kids[1], (n.inst.opcode() == Opcode.ADD ? d : -d), null };
+            }
+        },
+
+        // ADD r, b, i (shifted or not), folded in a load or a store
+        new Rule("indexed address", Goal.Address, null) {
+            public Goal[] match(Node n) {
+                if (n.inst.opcode() != Opcode.ADD || n.kids[1] == null || n.kids[2] == null)
+                    return null;
+                Goal[] g = operands(n);
+                if (n.inst.operand(3) == null && n.can(2, Goal.Shifted))
+                    g[2] = Goal.Shifted;
+                else if (n.inst.operand(3) == null && n.can(1, Goal.Shifted))
+                    g[1] = Goal.Shifted;
+                return g;
+            }
+            public Object reduce(Node n, Object[] kids) {
+                if (kids[2] instanceof Object[]) {
+                    Object[] s = (Object[])kids[2];
+                    return new Object[] { kids[1], s[0], s[1] };
+                }
+                if (kids[1] instanceof Object[]) {
+                    Object[] s = (Object[])kids[1];
+                    return new Object[] { kids[2], s[0], s[1] };
+                }
+                return new Object[] { kids[1], kids[2], n.inst.operand(3) };
+            }
+        },
+
+        // LDR r, [(ADD b, i, LSL #2)]  =>  LDR r, [b, i, LSL #2]; LDR r, [(ADD b, #d), #e]  =>  LDR r, [b, #d + e]
+        new Rule("indexed access", Goal.Register, null) {
+            public Goal[] match(Node n) {
+                if (!isAccess(n) || n.inst.operand(2) instanceof Register || !n.can(1, Goal.Address))
+                    return null;
+                Goal[] g = operands(n);
+                g[1] = Goal.Address;
+                Object d = n.kids[1].inst.operand(2);
+                int e = (n.inst.operand(2) == null ? 0 : (Integer)n.inst.operand(2));
+                Rule a = n.kids[1].rule[Goal.Address.ordinal()];
+                if (a.name().equals("displaced address")) {
+                    long offset = (n.kids[1].inst.opcode() == Opcode.ADD ? (long)(Integer)d : -(long)(Integer)d) + e;
+                    return (Math.abs(offset) <= InductionVariables.MaxOffset ? g : null);
+                }
+                return (e == 0 ? g : null);
+            }
+            public Object reduce(Node n, Object[] kids) {
+                Object[] a = (Object[])kids[1];
+                Object offset = a[1];
+                if (offset instanceof Integer) {
+                    int e = (n.inst.operand(2) == null ? 0 : (Integer)n.inst.operand(2));
+                    offset = ((Integer)offset + e == 0 ? null : (Object)((Integer)offset + e));
+                }
+                return new Instruction(n.inst.opcode(), n.inst.cond(), false, Instruction.Addressing.Offset,
+                                       kids[0] != null ? kids[0] : n.inst.operand(0), a[0], offset, a[2]);
+            }
+        },
+
+        // LDR r, [b, (LSL i, #2)]  =>  LDR r, [b, i, LSL #2]
+        new Rule("indexed access", Goal.Register, null) {
+            public Goal[] match(Node n) {
+                if (!isAccess(n) || !(n.inst.operand(2) instanceof Register) || n.inst.operand(3) != null
+                        || n.kids[1] == null || n.kids[2] == null)
+                    return null;
+                Goal[] g = operands(n);
+                if (n.can(2, Goal.Shifted))
+                    g[2] = Goal.Shifted;
+                else if (n.can(1, Goal.Shifted))
+                    g[1] = Goal.Shifted;
+                else
+                    return null;
+                return g;
+            }
+            public Object reduce(Node n, Object[] kids) {
+                boolean second = kids[2] instanceof Object[];
+                Object[] s = (Object[])(second ? kids[2] : kids[1]);
+                return new Instruction(n.inst.opcode(), n.inst.cond(), false, Instruction.Addressing.Offset,
+                                       kids[0] != null ? kids[0] : n.inst.operand(0), (second ? kids[1] : kids[2]),
+                                       s[0], s[1]);
+            }
+        },
+    };
+
+    /**
+     * Goals of the operands of a node read as they are
+     */
+    private static Goal[] operands(Node n) {
+        Goal[] g = new Goal[4];
+        for (int k = 0; k < 4; k++)
+            g[k] = (n.kids[k] != null ? Goal.Register : null);
+        return g;
+    }
+
+    /**
+     * Last operand of an operation, that may be shifted
+     * @return its number, -1 if it is no register or already shifted
+     */
+    private static int last(Node n) {
+        Instruction inst = n.inst;
+        Opcode op = inst.opcode();
+        if (op != Opcode.ADD && op != Opcode.SUB && op != Opcode.RSB && op != Opcode.AND && op != Opcode.ORR
+                && op != Opcode.EOR && op != Opcode.BIC)
+            return -1;
+        return (inst.operand(3) == null && n.kids[1] != null && n.kids[2] != null ? 2 : -1);
+    }
+
+    /**
+     * Operation made with its operands swapped, null if there is none
+     */
+    private static Opcode swapped(Opcode op) {
+        switch (op) {
+            case ADD: case AND: case ORR: case EOR: return op;
+            case SUB: return Opcode.RSB;
+            case RSB: return Opcode.SUB;
+            default:  return null;
+        }
+    }
+
+    /**
+     * Operand of an addition that may be a product
+     * @return its number, -1 if there is none
+     */
+    private static int product(Node n) {
+        if (n.inst.operand(3) != null || n.kids[1] == null || n.kids[2] == null)
+            return -1;
+        return (n.can(1, Goal.Product) ? 1 : n.can(2, Goal.Product) ? 2 : -1);
+    }
+
+    private static boolean isAccess(Node n) {
+        Opcode op = n.inst.opcode();
+        return (op == Opcode.LDR || op == Opcode.LDRB || op == Opcode.STR || op == Opcode.STRB)
+            && n.inst.addressing() == Instruction.Addressing.Offset && n.kids[1] != null;
+    }
+
+    private Rule[] rules;
+    private DefUse du;
+    private int[] counts;
+    private int saved = 0, zeros = 0;
+
+    // Function being looked at
+    private InstructionList code;
+    private SSA ssa;
+    private BitSet attached;            // Instructions in the tree of another one
+    private BitSet folded;              // Instructions folded in another one
+    private Instruction[] replaced;     // New instructions, by index
+
+    /**
+     * Constructor, with the rules of the table
+     * @param du registers of each instruction
+     */
+    public Selector(DefUse du) {
+        this(Rules, du);
+    }
+
+    /**
+     * Constructor
+     * @param rules the rules, the first one keeping an instruction as it is
+     * @param du registers of each instruction
+     */
+    public Selector(Rule[] rules, DefUse du) {
+        this.rules = rules;
+        this.du = du;
+        this.counts = new int[rules.length];
+    }
+
+    /**
+     * Select the instructions of a function
+     * @param code the code of the function, not modified
+     * @return the new code (the one given if nothing was changed)
+     */
+    public InstructionList run(InstructionList code) {
+        ControlFlowGraph cfg = new ControlFlowGraph(code);
+        this.code = code;
+        this.ssa = new SSA(cfg, new Dominators(cfg), this.du);
+        this.attached = new BitSet();
+        this.folded = new BitSet();
+        this.replaced = new Instruction[code.size()];
+
+        // From the end, so that a tree is built from its root
+        for (int u = code.size() - 1; u >= 0; u--) {
+            if (this.attached.get(u) || !isReachable(u))
+                continue;
+            Node root = build(u, u);
+            label(root);
+            if (root.can(Goal.Register))
+                this.replaced[u] = (Instruction)reduce(root, Goal.Register);
+        }
+        compareWithZero(cfg);
+
+        InstructionList done = code;
+        if (!this.folded.isEmpty()) {
+            done = new InstructionList(code.size());
+            for (int i = 0; i < code.size(); i++) {
+                if (!this.folded.get(i))
+                    done.add(this.replaced[i] != null ? this.replaced[i] : code.get(i));
+            }
+            this.saved += this.folded.cardinality();
+        }
+
+        this.code = null;
+        this.ssa = null;
+        this.attached = null;
+        this.folded = null;
+        this.replaced = null;
+        return done;
+    }
+
+    private boolean isReachable(int i) {
+        return this.ssa.dominators().isReachable(this.ssa.blockOf(i));
+    }
+
+    /**
+     * Build the tree of an instruction
+     * @param u index of the instruction
+     * @param root index of the root of the tree
+     */
+    private Node build(int u, int root) {
+        Instruction inst = this.code.get(u);
+        Node n = new Node(u, inst);
+        BitSet seen = new BitSet(), twice = new BitSet();
+        for (int k : reads(inst)) {
+            int r = DefUse.id((Register)inst.operand(k));
+            if (seen.get(r))
+                twice.set(r);
+            seen.set(r);
+        }
+        for (int k : reads(inst)) {
+            int r = DefUse.id((Register)inst.operand(k));
+            int j = (twice.get(r) ? -1 : subtree(u, r, root));
+            if (j >= 0) {
+                this.attached.set(j);
+                n.kids[k] = build(j, root);
+            } else {
+                n.kids[k] = new Node(-1, null);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Register operands an instruction reads that a tree may give
+     * @return their numbers
+     */
+    private static int[] reads(Instruction inst) {
+        int[] ks;
+        switch (inst.opcode().kind()) {
+            case Data:
+                ks = (inst.operand(2) == null ? new int[] { 1 } : new int[] { 1, 2, 3 });
+                break;
+            case Compare:
+                ks = new int[] { 0, 1 };
+                break;
+            case Load:
+                ks = new int[] { 1, 2 };
+                break;
+            case Store:
+                ks = new int[] { 0, 1, 2 };
+                break;
+            default:
+                return new int[0];
+        }
+        if (inst.isConditional() || inst.setsFlags() && inst.opcode().kind() != Opcode.Kind.Compare
+                || ((inst.opcode().kind() == Opcode.Kind.Load || inst.opcode().kind() == Opcode.Kind.Store)
+                    && inst.addressing() != Instruction.Addressing.Offset))
+            return new int[0];
+        int n = 0;
+        for (int k : ks) {
+            if (inst.operand(k) instanceof Register)
+                ks[n++] = k;
+        }
+        int[] r = new int[n];
+        System.arraycopy(ks, 0, r, 0, n);
+        return r;
+    }
+
+    /**
+     * Find the operation making the value of a register an instruction
+     * reads, if it may be in its tree: an operation of the same block,
+     * unconditional and without the flags, read by this instruction only,
+     * whose registers are not written before the root of the tree
+     * @return its index, -1 if there is none
+     */
+    private int subtree(int u, int r, int root) {
+        if (!DefUse.isVirtual(r))
+            return -1;
+        int v = this.ssa.use(u, r);
+        if (v == SSA.Undefined || this.ssa.isPhi(v) || this.ssa.users(v).length != 1
+                || this.ssa.phiUsers(v).length != 0)
+            return -1;
+        int j = this.ssa.instruction(v);
+        Instruction inst = this.code.get(j);
+        Opcode op = inst.opcode();
+        if (j >= u || this.ssa.blockOf(j) != this.ssa.blockOf(u) || inst.isConditional() || inst.setsFlags()
+                || this.ssa.defs(j).length != 1 || inst.operand(2) == null
+                || (op != Opcode.LSL && op != Opcode.LSR && op != Opcode.ASR && op != Opcode.ROR
+                    && op != Opcode.MUL && op != Opcode.ADD && op != Opcode.SUB))
+            return -1;
+
+        BitSet regs = new BitSet(), written = new BitSet();
+        this.du.uses(inst, regs);
+        for (int i = j + 1; i < root; i++)
+            this.du.defs(this.code.get(i), written);
+        return (regs.intersects(written) ? -1 : j);
+    }
+
+    /**
+     * Find the cheapest rule for each goal of a tree, from its leaves
+     */
+    private void label(Node n) {
+        for (Node kid : n.kids) {
+            if (kid != null)
+                label(kid);
+        }
+        for (int g = 0; g < n.cost.length; g++)
+            n.cost[g] = Infinite;
+        if (n.inst == null) {
+            n.cost[Goal.Register.ordinal()] = 0;
+            return;
+        }
+
+        for (Rule rule : this.rules) {
+            Goal[] goals = rule.match(n);
+            if (goals == null)
+                continue;
+            int c = rule.cost(n);
+            for (int k = 0; k < 4 && c < Infinite; k++) {
+                if (n.kids[k] != null)
+                    c += (goals[k] == null ? Infinite : n.kids[k].cost[goals[k].ordinal()]);
+            }
+            int g = rule.goal().ordinal();
+            if (c < n.cost[g]) {
+                n.cost[g] = c;
+                n.rule[g] = rule;
+            }
+        }
+    }
+
+    /**
+     * Reduce a tree labelled to a goal: its operands reduced to a register
+     * keep their instruction (reduced at their place), the others are folded
+     * @return the instruction, or what the goal is made of
+     */
+    private Object reduce(Node n, Goal goal) {
+        Rule rule = n.rule[goal.ordinal()];
+        Goal[] goals = rule.match(n);
+        Object[] kids = new Object[4];
+        for (int k = 0; k < 4; k++) {
+            Node kid = n.kids[k];
+            if (kid == null)
+                continue;
+            if (goals[k] == Goal.Register) {
+                kids[k] = n.inst.operand(k);
+                if (kid.inst != null)
+                    this.replaced[kid.index] = (Instruction)reduce(kid, Goal.Register);
+            } else {
+                kids[k] = reduce(kid, goals[k]);
+                this.folded.set(kid.index);
+            }
+        }
+        for (int k = 0; k < this.rules.length; k++) {
+            if (this.rules[k] == rule && k > 0)
+                this.counts[k]++;
+        }
+        return rule.reduce(n, kids);
+    }
+
+    /**
+     * Let the operations set the flags rather than comparing their result
+     * with 0
+     */
+    private void compareWithZero(ControlFlowGraph cfg) {
+        boolean[] liveOut = flagsLiveOut(cfg);
+        for (int u = 0; u < this.code.size(); u++) {
+            Instruction cmp = this.code.get(u);
+            if (cmp.opcode() != Opcode.CMP || cmp.isConditional() || !(cmp.operand(0) instanceof Register)
+                    || !Integer.valueOf(0).equals(cmp.operand(1)) || cmp.operand(2) != null || !isReachable(u))
+                continue;
+
+            // The operation making the register, through copies
+            int b = this.ssa.blockOf(u);
+            int v = this.ssa.use(u, DefUse.id((Register)cmp.operand(0))), j = -1;
+            while (v != SSA.Undefined && !this.ssa.isPhi(v)) {
+                j = this.ssa.instruction(v);
+                Instruction inst = this.code.get(j);
+                if (inst.opcode() != Opcode.MOV || inst.isConditional() || !(inst.operand(1) instanceof Register)
+                        || inst.operand(2) != null)
+                    break;
+                v = this.ssa.use(j, DefUse.id((Register)inst.operand(1)));
+            }
+            if (j < 0 || v == SSA.Undefined || this.ssa.isPhi(v) || this.ssa.blockOf(j) != b || this.folded.get(j))
+                continue;
+            Instruction op = (this.replaced[j] != null ? this.replaced[j] : this.code.get(j));
+            if (!setsZeroAndSign(op))
+                continue;
+            boolean quiet = true;
+            for (int i = j + 1; i < u && quiet; i++)
+                quiet = this.folded.get(i) || !(readsFlags(this.code.get(i)) || writesFlags(this.code.get(i)));
+            if (!quiet)
+                continue;
+
+            // Readers of the flags, up to the next instruction setting them
+            int end = cfg.block(b).end(), i = u + 1;
+            boolean ok = true;
+            for (; i < end && ok; i++) {
+                Instruction inst = this.code.get(i);
+                if (readsFlags(inst))
+                    ok = inst.cond() == Cond.EQ || inst.cond() == Cond.NE || inst.cond() == Cond.LT
+                        || inst.cond() == Cond.GE;
+                if (writesFlags(inst))
+                    break;
+            }
+            if (!ok || (i == end && liveOut[b]))
+                continue;
+
+            for (int k = u + 1; k <= i && k < end; k++) {
+                Instruction inst = this.code.get(k);
+                if (inst.cond() == Cond.LT || inst.cond() == Cond.GE) {
+                    Instruction c = (this.replaced[k] != null ? this.replaced[k] : inst).copy();
+                    c.setCond(inst.cond() == Cond.LT ? Cond.MI : Cond.PL);
+                    this.replaced[k] = c;
+                }
+            }
+            Instruction s = op.copy();
+            s.setFlags(true);
+            this.replaced[j] = s;
+            this.folded.set(u);
+            this.zeros++;
+        }
+    }
+
+    private static boolean setsZeroAndSign(Instruction inst) {
+        switch (inst.opcode()) {
+            case ADD: case SUB: case RSB: case AND: case ORR: case EOR: case BIC:
+                return !inst.isConditional() && !inst.setsFlags() && inst.operand(2) != null;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean readsFlags(Instruction inst) {
+        return inst.isConditional() || inst.opcode() == Opcode.ADC || inst.opcode() == Opcode.RAW;
+    }
+
+    private static boolean writesFlags(Instruction inst) {
+        Opcode.Kind kind = inst.opcode().kind();
+        return inst.setsFlags() || kind == Opcode.Kind.Compare || kind == Opcode.Kind.Call;
+    }
+
+    /**
+     * Blocks the flags are read after (not after a return)
+     */
+    private boolean[] flagsLiveOut(ControlFlowGraph cfg) {
+        int n = cfg.size();
+        boolean[] exposed = new boolean[n], through = new boolean[n], in = new boolean[n], out = new boolean[n];
+        for (BasicBlock b : cfg.blocks()) {
+            int i = b.index();
+            through[i] = true;
+            for (int k = b.start(); k < b.end() && through[i]; k++) {
+                Instruction inst = this.code.get(k);
+                if (readsFlags(inst))
+                    exposed[i] = true;
+                if (writesFlags(inst) || exposed[i])
+                    through[i] = false;
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = n - 1; b >= 0; b--) {
+                boolean o = false;
+                for (int s : cfg.successors(b))
+                    o |= in[s];
+                boolean i = exposed[b] || (through[b] && o);
+                changed |= (o != out[b]) || (i != in[b]);
+                out[b] = o;
+                in[b] = i;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Number of instructions the trees and the comparisons saved so far
+     */
+    public int saved() {
+        return this.saved;
+    }
+
+    /**
+     * Number of times a rule was used so far
+     * @param name name of the rule
+     * @return the number, 0 if no rule has this name
+     */
+    public int count(String name) {
+        int n = 0;
+        for (int k = 0; k < this.rules.length; k++) {
+            if (this.rules[k].name().equals(name))
+                n += this.counts[k];
+        }
+        return n;
+    }
+
+    /**
+     * Instructions saved so far, and the rules used
+     */
+    public String report() {
+        String r = this.saved + " instructions saved\n";
+        String seen = "";
+        for (int k = 1; k < this.rules.length; k++) {
+            String name = this.rules[k].name();
+            if (this.rules[k].goal() == Goal.Register && !seen.contains("|" + name + "|")) {
+                r += "  " + name + ": " + count(name) + "\n";
+                seen += "|" + name + "|";
+            }
+        }
+        return r + "  compare with zero: " + this.zeros + "\n";
+    }
+}
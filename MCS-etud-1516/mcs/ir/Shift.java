@@ -0,0 +1,66 @@
+/**
+ * Shift -- shift of the last register operand of an instruction
+ *
+ * The fourth operand of a data processing instruction: ADD r, s, t, LSL #2
+ * adds t shifted left by 2 to s, in one instruction. A shift is a value,
+ * shared between instructions like the other operands.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+public final class Shift {
+    private final Opcode op;
+    private final int amount;
+
+    /**
+     * Constructor
+     * @param op LSL, LSR, ASR or ROR
+     * @param amount the number of bits, from 1 to 31
+     */
+    public Shift(Opcode op, int amount) {
+        if (op != Opcode.LSL && op != Opcode.LSR && op != Opcode.ASR && op != Opcode.ROR)
+            throw new IllegalArgumentException("not a shift: " + op);
+        if (amount < 1 || amount > 31)
+            throw new IllegalArgumentException("shift out of range: " + amount);
+        this.op = op;
+        this.amount = amount;
+    }
+
+    public Opcode opcode() {
+        return this.op;
+    }
+
+    public int amount() {
+        return this.amount;
+    }
+
+    /**
+     * Shift a value, as the machine does it
+     * @param value the value
+     * @return the shifted value
+     */
+    public int apply(int value) {
+        switch (this.op) {
+            case LSL: return value << this.amount;
+            case LSR: return value >>> this.amount;
+            case ASR: return value >> this.amount;
+            default: return Integer.rotateRight(value, this.amount);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Shift && ((Shift)o).op == this.op && ((Shift)o).amount == this.amount;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.op.hashCode() * 32 + this.amount;
+    }
+
+    @Override
+    public String toString() {
+        return this.op.name() + " $" + this.amount;
+    }
+}
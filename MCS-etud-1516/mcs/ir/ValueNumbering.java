@@ -0,0 +1,416 @@
+/**
+ * ValueNumbering -- computations made again removed
+ *
+ * Each value of the SSA view of a function is given a number; two values
+ * have the same number when they are known to be equal: the copy of a
+ * value, the same constant, the same operation on the same numbers (in any
+ * order for ADD, MUL, AND, ORR and EOR), the same load from an address
+ * whose memory is not written in between, or the word a store has just put
+ * there. The blocks are looked at along the dominator tree, so that an
+ * operation is compared with the ones made before it in its block and in
+ * the blocks that dominate it.
+ *
+ * An operation (or a load) writing a virtual register, without the flags,
+ * whose number is already held by the register an earlier one wrote
+ * becomes a copy of it, that the allocator usually removes; the operations
+ * it read may then be dead. The register of the earlier one must not be
+ * written on any path in between, and for a load no store may write what
+ * it reads there (see mayAlias), nor any call be made.
+ *
+ * @version 0.1
+ */
+package mcs.ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ValueNumbering {
+    private DefUse du;
+    private int base;               // Register of the frame, never written in the body of a function
+    private int removed = 0, loads = 0, forwarded = 0;
+
+    // Function being looked at
+    private InstructionList code;
+    private ControlFlowGraph cfg;
+    private Dominators dom;
+    private SSA ssa;
+    private int[] number;           // Number of each value
+    private Map<String, Integer> constants;     // Constant => number
+    private Map<String, Integer> available;     // Expression => instruction whose register holds it
+    private List<String> keys;                  // Expressions made available, in order
+    private List<Integer> hidden;               // What each one replaced, null if nothing
+    private BitSet[] blockDefs;     // Registers written by each block
+    private List<List<Integer>> blockStores;    // Instructions of each block writing memory
+    private Map<Integer, Integer> defCount;     // Instructions writing each register
+    private Instruction[] copies;   // Instructions made copies, by index
+    private boolean escapes;        // Some address of the frame is computed
+
+    /**
+     * Constructor
+     * @param du registers of each instruction
+     * @param base number of the register the frame is read from
+     */
+    public ValueNumbering(DefUse du, int base) {
+        this.du = du;
+        this.base = base;
+    }
+
+    /**
+     * Remove the computations made again in a function
+     * @param code the code of the function, not modified
+     * @return the new code (the one given if nothing was removed)
+     */
+    public InstructionList run(InstructionList code) {
+        this.code = code;
+        this.cfg = new ControlFlowGraph(code);
+        this.dom = new Dominators(this.cfg);
+        this.ssa = new SSA(this.cfg, this.dom, this.du);
+        this.number = new int[this.ssa.values()];
+        for (int v = 0; v < this.number.length; v++)
+            this.number[v] = v;
+        this.constants = new HashMap<String, Integer>();
+        this.available = new HashMap<String, Integer>();
+        this.keys = new ArrayList<String>();
+        this.hidden = new ArrayList<Integer>();
+        this.copies = new Instruction[code.size()];
+
+        int n = this.cfg.size();
+        this.blockDefs = new BitSet[n];
+        this.blockStores = new ArrayList<List<Integer>>(n);
+        this.defCount = new HashMap<Integer, Integer>();
+        this.escapes = this.du.keepsFrameAddress(code, this.base);
+        BitSet regs = new BitSet();
+        for (BasicBlock b : this.cfg.blocks()) {
+            BitSet defs = new BitSet();
+            List<Integer> stores = new ArrayList<Integer>();
+            for (int i = b.start(); i < b.end(); i++) {
+                Instruction inst = code.get(i);
+                regs.clear();
+                this.du.defs(inst, regs);
+                defs.or(regs);
+                for (int r = regs.nextSetBit(0); r >= 0; r = regs.nextSetBit(r + 1))
+                    this.defCount.put(r, (this.defCount.containsKey(r) ? this.defCount.get(r) : 0) + 1);
+                if (this.du.writesMemory(inst))
+                    stores.add(i);
+            }
+            this.blockDefs[b.index()] = defs;
+            this.blockStores.add(stores);
+        }
+
+        int before = this.removed;
+        walk(0);
+
+        InstructionList done = code;
+        if (this.removed > before) {
+            done = new InstructionList(code.size());
+            for (int i = 0; i < code.size(); i++)
+                done.add(this.copies[i] != null ? this.copies[i] : code.get(i));
+        }
+
+        this.code = null;
+        this.cfg = null;
+        this.dom = null;
+        this.ssa = null;
+        this.number = null;
+        this.constants = null;
+        this.available = null;
+        this.keys = null;
+        this.hidden = null;
+        this.blockDefs = null;
+        this.blockStores = null;
+        this.defCount = null;
+        this.copies = null;
+        return done;
+    }
+
+    /**
+     * Number the values of a block, then of the blocks it dominates; the
+     * expressions it made available are forgotten when it is left
+     */
+    private void walk(int b) {
+        int mark = this.keys.size();
+        BasicBlock block = this.cfg.block(b);
+        for (int i = block.start(); i < block.end(); i++)
+            visit(i);
+        for (int c : this.dom.children(b))
+            walk(c);
+        for (int k = this.keys.size() - 1; k >= mark; k--) {
+            Integer j = this.hidden.remove(k);
+            if (j == null)
+                this.available.remove(this.keys.get(k));
+            else
+                this.available.put(this.keys.get(k), j);
+            this.keys.remove(k);
+        }
+    }
+
+    private void visit(int i) {
+        Instruction inst = this.code.get(i);
+        Opcode op = inst.opcode();
+        int[] defs = this.ssa.defs(i);
+
+        // A copy has the number of what it copies
+        if (op == Opcode.MOV && inst.isRegister(1) && inst.operand(2) == null && !inst.isConditional()
+                && !inst.setsFlags() && defs.length == 1) {
+            int v = this.ssa.use(i, this.du.id(inst.operand(1)));
+            if (v != SSA.Undefined)
+                this.number[defs[0]] = this.number[v];
+            return;
+        }
+
+        // A store is read back by a load of the same word
+        if (op == Opcode.STR && inst.addressing() == Instruction.Addressing.Offset && !inst.isConditional()
+                && DefUse.isVirtual(this.du.id(inst.operand(0)))) {
+            String k = key(i, "LDR", 1);
+            if (k != null)
+                make(k, i);
+            return;
+        }
+
+        String k = key(i);
+        if (k == null || defs.length != 1)
+            return;
+        if (isConstant(inst)) {
+            Integer c = this.constants.get(k);
+            if (c == null)
+                this.constants.put(k, this.number[defs[0]]);
+            else
+                this.number[defs[0]] = c;
+            return;
+        }
+
+        Integer j = this.available.get(k);
+        boolean load = op.kind() == Opcode.Kind.Load;
+        if (j != null && !inst.setsFlags() && DefUse.isVirtual(this.du.id(inst.operand(0))) && holds(j, i, load)) {
+            Instruction from = this.code.get(j);
+            int h = this.du.id(from.operand(0));
+            int v = (from.opcode() == Opcode.STR ? this.ssa.use(j, h) : this.ssa.def(j, h));
+            this.number[defs[0]] = this.number[v];
+            this.copies[i] = new Instruction(Opcode.MOV, inst.operand(0), from.operand(0));
+            this.removed++;
+            if (load)
+                this.loads++;
+            if (from.opcode() == Opcode.STR)
+                this.forwarded++;
+            return;
+        }
+
+        BitSet uses = new BitSet();
+        this.du.uses(inst, uses);
+        int d = this.du.id(inst.operand(0));
+        if (DefUse.isVirtual(d) && !uses.get(d))
+            make(k, i);
+    }
+
+    /**
+     * Make an expression available in the register an instruction writes
+     * (or stores)
+     */
+    private void make(String k, int i) {
+        this.keys.add(k);
+        this.hidden.add(this.available.put(k, i));
+    }
+
+    /**
+     * MOV, MVN or MOVW of an immediate
+     */
+    private static boolean isConstant(Instruction inst) {
+        Opcode op = inst.opcode();
+        return (op == Opcode.MOV || op == Opcode.MVN || op == Opcode.MOVW) && inst.operand(1) instanceof Integer;
+    }
+
+    /**
+     * Key of the expression an instruction computes, the registers read
+     * given by the numbers of their values
+     * @return the key, null if the instruction is not an expression
+     */
+    private String key(int i) {
+        Instruction inst = this.code.get(i);
+        if (inst.isConditional())
+            return null;
+
+        Opcode op = inst.opcode();
+        if (op == Opcode.LDR || op == Opcode.LDRB) {
+            if (inst.addressing() != Instruction.Addressing.Offset && inst.addressing() != Instruction.Addressing.None)
+                return null;
+        } else if (op.kind() == Opcode.Kind.Data) {
+            if (op == Opcode.MOVT || op == Opcode.SMULL || op == Opcode.UMULL)
+                return null;
+            if (op != Opcode.MOV && op != Opcode.MVN && op != Opcode.MOVW && inst.operand(2) == null)
+                return null;    // Two operand form, reads its destination
+        } else {
+            return null;
+        }
+
+        String k = key(i, op.name(), 1);
+        if (k == null)
+            return null;
+        if ((op == Opcode.ADD || op == Opcode.MUL || op == Opcode.AND || op == Opcode.ORR || op == Opcode.EOR)
+                && inst.operand(3) == null && !(inst.operand(2) instanceof Integer)) {
+            String[] t = k.split(" ");
+            if (t[1].compareTo(t[2]) > 0)
+                k = t[0] + " " + t[2] + " " + t[1];
+        }
+        return k;
+    }
+
+    /**
+     * Operation followed by the operands of an instruction from the given one
+     */
+    private String key(int i, String name, int first) {
+        Instruction inst = this.code.get(i);
+        StringBuilder sb = new StringBuilder(name);
+        for (int k = first; k < inst.operandCount(); k++) {
+            Object o = inst.operand(k);
+            sb.append(' ');
+            if (o instanceof Integer) {
+                sb.append('$').append(o);
+            } else if (o instanceof Shift) {
+                sb.append(o.toString().replace(' ', '_'));
+            } else {
+                int r = this.du.id(o);
+                if (r == this.base) {
+                    sb.append("base");
+                } else if (DefUse.isVirtual(r)) {
+                    int v = this.ssa.use(i, r);
+                    if (v == SSA.Undefined)
+                        return null;
+                    sb.append('v').append(this.number[v]);
+                } else {
+                    return null;
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Tell if the register written (or stored) by j still holds its value at
+     * i, and for a load, if the word is not written in between
+     */
+    private boolean holds(int j, int i, boolean load) {
+        int h = this.du.id(this.code.get(j).operand(0));
+        Integer defs = this.defCount.get(h);
+        boolean once = defs != null && defs == 1;
+        if (once && !load)
+            return true;
+
+        int bj = this.ssa.blockOf(j), bi = this.ssa.blockOf(i);
+        if (bj == bi && j < i)
+            return clear(j + 1, i, h, once, load, j);
+
+        // Blocks on a path from bj to bi, bj left aside
+        BitSet region = new BitSet();
+        List<Integer> work = new ArrayList<Integer>();
+        work.add(bi);
+        while (!work.isEmpty()) {
+            int b = work.remove(work.size() - 1);
+            for (int p : this.cfg.predecessors(b)) {
+                if (p != bj && this.dom.isReachable(p) && !region.get(p)) {
+                    region.set(p);
+                    work.add(p);
+                }
+            }
+        }
+
+        BasicBlock block = this.cfg.block(bj);
+        if (!clear(j + 1, block.end(), h, once, load, j))
+            return false;
+        block = this.cfg.block(bi);
+        if (!clear(block.start(), (region.get(bi) ? block.end() : i), h, once, load, j))
+            return false;
+        for (int b = region.nextSetBit(0); b >= 0; b = region.nextSetBit(b + 1)) {
+            if (b == bi)
+                continue;
+            if (!once && this.blockDefs[b].get(h))
+                return false;
+            if (load) {
+                for (int s : this.blockStores.get(b)) {
+                    if (mayAlias(j, s))
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tell if the instructions from one index to another one leave the
+     * register h alone (unless it is written once), and for a load, the word
+     * j reads or stores
+     */
+    private boolean clear(int from, int to, int h, boolean once, boolean load, int j) {
+        BitSet defs = new BitSet();
+        for (int x = from; x < to; x++) {
+            Instruction inst = this.code.get(x);
+            if (!once) {
+                defs.clear();
+                this.du.defs(inst, defs);
+                if (defs.get(h))
+                    return false;
+            }
+            if (load && this.du.writesMemory(inst) && mayAlias(j, x))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tell if a store may write what an access (a load, or a store read
+     * back) reads
+     * @param l index of the access
+     * @param s index of the store
+     */
+    private boolean mayAlias(int l, int s) {
+        Instruction access = this.code.get(l), store = this.code.get(s);
+        if (store.opcode() != Opcode.STR && store.opcode() != Opcode.STRB
+                || store.addressing() != Instruction.Addressing.Offset)
+            return true;
+
+        int lb = this.du.id(access.operand(1)), sb = this.du.id(store.operand(1));
+        boolean lf = lb == this.base, sf = sb == this.base;
+        if (!sf && !DefUse.isVirtual(sb))
+            return true;
+        if (lf != sf)
+            return this.escapes;
+        if (!lf && this.number[this.ssa.use(l, lb)] != this.number[this.ssa.use(s, sb)])
+            return true;
+
+        Integer lo = offset(access), so = offset(store);
+        if (lo == null || so == null)
+            return true;
+        return lo < so + size(store) && so < lo + size(access);
+    }
+
+    /**
+     * Constant offset of an access, null if it is in a register
+     */
+    private static Integer offset(Instruction inst) {
+        Object o = inst.operand(2);
+        if (o == null)
+            return 0;
+        return (o instanceof Integer ? (Integer)o : null);
+    }
+
+    private static int size(Instruction inst) {
+        return (inst.opcode() == Opcode.LDRB || inst.opcode() == Opcode.STRB ? 1 : 4);
+    }
+
+    /**
+     * Number of computations removed so far
+     */
+    public int removed() {
+        return this.removed;
+    }
+
+    /**
+     * Computations removed so far
+     */
+    public String report() {
+        return this.removed + " computations made again removed, " + this.loads + " of them loads ("
+            + this.forwarded + " read back from a store)\n";
+    }
+}
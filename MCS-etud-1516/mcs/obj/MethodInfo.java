@@ -49,6 +49,17 @@ public class MethodInfo extends FunctionInfo {
           "_" + this.parent.completeName() + "." + this.name() + "__" + this.returnType() + this.makeParamsLabel();
   }
 
+  /**
+   * Calculate displacement of given parameter number: the object is the
+   * first word of a call, so they come just above it
+   * @param n number of the argument for which to get the displacement
+   * @return the displacement
+   */
+  @Override
+  public int displacement(int n) {
+    return super.displacement(n) - 4;
+  }
+
   public String shortLabel() {
       return
           "_" + this.name() + "__" + this.returnType() + this.makeParamsLabel();
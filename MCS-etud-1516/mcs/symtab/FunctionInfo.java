@@ -16,6 +16,7 @@ public class FunctionInfo extends SymbolInfo {
     private List<Type> parameters; // Parameters
     private String name;
     private Register reg;
+    private int frameSize = 0; // Size of the variables of the function
 
     /**
      * Create a function symbol from a return type and a list of parameters
@@ -105,21 +106,13 @@ public class FunctionInfo extends SymbolInfo {
     }
 
     /**
-     * Calculate displacement of given parameter number
+     * Calculate displacement of given parameter number. Every argument is
+     * one word: its value, or the handle of a composite value
      * @param n number of the argument for which to get the displacement
      * @return the displacement
      */
     public int displacement(int n) {
-        int disp = -12;
-
-        for (int i = 0; i < n; i++) {
-            int ts = this.parameters.get(i).size();
-
-            if (ts % 4 == 0) // already aligned
-                disp -= ts;
-            else
-                disp -= ts + (4 - (ts % 4));
-        }
+        int disp = -12 - 4 * n;
 
         System.out.println("Calculated disp : " + disp);
 
@@ -133,6 +126,23 @@ public class FunctionInfo extends SymbolInfo {
         return this.reg;
     }
 
+    /**
+     * Set the size of the variables of the function (parameters and locals
+     * of all its blocks)
+     * @param size the size
+     */
+    public void setFrameSize(int size) {
+        this.frameSize = size;
+    }
+
+    /**
+     * Get the size of the variables of the function
+     * @return the size
+     */
+    public int frameSize() {
+        return this.frameSize;
+    }
+
     /**
      * Equal function.
      * @param other the other function
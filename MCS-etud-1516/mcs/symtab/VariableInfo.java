@@ -56,6 +56,7 @@ public class VariableInfo extends SymbolInfo {
 	 */
 	public void freeRegister() {
 		this.reg.setStatus(Register.Status.Used);
+		this.reg = null;
 	}
 
 	/**
@@ -16,19 +16,33 @@ public class VariableTable implements SymbolTable {
   private Map<String, SymbolInfo> content;
   private SymbolTable parent; // Parent of this table
   private int displacement;
+  private int extent; // Deepest displacement of this table and of its children
+  private boolean frame; // Parameters of a function, first table of its frame
 
   /**
    * Constructor
    * Create a table from a parent table that could be null
    */
   public VariableTable(VariableTable p) {
+    this(p, false);
+  }
+
+  /**
+   * Constructor
+   * Create a table from a parent table that could be null
+   * @param frame the table starts the frame of a function (its parameters):
+   * displacements start again from 0
+   */
+  public VariableTable(VariableTable p, boolean frame) {
     this.parent = p;
+    this.frame = frame;
     this.content = new OrderedMap<String, SymbolInfo>();
 
-    if (p != null)
+    if (p != null && !frame)
       this.displacement = p.offset();
     else
       this.displacement = 0;
+    this.extent = this.displacement;
   }
 
   /**
@@ -46,6 +60,22 @@ public class VariableTable implements SymbolTable {
     return this.displacement;
   }
 
+  /**
+   * Get the deepest displacement reached by this table and by the tables
+   * created from it (nested blocks)
+   */
+  public int extent() {
+    return this.extent;
+  }
+
+  private void extend(int disp) {
+    if (disp > this.extent) {
+      this.extent = disp;
+      if (this.parent != null && !this.frame)
+        ((VariableTable)this.parent).extend(disp);
+    }
+  }
+
   public List<String> symbols() {
     List<String> res = new ArrayList<String>();
     for (String s : this.content.keySet()) {
@@ -102,8 +132,13 @@ public class VariableTable implements SymbolTable {
     VariableInfo vi = (VariableInfo)info;
     this.content.put(name, vi);
 
+    // Parameters are above the frame: they take no room in it
+    if (vi.displacement() < 0)
+      return true;
+
     int ts = vi.type().size();
     this.displacement += (ts % 4 == 0 ? ts : ts + (4 - (ts % 4)));
+    this.extend(this.displacement);
     return true;
   }
 
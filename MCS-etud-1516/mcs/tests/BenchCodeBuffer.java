@@ -0,0 +1,119 @@
+/**
+ * BenchCodeBuffer -- compile time with respect to the size of a function
+ *
+ * Compiles generated sources made of a single function of N statements and
+ * prints the compile time for each N. With the code buffer the time per
+ * statement should stay roughly constant when N grows.
+ * Usage: java mcs.tests.BenchCodeBuffer [N1 N2 ...]
+ *
+ * @version 0.1
+ */
+package mcs.tests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+import mcs.compiler.MCSSourceFile;
+import mcs.egg.MCS;
+import mg.egg.eggc.runtime.libjava.problem.ProblemReporter;
+
+public class BenchCodeBuffer {
+    private static final int[] DefaultSizes = { 500, 1000, 2000, 4000, 8000 };
+    private static final int Runs = 3;
+
+    /**
+     * Write a source file containing a function of n statements
+     * @param n number of statements
+     * @return the file
+     */
+    private static File generateSource(int n) throws IOException {
+        File f = File.createTempFile("bench" + n + "_", ".mcs");
+        f.deleteOnExit();
+        new File(f.getPath().replace(".mcs", ".s")).deleteOnExit();
+
+        PrintWriter pw = new PrintWriter(new FileWriter(f));
+        pw.println("int f(int a) {");
+        pw.println("  int i = 0;");
+        for (int k = 0; k < n; k++)
+            pw.println("  i = i + a * " + (k % 7) + ";");
+        pw.println("  return i;");
+        pw.println("}");
+        pw.println("");
+        pw.println("int main() {");
+        pw.println("  return f(3);");
+        pw.println("}");
+        pw.close();
+
+        return f;
+    }
+
+    /**
+     * Compile the given file, without any output on stdout and stderr
+     * @param f the file
+     * @return the time spent, in ms
+     */
+    private static double compile(File f) throws Exception {
+        PrintStream out = System.out, err = System.err;
+        PrintStream devnull = new PrintStream(new OutputStream() {
+            public void write(int b) {}
+            public void write(byte[] b, int off, int len) {}
+        });
+        System.setOut(devnull);
+        System.setErr(devnull);
+
+        try {
+            long start = System.nanoTime();
+            MCSSourceFile cu = new MCSSourceFile(new String[] { f.getPath() });
+            MCS compilo = new MCS(new ProblemReporter(cu));
+            compilo.set_source(cu);
+            compilo.set_eval(true);
+            compilo.compile(cu);
+            return (System.nanoTime() - start) / 1e6;
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    private static void run(int[] sizes) throws Exception {
+        // Warm up the JVM
+        compile(generateSource(sizes[0]));
+
+        System.out.println("statements\ttime (ms)\tus/statement");
+        for (int n : sizes) {
+            File f = generateSource(n);
+            double best = Double.MAX_VALUE;
+            for (int r = 0; r < Runs; r++)
+                best = Math.min(best, compile(f));
+            System.out.println(String.format("%d\t\t%.1f\t\t%.2f", n, best, best * 1000 / n));
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        final int[] sizes;
+        if (args.length == 0) {
+            sizes = DefaultSizes;
+        } else {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        // The parser is recursive on the statement list: give it room
+        Thread t = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    BenchCodeBuffer.run(sizes);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "bench", 1L << 30);
+        t.start();
+        t.join();
+    }
+}
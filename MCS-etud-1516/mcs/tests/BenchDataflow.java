@@ -0,0 +1,181 @@
+/**
+ * BenchDataflow -- time of the analyses with respect to the size of a function
+ *
+ * Builds functions of N statements shaped like the generated code (loads and
+ * stores relative to SB, arithmetic, if-then-else every third statement,
+ * while loops around groups of statements, calls) and prints the time spent
+ * building the control flow graph and solving liveness, reaching definitions
+ * (pruned by liveness) and available expressions. The time per instruction should stay roughly
+ * constant when N grows.
+ * Usage: java mcs.tests.BenchDataflow [N1 N2 ...]
+ *
+ * @version 0.1
+ */
+package mcs.tests;
+
+import java.util.BitSet;
+
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.ir.AvailableExpressions;
+import mcs.ir.Cond;
+import mcs.ir.ControlFlowGraph;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Liveness;
+import mcs.ir.Opcode;
+import mcs.ir.ReachingDefinitions;
+
+public class BenchDataflow {
+    private static final int[] DefaultSizes = { 1000, 2000, 4000, 8000, 16000, 32000 };
+    private static final int Runs = 3;
+    private static final int LoopSize = 8;      // Statements in a loop
+
+    private static Register[] r = new Register[10];
+    private static Register sb = new Register("r", 11, "SB"), lr = new Register("lr", -1);
+
+    private static Instruction offset(Opcode op, Register r1, Register base, int disp) {
+        return new Instruction(op, Cond.AL, false, Instruction.Addressing.Offset, r1, base, disp, null);
+    }
+
+    /**
+     * Build a function of n statements
+     * @param n number of statements
+     * @return the code
+     */
+    private static InstructionList generateFunction(int n) {
+        InstructionList code = new InstructionList();
+        int labels = 0;
+
+        code.add(Instruction.label("f"));
+        code.add(new Instruction(Opcode.PUSH, new IMachine.RegisterList(lr)));
+
+        for (int k = 0; k < n; k++) {
+            int a = (k % 5) * 4, b = ((k + 2) % 5) * 4;
+
+            if (k % LoopSize == 0) {
+                // while (x < y) {
+                code.add(Instruction.label("loop_" + k));
+                code.add(offset(Opcode.LDR, r[0], sb, -a));
+                code.add(offset(Opcode.LDR, r[1], sb, -b));
+                code.add(new Instruction(Opcode.CMP, r[0], r[1]));
+                code.add(new Instruction(Opcode.MOV, Cond.LT, r[2], 1, null));
+                code.add(new Instruction(Opcode.MOV, Cond.GE, r[2], 0, null));
+                code.add(new Instruction(Opcode.CBZ, r[2], "end_loop_" + k));
+            }
+
+            if (k % 3 == 0) {
+                // if (x > y) x = x - y; else y = y - x;
+                int l = labels++;
+                code.add(offset(Opcode.LDR, r[3], sb, -a));
+                code.add(offset(Opcode.LDR, r[4], sb, -b));
+                code.add(new Instruction(Opcode.CMP, r[3], r[4]));
+                code.add(new Instruction(Opcode.MOV, Cond.GT, r[5], 1, null));
+                code.add(new Instruction(Opcode.MOV, Cond.LE, r[5], 0, null));
+                code.add(new Instruction(Opcode.CBZ, r[5], "else_" + l));
+                code.add(new Instruction(Opcode.SUB, r[6], r[3], r[4]));
+                code.add(offset(Opcode.STR, r[6], sb, -a));
+                code.add(new Instruction(Opcode.B, "end_" + l));
+                code.add(Instruction.label("else_" + l));
+                code.add(new Instruction(Opcode.SUB, r[6], r[4], r[3]));
+                code.add(offset(Opcode.STR, r[6], sb, -b));
+                code.add(Instruction.label("end_" + l));
+            } else if (k % 3 == 1) {
+                // x = x + y * k;
+                code.add(offset(Opcode.LDR, r[3], sb, -a));
+                code.add(offset(Opcode.LDR, r[4], sb, -b));
+                code.add(new Instruction(Opcode.MOV, r[5], k % 7));
+                code.add(new Instruction(Opcode.MUL, r[6], r[4], r[5]));
+                code.add(new Instruction(Opcode.ADD, r[7], r[3], r[6]));
+                code.add(offset(Opcode.STR, r[7], sb, -a));
+            } else {
+                // x = g(x);
+                code.add(offset(Opcode.LDR, r[3], sb, -a));
+                code.add(new Instruction(Opcode.PUSH, new IMachine.RegisterList(r[3])));
+                code.add(new Instruction(Opcode.BL, "g"));
+                code.add(new Instruction(Opcode.POP, new IMachine.RegisterList(r[3])));
+                code.add(offset(Opcode.STR, r[9], sb, -a));
+            }
+
+            if (k % LoopSize == LoopSize - 1 || k == n - 1) {
+                // }
+                int l = k - k % LoopSize;
+                code.add(new Instruction(Opcode.B, "loop_" + l));
+                code.add(Instruction.label("end_loop_" + l));
+            }
+        }
+
+        code.add(Instruction.label("f_end"));
+        code.add(new Instruction(Opcode.POP, new IMachine.RegisterList(lr)));
+        code.add(new Instruction(Opcode.BX, lr));
+
+        return code;
+    }
+
+    private static double ms(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    public static void main(String args[]) {
+        int[] sizes = DefaultSizes;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        for (int i = 0; i < r.length; i++)
+            r[i] = new Register("r", i);
+
+        BitSet callUses = new BitSet(), callDefs = new BitSet(), exitLive = new BitSet();
+        callUses.set(11);
+        callUses.set(DefUse.SP);
+        callDefs.set(0, 11);
+        exitLive.set(9);
+        exitLive.set(11);
+        exitLive.set(DefUse.SP);
+        DefUse du = new DefUse(callUses, callDefs, null);
+
+        // Warm up the JVM
+        for (int w = 0; w < 3; w++) {
+            ControlFlowGraph cfg = new ControlFlowGraph(generateFunction(sizes[0]));
+            Liveness live = new Liveness(cfg, du, exitLive).solve();
+            new ReachingDefinitions(cfg, du, live).solve();
+            new AvailableExpressions(cfg, du).solve();
+        }
+
+        System.out.println("statements\tinstructions\tblocks\tcfg (ms)\tlive (ms)\treach (ms)\tavail (ms)\tvisits/block\tns/instruction");
+        for (int n : sizes) {
+            InstructionList code = generateFunction(n);
+            double best[] = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+            int blocks = 0, visits = 0;
+
+            for (int run = 0; run < Runs; run++) {
+                long t = System.nanoTime();
+                ControlFlowGraph cfg = new ControlFlowGraph(code);
+                best[0] = Math.min(best[0], ms(t));
+
+                t = System.nanoTime();
+                Liveness live = new Liveness(cfg, du, exitLive).solve();
+                best[1] = Math.min(best[1], ms(t));
+
+                t = System.nanoTime();
+                ReachingDefinitions rd = new ReachingDefinitions(cfg, du, live).solve();
+                best[2] = Math.min(best[2], ms(t));
+
+                t = System.nanoTime();
+                AvailableExpressions ae = new AvailableExpressions(cfg, du).solve();
+                best[3] = Math.min(best[3], ms(t));
+
+                blocks = cfg.size();
+                visits = Math.max(live.visits(), Math.max(rd.visits(), ae.visits()));
+            }
+
+            double total = best[0] + best[1] + best[2] + best[3];
+            System.out.println(String.format("%d\t\t%d\t\t%d\t%.1f\t\t%.1f\t\t%.1f\t\t%.1f\t\t%.2f\t\t%.0f",
+                    n, code.size(), blocks, best[0], best[1], best[2], best[3],
+                    (double)visits / blocks, total * 1e6 / code.size()));
+        }
+    }
+}
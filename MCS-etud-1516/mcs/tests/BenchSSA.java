@@ -0,0 +1,182 @@
+/**
+ * BenchSSA -- time of the SSA construction and of the constant propagation
+ * with respect to the size of a function
+ *
+ * Builds functions of N statements shaped like the generated code at level
+ * 1 (five variables kept in virtual registers, an if-then-else every third
+ * statement, while loops around groups of statements, calls) and prints the
+ * time spent computing the dominators, building the SSA view and
+ * propagating the constants. Half of the variables start as constants. The
+ * time per instruction should stay roughly constant when N grows.
+ * Usage: java mcs.tests.BenchSSA [N1 N2 ...]
+ *
+ * @version 0.1
+ */
+package mcs.tests;
+
+import java.util.BitSet;
+
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.ir.Cond;
+import mcs.ir.ConstantPropagation;
+import mcs.ir.ControlFlowGraph;
+import mcs.ir.DefUse;
+import mcs.ir.Dominators;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.ir.SSA;
+
+public class BenchSSA {
+    private static final int[] DefaultSizes = { 1000, 2000, 4000, 8000, 16000, 32000 };
+    private static final int Runs = 3;
+    private static final int LoopSize = 8;      // Statements in a loop
+    private static final int Variables = 5;
+
+    private static Register r0 = new Register("r", 0), r9 = new Register("r", 9), lr = new Register("lr", -1);
+    private static int temp;
+
+    private static Register variable(int k) {
+        return new Register("v", DefUse.FirstVirtual + k % Variables);
+    }
+
+    private static Register temp() {
+        return new Register("v", DefUse.FirstVirtual + Variables + temp++);
+    }
+
+    /**
+     * Build a function of n statements
+     * @param n number of statements
+     * @return the code
+     */
+    private static InstructionList generateFunction(int n) {
+        InstructionList code = new InstructionList();
+        int labels = 0;
+        temp = 0;
+
+        code.add(Instruction.label("f"));
+        code.add(new Instruction(Opcode.PUSH, new IMachine.RegisterList(lr)));
+        for (int k = 0; k < Variables; k++)
+            code.add((k % 2 == 0 ? new Instruction(Opcode.MOV, variable(k), k + 1) : new Instruction(Opcode.MOV, variable(k), r0)));
+
+        for (int k = 0; k < n; k++) {
+            Register x = variable(k), y = variable(k + 2);
+
+            if (k % LoopSize == 0) {
+                // while (x < y) {
+                Register c = temp();
+                code.add(Instruction.label("loop_" + k));
+                code.add(new Instruction(Opcode.MOV, c, 0));
+                code.add(new Instruction(Opcode.CMP, x, y));
+                code.add(new Instruction(Opcode.MOV, Cond.LT, c, 1, null));
+                code.add(new Instruction(Opcode.CBZ, c, "end_loop_" + k));
+            }
+
+            if (k % 3 == 0) {
+                // if (x > y) x = x - y; else y = y - x;
+                int l = labels++;
+                Register c = temp(), t = temp(), u = temp();
+                code.add(new Instruction(Opcode.MOV, c, 0));
+                code.add(new Instruction(Opcode.CMP, x, y));
+                code.add(new Instruction(Opcode.MOV, Cond.GT, c, 1, null));
+                code.add(new Instruction(Opcode.CBZ, c, "else_" + l));
+                code.add(new Instruction(Opcode.SUB, t, x, y));
+                code.add(new Instruction(Opcode.MOV, x, t));
+                code.add(new Instruction(Opcode.B, "end_" + l));
+                code.add(Instruction.label("else_" + l));
+                code.add(new Instruction(Opcode.SUB, u, y, x));
+                code.add(new Instruction(Opcode.MOV, y, u));
+                code.add(Instruction.label("end_" + l));
+            } else if (k % 3 == 1) {
+                // x = x + y * k;
+                Register c = temp(), t = temp(), u = temp();
+                code.add(new Instruction(Opcode.MOV, c, k % 7));
+                code.add(new Instruction(Opcode.MUL, t, y, c));
+                code.add(new Instruction(Opcode.ADD, u, x, t));
+                code.add(new Instruction(Opcode.MOV, x, u));
+            } else {
+                // x = g(x);
+                Register t = temp();
+                code.add(new Instruction(Opcode.MOV, r0, x));
+                code.add(new Instruction(Opcode.BL, "g"));
+                code.add(new Instruction(Opcode.MOV, t, r9));
+                code.add(new Instruction(Opcode.MOV, x, t));
+            }
+
+            if (k % LoopSize == LoopSize - 1 || k == n - 1) {
+                // }
+                int l = k - k % LoopSize;
+                code.add(new Instruction(Opcode.B, "loop_" + l));
+                code.add(Instruction.label("end_loop_" + l));
+            }
+        }
+
+        code.add(new Instruction(Opcode.MOV, r9, variable(0)));
+        code.add(Instruction.label("f_end"));
+        code.add(new Instruction(Opcode.POP, new IMachine.RegisterList(lr)));
+        code.add(new Instruction(Opcode.BX, lr));
+
+        return code;
+    }
+
+    private static double ms(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    public static void main(String args[]) {
+        int[] sizes = DefaultSizes;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        BitSet callUses = new BitSet(), callDefs = new BitSet();
+        callUses.set(0);
+        callUses.set(11);
+        callUses.set(DefUse.SP);
+        callDefs.set(0, 11);
+        DefUse du = new DefUse(callUses, callDefs, null);
+
+        // Warm up the JVM
+        for (int w = 0; w < 3; w++) {
+            ControlFlowGraph cfg = new ControlFlowGraph(generateFunction(sizes[0]));
+            new ConstantPropagation(new SSA(cfg, new Dominators(cfg), du));
+        }
+
+        System.out.println("statements\tinstructions\tblocks\tphis\tdom (ms)\tssa (ms)\tsccp (ms)\tconstants\tns/instruction");
+        for (int n : sizes) {
+            InstructionList code = generateFunction(n);
+            double best[] = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+            int blocks = 0, phis = 0, constants = 0;
+
+            for (int run = 0; run < Runs; run++) {
+                ControlFlowGraph cfg = new ControlFlowGraph(code);
+
+                long t = System.nanoTime();
+                Dominators dom = new Dominators(cfg);
+                best[0] = Math.min(best[0], ms(t));
+
+                t = System.nanoTime();
+                SSA ssa = new SSA(cfg, dom, du);
+                best[1] = Math.min(best[1], ms(t));
+
+                t = System.nanoTime();
+                ConstantPropagation cp = new ConstantPropagation(ssa);
+                best[2] = Math.min(best[2], ms(t));
+
+                blocks = cfg.size();
+                phis = ssa.phiCount();
+                constants = 0;
+                for (int i = 0; i < code.size(); i++)
+                    constants += (cp.constant(i) != null ? 1 : 0);
+            }
+
+            double total = best[0] + best[1] + best[2];
+            System.out.println(String.format("%d\t\t%d\t\t%d\t%d\t%.1f\t\t%.1f\t\t%.1f\t\t%d\t\t%.0f",
+                    n, code.size(), blocks, phis, best[0], best[1], best[2], constants,
+                    total * 1e6 / code.size()));
+        }
+    }
+}
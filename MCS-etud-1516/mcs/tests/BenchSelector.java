@@ -0,0 +1,239 @@
+/**
+ * BenchSelector -- instructions and cost of the code made by the selector
+ * against the one instruction per operation of the code generator
+ *
+ * Builds functions of N statements shaped like the generated code at level
+ * 1 (a product added, an element loaded by its index, an element stored
+ * at an index computed, a difference compared with 0) and prints the number
+ * of instructions and their cost (see Selector.Costs) before and after the
+ * selector, the accesses given a register index, and the time it takes.
+ * The grammar never makes an access through a register index (only the
+ * engine API does), so the functions are also built from the two other
+ * statements alone: the gain a compiled program can get. Then compiles a
+ * loop through the engine API, s = s + a[i] * x, at level 1 with and
+ * without the selector (see ARMEngine.setSelection).
+ * Usage: java mcs.tests.BenchSelector [N1 N2 ...]
+ *
+ * @version 0.1
+ */
+package mcs.tests;
+
+import java.util.BitSet;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.ir.Selector;
+import mcs.symtab.ArrayType;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class BenchSelector {
+    private static final int[] DefaultSizes = { 1000, 4000, 16000 };
+    private static final int Runs = 3;
+    private static final int Variables = 5;
+
+    private static Register r0 = new Register("r", 0), r9 = new Register("r", 9), lr = new Register("lr", -1);
+    private static int temp;
+
+    private static Register variable(int k) {
+        return new Register("v", DefUse.FirstVirtual + 1 + k % Variables);
+    }
+
+    private static Register temp() {
+        return new Register("v", DefUse.FirstVirtual + 1 + Variables + temp++);
+    }
+
+    private static Instruction memory(Opcode op, Register r, Register base, Object disp) {
+        return new Instruction(op, Cond.AL, false, Instruction.Addressing.Offset, r, base, disp, null);
+    }
+
+    /**
+     * Build a function of n statements, on an array p
+     * @param n number of statements
+     * @param indexed whether there are accesses to p[y]
+     * @return the code
+     */
+    private static InstructionList generateFunction(int n, boolean indexed) {
+        InstructionList code = new InstructionList();
+        Register p = new Register("v", DefUse.FirstVirtual);
+        temp = 0;
+
+        code.add(Instruction.label("f"));
+        code.add(new Instruction(Opcode.PUSH, new IMachine.RegisterList(lr)));
+        code.add(new Instruction(Opcode.MOV, p, r0));
+        for (int k = 0; k < Variables; k++)
+            code.add(new Instruction(Opcode.MOV, variable(k), k + 1));
+
+        for (int k = 0; k < n; k++) {
+            Register x = variable(k), y = variable(k + 1), z = variable(k + 2);
+            int shape = (indexed ? k % 4 : 3 * (k % 2));
+
+            if (shape == 0) {
+                // x = x + y * z;
+                Register t = temp(), u = temp();
+                code.add(new Instruction(Opcode.MUL, t, y, z));
+                code.add(new Instruction(Opcode.ADD, u, x, t));
+                code.add(new Instruction(Opcode.MOV, x, u));
+            } else if (shape == 1) {
+                // x = x + p[y];
+                Register t = temp(), u = temp(), w = temp();
+                code.add(new Instruction(Opcode.LSL, t, y, 2));
+                code.add(memory(Opcode.LDR, u, p, t));
+                code.add(new Instruction(Opcode.ADD, w, x, u));
+                code.add(new Instruction(Opcode.MOV, x, w));
+            } else if (shape == 2) {
+                // p[y + 1] = x;
+                Register t = temp(), u = temp(), w = temp();
+                code.add(new Instruction(Opcode.ADD, t, y, 1));
+                code.add(new Instruction(Opcode.LSL, u, t, 2));
+                code.add(new Instruction(Opcode.ADD, w, p, u));
+                code.add(memory(Opcode.STR, x, w, null));
+            } else {
+                // if (x - y < 0) x = y;
+                Register t = temp();
+                code.add(new Instruction(Opcode.SUB, t, x, y));
+                code.add(new Instruction(Opcode.CMP, t, 0));
+                code.add(new Instruction(Opcode.B, Cond.GE, "skip_" + k, null, null));
+                code.add(new Instruction(Opcode.MOV, x, y));
+                code.add(Instruction.label("skip_" + k));
+            }
+        }
+
+        code.add(new Instruction(Opcode.MOV, r9, variable(0)));
+        code.add(new Instruction(Opcode.POP, new IMachine.RegisterList(lr)));
+        code.add(new Instruction(Opcode.BX, lr));
+
+        return code;
+    }
+
+    /**
+     * int k(int a[], int n, int x) { i = 0; s = 0; while (i < n) { s = s + a[i] * x; i = i + 1; } return s; }
+     * @param selection whether the selector runs
+     * @return the code, at level 1
+     */
+    private static InstructionList engineFunction(boolean selection) throws MCSException {
+        ARMEngine m = new ARMEngine();
+        m.setOptimize(1);
+        m.setSelection(selection);
+        NamespaceInfo ns = new DefaultNamespaceInfo();
+        RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+        FunctionInfo k = new FunctionInfo("k", new IntegerType(), ns, m.functionReturn());
+        k.add(new ArrayType(new IntegerType(), 10));
+        k.add(new IntegerType());
+        k.add(new IntegerType());
+        VariableInfo t = new VariableInfo(new ArrayType(new IntegerType(), 10), k.displacement(0), ns);
+        VariableInfo n = new VariableInfo(new IntegerType(), k.displacement(1), ns);
+        VariableInfo x = new VariableInfo(new IntegerType(), k.displacement(2), ns);
+        m.bindParameter(k, 0, t);
+        m.bindParameter(k, 1, n);
+        m.bindParameter(k, 2, x);
+        VariableInfo i = new VariableInfo(new IntegerType(), 0, ns);
+        VariableInfo s = new VariableInfo(new IntegerType(), 4, ns);
+        k.setFrameSize(8);
+
+        Code body = new Code(m.generateAllocateLocal(i), m.generateAllocateLocal(s));
+        body.append(m.generateLoadConstant(new ConstantInfo(new IntegerType(), 0), a), m.generateStoreVariable(i, a.get()));
+        body.append(m.generateLoadConstant(new ConstantInfo(new IntegerType(), 0), a), m.generateStoreVariable(s, a.get()));
+        Code test = new Code(m.generateLoadValue(i, a), m.generateLoadValue(n, b),
+                m.generateOperation(IMachine.Operator.LT.value(), a.get(), b.get(), c));
+        Register cond = c.get();
+        Code loop = new Code(m.generateLoadValue(i, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 4), b),
+                m.generateOperation(IMachine.Operator.MUL.value(), a.get(), b.get(), c));
+        loop.append(m.generateLoadValue(t, c.get(), a), m.generateLoadValue(x, b),
+                m.generateOperation(IMachine.Operator.MUL.value(), a.get(), b.get(), c));
+        Register product = c.get();
+        loop.append(m.generateLoadValue(s, a), m.generateOperation(IMachine.Operator.ADD.value(), a.get(), product, c),
+                m.generateStoreVariable(s, c.get()));
+        loop.append(m.generateLoadValue(i, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 1), b),
+                m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c), m.generateStoreVariable(i, c.get()));
+        body.append(m.generateWhile(test, cond, loop));
+        body.append(m.generateLoadValue(s, a), m.generateFunctionReturn(k, a.get()));
+        return m.generateFunctionDeclaration(k, body).instructions();
+    }
+
+    private static int instructions(InstructionList code) {
+        int n = 0;
+        for (Instruction inst : code) {
+            if (!inst.opcode().isPseudo())
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Number of loads and stores whose index is a register
+     */
+    private static int indexed(InstructionList code) {
+        int n = 0;
+        for (Instruction inst : code) {
+            Opcode.Kind kind = inst.opcode().kind();
+            if ((kind == Opcode.Kind.Load || kind == Opcode.Kind.Store) && inst.operand(2) instanceof Register)
+                n++;
+        }
+        return n;
+    }
+
+    private static double ms(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    public static void main(String args[]) throws MCSException {
+        int[] sizes = DefaultSizes;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        BitSet callUses = new BitSet(), callDefs = new BitSet();
+        callUses.set(11);
+        callUses.set(DefUse.SP);
+        callDefs.set(0, 11);
+        DefUse du = new DefUse(callUses, callDefs, null);
+
+        // Warm up the JVM
+        for (int w = 0; w < 3; w++)
+            new Selector(du).run(generateFunction(sizes[0], true));
+
+        for (boolean indexed : new boolean[] { true, false }) {
+            System.out.println(indexed ? "with p[y] (engine API only)" : "without p[y] (as compiled programs)");
+            System.out.println("statements\tinstructions\tselected\tcost\tselected\tgain (%)\tindexed\tselection (ms)");
+            for (int n : sizes) {
+                InstructionList code = generateFunction(n, indexed), done = code;
+                double best = Double.MAX_VALUE;
+                for (int run = 0; run < Runs; run++) {
+                    long t = System.nanoTime();
+                    done = new Selector(du).run(code);
+                    best = Math.min(best, ms(t));
+                }
+
+                int before = Selector.cost(code), after = Selector.cost(done);
+                System.out.println(String.format("%d\t\t%d\t\t%d\t\t%d\t%d\t\t%.1f\t\t%d\t%.1f",
+                        n, instructions(code), instructions(done), before, after,
+                        100.0 * (before - after) / before, indexed(done), best));
+            }
+            System.out.println();
+        }
+
+        System.out.println("k, level 1 (engine API only)\tinstructions\tcost");
+        for (boolean selection : new boolean[] { false, true }) {
+            InstructionList code = engineFunction(selection);
+            System.out.println(String.format("%s\t%d\t\t%d", (selection ? "selector" : "one per op"),
+                    instructions(code), Selector.cost(code)));
+        }
+    }
+}
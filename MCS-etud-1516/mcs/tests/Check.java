@@ -0,0 +1,231 @@
+/**
+ * Helpers of the tests: a check that counts the failures and the summary
+ * that ends a test, the code of the constants, operations, parameters and
+ * calls as the grammar generates them, a program compiled from its source,
+ * and the registers, instructions and simulators of the tests that build
+ * their code by hand
+ */
+package mcs.tests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.BitSet;
+
+import mcs.compiler.MCSException;
+import mcs.compiler.MCSSourceFile;
+import mcs.egg.MCS;
+import mcs.gc.AbstractMachine;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.DisplacementList;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.Type;
+import mcs.symtab.VariableInfo;
+import mg.egg.eggc.runtime.libjava.problem.IProblem;
+import mg.egg.eggc.runtime.libjava.problem.ProblemReporter;
+
+public class Check {
+  /**
+   * Addresses of the heap and of the frame in the simulated memory
+   */
+  public static final int Heap = 0x10000, Frame = 0x8000;
+
+  public static final Register r0 = new Register("r", 0), r1 = new Register("r", 1), r2 = new Register("r", 2),
+      r3 = new Register("r", 3), r9 = new Register("r", 9), sb = new Register("r", 11), sp = new Register("sp", -1),
+      lr = new Register("lr", -1);
+
+  private static int failures = 0;
+  private static boolean verbose = true;
+
+  /**
+   * Whether the checks that pass are printed; the tests that make
+   * thousands of checks print only the failures
+   */
+  public static void setVerbose(boolean verbose) {
+    Check.verbose = verbose;
+  }
+
+  public static void check(String what, Object got, Object expected) {
+    boolean ok = String.valueOf(got).equals(String.valueOf(expected));
+    if (verbose || !ok)
+      System.out.println((ok ? "ok   " : "FAIL ") + what + " : " + got + (ok ? "" : " (expected " + expected + ")"));
+    if (!ok)
+      failures++;
+  }
+
+  /**
+   * End of a test: prints the number of failed checks, and exits with 1
+   * if there is any
+   */
+  public static void done() {
+    System.out.println(failures == 0 ? "All tests passed" : failures + " test(s) failed");
+    if (failures != 0)
+      System.exit(1);
+  }
+
+  public static Code constant(ARMEngine m, int value, RegisterWrapper r) throws MCSException {
+    return m.generateLoadConstant(new ConstantInfo(new IntegerType(), value), r);
+  }
+
+  public static Code operation(ARMEngine m, IMachine.Operator op, Register r1, Register r2, RegisterWrapper r)
+      throws MCSException {
+    return m.generateOperation(op.value(), r1, r2, r);
+  }
+
+  public static Code operation(ARMEngine m, IMachine.Operator op, Register r1, RegisterWrapper r)
+      throws MCSException {
+    return m.generateOperation(op.value(), r1, r);
+  }
+
+  /**
+   * Parameters of a function, declared as the grammar does
+   */
+  public static VariableInfo[] parameters(ARMEngine m, FunctionInfo f, NamespaceInfo ns, Type... types)
+      throws MCSException {
+    VariableInfo[] params = new VariableInfo[types.length];
+    for (int n = 0; n < types.length; n++) {
+      f.add(types[n]);
+      params[n] = new VariableInfo(types[n], f.displacement(n), ns);
+      m.bindParameter(f, n, params[n]);
+    }
+    return params;
+  }
+
+  /**
+   * Code of a call, as the grammar generates it: the arguments are given
+   * as they are evaluated, the result is taken through an empty address
+   */
+  public static Code call(ARMEngine m, FunctionInfo g, RegisterWrapper result, Register... args)
+      throws MCSException {
+    Code code = new Code();
+    for (Register r : args)
+      code.append(m.generateFunctionPushArgument(r));
+    return code.append(m.generateFunctionCall(g),
+        m.generateMakeAddress(new DisplacementList(), g.register(), result, new RegisterWrapper()));
+  }
+
+  /**
+   * Code of a program compiled from its source, as MCSC does at a level:
+   * the code of its entities, in order, without any output on stdout and
+   * stderr (the assembly file is written next to a temporary source, then
+   * removed)
+   * @param source the program
+   * @param level the optimization level
+   * @return the code
+   */
+  public static InstructionList compile(String source, int level) throws Exception {
+    File f = File.createTempFile("check", ".mcs");
+    File s = new File(f.getPath().replaceFirst("\\.mcs$", ".s"));
+    Writer w = new FileWriter(f);
+    w.write(source);
+    w.close();
+
+    final InstructionList code = new InstructionList();
+    final ARMEngine m = new ARMEngine() {
+      @Override
+      public void writeEntity(Code entity) throws MCSException {
+        code.addAll(entity.instructions());
+        super.writeEntity(entity);
+      }
+    };
+    m.setOptimize(level);
+
+    PrintStream out = System.out, err = System.err;
+    PrintStream devnull = new PrintStream(new OutputStream() {
+      public void write(int b) {}
+      public void write(byte[] b, int off, int len) {}
+    });
+    System.setOut(devnull);
+    System.setErr(devnull);
+    try {
+      MCSSourceFile cu = new MCSSourceFile(new String[] { f.getPath() }) {
+        @Override
+        public AbstractMachine getMachine() {
+          return m;
+        }
+      };
+      ProblemReporter prp = new ProblemReporter(cu);
+      MCS compilo = new MCS(prp);
+      compilo.set_source(cu);
+      compilo.set_eval(true);
+      compilo.compile(cu);
+      for (IProblem problem : prp.getAllProblems()) {
+        if (problem.isError())
+          throw new MCSException("line " + problem.getSourceLineNumber() + ": " + problem.getMessage());
+      }
+    } finally {
+      System.setOut(out);
+      System.setErr(err);
+      f.delete();
+      s.delete();
+    }
+    return code;
+  }
+
+  public static Register v(int n) {
+    return new Register("v", n);
+  }
+
+  /**
+   * Registers used and defined by a call in the code built by hand: r11
+   * and the stack pointer are read, r0 to r10 are clobbered
+   */
+  public static DefUse defUse() {
+    BitSet callUses = new BitSet(), callDefs = new BitSet();
+    callUses.set(11);
+    callUses.set(DefUse.SP);
+    callDefs.set(0, 11);
+    return new DefUse(callUses, callDefs, null);
+  }
+
+  public static Instruction memory(Opcode op, Register r, Register base, Object disp) {
+    return new Instruction(op, Cond.AL, false, Instruction.Addressing.Offset, r, base, disp, null);
+  }
+
+  /**
+   * Simulator of the code built by hand: the frame at Frame, the arguments
+   * in r0, r1...
+   */
+  public static Simulator simulator(InstructionList code, DefUse du, int... args) {
+    Simulator sim = new Simulator(code, du);
+    sim.set(11, Frame);
+    for (int n = 0; n < args.length; n++)
+      sim.set(n, args[n]);
+    return sim;
+  }
+
+  /**
+   * Simulator of a function of the engine: the heap at Heap, the arguments
+   * in r0, r1...
+   */
+  public static Simulator simulator(ARMEngine m, InstructionList code, int... args) {
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    for (int n = 0; n < args.length; n++)
+      sim.set(n, args[n]);
+    return sim;
+  }
+
+  public static int count(InstructionList code, Opcode op) {
+    int n = 0;
+    for (Instruction inst : code) {
+      if (inst.opcode() == op)
+        n++;
+    }
+    return n;
+  }
+}
@@ -0,0 +1,352 @@
+/**
+ * Simulator of the instruction representation, for the tests
+ *
+ * Registers are numbered as in DefUse (virtual registers included), memory
+ * is made of 32 bit words at any address. Only the instructions the code
+ * generator produces are known; the condition flags are kept after CMP, CMN,
+ * TST and instructions with the S suffix (not their carry out of a shift). A call to a label that is not in
+ * the code, or SVC, stops the run.
+ */
+package mcs.tests;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Shift;
+
+public class Simulator {
+  public static final int Stack = 0x100000;       // Initial stack pointer
+  public static final int Return = -4;            // lr when the simulation starts
+
+  private InstructionList code;
+  private DefUse du;
+  private Map<String, Integer> labels;
+  private Map<Integer, Integer> regs;
+  private Map<Integer, Integer> memory;
+  private boolean n, z, c, v;
+  private long steps;
+  private long accesses;
+  private int lowest = Stack;
+  private String stop;
+
+  /**
+   * Constructor
+   * @param code the code to run
+   * @param du names of the registers
+   */
+  public Simulator(InstructionList code, DefUse du) {
+    this.code = code;
+    this.du = du;
+    this.labels = new HashMap<String, Integer>();
+    this.regs = new HashMap<Integer, Integer>();
+    this.memory = new HashMap<Integer, Integer>();
+
+    for (int i = 0; i < code.size(); i++) {
+      if (code.get(i).isLabel())
+        this.labels.put(code.get(i).text(), i);
+    }
+    set(DefUse.SP, Stack);
+    set(DefUse.LR, Return);
+  }
+
+  public int get(int r) {
+    Integer x = this.regs.get(r);
+    return (x == null ? 0 : x);
+  }
+
+  public void set(int r, int x) {
+    this.regs.put(r, x);
+    if (r == DefUse.SP)
+      this.lowest = Math.min(this.lowest, x);
+  }
+
+  public int load(int addr) {
+    Integer x = this.memory.get(addr);
+    return (x == null ? 0 : x);
+  }
+
+  public void store(int addr, int x) {
+    this.memory.put(addr, x);
+  }
+
+  /**
+   * Number of instructions run so far
+   */
+  public long steps() {
+    return this.steps;
+  }
+
+  /**
+   * Number of LDR and STR run so far
+   */
+  public long accesses() {
+    return this.accesses;
+  }
+
+  /**
+   * Lowest value of the stack pointer so far
+   */
+  public int lowest() {
+    return this.lowest;
+  }
+
+  /**
+   * Why the last run stopped: "return", "svc", "call <label>", "label <label>"
+   * or "limit"
+   */
+  public String stop() {
+    return this.stop;
+  }
+
+  private int reg(Object o) {
+    int r = this.du.id(o);
+    if (r < 0)
+      throw new IllegalArgumentException("not a register: " + o);
+    return r;
+  }
+
+  /**
+   * Word of a literal pool: the .word after its label
+   */
+  private int literal(String label) {
+    String text = this.code.get(jump(label) + 1).text().trim();
+    return Integer.parseInt(text.substring(".word".length()).trim());
+  }
+
+  private int value(Object o) {
+    if (o == null)
+      return 0;
+    if (o instanceof Integer)
+      return (Integer)o;
+    return get(reg(o));
+  }
+
+  private boolean holds(Cond cond) {
+    switch (cond) {
+      case EQ: return z;
+      case NE: return !z;
+      case CS: return c;
+      case CC: return !c;
+      case MI: return n;
+      case PL: return !n;
+      case VS: return v;
+      case VC: return !v;
+      case HI: return c && !z;
+      case LS: return !c || z;
+      case GE: return n == v;
+      case LT: return n != v;
+      case GT: return !z && n == v;
+      case LE: return z || n != v;
+      default: return true;
+    }
+  }
+
+  private void flags(int res, long unsigned, long signed) {
+    this.n = res < 0;
+    this.z = res == 0;
+    this.c = (unsigned >>> 32) != 0;
+    this.v = signed != res;
+  }
+
+  private int add(int a, int b, boolean s) {
+    int res = a + b;
+    if (s)
+      flags(res, (a & 0xFFFFFFFFL) + (b & 0xFFFFFFFFL), (long)a + (long)b);
+    return res;
+  }
+
+  /**
+   * Result of a logical operation: N and Z from it, C and V kept
+   */
+  private int logic(int res, boolean s) {
+    if (s) {
+      this.n = res < 0;
+      this.z = res == 0;
+    }
+    return res;
+  }
+
+  private int sub(int a, int b, boolean s) {
+    int res = a - b;
+    if (s)
+      flags(res, (a & 0xFFFFFFFFL) + ((~b) & 0xFFFFFFFFL) + 1, (long)a - (long)b);
+    return res;
+  }
+
+  /**
+   * Address of a memory access, and update of the base register
+   */
+  private int address(Instruction inst, int base) {
+    int b = get(base);
+    int off = value(inst.operand(2));
+    // A shifted register offset ([rn, rm, LSL #n])
+    if (inst.operand(3) instanceof Shift)
+      off = ((Shift)inst.operand(3)).apply(off);
+    switch (inst.addressing()) {
+      case PreIndex:
+        set(base, b + off);
+        return b + off;
+      case PostIndex:
+        set(base, b + off);
+        return b;
+      default:
+        return b + off;
+    }
+  }
+
+  /**
+   * Run from a label until the return to the caller
+   * @param label the first label
+   * @param limit maximum number of instructions
+   * @return this
+   */
+  public Simulator run(String label, long limit) {
+    return run(label, null, limit);
+  }
+
+  /**
+   * Run from a label until the return to the caller or another label
+   * @param label the first label
+   * @param end the label where the run stops (null if none)
+   * @param limit maximum number of instructions
+   * @return this
+   */
+  public Simulator run(String label, String end, long limit) {
+    Integer start = this.labels.get(label);
+    if (start == null)
+      throw new IllegalArgumentException("unknown label " + label);
+
+    int pc = start;
+    this.stop = "limit";
+    while (pc >= 0 && pc < this.code.size() && limit-- > 0) {
+      Instruction inst = this.code.get(pc++);
+      if (inst.isLabel() && inst.text().equals(end)) {
+        this.stop = "label " + end;
+        return this;
+      }
+      if (inst.opcode().isPseudo())
+        continue;
+
+      this.steps++;
+      if (!holds(inst.cond()))
+        continue;
+
+      Object o1 = inst.operand(0), o2 = inst.operand(1), o3 = inst.operand(2), o4 = inst.operand(3);
+      boolean s = inst.setsFlags();
+      // Two operand form: op rd, rm means rd := rd op rm
+      Object a = (o3 == null ? o1 : o2), b = (o3 == null ? o2 : o3);
+      // A shifted last operand (ADD rd, rn, rm, LSL #n)
+      if (o4 instanceof Shift)
+        b = ((Shift)o4).apply(value(b));
+
+      switch (inst.opcode()) {
+        case MOV:  set(reg(o1), logic(value(o2), s)); break;
+        case MVN:  set(reg(o1), logic(~value(o2), s)); break;
+        case MOVW: set(reg(o1), value(o2) & 0xFFFF); break;
+        case MOVT: set(reg(o1), (get(reg(o1)) & 0xFFFF) | (value(o2) << 16)); break;
+        case ADD:  set(reg(o1), add(value(a), value(b), s)); break;
+        case SUB:  set(reg(o1), sub(value(a), value(b), s)); break;
+        case RSB:  set(reg(o1), sub(value(b), value(a), s)); break;
+        case MUL:  set(reg(o1), value(a) * value(b)); break;
+        case MLA:  set(reg(o1), value(o2) * value(o3) + value(o4)); break;
+        case MLS:  set(reg(o1), value(o4) - value(o2) * value(o3)); break;
+        case SMMUL: set(reg(o1), (int)(((long)value(o2) * (long)value(o3)) >> 32)); break;
+        case SDIV: set(reg(o1), (value(b) == 0 ? 0 : value(a) / value(b))); break;
+        case AND:  set(reg(o1), logic(value(a) & value(b), s)); break;
+        case ORR:  set(reg(o1), logic(value(a) | value(b), s)); break;
+        case EOR:  set(reg(o1), logic(value(a) ^ value(b), s)); break;
+        case BIC:  set(reg(o1), logic(value(a) & ~value(b), s)); break;
+        case LSL:  set(reg(o1), value(a) << value(b)); break;
+        case LSR:  set(reg(o1), value(a) >>> value(b)); break;
+        case ASR:  set(reg(o1), value(a) >> value(b)); break;
+        case ROR:  set(reg(o1), Integer.rotateRight(value(a), value(b))); break;
+        case CMP:  sub(value(o1), value(o2), true); break;
+        case CMN:  add(value(o1), value(o2), true); break;
+        case TST:  flags(value(o1) & value(o2), 0, value(o1) & value(o2)); break;
+        case TEQ:  flags(value(o1) ^ value(o2), 0, value(o1) ^ value(o2)); break;
+        case LDR:  set(reg(o1), (o2 instanceof String ? literal((String)o2) : load(address(inst, reg(o2)))));
+                   this.accesses++; break;
+        case STR:  store(address(inst, reg(o2)), value(o1)); this.accesses++; break;
+        case PUSH: {
+          List<?> l = (List<?>)o1;
+          int sp = get(DefUse.SP) - 4 * l.size();
+          for (int k = 0; k < l.size(); k++)      // PUSH {sp} saves the value before the push
+            store(sp + 4 * k, value(l.get(k)));
+          set(DefUse.SP, sp);
+          break;
+        }
+        case POP: {
+          List<?> l = (List<?>)o1;
+          int sp = get(DefUse.SP);
+          boolean restored = false;       // POP {sp} takes the saved value
+          for (int k = 0; k < l.size(); k++) {
+            int r = reg(l.get(k));
+            if (r == DefUse.PC)
+              pc = load(sp + 4 * k);
+            else
+              set(r, load(sp + 4 * k));
+            restored |= (r == DefUse.SP);
+          }
+          if (!restored)
+            set(DefUse.SP, sp + 4 * l.size());
+          break;
+        }
+        case STMIA: {
+          int base = reg(o1), addr = get(base);
+          for (Object r : (List<?>)o2) {
+            store(addr, value(r));
+            addr += 4;
+          }
+          if (inst.addressing() == Instruction.Addressing.Writeback)
+            set(base, addr);
+          break;
+        }
+        case LDMIA: {
+          int base = reg(o1), addr = get(base);
+          for (Object r : (List<?>)o2) {
+            set(reg(r), load(addr));
+            addr += 4;
+          }
+          if (inst.addressing() == Instruction.Addressing.Writeback)
+            set(base, addr);
+          break;
+        }
+        case B:    pc = jump(inst.target()); break;
+        case CBZ:  if (value(o1) == 0) pc = jump(inst.target()); break;
+        case CBNZ: if (value(o1) != 0) pc = jump(inst.target()); break;
+        case BX:   pc = value(o1); break;
+        case BL:
+          if (!this.labels.containsKey(inst.target())) {
+            this.stop = "call " + inst.target();
+            return this;
+          }
+          set(DefUse.LR, pc);
+          pc = jump(inst.target());
+          break;
+        case SVC:
+          this.stop = "svc";
+          return this;
+        case NOP:
+          break;
+        default:
+          throw new UnsupportedOperationException("instruction " + inst.mnemonic());
+      }
+    }
+
+    if (pc == Return)
+      this.stop = "return";
+    return this;
+  }
+
+  private int jump(String label) {
+    Integer i = this.labels.get(label);
+    if (i == null)
+      throw new IllegalArgumentException("unknown label " + label);
+    return i;
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * Test of the passing of arguments: the first four words of a call (the
+ * object first, for a method) are passed in r0 to r3, the next ones on the
+ * stack; int, char, bool, pointer and struct arguments, more than four of
+ * them, and a method, must be found by the callee at every level, and a
+ * callee only pushes its register words when it reads one from the stack
+ * (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+import static mcs.tests.Check.operation;
+import static mcs.tests.Check.parameters;
+
+import java.util.List;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.DisplacementList;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.obj.Klass;
+import mcs.obj.MethodInfo;
+import mcs.symtab.BooleanType;
+import mcs.symtab.CharacterType;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.PointerType;
+import mcs.symtab.StructFields;
+import mcs.symtab.StructType;
+import mcs.symtab.VariableInfo;
+
+public class TestArguments {
+  private static final int Heap = 0x10000, Pointer = 0x20000, Struct = 0x20100, Instance = 0x20200;
+
+  /**
+   * Instructions of a part of the code, from a label to another one
+   */
+  private static InstructionList part(InstructionList code, String from, String to) {
+    InstructionList part = new InstructionList();
+    boolean in = false;
+    for (Instruction inst : code) {
+      if (inst.isLabel())
+        in = (in || inst.text().equals(from)) && !inst.text().equals(to);
+      if (in)
+        part.add(inst);
+    }
+    return part;
+  }
+
+  /**
+   * Number of words of the registers of the pool pushed by a function
+   */
+  private static int words(InstructionList code) {
+    int n = 0;
+    for (Instruction inst : code) {
+      if (inst.opcode() != Opcode.PUSH)
+        continue;
+      for (Object o : (List<?>)inst.operand(0)) {
+        if (!((Register)o).hasAlias() && ((Register)o).num() >= 0)
+          n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Registers pushed by a function
+   */
+  private static String pushed(InstructionList code) {
+    String s = "";
+    for (Instruction inst : code) {
+      if (inst.opcode() != Opcode.PUSH)
+        continue;
+      String names = "";
+      for (Object o : (List<?>)inst.operand(0)) {
+        Register r = (Register)o;
+        names += (names.isEmpty() ? "" : " ") + (r.hasAlias() ? r.alias() : r.name());
+      }
+      s += (s.isEmpty() ? "" : ", ") + names;
+    }
+    return s;
+  }
+
+  /**
+   * Instructions of a function up to its body
+   */
+  private static InstructionList prologue(InstructionList code) {
+    InstructionList prologue = new InstructionList();
+    for (Instruction inst : code) {
+      if (inst.isText() && inst.text().contains("Body"))
+        break;
+      prologue.add(inst);
+    }
+    return prologue;
+  }
+
+  /**
+   * Words read or written in memory
+   */
+  private static int accesses(InstructionList code) {
+    int n = 0;
+    for (Instruction inst : code) {
+      Opcode.Kind kind = inst.opcode().kind();
+      if (inst.opcode() == Opcode.PUSH || inst.opcode() == Opcode.POP)
+        n += ((List<?>)inst.operand(0)).size();
+      else if (kind == Opcode.Kind.Load || kind == Opcode.Kind.Store)
+        n++;
+    }
+    return n;
+  }
+
+  private static void run(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // struct S { int x; int y; }
+    StructFields fields = new StructFields();
+    fields.insert("x", new IntegerType());
+    fields.insert("y", new IntegerType());
+    StructType st = new StructType(fields);
+
+    // int mix(int i, char c, bool b, int *p, S s, int e) { return i - c + b + *p + s.y + e; }
+    FunctionInfo f = new FunctionInfo("mix", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] p = parameters(m, f, ns, new IntegerType(), new CharacterType(), new BooleanType(),
+        new PointerType(new IntegerType()), st, new IntegerType());
+    Code body = new Code(m.generateLoadValue(p[0], a), m.generateLoadValue(p[1], b),
+        operation(m, IMachine.Operator.SUB, a.get(), b.get(), c));
+    body.append(m.generateLoadValue(p[2], a), operation(m, IMachine.Operator.ADD, c.get(), a.get(), b));
+    body.append(m.generateLoadValue(p[3], a), m.generateLoadFromHeap(a.get(), 0, c),
+        operation(m, IMachine.Operator.ADD, b.get(), c.get(), a));
+    body.append(m.generateLoadValue(p[4], 4, b), operation(m, IMachine.Operator.ADD, a.get(), b.get(), c));
+    body.append(m.generateLoadValue(p[5], a), operation(m, IMachine.Operator.ADD, c.get(), a.get(), b),
+        m.generateFunctionReturn(f, b.get()));
+    InstructionList code = m.generateFunctionDeclaration(f, body).instructions();
+
+    // int add(int x, int y) { return x + y; }
+    FunctionInfo g = new FunctionInfo("add", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] q = parameters(m, g, ns, new IntegerType(), new IntegerType());
+    code.addAll(m.generateFunctionDeclaration(g, new Code(m.generateLoadValue(q[0], a),
+        m.generateLoadValue(q[1], b), operation(m, IMachine.Operator.ADD, a.get(), b.get(), c),
+        m.generateFunctionReturn(g, c.get()))).instructions());
+
+    // class K { int id; int v; int get(int x) { return this.v + x; } }
+    Klass k = new Klass(1, "K", null, ns);
+    MethodInfo h = new MethodInfo("get", null, new IntegerType(), k, m.functionReturn());
+    VariableInfo[] r = parameters(m, h, ns, new IntegerType());
+    RegisterWrapper self = new RegisterWrapper();
+    code.addAll(m.generateMethodDeclaration(h, new Code(m.generateLoadFromStack(k.thisDisplacement(m), self),
+        m.generateLoadFromHeap(self.get(), 4, a), m.generateLoadValue(r[0], b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateFunctionReturn(h, c.get()))).instructions());
+
+    // int at(int x, int y) { return *(&x) + y; }: x is read from its word
+    FunctionInfo d = new FunctionInfo("at", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] t = parameters(m, d, ns, new IntegerType(), new IntegerType());
+    DisplacementList x = new DisplacementList();
+    x.add(t[0].displacement(), false);
+    Code at = new Code(m.generateMakeAddress(x, a, b), m.generateLoadFromHeap(b.get(), 0, c));
+    Register value = c.get();
+    at.append(m.generateLoadValue(t[1], a), operation(m, IMachine.Operator.ADD, value, a.get(), b),
+        m.generateFunctionReturn(d, b.get()));
+    InstructionList others = m.generateFunctionDeclaration(d, at).instructions();
+
+    // int main() { return mix(100, 'A', true, p, s, 1000) + add(2, 3) + o.get(5) + at(40, 2); }
+    FunctionInfo e = new FunctionInfo("main", new IntegerType(), ns, m.functionReturn());
+    Code main = new Code();
+    for (int v : new int[] { 100, 'A', 1, Pointer, Struct, 1000 })
+      main.append(constant(m, v, a), m.generateFunctionPushArgument(a.get()));
+    main.append(m.generateFunctionCall(f),
+        m.generateMakeAddress(new DisplacementList(), f.register(), c, new RegisterWrapper()));
+    Register sum = c.get();
+    for (int v : new int[] { 2, 3 })
+      main.append(constant(m, v, a), m.generateFunctionPushArgument(a.get()));
+    main.append(m.generateFunctionCall(g),
+        m.generateMakeAddress(new DisplacementList(), g.register(), b, new RegisterWrapper()),
+        operation(m, IMachine.Operator.ADD, sum, b.get(), c));
+    sum = c.get();
+    main.append(constant(m, Instance, self), constant(m, 5, a), m.generateFunctionPushArgument(a.get()));
+    main.append(m.generateMethodCall(h, self.get()),
+        m.generateMakeAddress(new DisplacementList(), h.register(), b, new RegisterWrapper()),
+        operation(m, IMachine.Operator.ADD, sum, b.get(), c));
+    sum = c.get();
+    for (int v : new int[] { 40, 2 })
+      main.append(constant(m, v, a), m.generateFunctionPushArgument(a.get()));
+    main.append(m.generateFunctionCall(d),
+        m.generateMakeAddress(new DisplacementList(), d.register(), b, new RegisterWrapper()),
+        operation(m, IMachine.Operator.ADD, sum, b.get(), c), m.generateFunctionReturn(e, c.get()));
+    code.addAll(m.generateFunctionDeclaration(e, main).instructions());
+    code.addAll(others);
+
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    sim.store(Pointer, 7);
+    sim.store(Struct + 4, 20);
+    // An object of a class without a virtual table entry: the method itself runs
+    sim.store(Instance, k.classId() + 1);
+    sim.store(Instance + 4, 30);
+    sim.run(e.label(), 100000);
+    check("  stops on the return", sim.stop(), "return");
+    check("  result", sim.get(9), (100 - 'A' + 1 + 7 + 20 + 1000) + (2 + 3) + (30 + 5) + (40 + 2));
+    check("  stack pointer back", Integer.toHexString(sim.get(DefUse.SP)), Integer.toHexString(Simulator.Stack));
+    check("  stack base back", sim.get(11), 0);
+
+    // Only the two last words of mix are pushed
+    check("  words pushed by main", words(part(code, e.label(), d.label())), 2);
+
+    // The register words are only pushed when one of them is read from the stack
+    String all = "r0 r1 r2 r3";
+    check("  mix pushes", pushed(part(code, f.label(), g.label())), (level == 0 ? all + ", " : "") + "SB");
+    check("  add pushes", pushed(part(code, g.label(), h.label())), (level == 0 ? "r0 r1, SB" : ""));
+    check("  get pushes (this read)", pushed(part(code, h.label(), e.label())), "r0 r1, SB");
+    // The words of at are pushed, and not stored again in the same place
+    check("  at pushes (address of x)", pushed(part(code, d.label(), null)), "r0 r1, SB");
+    check("  at prologue accesses", accesses(prologue(part(code, d.label(), null))), 3);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      run(level);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Test of the comparisons branched on: from level 1, an if or a while whose
+ * condition is a comparison (or its negation) branches on the flags, and the
+ * boolean is only computed when it is stored, also in a program compiled from
+ * its source; the results must be the same at every level (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.compile;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+import static mcs.tests.Check.operation;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestCondition {
+  private static final int Heap = 0x10000;
+
+  private static int count(InstructionList code, Opcode op, boolean conditional) {
+    int n = 0;
+    for (Instruction inst : code) {
+      if (inst.opcode() == op && (inst.cond() != Cond.AL) == conditional)
+        n++;
+    }
+    return n;
+  }
+
+  private static void engine(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // int k(int p) { b = p < 10; if (!(p > 20)) x = 1; else x = 2;
+    //                i = 0; while (i < p) i = i + 3; return i * 100 + x * 10 + b; }
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), ns, m.functionReturn());
+    k.add(new IntegerType());
+    VariableInfo p = new VariableInfo(new IntegerType(), k.displacement(0), ns);
+    m.bindParameter(k, 0, p);
+    VariableInfo vb = new VariableInfo(new IntegerType(), 0, ns);
+    VariableInfo x = new VariableInfo(new IntegerType(), 4, ns);
+    VariableInfo i = new VariableInfo(new IntegerType(), 8, ns);
+    k.setFrameSize(12);
+
+    Code body = new Code(m.generateAllocateLocal(vb), m.generateAllocateLocal(x), m.generateAllocateLocal(i));
+    body.append(m.generateLoadValue(p, a), constant(m, 10, b), operation(m, IMachine.Operator.LT, a.get(), b.get(), c),
+        m.generateStoreVariable(vb, c.get()));
+    body.append(m.generateLoadValue(p, a), constant(m, 20, b), operation(m, IMachine.Operator.GT, a.get(), b.get(), c));
+    body.append(m.generateOperation(IMachine.Operator.RNOT.value(), c.get(), a));
+    Register cond = a.get();
+    body.append(m.generateIfThenElse(cond, new Code(constant(m, 1, a), m.generateStoreVariable(x, a.get())),
+        new Code(constant(m, 2, a), m.generateStoreVariable(x, a.get()))));
+    body.append(constant(m, 0, a), m.generateStoreVariable(i, a.get()));
+    Code test = new Code(m.generateLoadValue(i, a), m.generateLoadValue(p, b),
+        operation(m, IMachine.Operator.LT, a.get(), b.get(), c));
+    cond = c.get();
+    Code loop = new Code(m.generateLoadValue(i, a), constant(m, 3, b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateStoreVariable(i, c.get()));
+    body.append(m.generateWhile(test, cond, loop));
+    body.append(m.generateLoadValue(i, a), constant(m, 100, b), operation(m, IMachine.Operator.MUL, a.get(), b.get(), c));
+    Register sum = c.get();
+    body.append(m.generateLoadValue(x, a), constant(m, 10, b), operation(m, IMachine.Operator.MUL, a.get(), b.get(), c));
+    body.append(operation(m, IMachine.Operator.ADD, sum, c.get(), a));
+    sum = a.get();
+    body.append(m.generateLoadValue(vb, b), operation(m, IMachine.Operator.ADD, sum, b.get(), c),
+        m.generateFunctionReturn(k, c.get()));
+    InstructionList code = m.generateFunctionDeclaration(k, body).instructions();
+
+    for (int[] pr : new int[][] { { 5, 611 }, { 15, 1510 }, { 25, 2720 }, { 0, 11 } }) {
+      Simulator sim = new Simulator(code, m.defUse());
+      sim.set(12, Heap);
+      sim.set(0, pr[0]);
+      sim.run(k.label(), 10000);
+      check("  stops on the return", sim.stop(), "return");
+      check("  k(" + pr[0] + ")", sim.get(9), pr[1]);
+    }
+
+    boolean on = level >= 1;
+    check("  booleans tested", count(code, Opcode.CBZ, false), (on ? 0 : 2));
+    check("  branches on the flags", count(code, Opcode.B, true), (on ? 2 : 0));
+    check("  booleans computed", count(code, Opcode.MOV, true), (on ? 1 : 4));
+    check("  comparisons", count(code, Opcode.CMP, false), (on ? 3 : 4));
+  }
+
+  /**
+   * The code of a function, from its label to the next function
+   */
+  private static InstructionList function(InstructionList code, String label) {
+    InstructionList part = new InstructionList();
+    boolean in = false;
+    for (Instruction inst : code) {
+      if (inst.isLabel() && inst.text().startsWith("_"))
+        in = inst.text().equals(label);
+      if (in)
+        part.add(inst);
+    }
+    return part;
+  }
+
+  /**
+   * The negation of a comparison, as the parser reads it: ! is a logical not
+   */
+  private static void source(int level) throws Exception {
+    InstructionList code = compile("int f(int a, int b) { int r; r = 0; if (!(a < b)) { r = 1; } return r; }\n"
+        + "int main() { int x; int y; x = f(1, 2); y = f(2, 1); return x * 10 + y; }\n", level);
+
+    Simulator sim = new Simulator(code, new ARMEngine().defUse());
+    sim.set(12, Heap);
+    sim.run("_main__Integer", 10000);
+    check("  stops on the return", sim.stop(), "return");
+    check("  f(1, 2) * 10 + f(2, 1)", sim.get(9), 1);
+
+    InstructionList f = function(code, "_f__Integer_Integer_Integer");
+    boolean on = level >= 1;
+    check("  f complements", count(f, Opcode.MVN, false), 0);
+    check("  f compares", count(f, Opcode.CMP, false), (on ? 1 : 2));
+    check("  f branches on the flags", count(f, Opcode.B, true), (on ? 1 : 0));
+    check("  f booleans computed", count(f, Opcode.MOV, true), (on ? 0 : 2));
+  }
+
+  public static void main(String args[]) throws Exception {
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+    for (int level = 0; level <= 2; level++) {
+      System.out.println("== source, level " + level);
+      source(level);
+    }
+
+    done();
+  }
+}
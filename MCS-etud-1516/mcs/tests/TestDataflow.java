@@ -0,0 +1,137 @@
+/**
+ * Test of the control flow graph and of the dataflow analyses
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+
+import java.util.BitSet;
+
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.ir.AvailableExpressions;
+import mcs.ir.Cond;
+import mcs.ir.ControlFlowGraph;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Liveness;
+import mcs.ir.Loops;
+import mcs.ir.Opcode;
+import mcs.ir.ReachingDefinitions;
+
+public class TestDataflow {
+  private static String names(BitSet s) {
+    String n = "";
+    for (int r = s.nextSetBit(0); r >= 0; r = s.nextSetBit(r + 1))
+      n += (n.isEmpty() ? "" : " ") + DefUse.name(r);
+    return n;
+  }
+
+  public static void main(String args[]) {
+    Register r0 = new Register("r", 0), r1 = new Register("r", 1), r2 = new Register("r", 2),
+             r3 = new Register("r", 3), sb = new Register("r", 11, "SB"), lr = new Register("lr", -1);
+
+    // int f() { i = 0; while (i < n) { i = i + n*4; g(); } return n*4; }
+    //   (i in r0, n in r1)
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, r0, 0));
+    code.add(new Instruction(Opcode.LDR, Cond.AL, false, Instruction.Addressing.Offset, r1, sb, -4, null));
+    code.add(Instruction.label("loop_0"));                                       // B1
+    code.add(new Instruction(Opcode.CMP, r0, r1));
+    code.add(new Instruction(Opcode.MOV, Cond.LT, r2, 1, null));
+    code.add(new Instruction(Opcode.MOV, Cond.GE, r2, 0, null));
+    code.add(new Instruction(Opcode.CBZ, r2, "end_loop_0"));
+    code.add(new Instruction(Opcode.MUL, r3, r1, 4));                            // B2
+    code.add(new Instruction(Opcode.ADD, r0, r0, r3));
+    code.add(new Instruction(Opcode.BL, "g"));
+    code.add(new Instruction(Opcode.B, "loop_0"));
+    code.add(Instruction.label("end_loop_0"));                                   // B3
+    code.add(new Instruction(Opcode.MUL, r3, r1, 4));
+    code.add(new Instruction(Opcode.MOV, r0, r3));
+    code.add(new Instruction(Opcode.BX, lr));
+    code.add(Instruction.text("// after the return\n"));                        // B4
+
+    ControlFlowGraph cfg = new ControlFlowGraph(code);
+    System.out.print(cfg);
+    check("blocks", cfg.size(), 5);
+    check("B1 successors", cfg.successors(1)[0] + " " + cfg.successors(1)[1], "2 3");
+    check("B2 successor", cfg.successors(2)[0], 1);
+    check("B1 predecessors", cfg.predecessors(1).length, 2);
+    check("B3 is an exit", cfg.isExit(3), true);
+    check("B4 is unreachable", cfg.reversePostorder().length, 4);
+    check("block of loop_0", cfg.block("loop_0").index(), 1);
+    check("calls of B2", cfg.calls(2), "[10]");
+
+    Loops loops = new Loops(cfg);
+    check("loops", loops.loops().size(), 1);
+    check("loop header", loops.loops().get(0).header(), 1);
+    check("loop body", loops.loops().get(0).body(), "{1, 2}");
+    check("depths", loops.depth(0) + " " + loops.depth(1) + " " + loops.depth(2) + " " + loops.depth(3), "0 1 1 0");
+
+    // Calls read nothing and may change r2 and r3
+    BitSet callUses = new BitSet(), callDefs = new BitSet(), exitLive = new BitSet();
+    callDefs.set(2, 4);
+    exitLive.set(0);
+    DefUse du = new DefUse(callUses, callDefs, null);
+
+    BitSet set = new BitSet();
+    du.defs(new Instruction(Opcode.LDR, Cond.AL, false, Instruction.Addressing.PostIndex, r0, r1, 4, null), set);
+    check("LDR r0, [r1], #4 writes", names(set), "r0 r1");
+    set.clear();
+    du.uses(new Instruction(Opcode.PUSH, new IMachine.RegisterList(r2)), set);
+    check("PUSH {r2} reads", names(set), "r2 sp");
+    set.clear();
+    du.uses(Instruction.fromMnemonic("ADDS", Instruction.Addressing.None, "SB", "r3", null, null), set);
+    check("ADDS SB, r3 reads", names(set), "r3");
+
+    // The frame is only read through SB: making it and putting sp back from it keep no address
+    Register sp = new Register("sp", -1);
+    InstructionList frame = new InstructionList();
+    frame.add(new Instruction(Opcode.SUB, sb, sp, 4));
+    frame.add(new Instruction(Opcode.LDR, Cond.AL, false, Instruction.Addressing.Offset, r1, sb, -4, null));
+    frame.add(new Instruction(Opcode.ADD, sp, sb, 4));
+    check("frame address kept (SB only)", du.keepsFrameAddress(frame, DefUse.id(sb)), false);
+    frame.add(new Instruction(Opcode.ADD, r2, sb, -4));
+    check("frame address kept (ADD r2, SB, #-4)", du.keepsFrameAddress(frame, DefUse.id(sb)), true);
+
+    Liveness live = new Liveness(cfg, du, exitLive).solve();
+    // r2 is written by MOVLT/MOVGE before being read: it is not live
+    check("live in B1", names(live.liveIn(1)), "r0 r1 lr");
+    // The call writes lr, which is read by the return
+    check("live out B2", names(live.liveOut(2)), "r0 r1 lr");
+    check("live in B2", names(live.liveIn(2)), "r0 r1");
+    check("live in B3", names(live.liveIn(3)), "r1 lr");
+    check("live in B0", names(live.liveIn(0)), "r11 lr");
+
+    BitSet after = (BitSet)live.liveOut(1).clone();
+    for (int i = cfg.block(1).end() - 1; i >= cfg.block(1).start(); i--)
+      live.stepBack(i, after);
+    check("stepping back over B1", names(after), names(live.liveIn(1)));
+
+    ReachingDefinitions rd = new ReachingDefinitions(cfg, du).solve();
+    check("definitions of r0 reaching B1", rd.reaching(1, 0), "[1, 9]");
+    check("definitions of r2 reaching B2", rd.reaching(2, 2), "[6]");
+    check("definitions of r1 reaching B3", rd.reaching(3, 1), "[2]");
+    check("definitions of r3 reaching B1", rd.reaching(1, 3), "[10]");
+    // r3 is dead at the beginning of the loop: its definition is dropped
+    ReachingDefinitions pruned = new ReachingDefinitions(cfg, du, live).solve();
+    check("live definitions of r3 reaching B1", pruned.reaching(1, 3), "[]");
+    check("live definitions of r0 reaching B1", pruned.reaching(1, 0), "[1, 9]");
+
+    AvailableExpressions ae = new AvailableExpressions(cfg, du).solve();
+    int mul = ae.indexOf(code.get(8));
+    check("expression", ae.expression(mul), "MUL r1 $4");
+    // r3 is changed by the call, but r1 * 4 is still available at the end of B2...
+    check("n*4 available out of B2", ae.out(2).get(mul), true);
+    // ... not at the beginning of the loop, as B0 did not compute it
+    check("n*4 available in B1", ae.in(1).get(mul), false);
+    int ld = ae.indexOf(code.get(2));
+    check("load available out of B0", ae.out(0).get(ld), true);
+    check("load killed by the call", ae.in(1).get(ld), false);
+
+    done();
+  }
+}
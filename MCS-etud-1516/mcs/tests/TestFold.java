@@ -0,0 +1,142 @@
+/**
+ * Test of the operations made at compile time: operations on constants,
+ * x * 1, x + 0, x * 0, double negations, comparisons of constants, and the
+ * branches of an if or a while whose condition is known; the results must
+ * be the same at every level, without the operations from level 1 (see
+ * Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+import static mcs.tests.Check.operation;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.BooleanType;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestFold {
+  private static final int Heap = 0x10000;
+
+  /**
+   * Number of instructions of some operations in the code
+   */
+  private static int count(InstructionList code, Opcode... ops) {
+    int n = 0;
+    for (Instruction inst : code) {
+      for (Opcode op : ops) {
+        if (inst.opcode() == op)
+          n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Run a function of one parameter, x being 5
+   */
+  private static int run(ARMEngine m, InstructionList code, FunctionInfo f) {
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    sim.set(0, 5);
+    sim.run(f.label(), 10000);
+    check("  stops on the return", sim.stop(), "return");
+    check("  stack pointer back", Integer.toHexString(sim.get(DefUse.SP)), Integer.toHexString(Simulator.Stack));
+    return sim.get(9);
+  }
+
+  private static void run(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // int e(int x) { return (3 * 4 + x * 1) * (2 - 5) + (x + 0) * -(-x) + x * 0 + (7 / 0 != 1); }
+    FunctionInfo e = new FunctionInfo("e", new IntegerType(), ns, m.functionReturn());
+    e.add(new IntegerType());
+    VariableInfo x = new VariableInfo(new IntegerType(), e.displacement(0), ns);
+    m.bindParameter(e, 0, x);
+    Code body = new Code(constant(m, 3, a), constant(m, 4, b), operation(m, IMachine.Operator.MUL, a.get(), b.get(), c));
+    Register twelve = c.get();
+    body.append(m.generateLoadValue(x, a), constant(m, 1, b), operation(m, IMachine.Operator.MUL, a.get(), b.get(), c));
+    body.append(operation(m, IMachine.Operator.ADD, twelve, c.get(), a));
+    Register left = a.get();
+    body.append(constant(m, 2, b), constant(m, 5, c), operation(m, IMachine.Operator.SUB, b.get(), c.get(), a));
+    body.append(operation(m, IMachine.Operator.MUL, left, a.get(), b));
+    Register sum = b.get();
+    body.append(m.generateLoadValue(x, a), constant(m, 0, b), operation(m, IMachine.Operator.ADD, a.get(), b.get(), c));
+    Register xs = c.get();
+    body.append(m.generateLoadValue(x, a), operation(m, IMachine.Operator.NEG, a.get(), b),
+        operation(m, IMachine.Operator.NEG, b.get(), a), operation(m, IMachine.Operator.MUL, xs, a.get(), c));
+    body.append(operation(m, IMachine.Operator.ADD, sum, c.get(), a));
+    sum = a.get();
+    body.append(m.generateLoadValue(x, a), constant(m, 0, b), operation(m, IMachine.Operator.MUL, a.get(), b.get(), c));
+    body.append(operation(m, IMachine.Operator.ADD, sum, c.get(), a));
+    sum = a.get();
+    // A division by zero is left to the machine
+    body.append(constant(m, 7, a), constant(m, 0, b), operation(m, IMachine.Operator.DIV, a.get(), b.get(), c));
+    body.append(constant(m, 1, a), operation(m, IMachine.Operator.NEQ, c.get(), a.get(), b));
+    body.append(operation(m, IMachine.Operator.ADD, sum, b.get(), a), m.generateFunctionReturn(e, a.get()));
+    InstructionList code = m.generateFunctionDeclaration(e, body).instructions();
+
+    // int g(int x) { if (1 < 2) x = x + 1; else x = x * 9; while (false) x = x * 7;
+    //                if (!true) return 0; return x; }
+    FunctionInfo g = new FunctionInfo("g", new IntegerType(), ns, m.functionReturn());
+    g.add(new IntegerType());
+    VariableInfo y = new VariableInfo(new IntegerType(), g.displacement(0), ns);
+    m.bindParameter(g, 0, y);
+    body = new Code(constant(m, 1, a), constant(m, 2, b), operation(m, IMachine.Operator.LT, a.get(), b.get(), c));
+    Register cond = c.get();
+    Code then = new Code(m.generateLoadValue(y, a), constant(m, 1, b), operation(m, IMachine.Operator.ADD, a.get(), b.get(), c),
+        m.generateStoreVariable(y, c.get()));
+    Code otherwise = new Code(m.generateLoadValue(y, a), constant(m, 9, b), operation(m, IMachine.Operator.MUL, a.get(), b.get(), c),
+        m.generateStoreVariable(y, c.get()));
+    body.append(m.generateIfThenElse(cond, then, otherwise));
+    Code test = m.generateLoadConstant(new ConstantInfo(new BooleanType(), false), a);
+    cond = a.get();
+    Code loop = new Code(m.generateLoadValue(y, a), constant(m, 7, b), operation(m, IMachine.Operator.MUL, a.get(), b.get(), c),
+        m.generateStoreVariable(y, c.get()));
+    body.append(m.generateWhile(test, cond, loop));
+    body.append(m.generateLoadConstant(new ConstantInfo(new BooleanType(), true), a), operation(m, IMachine.Operator.RNOT, a.get(), b));
+    cond = b.get();
+    body.append(m.generateIfThenElse(cond, new Code(constant(m, 0, a), m.generateFunctionReturn(g, a.get())), new Code()));
+    body.append(m.generateLoadValue(y, a), m.generateFunctionReturn(g, a.get()));
+    InstructionList other = m.generateFunctionDeclaration(g, body).instructions();
+
+    // The division by zero gives 0 (SDIV), so 0 != 1 is true
+    check("  e(5)", run(m, code, e), (12 + 5) * (2 - 5) + 5 * 5 + 0 + 1);
+    check("  g(5)", run(m, other, g), 6);
+
+    // From level 1, the product by 2 - 5 is an addition and a negation (the
+    // one left may be folded in its addition: MLA)
+    boolean on = level >= 1;
+    check("  multiplications in e", count(code, Opcode.MUL, Opcode.MLA), (on ? 1 : 5));
+    check("  negations in e", count(code, Opcode.RSB), (on ? 1 : 2));
+    check("  division by zero kept", count(code, Opcode.SDIV), 1);
+    check("  branches dropped in g", count(other, Opcode.CBZ, Opcode.MUL), (on ? 0 : 5));
+  }
+
+  public static void main(String args[]) throws MCSException {
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      run(level);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,229 @@
+/**
+ * Test of the frame of the functions: it is made once in the prologue, a loop
+ * whose body declares variables and makes calls does not move the stack
+ * pointer, and the arguments are found in order by the callee, recursive calls
+ * included; a function only saves the registers it needs, and only makes room
+ * for the variables left in the stack (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+import static mcs.tests.Check.operation;
+import static mcs.tests.Check.call;
+import static mcs.tests.Check.parameters;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.DisplacementList;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+import mcs.symtab.VariableTable;
+
+public class TestFrame {
+  private static final int Heap = 0x10000;
+
+  /**
+   * Instructions of a part of the code, from a label to another one
+   */
+  private static InstructionList part(InstructionList code, String from, String to) {
+    InstructionList part = new InstructionList();
+    boolean in = false;
+    for (Instruction inst : code) {
+      if (inst.isLabel())
+        in = (in || inst.text().equals(from)) && !inst.text().equals(to);
+      if (in)
+        part.add(inst);
+    }
+    return part;
+  }
+
+  /**
+   * Number of instructions writing a register
+   */
+  private static int writes(InstructionList code, DefUse du, int reg) {
+    int n = 0;
+    BitSet defs = new BitSet();
+    for (Instruction inst : code) {
+      defs.clear();
+      du.defs(inst, defs);
+      if (defs.get(reg))
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * Registers saved and restored by a function (the arguments pushed
+   * aside), and how it returns
+   */
+  private static String saved(InstructionList code) {
+    String s = "";
+    for (Instruction inst : code) {
+      List<?> regs = (inst.operand(0) instanceof List ? (List<?>)inst.operand(0) : Arrays.asList(inst.operand(0)));
+      String names = "";
+      for (Object o : regs) {
+        Register r = (o instanceof Register ? (Register)o : null);
+        if (r != null && (r.hasAlias() || r.num() < 0))
+          names += " " + (r.hasAlias() ? r.alias() : r.name());
+      }
+      if (!names.isEmpty() && (inst.opcode() == Opcode.PUSH || inst.opcode() == Opcode.POP || inst.opcode() == Opcode.BX))
+        s += (s.isEmpty() ? "" : ", ") + inst.mnemonic() + names;
+    }
+    return s;
+  }
+
+  /**
+   * int add3(int a, int b, int c) { int t; t = a + b; return t + c; } at
+   * level 2: t is kept in a register, and nothing is left in the stack; or
+   * return *(&t) + c, t being then read from the stack
+   */
+  private static void leaf(boolean address) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(2);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    FunctionInfo k = new FunctionInfo("add3", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] p = parameters(m, k, ns, new IntegerType(), new IntegerType(), new IntegerType());
+    VariableInfo t = new VariableInfo(new IntegerType(), 0, ns);
+    k.setFrameSize(4);
+    Code body = new Code(m.generateAllocateLocal(t), m.generateLoadValue(p[0], a), m.generateLoadValue(p[1], b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateStoreVariable(t, c.get()));
+    if (address) {
+      DisplacementList d = new DisplacementList();
+      d.add(t.displacement(), false);
+      body.append(m.generateMakeAddress(d, a, b), m.generateLoadFromHeap(b.get(), 0, a));
+    } else {
+      body.append(m.generateLoadValue(t, a));
+    }
+    Register sum = a.get();
+    body.append(m.generateLoadValue(p[2], b), operation(m, IMachine.Operator.ADD, sum, b.get(), c),
+        m.generateFunctionReturn(k, c.get()));
+    InstructionList code = m.generateFunctionDeclaration(k, body).instructions();
+
+    String what = (address ? "add3, address of t" : "add3, t in a register");
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    for (int r = 0; r < 3; r++)
+      sim.set(r, 10 * r + 1);
+    sim.run(k.label(), 1000);
+    check(what + ", stops on the return", sim.stop(), "return");
+    check(what + ", result", sim.get(9), 1 + 11 + 21);
+    check(what + ", stack pointer back", Integer.toHexString(sim.get(DefUse.SP)), Integer.toHexString(Simulator.Stack));
+    // The stack base is saved and the room made only for t in the stack
+    check(what + ", saved", saved(code), (address ? "PUSH SB, POP SB, BX lr" : "BX lr"));
+    check(what + ", stack pointer moves", writes(code, m.defUse(), DefUse.SP), (address ? 2 + 2 : 0));
+  }
+
+  public static void main(String args[]) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // int seven() { return 7; }
+    FunctionInfo e = new FunctionInfo("seven", new IntegerType(), ns, m.functionReturn());
+    InstructionList code = m.generateFunctionDeclaration(e,
+        new Code(constant(m, 7, a), m.generateFunctionReturn(e, a.get()))).instructions();
+
+    // int sub(int x, int y) { return x - y; }
+    FunctionInfo g = new FunctionInfo("sub", new IntegerType(), ns, m.functionReturn());
+    g.add(new IntegerType());
+    g.add(new IntegerType());
+    VariableInfo x = new VariableInfo(new IntegerType(), g.displacement(0), ns);
+    VariableInfo y = new VariableInfo(new IntegerType(), g.displacement(1), ns);
+    code.addAll(m.generateFunctionDeclaration(g, new Code(m.generateLoadValue(x, a),
+        m.generateLoadValue(y, b), operation(m, IMachine.Operator.SUB, a.get(), b.get(), c),
+        m.generateFunctionReturn(g, c.get()))).instructions());
+
+    // int fact(int n) { if (n < 2) return 1; return n * fact(n - 1); }
+    FunctionInfo h = new FunctionInfo("fact", new IntegerType(), ns, m.functionReturn());
+    h.add(new IntegerType());
+    VariableInfo n = new VariableInfo(new IntegerType(), h.displacement(0), ns);
+    Code test = new Code(m.generateLoadValue(n, a), constant(m, 2, b),
+        operation(m, IMachine.Operator.LT, a.get(), b.get(), c));
+    Register rc = c.get();
+    Code base = new Code(constant(m, 1, a), m.generateFunctionReturn(h, a.get()));
+    Code rec = new Code(m.generateLoadValue(n, a), constant(m, 1, b),
+        operation(m, IMachine.Operator.SUB, a.get(), b.get(), c));
+    rec.append(call(m, h, b, c.get()), m.generateLoadValue(n, a),
+        operation(m, IMachine.Operator.MUL, a.get(), b.get(), c), m.generateFunctionReturn(h, c.get()));
+    code.addAll(m.generateFunctionDeclaration(h,
+        new Code(test, m.generateIfThenElse(rc, base, new Code()), rec)).instructions());
+
+    // int f() { int s = 0; int i = 0;
+    //           while (i < 10) { int t = i + i; int u = sub(t, 1); s = s + u; i = i + 1; }
+    //           return s + fact(5) + seven(); }
+    FunctionInfo f = new FunctionInfo("f", new IntegerType(), ns, m.functionReturn());
+    VariableInfo s = new VariableInfo(new IntegerType(), 0, ns), i = new VariableInfo(new IntegerType(), 4, ns);
+    VariableInfo t = new VariableInfo(new IntegerType(), 8, ns), u = new VariableInfo(new IntegerType(), 12, ns);
+    Code body = new Code();
+    for (VariableInfo v : new VariableInfo[] { s, i }) {
+      body.append(m.generateAllocateLocal(v), constant(m, 0, a), m.generateStoreVariable(v, a.get()));
+    }
+
+    Code cond = new Code(m.generateLoadValue(i, a), constant(m, 10, b),
+        operation(m, IMachine.Operator.LT, a.get(), b.get(), c));
+    rc = c.get();
+
+    Code loop = new Code(m.generateAllocateLocal(t), m.generateLoadValue(i, a), m.generateLoadValue(i, b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateStoreVariable(t, c.get()));
+    loop.append(m.generateAllocateLocal(u), m.generateLoadValue(t, a), constant(m, 1, b));
+    loop.append(call(m, g, c, a.get(), b.get()), m.generateStoreVariable(u, c.get()));
+    loop.append(m.generateLoadValue(s, a), m.generateLoadValue(u, b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateStoreVariable(s, c.get()));
+    loop.append(m.generateLoadValue(i, a), constant(m, 1, b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateStoreVariable(i, c.get()));
+    loop.append(m.generateFlush(new VariableTable()));
+
+    body.append(m.generateWhile(cond, rc, loop), constant(m, 5, a));
+    body.append(call(m, h, b, a.get()), m.generateLoadValue(s, a),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateStoreVariable(s, c.get()));
+    body.append(call(m, e, b), m.generateLoadValue(s, a),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateFunctionReturn(f, c.get()));
+    f.setFrameSize(16);
+    code.addAll(m.generateFunctionDeclaration(f, body).instructions());
+
+    // sum of 2i - 1 for i < 10, plus 5!, plus 7
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    sim.run(f.label(), 100000);
+    check("stops on the return", sim.stop(), "return");
+    check("result", sim.get(9), 80 + 120 + 7);
+    check("stack pointer back", Integer.toHexString(sim.get(DefUse.SP)), Integer.toHexString(Simulator.Stack));
+    check("stack base back", sim.get(11), 0);
+
+    // The arguments are passed in registers: nothing moves the stack pointer in the loop
+    check("stack pointer moves in the loop", writes(part(code, "loop_0", "end_loop_0"), m.defUse(), DefUse.SP), 0);
+    // Pushes of lr and the stack base, the room made and freed
+    check("one frame made by f", writes(part(code, f.label(), null), m.defUse(), DefUse.SP), 2 + 2);
+
+    // Only what is needed is saved
+    check("seven (leaf, no frame)", saved(part(code, e.label(), g.label())), "BX lr");
+    check("sub (leaf, arguments)", saved(part(code, g.label(), h.label())), "PUSH SB, POP SB, BX lr");
+    // The argument is read from the stack: lr is popped before the argument is dropped
+    check("fact (calls)", saved(part(code, h.label(), f.label())), "PUSH SB lr, POP SB lr, BX lr");
+    check("f (calls, no arguments)", saved(part(code, f.label(), null)), "PUSH SB lr, POP SB pc");
+
+    leaf(false);
+    leaf(true);
+
+    done();
+  }
+}
@@ -0,0 +1,44 @@
+/**
+ * Test of the instruction representation: mnemonics, printing and basic blocks
+ */
+package mcs.tests;
+
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.ir.BasicBlock;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+
+public class TestIR {
+  public static void main(String args[]) {
+    Register r0 = new Register("r", 0), r1 = new Register("r", 1), sb = new Register("r", 11, "SB");
+    String[] mnemonics = { "MOV", "MOVLT", "MOVT", "ANDS", "BEQ", "BLT", "BLS", "BL", "BX", "CBZ", "LSLS", "FOO" };
+
+    for (String m : mnemonics) {
+      Instruction i = Instruction.fromMnemonic(m, Instruction.Addressing.None, r0, r1, null, null);
+      System.out.println(m + " => " + i.opcode() + " / " + i.cond() + (i.setsFlags() ? " / S" : "") + " : " + i.toString().trim());
+    }
+
+    System.out.print(Instruction.fromMnemonic("LDR", Instruction.Addressing.Offset, r0, sb, -4, null));
+    System.out.print(Instruction.fromMnemonic("LDR", Instruction.Addressing.PostIndex, r0, r1, 4, null));
+    System.out.print(Instruction.fromMnemonic("STR", Instruction.Addressing.PreIndex, r0, r1, 4, null));
+    System.out.print(Instruction.fromMnemonic("PUSH", Instruction.Addressing.None, new IMachine.RegisterList(r0), null, null, null));
+
+    Code code = new Code(
+        Instruction.label("loop"),
+        "// a comment\n",
+        Instruction.fromMnemonic("CMP", Instruction.Addressing.None, r0, r1, null, null),
+        Instruction.fromMnemonic("BGE", Instruction.Addressing.None, "end", null, null, null),
+        Instruction.fromMnemonic("ADD", Instruction.Addressing.None, r0, r0, 1, null),
+        Instruction.fromMnemonic("B", Instruction.Addressing.None, "loop", null, null, null),
+        Instruction.label("end"),
+        Instruction.fromMnemonic("BX", Instruction.Addressing.None, "lr", null, null, null));
+
+    System.out.println("=========================");
+    System.out.print(code);
+    InstructionList list = code.instructions();
+    for (BasicBlock b : list.blocks())
+      System.out.println(b + (b.fallsThrough() ? " falls through" : ""));
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Test of the immediate operands: from level 1, a constant that fits in an
+ * instruction (8 bits rotated by an even number), as it is or negated or
+ * complemented with the opposite operation, is no longer loaded into a
+ * register, and a wide value loaded several times goes in a literal pool;
+ * the results must be the same at every level (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.setVerbose;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Immediates;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestImmediates {
+  private static final int Heap = 0x10000;
+
+  private static final int Wide = 123456789;
+
+  private static final int[] Values = { 0, 1, -1, 5, -5, -6, 255, 256, 1020, 65535, -65536, Wide,
+      Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+  private static void encoding() {
+    for (int c : new int[] { 0, 1, 255, 256, 1020, 0xFF00, 0xFF000000, 0xF000000F, 0x3FC00 })
+      check("fits " + c, Immediates.fits(c), true);
+    for (int c : new int[] { 257, 0x1FE, 0xFFFF, 0x12345678, -1, -256, 0xF000001F })
+      check("fits " + c, Immediates.fits(c), false);
+
+    Register r = new Register("r", 0);
+    int[][] loads = { { 5, 1 }, { 1000, 1 }, { 65535, 1 }, { -1, 1 }, { -256, 1 }, { 0xFF000000, 1 },
+        { -1022, 2 }, { Wide, 2 } };
+    for (int[] l : loads)
+      check("load of " + l[0], Immediates.load(r, l[0]).length, l[1]);
+    check("load of -256", Immediates.load(r, -256)[0].opcode(), Opcode.MVN);
+    System.out.println("ok   encoding");
+  }
+
+  private static int expected(IMachine.Operator op, int a, int b) {
+    switch (op) {
+      case ADD: return a + b;
+      case SUB: return a - b;
+      case AND: return a & b;
+      case OR:  return a | b;
+      default:  return (a < b ? 1 : 0);
+    }
+  }
+
+  private static InstructionList function(ARMEngine m, FunctionInfo k, IMachine.Operator op, int c, boolean left,
+      int times) throws MCSException {
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), r = new RegisterWrapper();
+    k.add(new IntegerType());
+    VariableInfo p = new VariableInfo(new IntegerType(), k.displacement(0), ns);
+    m.bindParameter(k, 0, p);
+    Code body = new Code(m.generateLoadValue(p, a));
+    Register x = a.get();
+    for (int t = 0; t < times; t++) {
+      body.append(m.generateLoadConstant(new ConstantInfo(new IntegerType(), c), b));
+      body.append(left ? m.generateOperation(op.value(), b.get(), x, r) : m.generateOperation(op.value(), x, b.get(), r));
+      x = r.get();
+    }
+    body.append(m.generateFunctionReturn(k, x));
+    return m.generateFunctionDeclaration(k, body).instructions();
+  }
+
+  /**
+   * int k(int p) { return p op c; }, or c op p; with the instruction
+   * expected from level 1, null if the constant does not fit
+   */
+  private static void operation(int level, IMachine.Operator op, int c, boolean left, String folded)
+      throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    InstructionList code = function(m, k, op, c, left, 1);
+
+    String what = (left ? c + " " + op + " p" : "p " + op + " " + c);
+    for (int v : Values) {
+      Simulator sim = new Simulator(code, m.defUse());
+      sim.set(12, Heap);
+      sim.set(0, v);
+      sim.run(k.label(), 1000);
+      check(what + ", stops on the return", sim.stop(), "return");
+      check(what + ", p = " + v, sim.get(9), (left ? expected(op, c, v) : expected(op, v, c)));
+    }
+    boolean on = level >= 1 && folded != null;
+    if (folded != null) {
+      Pattern p = Pattern.compile("\\b" + folded.replace("$", "\\$") + "\\n");
+      check(what + ", " + folded, p.matcher(code.toString()).find(), on);
+    }
+    System.out.println("ok   " + what);
+  }
+
+  /**
+   * int k(int p) { return p + Wide + Wide + Wide; }
+   */
+  private static void pool(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    InstructionList code = function(m, k, IMachine.Operator.ADD, Wide, false, 3);
+    for (int v : Values) {
+      Simulator sim = new Simulator(code, m.defUse());
+      sim.set(12, Heap);
+      sim.set(0, v);
+      sim.run(k.label(), 1000);
+      check("pool, stops on the return", sim.stop(), "return");
+      check("pool, p = " + v, sim.get(9), v + 3 * Wide);
+    }
+
+    boolean on = level >= 1;
+    int literals = 0, movt = 0, words = 0;
+    for (Instruction inst : code) {
+      if (inst.opcode() == Opcode.LDR && inst.operand(1) instanceof String)
+        literals++;
+      else if (inst.opcode() == Opcode.MOVT)
+        movt++;
+      else if (inst.opcode() == Opcode.TEXT && inst.text().contains(".word " + Wide))
+        words++;
+    }
+    check("pool, loads from it", literals, (on ? 3 : 0));
+    check("pool, MOVT left", movt, (on ? 0 : 3));
+    check("pool, words", words, (on ? 1 : 0));
+    check("pool, reported", m.logImmediates().endsWith(on ? "3 loads from 1 literal pool words\n"
+        : "No immediate folding nor literal pool\n"), true);
+    System.out.println("ok   pool");
+  }
+
+  /**
+   * int k(int p) { return p + Wide + ... + Wide; } with 1500 additions: more
+   * than 4 KB of code, so that each load must reach a pool of its own part
+   */
+  private static void far(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    InstructionList code = function(m, k, IMachine.Operator.ADD, Wide, false, 1500);
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    sim.set(0, 1);
+    sim.run(k.label(), 100000);
+    check("far pool, stops on the return", sim.stop(), "return");
+    check("far pool, p = 1", sim.get(9), 1 + 1500 * Wide);
+
+    // Byte address of each instruction and of each word of the pools
+    Map<String, Integer> words = new HashMap<String, Integer>();
+    int address = 0, far = 0, literals = 0, pools = 0;
+    for (Instruction inst : code) {
+      if (inst.isLabel())
+        words.put(inst.text(), address);
+      if (inst.isText() && inst.text().contains(".word"))
+        address += 4;
+      else if (!inst.opcode().isPseudo())
+        address += 4;
+    }
+    check("far pool, more than 4 KB", address > 4096, true);
+    address = 0;
+    for (Instruction inst : code) {
+      if (inst.opcode() == Opcode.LDR && inst.operand(1) instanceof String) {
+        int distance = words.get((String)inst.operand(1)) - (address + 8);
+        far += (Math.abs(distance) > Immediates.MaxReach ? 1 : 0);
+        literals++;
+      }
+      // One word of Wide in each pool
+      if (inst.isLabel() && inst.text().contains("_pool_") && !inst.text().contains("_over_"))
+        pools++;
+      if ((inst.isText() && inst.text().contains(".word")) || !inst.opcode().isPseudo())
+        address += 4;
+    }
+    boolean on = level >= 1;
+    check("far pool, loads from the pools", literals, (on ? 1500 : 0));
+    check("far pool, loads out of reach", far, 0);
+    check("far pool, several pools", pools > 1, on);
+    System.out.println("ok   far pool");
+  }
+
+  private static void engine(int level) throws MCSException {
+    operation(level, IMachine.Operator.ADD, 255, false, "ADD\t\tr\\d+,\t\tr\\d+,\t\t$255");
+    operation(level, IMachine.Operator.ADD, 7, true, "ADD\t\tr\\d+,\t\tr\\d+,\t\t$7");
+    operation(level, IMachine.Operator.ADD, -4, false, "SUB\t\tr\\d+,\t\tr\\d+,\t\t$4");
+    operation(level, IMachine.Operator.ADD, 0xFF000000, false, "ADD\t\tr\\d+,\t\tr\\d+,\t\t$-16777216");
+    operation(level, IMachine.Operator.ADD, 257, false, null);
+    operation(level, IMachine.Operator.ADD, Wide, false, null);
+    operation(level, IMachine.Operator.SUB, -8, false, "ADD\t\tr\\d+,\t\tr\\d+,\t\t$8");
+    operation(level, IMachine.Operator.SUB, 1020, false, "SUB\t\tr\\d+,\t\tr\\d+,\t\t$1020");
+    operation(level, IMachine.Operator.SUB, 100, true, "RSB\t\tr\\d+,\t\tr\\d+,\t\t$100");
+    operation(level, IMachine.Operator.AND, -256, false, "BIC\t\tr\\d+,\t\tr\\d+,\t\t$255");
+    operation(level, IMachine.Operator.AND, 0xFF00, true, "AND\t\tr\\d+,\t\tr\\d+,\t\t$65280");
+    operation(level, IMachine.Operator.OR, 0x3FC, false, "ORR\t\tr\\d+,\t\tr\\d+,\t\t$1020");
+    operation(level, IMachine.Operator.LT, -5, false, "CMN\t\tr\\d+,\t\t$5");
+    operation(level, IMachine.Operator.LT, 1020, false, "CMP\t\tr\\d+,\t\t$1020");
+    operation(level, IMachine.Operator.LT, Integer.MIN_VALUE, false, "CMP\t\tr\\d+,\t\t$-2147483648");
+    pool(level);
+    far(level);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    setVerbose(false);
+    encoding();
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
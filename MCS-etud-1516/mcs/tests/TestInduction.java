@@ -0,0 +1,225 @@
+/**
+ * Test of the induction variables: the loads and stores of a loop indexed
+ * by a variable increased at each iteration go through a pointer, the last
+ * one post-indexed; the arithmetic of the index goes, and the variable too
+ * when only its increment reads it; an access made on some iterations only
+ * or from a base written in the loop stays; then a function of the engine
+ * at level 2. The results and the memory must be the same before and after
+ * (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.v;
+import static mcs.tests.Check.defUse;
+import static mcs.tests.Check.memory;
+import static mcs.tests.Check.r0;
+import static mcs.tests.Check.r1;
+import static mcs.tests.Check.r9;
+import static mcs.tests.Check.lr;
+import static mcs.tests.Check.Heap;
+import static mcs.tests.Check.simulator;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.InductionVariables;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.ArrayType;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestInduction {
+  /**
+   * int f(int *a, int n) { i = 0; s = 0;
+   *                        while (i < n) { s = s + a[i]; a[i] = s; i = i + 1; }
+   *                        return s; }
+   * with the variants:
+   *  - down: while (n > 0) { ...; n = n - 1; }
+   *  - stride: a[3 * i] rather than a[i]
+   *  - next: s = s + a[i + 1]
+   *  - some: if (s <= 100) a[i] = s;
+   *  - moved: the base is written in the loop
+   */
+  private static InstructionList function(String variant) {
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, v(17), r0));
+    code.add(new Instruction(Opcode.MOV, v(18), r1));
+    code.add(new Instruction(Opcode.MOV, v(19), 0));
+    code.add(new Instruction(Opcode.MOV, v(20), 0));
+    code.add(new Instruction(Opcode.MOV, v(30), lr));
+    code.add(Instruction.label("loop_0"));
+    if (variant.equals("down")) {
+      code.add(new Instruction(Opcode.CMP, v(18), 0));
+      code.add(new Instruction(Opcode.B, Cond.LE, "end_loop_0", null, null));
+    } else {
+      code.add(new Instruction(Opcode.CMP, v(19), v(18)));
+      code.add(new Instruction(Opcode.B, Cond.GE, "end_loop_0", null, null));
+    }
+    if (variant.equals("stride")) {
+      code.add(new Instruction(Opcode.MOV, v(26), 12));
+      code.add(new Instruction(Opcode.MUL, v(21), v(19), v(26)));
+    } else {
+      code.add(new Instruction(Opcode.LSL, v(21), v(19), 2));
+    }
+    if (variant.equals("next")) {
+      code.add(new Instruction(Opcode.ADD, v(27), v(19), 1));
+      code.add(new Instruction(Opcode.LSL, v(28), v(27), 2));
+      code.add(memory(Opcode.LDR, v(22), v(17), v(28)));
+    } else {
+      code.add(memory(Opcode.LDR, v(22), v(17), v(21)));
+    }
+    code.add(new Instruction(Opcode.ADD, v(20), v(20), v(22)));
+    code.add(new Instruction(Opcode.ADD, v(23), v(17), v(21)));
+    if (variant.equals("some")) {
+      code.add(new Instruction(Opcode.CMP, v(20), 100));
+      code.add(new Instruction(Opcode.B, Cond.GT, "skip_0", null, null));
+    }
+    code.add(memory(Opcode.STR, v(20), v(23), null));
+    if (variant.equals("some"))
+      code.add(Instruction.label("skip_0"));
+    if (variant.equals("moved"))
+      code.add(new Instruction(Opcode.MOV, v(17), v(23)));
+    code.add(new Instruction(Opcode.MOV, v(24), v(19)));
+    code.add(new Instruction(Opcode.ADD, v(25), v(24), 1));
+    code.add(new Instruction(Opcode.MOV, v(19), v(25)));
+    if (variant.equals("down"))
+      code.add(new Instruction(Opcode.SUB, v(18), v(18), 1));
+    code.add(new Instruction(Opcode.B, "loop_0"));
+    code.add(Instruction.label("end_loop_0"));
+    code.add(new Instruction(Opcode.MOV, r9, v(20)));
+    code.add(new Instruction(Opcode.MOV, lr, v(30)));
+    code.add(new Instruction(Opcode.BX, lr));
+    return code;
+  }
+
+  /**
+   * Result of f(a, n), and the words of a after it
+   */
+  private static String run(InstructionList code, DefUse du, int n) {
+    Simulator sim = simulator(code, du, Heap, n);
+    for (int k = 0; k < 3 * n + 2; k++)
+      sim.store(Heap + 4 * k, 3 * k + 1);
+    sim.run("f", 10000);
+    check("    stops on the return", sim.stop(), "return");
+    StringBuilder s = new StringBuilder().append(sim.get(9));
+    for (int k = 0; k < 3 * n + 2; k++)
+      s.append(k == 0 ? " [" : " ").append(sim.load(Heap + 4 * k));
+    return s.append("]").toString();
+  }
+
+  private static int count(InstructionList code, Instruction.Addressing mode) {
+    int n = 0;
+    for (Instruction inst : code) {
+      if (inst.opcode().kind() != Opcode.Kind.Data && inst.addressing() == mode)
+        n++;
+    }
+    return n;
+  }
+
+  private static void pass(String what, String variant, int accesses, int removed, int counters) {
+    DefUse du = defUse();
+    InstructionList code = function(variant);
+    InductionVariables iv = new InductionVariables(du);
+    InstructionList done = iv.run(code);
+    System.out.println(what);
+    System.out.print(iv.report());
+    check("  accesses", iv.accesses(), accesses);
+    check("  index arithmetic removed", iv.report().contains(", " + removed + " instructions of their indexes removed ("
+        + counters + " counters)"), true);
+    check("  post-indexed", count(done, Instruction.Addressing.PostIndex), (accesses > 0 ? 1 : 0));
+    for (int n : new int[] { 0, 1, 2, 7 }) {
+      System.out.println("  f(a, " + n + ")");
+      check("  same result", run(done, du, n), run(code, du, n));
+    }
+  }
+
+  private static void passes() {
+    pass("indexed", "indexed", 2, 2, 0);
+    pass("counted down", "down", 2, 5, 1);
+    pass("stride of 12", "stride", 2, 2, 0);
+    pass("next element", "next", 2, 4, 0);
+    pass("stored on some iterations", "some", 1, 0, 0);
+    pass("base written", "moved", 0, 0, 0);
+  }
+
+  /**
+   * int k(int a[], int n) { i = 0; s = 0; while (i < n) { s = s + a[i]; a[i] = s; i = i + 1; } return s; }
+   */
+  private static void engine(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), ns, m.functionReturn());
+    k.add(new ArrayType(new IntegerType(), 10));
+    k.add(new IntegerType());
+    VariableInfo t = new VariableInfo(new ArrayType(new IntegerType(), 10), k.displacement(0), ns);
+    VariableInfo n = new VariableInfo(new IntegerType(), k.displacement(1), ns);
+    m.bindParameter(k, 0, t);
+    m.bindParameter(k, 1, n);
+    VariableInfo i = new VariableInfo(new IntegerType(), 0, ns);
+    VariableInfo s = new VariableInfo(new IntegerType(), 4, ns);
+    k.setFrameSize(8);
+
+    Code body = new Code(m.generateAllocateLocal(i), m.generateAllocateLocal(s));
+    body.append(m.generateLoadConstant(new ConstantInfo(new IntegerType(), 0), a), m.generateStoreVariable(i, a.get()));
+    body.append(m.generateLoadConstant(new ConstantInfo(new IntegerType(), 0), a), m.generateStoreVariable(s, a.get()));
+    Code test = new Code(m.generateLoadValue(i, a), m.generateLoadValue(n, b),
+        m.generateOperation(IMachine.Operator.LT.value(), a.get(), b.get(), c));
+    Register cond = c.get();
+    Code loop = new Code(m.generateLoadValue(i, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 4), b),
+        m.generateOperation(IMachine.Operator.MUL.value(), a.get(), b.get(), c));
+    Register disp = c.get();
+    loop.append(m.generateLoadValue(t, disp, a), m.generateLoadValue(s, b),
+        m.generateOperation(IMachine.Operator.ADD.value(), b.get(), a.get(), c));
+    Register sum = c.get();
+    loop.append(m.generateStoreVariable(s, sum), m.generateStoreVariable(t, disp, sum));
+    loop.append(m.generateLoadValue(i, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 1), b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c), m.generateStoreVariable(i, c.get()));
+    body.append(m.generateWhile(test, cond, loop));
+    body.append(m.generateLoadValue(s, a), m.generateFunctionReturn(k, a.get()));
+    InstructionList code = m.generateFunctionDeclaration(k, body).instructions();
+
+    for (int length : new int[] { 0, 1, 5 }) {
+      Simulator sim = simulator(m, code, Heap + 0x100, length);
+      for (int w = 0; w <= length; w++)
+        sim.store(Heap + 0x100 + 4 * w, w + 1);
+      sim.run(k.label(), 10000);
+      check("  stops on the return", sim.stop(), "return");
+      // The prefix sums of 1, 2, 3...: a[w] = (w + 1)(w + 2) / 2
+      check("  k(a, " + length + ")", sim.get(9), length * (length + 1) / 2);
+      for (int w = 0; w <= length; w++)
+        check("  a[" + w + "]", sim.load(Heap + 0x100 + 4 * w), (w < length ? (w + 1) * (w + 2) / 2 : w + 1));
+    }
+
+    boolean on = level >= 2;
+    check("  post-indexed", count(code, Instruction.Addressing.PostIndex), (on ? 1 : 0));
+    check("  reported", m.logInduction().startsWith(on ? "2 accesses made through 1 incremented pointers"
+        : "No induction variable"), true);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    passes();
+    for (int level = 1; level <= 2; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Test of the inlining: a small function, with a local variable and a
+ * parameter whose address is used, and a small method are put in place of
+ * their calls, their variables going below the ones of the caller; a
+ * recursive function, a big one, and a function not generated yet are still
+ * called; each call is reported (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+import static mcs.tests.Check.operation;
+import static mcs.tests.Check.parameters;
+import static mcs.tests.Check.call;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.DisplacementList;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.obj.Klass;
+import mcs.obj.MethodInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestInline {
+  private static final int Heap = 0x10000, Instance = 0x20000;
+
+  /**
+   * Calls (BL) to a function in a part of the code, from a label to another one
+   */
+  private static int calls(InstructionList code, String from, String to, String callee) {
+    int n = 0;
+    boolean in = false;
+    for (Instruction inst : code) {
+      if (inst.isLabel())
+        in = (in || inst.text().equals(from)) && !inst.text().equals(to);
+      if (in && inst.opcode() == Opcode.BL && callee.equals(inst.target()))
+        n++;
+    }
+    return n;
+  }
+
+  private static void run(int limit) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(1);
+    m.setInlineLimit(limit);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // int sq(int x) { int t; t = x * x; inc(&x); return t + x; }, inc
+    // being called through the address of x
+    FunctionInfo inc = new FunctionInfo("inc", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] pi = parameters(m, inc, ns, new IntegerType());
+    Code body = new Code(m.generateLoadValue(pi[0], a), m.generateLoadFromHeap(a.get(), 0, b), constant(m, 1, c));
+    Register rp = a.get();
+    body.append(operation(m, IMachine.Operator.ADD, b.get(), c.get(), a), m.generateStoreInHeap(rp, 0, a.get()),
+        m.generateFunctionReturn(inc, a.get()));
+    InstructionList code = m.generateFunctionDeclaration(inc, body).instructions();
+
+    FunctionInfo sq = new FunctionInfo("sq", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] p = parameters(m, sq, ns, new IntegerType());
+    VariableInfo t = new VariableInfo(new IntegerType(), 0, ns);
+    sq.setFrameSize(4);
+    body = new Code(m.generateLoadValue(p[0], a), m.generateLoadValue(p[0], b),
+        operation(m, IMachine.Operator.MUL, a.get(), b.get(), c), m.generateStoreVariable(t, c.get()));
+    RegisterWrapper address = new RegisterWrapper();
+    DisplacementList dl = new DisplacementList();
+    dl.add(p[0].displacement(), false);
+    body.append(m.generateMakeAddress(dl, new RegisterWrapper(), address));
+    body.append(call(m, inc, a, address.get()), m.generateLoadValue(t, a), m.generateLoadValue(p[0], b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateFunctionReturn(sq, c.get()));
+    code.addAll(m.generateFunctionDeclaration(sq, body).instructions());
+
+    // int fact(int n) { if (n < 2) return 1; return n * fact(n - 1); }
+    FunctionInfo f = new FunctionInfo("fact", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] q = parameters(m, f, ns, new IntegerType());
+    body = new Code(m.generateLoadValue(q[0], a), constant(m, 2, b), operation(m, IMachine.Operator.LT, a.get(), b.get(), c));
+    Register rc = c.get();
+    body.append(m.generateIfThenElse(rc, new Code(constant(m, 1, a), m.generateFunctionReturn(f, a.get())), new Code()));
+    body.append(m.generateLoadValue(q[0], a), constant(m, 1, b), operation(m, IMachine.Operator.SUB, a.get(), b.get(), c));
+    body.append(call(m, f, b, c.get()), m.generateLoadValue(q[0], a),
+        operation(m, IMachine.Operator.MUL, a.get(), b.get(), c), m.generateFunctionReturn(f, c.get()));
+    code.addAll(m.generateFunctionDeclaration(f, body).instructions());
+
+    // class K { int id; int v; int get(int x) { return this.v + x; } }
+    Klass k = new Klass(1, "K", null, ns);
+    MethodInfo h = new MethodInfo("get", null, new IntegerType(), k, m.functionReturn());
+    VariableInfo[] r = parameters(m, h, ns, new IntegerType());
+    RegisterWrapper self = new RegisterWrapper();
+    code.addAll(m.generateMethodDeclaration(h, new Code(m.generateLoadFromStack(k.thisDisplacement(m), self),
+        m.generateLoadFromHeap(self.get(), 4, a), m.generateLoadValue(r[0], b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateFunctionReturn(h, c.get()))).instructions());
+
+    // int main() { int l; l = 1000; return sq(7) + fact(5) + o.get(30) + l + late(); }
+    FunctionInfo late = new FunctionInfo("late", new IntegerType(), ns, m.functionReturn());
+    FunctionInfo e = new FunctionInfo("main", new IntegerType(), ns, m.functionReturn());
+    VariableInfo l = new VariableInfo(new IntegerType(), 0, ns);
+    e.setFrameSize(4);
+    body = new Code(constant(m, 1000, a), m.generateStoreVariable(l, a.get()));
+    body.append(constant(m, 7, a), call(m, sq, b, a.get()));
+    Register sum = b.get();
+    body.append(constant(m, 5, a), call(m, f, b, a.get()), operation(m, IMachine.Operator.ADD, sum, b.get(), c));
+    sum = c.get();
+    body.append(constant(m, Instance, self), constant(m, 30, a), m.generateFunctionPushArgument(a.get()));
+    body.append(m.generateMethodCall(h, self.get()),
+        m.generateMakeAddress(new DisplacementList(), h.register(), b, new RegisterWrapper()),
+        operation(m, IMachine.Operator.ADD, sum, b.get(), c));
+    sum = c.get();
+    body.append(m.generateLoadValue(l, a), operation(m, IMachine.Operator.ADD, sum, a.get(), c));
+    sum = c.get();
+    body.append(call(m, late, b), operation(m, IMachine.Operator.ADD, sum, b.get(), c),
+        m.generateFunctionReturn(e, c.get()));
+    code.addAll(m.generateFunctionDeclaration(e, body).instructions());
+
+    // int late() { return 2; }
+    code.addAll(m.generateFunctionDeclaration(late, new Code(constant(m, 2, a),
+        m.generateFunctionReturn(late, a.get()))).instructions());
+
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    // An object of a class without a virtual table entry: the method itself runs
+    sim.store(Instance, k.classId() + 1);
+    sim.store(Instance + 4, 300);
+    sim.run(e.label(), 100000);
+    check("  stops on the return", sim.stop(), "return");
+    check("  result", sim.get(9), (49 + 8) + 120 + 330 + 1000 + 2);
+    check("  stack pointer back", Integer.toHexString(sim.get(DefUse.SP)), Integer.toHexString(Simulator.Stack));
+    check("  stack base back", sim.get(11), 0);
+
+    boolean on = limit > 0;
+    check("  main calls sq", calls(code, e.label(), late.label(), sq.label()), (on ? 0 : 1));
+    // The method is still called when the virtual table is used
+    check("  main calls get", calls(code, e.label(), late.label(), h.label()), 1);
+    check("  sq calls inc", calls(code, sq.label(), f.label(), inc.label()), (on ? 0 : 1));
+    check("  main calls fact", calls(code, e.label(), late.label(), f.label()), 1);
+    check("  main calls late", calls(code, e.label(), late.label(), late.label()), 1);
+    // The variables of sq, and its word, go below l
+    check("  frame of main", e.frameSize(), (on ? 4 + 4 + 4 : 4));
+
+    String log = m.logInlining();
+    check("  report", log.split("\n")[0], (on ? 3 : 0) + " of 6 calls inlined (limit " + limit + " instructions)");
+    check("  sq reported", log.contains(e.label() + ": " + sq.label() + (on ? " inlined" : " called (too big")), true);
+    check("  get reported", log.contains(e.label() + ": " + h.label() + (on ? " inlined" : " called (too big")), true);
+    check("  fact reported", log.contains(e.label() + ": " + f.label() + " called (recursive)"), true);
+    check("  fact reported in fact", log.contains(f.label() + ": " + f.label() + " called (recursive)"), true);
+    check("  late reported", log.contains(e.label() + ": " + late.label() + " called (not generated yet)"), true);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    for (int limit : new int[] { 0, 40 }) {
+      System.out.println("== limit " + limit);
+      run(limit);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,224 @@
+/**
+ * Test of the loop invariant motion: a constant, an operation on it, a
+ * load from the frame and a load made in the header go before the loop; a
+ * load in the body, a variable read after the loop, a load of what the loop
+ * may store or of anything when it calls stay in it; then a function of the
+ * engine at level 2. The results must be the same before and after (see
+ * Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.v;
+import static mcs.tests.Check.defUse;
+import static mcs.tests.Check.memory;
+import static mcs.tests.Check.r0;
+import static mcs.tests.Check.r1;
+import static mcs.tests.Check.r9;
+import static mcs.tests.Check.sb;
+import static mcs.tests.Check.sp;
+import static mcs.tests.Check.lr;
+import static mcs.tests.Check.Heap;
+import static mcs.tests.Check.Frame;
+import static mcs.tests.Check.simulator;
+
+import java.util.BitSet;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.LoopInvariants;
+import mcs.ir.Opcode;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestInvariants {
+  private static BitSet exitLive() {
+    BitSet live = new BitSet();
+    live.set(9);
+    live.set(11);
+    live.set(DefUse.SP);
+    live.set(DefUse.LR);
+    return live;
+  }
+
+  /**
+   * Instructions between a label and the branch back to it
+   */
+  private static int inLoop(InstructionList code, String label) {
+    int n = 0;
+    boolean in = false;
+    for (Instruction inst : code) {
+      if (inst.isLabel() && inst.text().equals(label))
+        in = true;
+      else if (in && label.equals(inst.target()) && inst.opcode() == Opcode.B)
+        return n;
+      else if (in && !inst.opcode().isPseudo())
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * int f(int b, int *p) { i = 0; s = 0; k = 0;
+   *                        while (i < p[2]) { s = s + (b + 100000) + frame[-4] + p[1];
+   *                                           store; (call;) k = 7; i = i + 1; }
+   *                        return s + k; }
+   * (released: the stack pointer is put back from the frame before the
+   * return, as the epilogue does)
+   */
+  private static InstructionList function(Instruction store, boolean call, boolean released) {
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, v(17), r0));
+    code.add(new Instruction(Opcode.MOV, v(18), r1));
+    code.add(new Instruction(Opcode.MOV, v(19), 0));
+    code.add(new Instruction(Opcode.MOV, v(20), 0));
+    code.add(new Instruction(Opcode.MOV, v(28), 0));
+    code.add(new Instruction(Opcode.MOV, v(30), lr));
+    code.add(Instruction.label("loop_0"));
+    code.add(memory(Opcode.LDR, v(26), v(18), 8));
+    code.add(new Instruction(Opcode.CMP, v(19), v(26)));
+    code.add(new Instruction(Opcode.B, Cond.GE, "end_loop_0", null, null));
+    code.add(new Instruction(Opcode.MOV, v(21), 34464));
+    code.add(new Instruction(Opcode.MOVT, v(21), 1));
+    code.add(new Instruction(Opcode.ADD, v(22), v(17), v(21)));
+    code.add(memory(Opcode.LDR, v(23), sb, -4));
+    code.add(memory(Opcode.LDR, v(24), v(18), 4));
+    code.add(new Instruction(Opcode.ADD, v(20), v(20), v(22)));
+    code.add(new Instruction(Opcode.ADD, v(20), v(20), v(23)));
+    code.add(new Instruction(Opcode.ADD, v(20), v(20), v(24)));
+    code.add(store);
+    if (call)
+      code.add(new Instruction(Opcode.BL, "g"));
+    code.add(new Instruction(Opcode.MOV, v(28), 7));
+    code.add(new Instruction(Opcode.MOV, v(25), 1));
+    code.add(new Instruction(Opcode.ADD, v(19), v(19), v(25)));
+    code.add(new Instruction(Opcode.B, "loop_0"));
+    code.add(Instruction.label("end_loop_0"));
+    code.add(new Instruction(Opcode.ADD, v(29), v(20), v(28)));
+    code.add(new Instruction(Opcode.MOV, r9, v(29)));
+    if (released)
+      code.add(new Instruction(Opcode.ADD, sp, sb, 0));
+    code.add(new Instruction(Opcode.MOV, lr, v(30)));
+    code.add(new Instruction(Opcode.BX, lr));
+    code.add(Instruction.label("g"));
+    code.add(new Instruction(Opcode.BX, lr));
+    return code;
+  }
+
+  private static int run(InstructionList code, DefUse du, int b, int n) {
+    Simulator sim = simulator(code, du, b, Heap);
+    sim.store(Frame - 4, 5);
+    sim.store(Heap + 4, 3);
+    sim.store(Heap + 8, n);
+    sim.run("f", 10000);
+    check("    stops on the return", sim.stop(), "return");
+    return sim.get(9);
+  }
+
+  private static void pass(String what, Instruction store, boolean call, boolean released, int moved, int loads) {
+    DefUse du = defUse();
+    InstructionList code = function(store, call, released);
+    LoopInvariants li = new LoopInvariants(du, exitLive(), 11);
+    InstructionList done = li.run(code);
+    System.out.println(what);
+    System.out.print(li.report());
+    check("  moved", li.moved(), moved);
+    check("  loads moved", li.report().contains(" " + loads + " of them loads"), true);
+    check("  left in the loop", inLoop(done, "loop_0"), inLoop(code, "loop_0") - moved);
+    check("  nothing lost", done.size(), code.size());
+    for (int[] bn : new int[][] { { 1, 0 }, { 1, 1 }, { -100000, 3 }, { 4, 2 } }) {
+      System.out.println("  f(" + bn[0] + ", " + bn[1] + ")");
+      check("  same result", run(done, du, bn[0], bn[1]), run(code, du, bn[0], bn[1]));
+    }
+  }
+
+  private static void passes() {
+    // Constant, operation, frame load, header load, increment
+    pass("other word stored", memory(Opcode.STR, v(20), v(18), 0), false, false, 6, 2);
+    pass("bound stored", memory(Opcode.STR, v(26), v(18), 8), false, false, 5, 1);
+    pass("other base", memory(Opcode.STR, v(26), v(17), 8), false, false, 5, 1);
+    pass("frame stored", memory(Opcode.STR, v(20), sb, -4), false, false, 5, 1);
+    pass("call", memory(Opcode.STR, v(20), v(18), 0), true, false, 4, 0);
+    // The epilogue reads the stack base without keeping an address of the frame
+    pass("frame released", memory(Opcode.STR, v(20), v(18), 0), false, true, 6, 2);
+  }
+
+  private static void engine(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // int k(int p) { i = 0; s = 0; while (i < p) { s = s + 100000 + p * 3; i = i + 1; } return s; }
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), ns, m.functionReturn());
+    k.add(new IntegerType());
+    VariableInfo p = new VariableInfo(new IntegerType(), k.displacement(0), ns);
+    m.bindParameter(k, 0, p);
+    VariableInfo i = new VariableInfo(new IntegerType(), 0, ns);
+    VariableInfo s = new VariableInfo(new IntegerType(), 4, ns);
+    k.setFrameSize(8);
+
+    Code body = new Code(m.generateAllocateLocal(i), m.generateAllocateLocal(s));
+    body.append(m.generateLoadConstant(new ConstantInfo(new IntegerType(), 0), a), m.generateStoreVariable(i, a.get()));
+    body.append(m.generateLoadConstant(new ConstantInfo(new IntegerType(), 0), a), m.generateStoreVariable(s, a.get()));
+    Code test = new Code(m.generateLoadValue(i, a), m.generateLoadValue(p, b),
+        m.generateOperation(IMachine.Operator.LT.value(), a.get(), b.get(), c));
+    Register cond = c.get();
+    Code loop = new Code(m.generateLoadValue(s, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 100000), b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c));
+    Register sum = c.get();
+    loop.append(m.generateLoadValue(p, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 3), b),
+        m.generateOperation(IMachine.Operator.MUL.value(), a.get(), b.get(), c));
+    loop.append(m.generateOperation(IMachine.Operator.ADD.value(), sum, c.get(), a), m.generateStoreVariable(s, a.get()));
+    loop.append(m.generateLoadValue(i, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 1), b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c), m.generateStoreVariable(i, c.get()));
+    body.append(m.generateWhile(test, cond, loop));
+    body.append(m.generateLoadValue(s, a), m.generateFunctionReturn(k, a.get()));
+    InstructionList code = m.generateFunctionDeclaration(k, body).instructions();
+
+    for (int[] pr : new int[][] { { 0, 0 }, { 1, 100003 }, { 4, 400048 } }) {
+      Simulator sim = simulator(m, code, pr[0]);
+      sim.run(k.label(), 10000);
+      check("  stops on the return", sim.stop(), "return");
+      check("  k(" + pr[0] + ")", sim.get(9), pr[1]);
+    }
+
+    boolean on = level >= 2;
+    int movt = -1, label = -1;
+    for (int n = 0; n < code.size(); n++) {
+      if (code.get(n).opcode() == Opcode.MOVT)
+        movt = n;
+      else if (code.get(n).isLabel() && code.get(n).text().startsWith("loop_"))
+        label = n;
+    }
+    check("  100000 made before the loop", movt < label, on);
+    check("  reported", m.logInvariants().startsWith(on ? "" : "No loop invariant"), true);
+    // p * 3 is p + (p << 1) and i + 1 adds an immediate: their constants are gone
+    if (on)
+      check("  p, 100000 and p * 3 moved", m.logInvariants().startsWith("5 instructions"), true);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    passes();
+    for (int level = 1; level <= 2; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Test of the loop rotation and of the block layout: from level 2, a loop
+ * only runs one branch per iteration (its small condition copied after the
+ * body, or its big one only there), and an early return goes after the
+ * epilogue; the results must be the same at every level, with fewer
+ * instructions run (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+import static mcs.tests.Check.operation;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestLayout {
+  private static final int Heap = 0x10000;
+
+  /**
+   * Branches between the label of the loop and the branch back to it
+   */
+  private static int branches(InstructionList code) {
+    int n = 0;
+    boolean in = false;
+    for (Instruction inst : code) {
+      if (inst.isLabel() && inst.text().startsWith("loop_"))
+        in = true;
+      else if (in && inst.opcode() == Opcode.B && inst.target().startsWith("loop_"))
+        return n + 1;
+      else if (in && (inst.opcode() == Opcode.B || inst.opcode() == Opcode.CBZ || inst.opcode() == Opcode.CBNZ))
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * Whether the constant is set after the return of the function
+   */
+  private static boolean afterReturn(InstructionList code, int value) {
+    boolean out = false;
+    for (Instruction inst : code) {
+      if (inst.opcode() == Opcode.BX)
+        out = true;
+      else if (out && inst.opcode() == Opcode.MOV && Integer.valueOf(value).equals(inst.operand(1)))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * int k(int p) { if (p > 1000) return 77; i = 0; s = 0;
+   *                while (i < p) or, big, while ((i + 1) * (i + 2) - i * i < p) { s = s + i; i = i + 1; }
+   *                return s; }
+   */
+  private static InstructionList function(ARMEngine m, FunctionInfo k, boolean big) throws MCSException {
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+    k.add(new IntegerType());
+    VariableInfo p = new VariableInfo(new IntegerType(), k.displacement(0), ns);
+    m.bindParameter(k, 0, p);
+    VariableInfo i = new VariableInfo(new IntegerType(), 0, ns);
+    VariableInfo s = new VariableInfo(new IntegerType(), 4, ns);
+    k.setFrameSize(8);
+
+    Code body = new Code(m.generateAllocateLocal(i), m.generateAllocateLocal(s));
+    body.append(m.generateLoadValue(p, a), constant(m, 1000, b), operation(m, IMachine.Operator.GT, a.get(), b.get(), c));
+    Register cond = c.get();
+    body.append(m.generateIfThenElse(cond, new Code(constant(m, 77, a), m.generateFunctionReturn(k, a.get())),
+        new Code()));
+    body.append(constant(m, 0, a), m.generateStoreVariable(i, a.get()));
+    body.append(constant(m, 0, a), m.generateStoreVariable(s, a.get()));
+
+    Code test = new Code(m.generateLoadValue(i, a));
+    Register left = a.get();
+    if (big) {
+      test.append(constant(m, 1, b), operation(m, IMachine.Operator.ADD, left, b.get(), c));
+      Register one = c.get();
+      test.append(m.generateLoadValue(i, a), constant(m, 2, b), operation(m, IMachine.Operator.ADD, a.get(), b.get(), c));
+      test.append(operation(m, IMachine.Operator.MUL, one, c.get(), a));
+      Register product = a.get();
+      test.append(m.generateLoadValue(i, b), m.generateLoadValue(i, c), operation(m, IMachine.Operator.MUL, b.get(),
+          c.get(), b));
+      test.append(operation(m, IMachine.Operator.SUB, product, b.get(), a));
+      left = a.get();
+    }
+    test.append(m.generateLoadValue(p, b), operation(m, IMachine.Operator.LT, left, b.get(), c));
+    cond = c.get();
+    Code loop = new Code(m.generateLoadValue(s, a), m.generateLoadValue(i, b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateStoreVariable(s, c.get()));
+    loop.append(m.generateLoadValue(i, a), constant(m, 1, b), operation(m, IMachine.Operator.ADD, a.get(), b.get(), c),
+        m.generateStoreVariable(i, c.get()));
+    body.append(m.generateWhile(test, cond, loop));
+    body.append(m.generateLoadValue(s, a), m.generateFunctionReturn(k, a.get()));
+    return m.generateFunctionDeclaration(k, body).instructions();
+  }
+
+  /**
+   * Run k on each parameter, the instructions run being added up
+   */
+  private static long run(ARMEngine m, InstructionList code, FunctionInfo k, int[][] expected) {
+    long steps = 0;
+    for (int[] pr : expected) {
+      Simulator sim = new Simulator(code, m.defUse());
+      sim.set(12, Heap);
+      sim.set(0, pr[0]);
+      sim.run(k.label(), 100000);
+      check("    stops on the return", sim.stop(), "return");
+      check("    k(" + pr[0] + ")", sim.get(9), pr[1]);
+      steps += sim.steps();
+    }
+    return steps;
+  }
+
+  private static long engine(int level, boolean big) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    InstructionList code = function(m, k, big);
+    System.out.println(big ? "  big condition" : "  small condition");
+    // The big condition is 3 * i + 2 < p
+    long steps = run(m, code, k, big ? new int[][] { { 0, 0 }, { 3, 0 }, { 10, 3 }, { 100, 528 }, { 2000, 77 } }
+        : new int[][] { { 0, 0 }, { 1, 0 }, { 10, 45 }, { 100, 4950 }, { 2000, 77 } });
+
+    boolean on = level >= 2;
+    check("  branches in an iteration", branches(code), (on ? 1 : 2));
+    check("  entered by a branch to the test", code.toString().contains("test_"), on && big);
+    check("  early return after the epilogue", afterReturn(code, 77), on);
+    check("  reported", m.logLayout().startsWith(on ? "1 loops tested at the bottom, " + (big ? 0 : 1)
+        + " of them with their condition copied; 1 blocks moved" : "No loop rotation"), true);
+    return steps;
+  }
+
+  public static void main(String args[]) throws MCSException {
+    for (boolean big : new boolean[] { false, true }) {
+      long[] steps = new long[3];
+      for (int level = 0; level <= 2; level++) {
+        System.out.println("== level " + level);
+        steps[level] = engine(level, big);
+      }
+      check("fewer instructions run at level 2", steps[2] < steps[1], true);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,162 @@
+/**
+ * Test of the logical and/or: the right operand is not evaluated when the
+ * left one decides (it stores into a variable here, to be seen), the result
+ * is a boolean; from level 1, two comparisons of registers are chained with
+ * a conditional compare, and an if on them branches on the flags (see
+ * Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+import static mcs.tests.Check.operation;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestLogical {
+  private static final int Heap = 0x10000;
+
+  /**
+   * p op c, or c op p
+   */
+  private static Code compare(ARMEngine m, VariableInfo p, IMachine.Operator op, int c, boolean swap,
+      RegisterWrapper r) throws MCSException {
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper();
+    Code code = new Code(m.generateLoadValue(p, a), constant(m, c, b));
+    return code.append(swap ? operation(m, op, b.get(), a.get(), r) : operation(m, op, a.get(), b.get(), r));
+  }
+
+  private static int count(InstructionList code, Opcode op, boolean conditional) {
+    int n = 0;
+    for (Instruction inst : code) {
+      if (inst.opcode() == op && (inst.cond() != Cond.AL) == conditional)
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * int k(int p) { x = 0; r = (p op1 c1) and/or (p op2 c2), the right
+   * operand storing 1 into x if seen; return 10 * x + r; } or, branched
+   * on: if (...) r = 1; else r = 0
+   */
+  private static InstructionList function(ARMEngine m, FunctionInfo k, IMachine.Operator logical,
+      IMachine.Operator op1, int c1, IMachine.Operator op2, int c2, boolean swap, boolean seen, boolean branch)
+      throws MCSException {
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+    k.add(new IntegerType());
+    VariableInfo p = new VariableInfo(new IntegerType(), k.displacement(0), ns);
+    m.bindParameter(k, 0, p);
+    VariableInfo x = new VariableInfo(new IntegerType(), 0, ns);
+    VariableInfo r = new VariableInfo(new IntegerType(), 4, ns);
+    k.setFrameSize(8);
+
+    Code body = new Code(m.generateAllocateLocal(x), m.generateAllocateLocal(r),
+        constant(m, 0, a), m.generateStoreVariable(x, a.get()));
+    body.append(compare(m, p, op1, c1, false, a));
+    Register left = a.get();
+    Code right = new Code();
+    if (seen)
+      right.append(constant(m, 1, b), m.generateStoreVariable(x, b.get()));
+    right.append(compare(m, p, op2, c2, swap, b));
+    body.append(m.generateLogicalOperation(logical.value(), left, right, b.get(), c));
+    if (branch) {
+      body.append(m.generateIfThenElse(c.get(), new Code(constant(m, 1, a), m.generateStoreVariable(r, a.get())),
+          new Code(constant(m, 0, a), m.generateStoreVariable(r, a.get()))));
+    } else {
+      body.append(m.generateStoreVariable(r, c.get()));
+    }
+    body.append(m.generateLoadValue(x, a), constant(m, 10, b), operation(m, IMachine.Operator.MUL, a.get(), b.get(), c));
+    Register tens = c.get();
+    body.append(m.generateLoadValue(r, a), operation(m, IMachine.Operator.ADD, tens, a.get(), c),
+        m.generateFunctionReturn(k, c.get()));
+    return m.generateFunctionDeclaration(k, body).instructions();
+  }
+
+  private static int run(ARMEngine m, InstructionList code, FunctionInfo k, int p) {
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    sim.set(0, p);
+    sim.run(k.label(), 10000);
+    check("    stops on the return", sim.stop(), "return");
+    return sim.get(9);
+  }
+
+  private static void engine(int level) throws MCSException {
+    boolean on = level >= 1;
+
+    // (p < 10) && (x = 1, p > 3)
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    InstructionList code = function(m, k, IMachine.Operator.RAND, IMachine.Operator.LT, 10,
+        IMachine.Operator.GT, 3, false, true, false);
+    System.out.println("  and");
+    check("  k(5)", run(m, code, k, 5), 11);
+    check("  k(2)", run(m, code, k, 2), 10);
+    check("  k(20), right not seen", run(m, code, k, 20), 0);
+
+    // (p > 10) || (x = 1, p < 3)
+    m = new ARMEngine();
+    m.setOptimize(level);
+    k = new FunctionInfo("k", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    code = function(m, k, IMachine.Operator.ROR, IMachine.Operator.GT, 10,
+        IMachine.Operator.LT, 3, false, true, false);
+    System.out.println("  or");
+    check("  k(20), right not seen", run(m, code, k, 20), 1);
+    check("  k(1)", run(m, code, k, 1), 11);
+    check("  k(5)", run(m, code, k, 5), 10);
+    check("  branches", count(code, Opcode.CBNZ, false) + count(code, Opcode.B, true), 1);
+
+    // (p > 0) && (10 > p), chained
+    m = new ARMEngine();
+    m.setOptimize(level);
+    k = new FunctionInfo("k", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    code = function(m, k, IMachine.Operator.RAND, IMachine.Operator.GT, 0,
+        IMachine.Operator.GT, 10, true, false, false);
+    System.out.println("  and, chained");
+    check("  k(5)", run(m, code, k, 5), 1);
+    check("  k(-1)", run(m, code, k, -1), 0);
+    check("  k(12)", run(m, code, k, 12), 0);
+    check("  conditional compare", count(code, Opcode.CMP, true), (on ? 1 : 0));
+    check("  branches", count(code, Opcode.CBZ, false) + count(code, Opcode.B, true), (on ? 0 : 1));
+
+    // if ((p < 0) || (p > 9)) ..., chained and branched on
+    m = new ARMEngine();
+    m.setOptimize(level);
+    k = new FunctionInfo("k", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    code = function(m, k, IMachine.Operator.ROR, IMachine.Operator.LT, 0,
+        IMachine.Operator.GT, 9, false, false, true);
+    System.out.println("  or, chained, in an if");
+    check("  k(-3)", run(m, code, k, -3), 1);
+    check("  k(4)", run(m, code, k, 4), 0);
+    check("  k(10)", run(m, code, k, 10), 1);
+    check("  booleans tested", count(code, Opcode.CBZ, false) + count(code, Opcode.CBNZ, false), (on ? 0 : 2));
+    check("  booleans computed", count(code, Opcode.MOV, true), (on ? 0 : 3));
+  }
+
+  public static void main(String args[]) throws MCSException {
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Test of the value numbering: an operation made again (its operands in
+ * any order, or read through a copy), a load made again from the same
+ * address or of the word just stored, in the same block or in a block
+ * dominated by the first one, become copies; a load after a store that may
+ * write its word or a call, an operation whose first register is written
+ * in between stay; then a chain of loads made twice by the engine. The
+ * results must be the same before and after (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.v;
+import static mcs.tests.Check.defUse;
+import static mcs.tests.Check.memory;
+import static mcs.tests.Check.r0;
+import static mcs.tests.Check.r1;
+import static mcs.tests.Check.r2;
+import static mcs.tests.Check.r9;
+import static mcs.tests.Check.sb;
+import static mcs.tests.Check.sp;
+import static mcs.tests.Check.lr;
+import static mcs.tests.Check.Heap;
+import static mcs.tests.Check.Frame;
+import static mcs.tests.Check.simulator;
+import static mcs.tests.Check.count;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.DisplacementList;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.ir.ValueNumbering;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.PointerType;
+import mcs.symtab.VariableInfo;
+
+public class TestNumbering {
+  /**
+   * int f(int *p, int x, int y) { s = x * y + y * x; q = p[1]; s = s + q[2] + p[1][2];
+   *                               t = x + y; store; (call;) s = s + p[1];
+   *                               if (x < y) { s = s + x * y; t = 0; }
+   *                               return s + (x + y) + t + p[3]; }
+   * (released: s also adds the word -4 of the frame, loaded before and after
+   * the store, and the stack pointer is put back from the frame before the
+   * return, as the epilogue does)
+   */
+  private static InstructionList function(Instruction store, boolean call, boolean released) {
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, v(17), r0));
+    code.add(new Instruction(Opcode.MOV, v(18), r1));
+    code.add(new Instruction(Opcode.MOV, v(19), r2));
+    code.add(new Instruction(Opcode.MOV, v(30), lr));
+    code.add(new Instruction(Opcode.MUL, v(20), v(18), v(19)));
+    code.add(new Instruction(Opcode.MUL, v(21), v(19), v(18)));
+    code.add(new Instruction(Opcode.ADD, v(22), v(20), v(21)));
+    code.add(memory(Opcode.LDR, v(23), v(17), 4));
+    code.add(memory(Opcode.LDR, v(24), v(23), 8));
+    code.add(new Instruction(Opcode.MOV, v(40), v(17)));
+    code.add(memory(Opcode.LDR, v(25), v(40), 4));
+    code.add(memory(Opcode.LDR, v(26), v(25), 8));
+    code.add(new Instruction(Opcode.ADD, v(22), v(22), v(24)));
+    code.add(new Instruction(Opcode.ADD, v(22), v(22), v(26)));
+    code.add(new Instruction(Opcode.ADD, v(33), v(18), v(19)));
+    if (released)
+      code.add(memory(Opcode.LDR, v(41), sb, -4));
+    code.add(store);
+    if (call)
+      code.add(new Instruction(Opcode.BL, "g"));
+    if (released) {
+      code.add(memory(Opcode.LDR, v(42), sb, -4));
+      code.add(new Instruction(Opcode.ADD, v(22), v(22), v(41)));
+      code.add(new Instruction(Opcode.ADD, v(22), v(22), v(42)));
+    }
+    code.add(memory(Opcode.LDR, v(27), v(17), 4));
+    code.add(new Instruction(Opcode.ADD, v(22), v(22), v(27)));
+    code.add(new Instruction(Opcode.CMP, v(18), v(19)));
+    code.add(new Instruction(Opcode.B, Cond.GE, "skip_0", null, null));
+    code.add(new Instruction(Opcode.MUL, v(28), v(18), v(19)));
+    code.add(new Instruction(Opcode.ADD, v(22), v(22), v(28)));
+    code.add(new Instruction(Opcode.MOV, v(33), 0));
+    code.add(Instruction.label("skip_0"));
+    code.add(new Instruction(Opcode.ADD, v(34), v(18), v(19)));
+    code.add(new Instruction(Opcode.ADD, v(22), v(22), v(34)));
+    code.add(new Instruction(Opcode.ADD, v(22), v(22), v(33)));
+    code.add(memory(Opcode.LDR, v(35), v(17), 12));
+    code.add(new Instruction(Opcode.ADD, v(22), v(22), v(35)));
+    code.add(new Instruction(Opcode.MOV, r9, v(22)));
+    if (released)
+      code.add(new Instruction(Opcode.ADD, sp, sb, 0));
+    code.add(new Instruction(Opcode.MOV, lr, v(30)));
+    code.add(new Instruction(Opcode.BX, lr));
+    code.add(Instruction.label("g"));
+    code.add(new Instruction(Opcode.BX, lr));
+    return code;
+  }
+
+  private static int run(InstructionList code, DefUse du, int x, int y) {
+    Simulator sim = simulator(code, du, Heap, x, y);
+    sim.store(Heap + 4, Heap + 0x40);
+    sim.store(Heap + 12, 11);
+    sim.store(Heap + 0x48, 9);
+    sim.store(Frame - 4, 6);
+    sim.run("f", 10000);
+    check("    stops on the return", sim.stop(), "return");
+    return sim.get(9);
+  }
+
+  private static void pass(String what, Instruction store, boolean call, boolean released, int removed, int loads,
+      int stored) {
+    DefUse du = defUse();
+    InstructionList code = function(store, call, released);
+    ValueNumbering vn = new ValueNumbering(du, 11);
+    InstructionList done = vn.run(code);
+    System.out.println(what);
+    System.out.print(vn.report());
+    check("  removed", vn.removed(), removed);
+    check("  loads and stores read back", vn.report().endsWith(loads + " of them loads (" + stored
+        + " read back from a store)\n"), true);
+    check("  nothing lost", done.size(), code.size());
+    for (int[] xy : new int[][] { { 2, 3 }, { 3, 2 }, { 5, 5 }, { -7, 100 } }) {
+      System.out.println("  f(p, " + xy[0] + ", " + xy[1] + ")");
+      check("  same result", run(done, du, xy[0], xy[1]), run(code, du, xy[0], xy[1]));
+    }
+  }
+
+  private static void passes() {
+    // y * x, p[1] and q[2] through the copy, p[1] again, x * y in the then part
+    pass("nothing stored", new Instruction(Opcode.NOP, null), false, false, 5, 3, 0);
+    pass("other word stored", memory(Opcode.STR, v(18), v(17), 12), false, false, 6, 4, 1);
+    pass("same word stored", memory(Opcode.STR, v(18), v(17), 4), false, false, 5, 3, 1);
+    pass("other base", memory(Opcode.STR, v(18), v(23), 0), false, false, 4, 2, 0);
+    pass("frame stored", memory(Opcode.STR, v(18), sb, -4), false, false, 5, 3, 0);
+    pass("call", new Instruction(Opcode.NOP, null), true, false, 4, 2, 0);
+    // The epilogue reads the stack base without keeping an address of the
+    // frame: the word of the frame is loaded once
+    pass("frame released", memory(Opcode.STR, v(18), v(23), 0), false, true, 5, 3, 0);
+  }
+
+  /**
+   * int k(int *p) { q = p; return q->0->1 + q->0->1; }: each access loads
+   * the word q points to, the word 0 it points to, then the word 1 of that
+   */
+  private static void engine(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), ns, m.functionReturn());
+    k.add(new PointerType(new IntegerType()));
+    VariableInfo p = new VariableInfo(new PointerType(new IntegerType()), k.displacement(0), ns);
+    m.bindParameter(k, 0, p);
+    VariableInfo q = new VariableInfo(new PointerType(new IntegerType()), 0, ns);
+    k.setFrameSize(4);
+
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+    Code body = new Code(m.generateAllocateLocal(q), m.generateLoadValue(p, a), m.generateStoreVariable(q, a.get()));
+    DisplacementList chain = new DisplacementList();
+    chain.add(q.displacement(), false);
+    chain.add(0, true);
+    chain.add(4, false);
+    body.append(m.generateMakeAddress(chain, a, b));
+    Register first = a.get();
+    body.append(m.generateMakeAddress(chain, a, b));
+    body.append(m.generateOperation(IMachine.Operator.ADD.value(), first, a.get(), c));
+    body.append(m.generateFunctionReturn(k, c.get()));
+    InstructionList code = m.generateFunctionDeclaration(k, body).instructions();
+
+    Simulator sim = simulator(m, code, Heap + 0x100);
+    sim.store(Heap + 0x100, Heap + 0x140);
+    sim.store(Heap + 0x140, Heap + 0x180);
+    sim.store(Heap + 0x184, 21);
+    sim.run(k.label(), 1000);
+    check("  stops on the return", sim.stop(), "return");
+    check("  k(p)", sim.get(9), 42);
+
+    boolean on = level >= 1;
+    check("  loads", count(code, Opcode.LDR), (on ? 3 : 9));
+    check("  reported", m.logNumbering().startsWith(on ? "3 computations made again removed, 3 of them loads"
+        : "No value numbering"), true);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    passes();
+    for (int level = 0; level <= 2; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,225 @@
+/**
+ * Test of the peephole optimizer: each rule of the table on a short
+ * sequence, a comparison kept when its boolean is read after the branch, a
+ * rule given to the pass, then a function of the engine (whose conditions
+ * are already tested on the flags); the results must be the same before and
+ * after (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.defUse;
+import static mcs.tests.Check.memory;
+import static mcs.tests.Check.count;
+
+import java.util.BitSet;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.ir.Peephole;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestPeephole {
+  private static final int Heap = 0x10000;
+
+  private static final Register r0 = new Register("r", 0), r1 = new Register("r", 1), r2 = new Register("r", 2),
+      r3 = new Register("r", 3), r9 = new Register("r", 9), sp = new Register("sp", -1), lr = new Register("lr", -1);
+
+  private static BitSet exitLive() {
+    BitSet live = new BitSet();
+    live.set(9);
+    live.set(DefUse.SP);
+    live.set(DefUse.LR);
+    return live;
+  }
+
+  private static int real(InstructionList code) {
+    int n = 0;
+    for (Instruction inst : code) {
+      if (!inst.opcode().isPseudo())
+        n++;
+    }
+    return n;
+  }
+
+  private static int run(InstructionList code, DefUse du, int a, int b) {
+    Simulator sim = new Simulator(code, du);
+    sim.set(12, Heap);
+    sim.set(0, a);
+    sim.set(1, b);
+    sim.run("f", 1000);
+    check("    stops on the return", sim.stop(), "return");
+    return sim.get(9);
+  }
+
+  private static void rules() {
+    DefUse du = defUse();
+
+    // int f(int a, int b) { x = a; if (a < b) x = x + b; while (x & 1) x = x + 1; return x; }
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.SUB, sp, sp, 0));
+    code.add(memory(Opcode.STR, r0, sp, -4));
+    code.add(memory(Opcode.LDR, r2, sp, -4));
+    code.add(Instruction.text("// x = a\n"));
+    code.add(memory(Opcode.LDR, r3, sp, -8));
+    code.add(memory(Opcode.LDR, r3, sp, -8));
+    code.add(new Instruction(Opcode.MOV, r3, r3));
+    code.add(new Instruction(Opcode.MOV, r3, 0));
+    code.add(new Instruction(Opcode.CMP, r0, r1));
+    code.add(new Instruction(Opcode.MOV, Cond.LT, r3, 1, null));
+    code.add(new Instruction(Opcode.CBZ, r3, "end_0"));
+    code.add(new Instruction(Opcode.ADD, r2, r2, r1));
+    code.add(new Instruction(Opcode.B, "end_0"));
+    code.add(Instruction.label("end_0"));
+    code.add(Instruction.label("loop_0"));
+    Instruction ands = new Instruction(Opcode.AND, r3, r2, 1);
+    ands.setFlags(true);
+    code.add(ands);
+    code.add(new Instruction(Opcode.MOV, Cond.NE, r3, 1, null));
+    code.add(new Instruction(Opcode.CBZ, r3, "end_loop_0"));
+    code.add(new Instruction(Opcode.ADD, r2, r2, 1));
+    code.add(new Instruction(Opcode.MOV, r1, r2));
+    code.add(new Instruction(Opcode.MOV, r2, r1));
+    code.add(new Instruction(Opcode.B, "loop_0"));
+    code.add(Instruction.label("end_loop_0"));
+    code.add(new Instruction(Opcode.MOV, r9, 5));
+    code.add(new Instruction(Opcode.ADD, sp, sp, 0));
+    code.add(new Instruction(Opcode.MOV, r9, r2));
+    code.add(new Instruction(Opcode.BX, lr));
+
+    Peephole p = new Peephole(du, exitLive());
+    InstructionList done = p.run(code);
+    System.out.print(done);
+    System.out.print(p.report());
+    check("self move", p.count("self move"), 1);
+    check("add zero", p.count("add zero"), 2);
+    check("branch to next", p.count("branch to next"), 1);
+    check("store reload", p.count("store reload"), 1);
+    check("double load", p.count("double load"), 1);
+    check("move back", p.count("move back"), 1);
+    check("overwritten", p.count("overwritten"), 1);
+    check("compare and branch", p.count("compare and branch"), 1);
+    check("flags and branch", p.count("flags and branch"), 1);
+    check("total", p.total(), 10);
+    check("no more CBZ", count(done, Opcode.CBZ), 0);
+    check("loads left", count(done, Opcode.LDR), 1);
+    check("comments kept", count(done, Opcode.TEXT), 1);
+    check("instructions", real(done), 13);
+    check("the original is untouched", real(code), 23);
+
+    for (int[] ab : new int[][] { { 3, 4 }, { 4, 3 }, { 2, 7 }, { -5, 1 } }) {
+      System.out.println("  f(" + ab[0] + ", " + ab[1] + ")");
+      check("  same result", run(done, du, ab[0], ab[1]), run(code, du, ab[0], ab[1]));
+    }
+  }
+
+  private static void kept() {
+    // The boolean is returned after the branch: it must be computed
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, r9, 0));
+    code.add(new Instruction(Opcode.CMP, r0, r1));
+    code.add(new Instruction(Opcode.MOV, Cond.EQ, r9, 1, null));
+    code.add(new Instruction(Opcode.CBNZ, r9, "end_0"));
+    code.add(new Instruction(Opcode.MOV, r9, 2));
+    code.add(Instruction.label("end_0"));
+    code.add(new Instruction(Opcode.BX, lr));
+
+    Peephole p = new Peephole(defUse(), exitLive());
+    InstructionList done = p.run(code);
+    check("boolean read after the branch", p.total(), 0);
+    check("  code kept", real(done), real(code));
+
+    // A rule of our own: MOV r, #0 into EOR r, r, r
+    Peephole.Rule zero = new Peephole.Rule("zero", 1) {
+      public Instruction[] rewrite(Instruction[] w, Peephole p) {
+        if (w[0].opcode() != Opcode.MOV || !Integer.valueOf(0).equals(w[0].operand(1)))
+          return null;
+        Object r = w[0].operand(0);
+        return new Instruction[] { new Instruction(Opcode.EOR, r, r, r) };
+      }
+    };
+    p = new Peephole(new Peephole.Rule[] { zero }, defUse(), exitLive());
+    done = p.run(code);
+    check("rule given", p.count("zero"), 1);
+    check("  applied", count(done, Opcode.EOR), 1);
+    check("  report", p.report(), "1 rewrites\n  zero: 1\n");
+  }
+
+  private static void engine(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // int h(int p) { x = +p; while (x < 50) x = x + p; if (x != 60) x = 0; return x; }
+    FunctionInfo h = new FunctionInfo("h", new IntegerType(), ns, m.functionReturn());
+    h.add(new IntegerType());
+    VariableInfo p = new VariableInfo(new IntegerType(), h.displacement(0), ns);
+    m.bindParameter(h, 0, p);
+    VariableInfo x = new VariableInfo(new IntegerType(), 0, ns);
+    h.setFrameSize(4);
+    Code body = new Code(m.generateAllocateLocal(x), m.generateLoadValue(p, a));
+    Register pa = a.get();
+    Code plus = m.generateOperation(IMachine.Operator.PLS.value(), pa, c);
+    check("  +p is p", c.get() == pa, true);
+    check("  +p costs nothing", plus.instructions().size(), 0);
+    body.append(plus, m.generateStoreVariable(x, c.get()));
+    Code test = new Code(m.generateLoadValue(x, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 50), b),
+        m.generateOperation(IMachine.Operator.LT.value(), a.get(), b.get(), c));
+    Register cond = c.get();
+    Code loop = new Code(m.generateLoadValue(x, a), m.generateLoadValue(p, b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c), m.generateStoreVariable(x, c.get()));
+    body.append(m.generateWhile(test, cond, loop));
+    body.append(m.generateLoadValue(x, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 60), b),
+        m.generateOperation(IMachine.Operator.NEQ.value(), a.get(), b.get(), c));
+    cond = c.get();
+    Code then = new Code(m.generateLoadConstant(new ConstantInfo(new IntegerType(), 0), a),
+        m.generateStoreVariable(x, a.get()));
+    body.append(m.generateIfThenElse(cond, then, new Code()));
+    body.append(m.generateLoadValue(x, a), m.generateFunctionReturn(h, a.get()));
+    InstructionList code = m.generateFunctionDeclaration(h, body).instructions();
+
+    for (int[] pr : new int[][] { { 20, 60 }, { 7, 0 }, { 60, 60 } }) {
+      Simulator sim = new Simulator(code, m.defUse());
+      sim.set(12, Heap);
+      sim.set(0, pr[0]);
+      sim.run(h.label(), 10000);
+      check("  stops on the return", sim.stop(), "return");
+      check("  h(" + pr[0] + ")", sim.get(9), pr[1]);
+    }
+
+    boolean on = level >= 1;
+    check("  booleans branched on", count(code, Opcode.CBZ), (on ? 0 : 2));
+    check("  reported", m.logPeephole().startsWith(on ? "" : "No peephole"), true);
+    if (on)
+      check("  branches already on the flags", m.logPeephole().contains("compare and branch: 0"), true);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    rules();
+    kept();
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Test of the promotion of local variables to registers: the loop
+ * s := 0; i := 0; while (i < 100) { s := s + i; i := i + 1 } must compute the
+ * same sum with far fewer loads and stores (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestPromotion {
+  // Stack base of the function: below the saved link register and stack base
+  private static final int Frame = Simulator.Stack - 12, Heap = 0x10000;
+
+  /**
+   * Code of the function, as the grammar generates it
+   * @param addressed the address of i is used, as by inline assembly
+   */
+  private static InstructionList function(ARMEngine m, FunctionInfo f, boolean addressed) throws MCSException {
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    VariableInfo s = new VariableInfo(new IntegerType(), 0, ns), i = new VariableInfo(new IntegerType(), 4, ns);
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    Code body = new Code();
+    for (VariableInfo v : new VariableInfo[] { s, i }) {
+      body.append(m.generateAllocateLocal(v), constant(m, 0, a), m.generateStoreVariable(v, a.get()));
+    }
+    if (addressed)
+      m.generateVariableAddress(i);
+
+    Code cond = new Code(m.generateLoadValue(i, a), constant(m, 100, b),
+        m.generateOperation(IMachine.Operator.LT.value(), a.get(), b.get(), c));
+    Register rc = c.get();
+
+    Code loop = new Code(m.generateLoadValue(s, a), m.generateLoadValue(i, b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c),
+        m.generateStoreVariable(s, c.get()));
+    loop.append(m.generateLoadValue(i, a), constant(m, 1, b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c),
+        m.generateStoreVariable(i, c.get()));
+
+    body.append(m.generateWhile(cond, rc, loop), m.generateLoadValue(s, a), m.generateFunctionReturn(f, a.get()));
+    f.setFrameSize(8);
+    return m.generateFunctionDeclaration(f, body).instructions();
+  }
+
+  private static Simulator run(ARMEngine m, int level, boolean addressed) throws MCSException {
+    m.setOptimize(level);
+    FunctionInfo f = new FunctionInfo("f", new IntegerType(), new DefaultNamespaceInfo(), m.functionReturn());
+    InstructionList code = function(m, f, addressed);
+    for (Instruction inst : code) {
+      if (inst.isText() && inst.text().startsWith("// Registers"))
+        System.out.println(inst.text().trim());
+    }
+
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    sim.run(f.label(), 100000);
+    check("  stops on the return", sim.stop(), "return");
+    check("  sum", sim.get(9), 4950);
+    return sim;
+  }
+
+  public static void main(String args[]) throws MCSException {
+    ARMEngine m = new ARMEngine();
+
+    System.out.println("== variables in the stack");
+    long stack = run(m, 0, false).accesses();
+    System.out.println("== variables in registers");
+    long regs = run(m, 1, false).accesses();
+    check("loads and stores (" + regs + " instead of " + stack + ")", regs * 50 < stack, true);
+
+    System.out.println("== address of i used");
+    Simulator sim = run(m, 1, true);
+    check("i back in the stack", sim.load(Frame - 4), 100);
+    check("s still in a register", sim.load(Frame), 0);
+    check("more loads and stores", sim.accesses() > regs, true);
+
+    done();
+  }
+}
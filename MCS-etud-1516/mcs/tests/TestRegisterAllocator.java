@@ -0,0 +1,215 @@
+/**
+ * Test of the register allocation: the allocated code must compute the same
+ * values as the code with virtual registers (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+
+import java.util.BitSet;
+import java.util.List;
+
+import mcs.compiler.MCSException;
+import mcs.compiler.MCSRegisterLimitReachedException;
+import mcs.gc.ColoringAllocator;
+import mcs.gc.IMachine;
+import mcs.gc.LinearScanAllocator;
+import mcs.gc.Register;
+import mcs.gc.RegisterAllocator;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+
+public class TestRegisterAllocator {
+  private static int next = DefUse.FirstVirtual;
+
+  private static Register r0 = new Register("r", 0), r1 = new Register("r", 1), r2 = new Register("r", 2),
+                          sb = new Register("r", 11, "SB"), lr = new Register("lr", -1);
+  private static final int Frame = 0x8000;
+
+  private static Register v() {
+    return new Register("v", next++);
+  }
+
+  private static int run(InstructionList code, DefUse du) {
+    Simulator sim = new Simulator(code, du);
+    sim.set(11, Frame);
+    sim.run("f", 100000);
+    check("  stops on the return", sim.stop(), "return");
+    return sim.get(0);
+  }
+
+  private static boolean hasVirtual(InstructionList code) {
+    for (Instruction inst : code) {
+      for (int k = 0; k < 4; k++) {
+        Object o = inst.operand(k);
+        if (o instanceof List) {
+          for (Object r : (List<?>)o)
+            if (DefUse.isVirtual(DefUse.id((Register)r)))
+              return true;
+        } else if (o instanceof Register && DefUse.isVirtual(DefUse.id((Register)o))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sum of n values, all computed before the first addition: n registers
+   * are live at the same time
+   */
+  private static void pressure(InstructionList code, int n, int seed) {
+    Register[] x = new Register[n];
+    for (int i = 0; i < n; i++) {
+      x[i] = v();
+      code.add(new Instruction(Opcode.MOV, x[i], seed + 3 * i));
+    }
+    Register acc = v();
+    code.add(new Instruction(Opcode.MOV, acc, 0));
+    for (int i = 0; i < n; i++) {
+      Register t = v();
+      code.add(new Instruction(Opcode.MUL, t, x[i], x[n - 1 - i]));
+      code.add(new Instruction(Opcode.ADD, acc, acc, t));
+    }
+    code.add(new Instruction(Opcode.ADD, r0, r0, acc));
+  }
+
+  /**
+   * Same tests for each allocator
+   * @param alloc allocator with 3 registers
+   * @return the number of instructions run by the loop
+   */
+  private static long test(RegisterAllocator alloc, DefUse du) throws MCSException {
+    System.out.println("== " + alloc.name());
+
+    // Two groups of 10 values with 3 registers
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, r0, 0));
+    pressure(code, 10, 1);
+    pressure(code, 10, 7);
+    code.add(new Instruction(Opcode.BX, lr));
+
+    int expected = 0;
+    for (int s : new int[] { 1, 7 })
+      for (int i = 0; i < 10; i++)
+        expected += (s + 3 * i) * (s + 3 * (9 - i));
+    check("result with virtual registers", run(code, du), expected);
+    InstructionList saved = code.copy();
+
+    code = alloc.allocate(code, sb, 8);
+    System.out.println(alloc.report());
+    check("result with 3 registers", run(code, du), expected);
+    check("no virtual register left", hasVirtual(code), false);
+    check("some registers spilled", alloc.spilled() > 0, true);
+    check("slots shared by the two groups", alloc.slots() < alloc.spilled(), true);
+
+    // Without spilling, the allocation fails
+    boolean thrown = false;
+    try {
+      alloc.allocate(saved, null, 0);
+    } catch (MCSRegisterLimitReachedException e) {
+      thrown = true;
+    }
+    check("no spilling possible", thrown, true);
+
+    // Copies: v1 := 5; v2 := v1; v3 := v2 + 1; r0 := v3
+    code = new InstructionList();
+    Register a = v(), b = v(), c = v();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, a, 5));
+    code.add(new Instruction(Opcode.MOV, b, a));
+    code.add(new Instruction(Opcode.ADD, c, b, 1));
+    code.add(new Instruction(Opcode.MOV, r0, c));
+    code.add(new Instruction(Opcode.BX, lr));
+    code = alloc.allocate(code, sb, 8);
+    System.out.println(alloc.report());
+    check("copies removed", alloc.report().endsWith("2 copies coalesced"), true);
+    check("instructions left", code.size(), 4);
+    check("result", run(code, du), 6);
+
+    // A value live across a call can not stay in r0-r2: g changes them
+    code = new InstructionList();
+    Register j = v(), k = v(), m = v();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.PUSH, new IMachine.RegisterList(lr)));
+    code.add(new Instruction(Opcode.MOV, j, 3));
+    code.add(new Instruction(Opcode.ADD, k, j, 4));
+    code.add(new Instruction(Opcode.BL, "g"));
+    code.add(new Instruction(Opcode.ADD, m, k, 1));
+    code.add(new Instruction(Opcode.MOV, r0, m));
+    code.add(new Instruction(Opcode.POP, new IMachine.RegisterList(new Register("pc", -1))));
+    code = alloc.allocate(code, sb, 8);
+    System.out.println(alloc.report());
+    check("value live across the call spilled", alloc.spilled(), 1);
+    code.add(Instruction.label("g"));
+    for (Register r : new Register[] { r0, r1, r2 })
+      code.add(new Instruction(Opcode.MOV, r, 0));
+    code.add(new Instruction(Opcode.BX, lr));
+    check("result", run(code, du), 8);
+
+    // Loop: s := 0; for (i := 0; i < n; i++) s := s + i*i, and x, only
+    // used after the loop: 5 registers live in the loop
+    code = new InstructionList();
+    Register i = v(), n = v(), s = v(), t = v(), x = v(), y = v();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, n, 10));
+    code.add(new Instruction(Opcode.MOV, s, 0));
+    code.add(new Instruction(Opcode.MOV, i, 0));
+    code.add(new Instruction(Opcode.LDR, Cond.AL, false, Instruction.Addressing.Offset, x, sb, -4, null));
+    code.add(Instruction.label("loop"));
+    code.add(new Instruction(Opcode.CMP, i, n));
+    code.add(new Instruction(Opcode.B, Cond.GE, "end", null, null));
+    code.add(new Instruction(Opcode.MUL, t, i, i));
+    code.add(new Instruction(Opcode.ADD, s, s, t));
+    code.add(new Instruction(Opcode.ADD, i, i, 1));
+    code.add(new Instruction(Opcode.B, "loop"));
+    code.add(Instruction.label("end"));
+    code.add(new Instruction(Opcode.ADD, y, x, 1));
+    code.add(new Instruction(Opcode.STR, Cond.AL, false, Instruction.Addressing.Offset, y, sb, -4, null));
+    code.add(new Instruction(Opcode.MOV, r0, s));
+    code.add(new Instruction(Opcode.BX, lr));
+    code = alloc.allocate(code, sb, 8);
+    System.out.println(alloc.report());
+    check("loop spilled", alloc.spilled() > 0, true);
+    Simulator sim = new Simulator(code, du);
+    sim.set(11, Frame);
+    check("loop result", sim.run("f", 100000).get(0), 285);
+    check("x + 1 stored", sim.load(Frame - 4), 1);
+    check("no virtual register left", hasVirtual(code), false);
+
+    System.out.println(alloc.totalReport());
+    return sim.steps();
+  }
+
+  public static void main(String args[]) throws MCSException {
+    // Calls read nothing and may change r0 to r3
+    BitSet callUses = new BitSet(), callDefs = new BitSet(), exitLive = new BitSet();
+    callDefs.set(0, 4);
+    exitLive.set(0);
+    exitLive.set(11);
+    exitLive.set(DefUse.SP);
+    exitLive.set(DefUse.LR);
+    DefUse du = new DefUse(callUses, callDefs, null);
+    Register[] pool = { r0, r1, r2 };
+
+    RegisterAllocator scan = new LinearScanAllocator(du, exitLive, pool);
+    long scanSteps = test(scan, du);
+    RegisterAllocator color = new ColoringAllocator(du, exitLive, pool);
+    long colorSteps = test(color, du);
+
+    System.out.println("== comparison");
+    // The constants are loaded again instead of going through memory
+    check("constants rematerialised", color.totalReport().contains("rematerialised"), true);
+    check("less spill code", color.totalSpillCode() < scan.totalSpillCode(), true);
+    // x is spilled rather than the sum, which ends later but is used in the loop
+    check("loop runs faster (" + colorSteps + " instructions instead of " + scanSteps + ")",
+          colorSteps < scanSteps, true);
+
+    done();
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Test of the return of function results: a loop calling a function 1000
+ * times must get each result in the function return register, without
+ * taking anything from the heap (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.DisplacementList;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.InstructionList;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestReturn {
+  private static final int Heap = 0x10000;
+
+  public static void main(String args[]) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // int seven() { return 7; }
+    FunctionInfo g = new FunctionInfo("seven", new IntegerType(), ns, m.functionReturn());
+    InstructionList code = m.generateFunctionDeclaration(g,
+        new Code(constant(m, 7, a), m.generateFunctionReturn(g, a.get()))).instructions();
+
+    // int f() { int s = 0; int i = 0; while (i < 1000) { s = s + seven(); i = i + 1; } return s; }
+    FunctionInfo f = new FunctionInfo("f", new IntegerType(), ns, m.functionReturn());
+    VariableInfo s = new VariableInfo(new IntegerType(), 0, ns), i = new VariableInfo(new IntegerType(), 4, ns);
+    Code body = new Code();
+    for (VariableInfo v : new VariableInfo[] { s, i }) {
+      body.append(m.generateAllocateLocal(v), constant(m, 0, a), m.generateStoreVariable(v, a.get()));
+    }
+
+    Code cond = new Code(m.generateLoadValue(i, a), constant(m, 1000, b),
+        m.generateOperation(IMachine.Operator.LT.value(), a.get(), b.get(), c));
+    Register rc = c.get();
+
+    // The result is taken as the grammar does, through an empty address
+    Code loop = new Code(m.generateLoadValue(s, a), m.generateFunctionCall(g),
+        m.generateMakeAddress(new DisplacementList(), g.register(), b, new RegisterWrapper()),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c),
+        m.generateStoreVariable(s, c.get()));
+    loop.append(m.generateLoadValue(i, a), constant(m, 1, b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c),
+        m.generateStoreVariable(i, c.get()));
+
+    body.append(m.generateWhile(cond, rc, loop), m.generateLoadValue(s, a), m.generateFunctionReturn(f, a.get()));
+    f.setFrameSize(8);
+    code.addAll(m.generateFunctionDeclaration(f, body).instructions());
+
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    sim.run(f.label(), 1000000);
+    check("stops on the return", sim.stop(), "return");
+    check("result in the return register", sim.get(9), 7000);
+    check("heap top unchanged", Integer.toHexString(sim.get(12)), Integer.toHexString(Heap));
+
+    done();
+  }
+}
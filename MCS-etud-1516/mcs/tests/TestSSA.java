@@ -0,0 +1,216 @@
+/**
+ * Test of the SSA view and of the constant propagation: phis at the end of
+ * an if-then-else and at the head of a while loop, the values read, the
+ * constants flowing through a variable and across the branches, the blocks
+ * never reached; then a function of the engine whose variable is a constant
+ * (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.v;
+import static mcs.tests.Check.defUse;
+
+import java.util.Arrays;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.ConstantPropagation;
+import mcs.ir.ControlFlowGraph;
+import mcs.ir.DefUse;
+import mcs.ir.Dominators;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.ir.SSA;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestSSA {
+  private static final int Heap = 0x10000;
+
+  private static String sorted(int[] values) {
+    int[] s = values.clone();
+    Arrays.sort(s);
+    return Arrays.toString(s);
+  }
+
+  private static void views() {
+    Register r0 = new Register("r", 0), r9 = new Register("r", 9), lr = new Register("lr", -1);
+
+    // int f(int a) { x = 3; if (x > 2) y = x * 4; else y = a; i = 0;
+    //                while (i < a) i = i + x; if (y == 12) return i + y; return a; }
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));                                            // B0
+    code.add(new Instruction(Opcode.MOV, v(19), r0));
+    code.add(new Instruction(Opcode.MOV, v(16), 3));
+    code.add(new Instruction(Opcode.MOV, v(17), 0));
+    code.add(new Instruction(Opcode.MOV, v(18), 0));
+    code.add(new Instruction(Opcode.CMP, v(16), 2));
+    code.add(new Instruction(Opcode.MOV, Cond.GT, v(18), 1, null));
+    code.add(new Instruction(Opcode.CBZ, v(18), "else_0"));
+    code.add(new Instruction(Opcode.MOV, v(20), 4));                             // B1
+    code.add(new Instruction(Opcode.MUL, v(17), v(16), v(20)));
+    code.add(new Instruction(Opcode.B, "end_0"));
+    code.add(Instruction.label("else_0"));                                       // B2
+    code.add(new Instruction(Opcode.MOV, v(17), v(19)));
+    code.add(Instruction.label("end_0"));                                        // B3
+    code.add(new Instruction(Opcode.MOV, v(21), 0));
+    code.add(Instruction.label("loop_0"));                                       // B4
+    code.add(new Instruction(Opcode.MOV, v(22), 0));
+    code.add(new Instruction(Opcode.CMP, v(21), v(19)));
+    code.add(new Instruction(Opcode.MOV, Cond.LT, v(22), 1, null));
+    code.add(new Instruction(Opcode.CBZ, v(22), "end_loop_0"));
+    code.add(new Instruction(Opcode.ADD, v(21), v(21), v(16)));                  // B5
+    code.add(new Instruction(Opcode.B, "loop_0"));
+    code.add(Instruction.label("end_loop_0"));                                   // B6
+    code.add(new Instruction(Opcode.MOV, v(24), 0));
+    code.add(new Instruction(Opcode.CMP, v(17), 12));
+    code.add(new Instruction(Opcode.MOV, Cond.EQ, v(24), 1, null));
+    code.add(new Instruction(Opcode.CBZ, v(24), "end_1"));
+    code.add(new Instruction(Opcode.ADD, v(23), v(21), v(17)));                  // B7
+    code.add(new Instruction(Opcode.MOV, r9, v(23)));
+    code.add(new Instruction(Opcode.BX, lr));
+    code.add(Instruction.label("end_1"));                                        // B8
+    code.add(new Instruction(Opcode.MOV, r9, v(19)));
+    code.add(new Instruction(Opcode.BX, lr));
+
+    ControlFlowGraph cfg = new ControlFlowGraph(code);
+    Dominators dom = new Dominators(cfg);
+    check("blocks", cfg.size(), 9);
+    check("idom of end_0", dom.idom(3), 0);
+    check("idom of end_loop_0", dom.idom(6), 4);
+    check("frontier of the then branch", sorted(dom.frontier(1)), "[3]");
+    check("frontier of the loop body", sorted(dom.frontier(5)), "[4]");
+    check("loop_0 dominates end_1", dom.dominates(4, 8), true);
+    check("else_0 does not dominate end_0", dom.dominates(2, 3), false);
+
+    SSA ssa = new SSA(cfg, dom, defUse());
+    System.out.print(ssa);
+    check("phis", ssa.phiCount(), 2);
+    check("phi at end_0", ssa.phis(3).length, 1);
+    check("  of y", DefUse.name(ssa.register(ssa.phis(3)[0])), "v17");
+    check("  from both branches", sorted(ssa.arguments(ssa.phis(3)[0])), sorted(new int[] { ssa.def(9, 17), ssa.def(12, 17) }));
+    check("phi at loop_0", ssa.phis(4).length, 1);
+    check("  of i", DefUse.name(ssa.register(ssa.phis(4)[0])), "v21");
+    check("  from the entry and the body", sorted(ssa.arguments(ssa.phis(4)[0])), sorted(new int[] { ssa.def(14, 21), ssa.def(20, 21) }));
+    check("i read in the body", ssa.use(20, 21), ssa.phis(4)[0]);
+    check("y read after the loop", ssa.use(24, 17), ssa.phis(3)[0]);
+    check("x read in the body", ssa.instruction(ssa.use(20, 16)), 2);
+    check("MOVLT may keep the value of MOV", ssa.previous(18, 0), ssa.def(16, 22));
+    check("users of x", sorted(ssa.users(ssa.def(2, 16))), "[5, 9, 20]");
+
+    ConstantPropagation cp = new ConstantPropagation(ssa);
+    check("x > 2 holds", cp.constant(6), 1);
+    check("CBZ not taken", cp.taken(7), false);
+    check("else_0 never reached", cp.isReached(2), false);
+    check("y is 12", cp.constant(9), 12);
+    check("  at end_0", cp.isConstant(ssa.phis(3)[0]) ? cp.value(ssa.phis(3)[0]) : "not a constant", 12);
+    check("i is not a constant", cp.isConstant(ssa.phis(4)[0]), false);
+    check("loop condition not known", cp.taken(19), null);
+    check("loop body reached", cp.isReached(5), true);
+    check("y == 12 holds", cp.constant(25), 1);
+    check("return a never reached", cp.isReached(8), false);
+
+    // int g() { c = 6 && 1; k = 7; while (r0) k = k + 0; return k; }
+    code = new InstructionList();
+    code.add(Instruction.label("g"));                                            // B0
+    code.add(new Instruction(Opcode.MOV, v(30), 6));
+    code.add(new Instruction(Opcode.MOV, v(31), 1));
+    code.add(new Instruction(Opcode.MOV, v(32), 0));
+    code.add(new Instruction(Opcode.AND, Cond.AL, true, Instruction.Addressing.None, v(32), v(30), v(31), null));
+    code.add(new Instruction(Opcode.MOV, Cond.NE, v(32), 1, null));
+    code.add(new Instruction(Opcode.MOV, v(40), 7));
+    code.add(Instruction.label("loop_1"));                                       // B1
+    code.add(new Instruction(Opcode.CBZ, r0, "end_loop_1"));
+    code.add(new Instruction(Opcode.MOV, v(41), v(40)));                         // B2
+    code.add(new Instruction(Opcode.ADD, v(40), v(41), 0));
+    code.add(new Instruction(Opcode.B, "loop_1"));
+    code.add(Instruction.label("end_loop_1"));                                   // B3
+    code.add(new Instruction(Opcode.ADD, r9, v(40), v(32)));
+    code.add(new Instruction(Opcode.BX, lr));
+
+    cfg = new ControlFlowGraph(code);
+    ssa = new SSA(cfg, new Dominators(cfg), defUse());
+    cp = new ConstantPropagation(ssa);
+    check("6 & 1 is 0, MOVNE not executed", cp.constant(5), 0);
+    check("k + 0 is 7", cp.constant(10), 7);
+    check("k is 7 at loop_1", cp.value(ssa.phis(1)[0]), 7);
+    check("a machine register is not a constant", cp.taken(8), null);
+  }
+
+  /**
+   * int h(int a) { int x; x = 5; if (x == 5) x = x + 1; else x = a;
+   *                while (x < 3) x = x + a; return x * 2; }
+   */
+  private static void engine(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    FunctionInfo h = new FunctionInfo("h", new IntegerType(), ns, m.functionReturn());
+    h.add(new IntegerType());
+    VariableInfo p = new VariableInfo(new IntegerType(), h.displacement(0), ns);
+    m.bindParameter(h, 0, p);
+    VariableInfo x = new VariableInfo(new IntegerType(), 0, ns);
+    h.setFrameSize(4);
+    Code body = new Code(m.generateAllocateLocal(x), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 5), a),
+        m.generateStoreVariable(x, a.get()));
+    body.append(m.generateLoadValue(x, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 5), b),
+        m.generateOperation(IMachine.Operator.EQ.value(), a.get(), b.get(), c));
+    Register cond = c.get();
+    Code then = new Code(m.generateLoadValue(x, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 1), b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c), m.generateStoreVariable(x, c.get()));
+    Code otherwise = new Code(m.generateLoadValue(p, a), m.generateStoreVariable(x, a.get()));
+    body.append(m.generateIfThenElse(cond, then, otherwise));
+    Code test = new Code(m.generateLoadValue(x, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 3), b),
+        m.generateOperation(IMachine.Operator.LT.value(), a.get(), b.get(), c));
+    cond = c.get();
+    Code loop = new Code(m.generateLoadValue(x, a), m.generateLoadValue(p, b),
+        m.generateOperation(IMachine.Operator.ADD.value(), a.get(), b.get(), c), m.generateStoreVariable(x, c.get()));
+    body.append(m.generateWhile(test, cond, loop));
+    body.append(m.generateLoadValue(x, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 2), b),
+        m.generateOperation(IMachine.Operator.MUL.value(), a.get(), b.get(), c), m.generateFunctionReturn(h, c.get()));
+    InstructionList code = m.generateFunctionDeclaration(h, body).instructions();
+
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    sim.set(0, 40);
+    sim.run(h.label(), 10000);
+    check("  stops on the return", sim.stop(), "return");
+    check("  h(40)", sim.get(9), 12);
+
+    int branches = 0, operations = 0;
+    for (Instruction inst : code) {
+      if (inst.opcode() == Opcode.CBZ || inst.opcode() == Opcode.CMP)
+        branches++;
+      if (inst.opcode() == Opcode.MUL || inst.opcode() == Opcode.ADD && inst.isRegister(2))
+        operations++;
+    }
+    boolean on = level >= 1;
+    check("  tests left", branches, (on ? 0 : 4));
+    check("  operations left", operations, (on ? 0 : 3));
+    check("  reported", m.logPropagation().startsWith(on ? "1 functions" : "No constant propagation"), true);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    views();
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
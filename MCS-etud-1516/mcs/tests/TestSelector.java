@@ -0,0 +1,212 @@
+/**
+ * Test of the selector: a product added or subtracted becomes an MLA or
+ * an MLS, a shift added a shifted operand, the index or the displacement
+ * of a load or a store goes in its address, and an operation compared with
+ * 0 sets the flags; a product read twice, or compared for GT, stays; then
+ * a function of the engine at levels 0 and 1. The results and the memory
+ * must be the same before and after (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.v;
+import static mcs.tests.Check.defUse;
+import static mcs.tests.Check.memory;
+import static mcs.tests.Check.r0;
+import static mcs.tests.Check.r1;
+import static mcs.tests.Check.r2;
+import static mcs.tests.Check.r3;
+import static mcs.tests.Check.r9;
+import static mcs.tests.Check.lr;
+import static mcs.tests.Check.Heap;
+import static mcs.tests.Check.simulator;
+import static mcs.tests.Check.count;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.Cond;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.ir.Selector;
+import mcs.ir.Shift;
+import mcs.symtab.ArrayType;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestSelector {
+  /**
+   * int f(int *p, int x, int y, int n) { s = x * y + n; t = x + y * 4 - x * n;
+   *                                      t = t + p[y] + p[3]; p[y] = s;
+   *                                      d = t - s; if (d < 0) d = -d; return d; }
+   * with the variants:
+   *  - shared: x * y is also read by u = x * y + x, added to t
+   *  - greater: if (d > 0) rather than if (d < 0)
+   */
+  private static InstructionList function(String variant) {
+    InstructionList code = new InstructionList();
+    code.add(Instruction.label("f"));
+    code.add(new Instruction(Opcode.MOV, v(17), r0));
+    code.add(new Instruction(Opcode.MOV, v(18), r1));
+    code.add(new Instruction(Opcode.MOV, v(19), r2));
+    code.add(new Instruction(Opcode.MOV, v(20), r3));
+    code.add(new Instruction(Opcode.MOV, v(50), lr));
+    code.add(new Instruction(Opcode.MUL, v(21), v(18), v(19)));
+    code.add(new Instruction(Opcode.ADD, v(22), v(21), v(20)));
+    code.add(new Instruction(Opcode.LSL, v(23), v(19), 2));
+    code.add(new Instruction(Opcode.ADD, v(24), v(18), v(23)));
+    code.add(new Instruction(Opcode.MUL, v(25), v(18), v(20)));
+    code.add(new Instruction(Opcode.SUB, v(26), v(24), v(25)));
+    if (variant.equals("shared")) {
+      code.add(new Instruction(Opcode.ADD, v(40), v(21), v(18)));
+      code.add(new Instruction(Opcode.ADD, v(26), v(26), v(40)));
+    }
+    code.add(new Instruction(Opcode.LSL, v(27), v(19), 2));
+    code.add(memory(Opcode.LDR, v(28), v(17), v(27)));
+    code.add(new Instruction(Opcode.ADD, v(29), v(17), 8));
+    code.add(memory(Opcode.LDR, v(30), v(29), 4));
+    code.add(new Instruction(Opcode.LSL, v(31), v(19), 2));
+    code.add(new Instruction(Opcode.ADD, v(32), v(17), v(31)));
+    code.add(memory(Opcode.STR, v(22), v(32), null));
+    code.add(new Instruction(Opcode.ADD, v(33), v(26), v(28)));
+    code.add(new Instruction(Opcode.ADD, v(34), v(33), v(30)));
+    code.add(new Instruction(Opcode.SUB, v(35), v(34), v(22)));
+    code.add(new Instruction(Opcode.CMP, v(35), 0));
+    code.add(new Instruction(Opcode.B, (variant.equals("greater") ? Cond.GT : Cond.LT), "negate_0", null, null));
+    code.add(new Instruction(Opcode.MOV, r9, v(35)));
+    code.add(new Instruction(Opcode.B, "end_0"));
+    code.add(Instruction.label("negate_0"));
+    code.add(new Instruction(Opcode.RSB, v(36), v(35), 0));
+    code.add(new Instruction(Opcode.MOV, r9, v(36)));
+    code.add(Instruction.label("end_0"));
+    code.add(new Instruction(Opcode.MOV, lr, v(50)));
+    code.add(new Instruction(Opcode.BX, lr));
+    return code;
+  }
+
+  /**
+   * Result of f(p, x, y, n), and the words of p after it
+   */
+  private static String run(InstructionList code, DefUse du, int x, int y, int n) {
+    Simulator sim = simulator(code, du, Heap, x, y, n);
+    for (int k = 0; k < 6; k++)
+      sim.store(Heap + 4 * k, 5 * k - 7);
+    sim.run("f", 1000);
+    check("    stops on the return", sim.stop(), "return");
+    StringBuilder s = new StringBuilder().append(sim.get(9));
+    for (int k = 0; k < 6; k++)
+      s.append(k == 0 ? " [" : " ").append(sim.load(Heap + 4 * k));
+    return s.append("]").toString();
+  }
+
+  /**
+   * Number of loads and stores whose index is shifted
+   */
+  private static int scaled(InstructionList code) {
+    int n = 0;
+    for (Instruction inst : code) {
+      Opcode.Kind kind = inst.opcode().kind();
+      if ((kind == Opcode.Kind.Load || kind == Opcode.Kind.Store) && inst.operand(3) instanceof Shift)
+        n++;
+    }
+    return n;
+  }
+
+  private static void pass(String what, String variant, int saved, int mla, int shifted, int scaled, int zeros) {
+    DefUse du = defUse();
+    InstructionList code = function(variant);
+    Selector selector = new Selector(du);
+    InstructionList done = selector.run(code);
+    System.out.println(what);
+    System.out.print(selector.report());
+    check("  saved", selector.saved(), saved);
+    check("  size", done.size(), code.size() - saved);
+    check("  cost", Selector.cost(done) < Selector.cost(code), true);
+    check("  MLA", count(done, Opcode.MLA), mla);
+    check("  MLS", count(done, Opcode.MLS), 1);
+    check("  shifted operand", selector.count("shifted operand"), shifted);
+    check("  scaled indexes", scaled(done), scaled);
+    check("  displacement folded", done.toString().contains("[v17, $12]"), true);
+    check("  comparisons with 0 removed", selector.report().endsWith("compare with zero: " + zeros + "\n"), true);
+    check("  comparisons left", count(done, Opcode.CMP), 1 - zeros);
+    for (int[] xyn : new int[][] { { 2, 1, 3 }, { -5, 3, 2 }, { 7, 0, -4 }, { 100, 2, 100 } }) {
+      System.out.println("  f(p, " + xyn[0] + ", " + xyn[1] + ", " + xyn[2] + ")");
+      check("  same result", run(done, du, xyn[0], xyn[1], xyn[2]), run(code, du, xyn[0], xyn[1], xyn[2]));
+    }
+  }
+
+  private static void passes() {
+    // MLA, the shift of y * 4, MLS, p[y] loaded and stored, p[3], d < 0
+    pass("folded", "folded", 8, 1, 1, 2, 1);
+    pass("product read twice", "shared", 7, 0, 1, 2, 1);
+    pass("greater than 0", "greater", 7, 1, 1, 2, 0);
+  }
+
+  /**
+   * int k(int a[], int i, int x) { return a[i] + x * i + x; }
+   */
+  private static void engine(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), ns, m.functionReturn());
+    k.add(new ArrayType(new IntegerType(), 10));
+    k.add(new IntegerType());
+    k.add(new IntegerType());
+    VariableInfo t = new VariableInfo(new ArrayType(new IntegerType(), 10), k.displacement(0), ns);
+    VariableInfo i = new VariableInfo(new IntegerType(), k.displacement(1), ns);
+    VariableInfo x = new VariableInfo(new IntegerType(), k.displacement(2), ns);
+    m.bindParameter(k, 0, t);
+    m.bindParameter(k, 1, i);
+    m.bindParameter(k, 2, x);
+
+    Code body = new Code(m.generateLoadValue(i, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), 4), b),
+        m.generateOperation(IMachine.Operator.MUL.value(), a.get(), b.get(), c));
+    body.append(m.generateLoadValue(t, c.get(), a));
+    Register element = a.get();
+    body.append(m.generateLoadValue(x, a), m.generateLoadValue(i, b),
+        m.generateOperation(IMachine.Operator.MUL.value(), a.get(), b.get(), c));
+    Register product = c.get();
+    body.append(m.generateOperation(IMachine.Operator.ADD.value(), element, product, c));
+    Register sum = c.get();
+    body.append(m.generateLoadValue(x, a), m.generateOperation(IMachine.Operator.ADD.value(), sum, a.get(), c));
+    body.append(m.generateFunctionReturn(k, c.get()));
+    InstructionList code = m.generateFunctionDeclaration(k, body).instructions();
+
+    for (int[] ix : new int[][] { { 0, 3 }, { 2, -5 }, { 4, 7 } }) {
+      Simulator sim = simulator(m, code, Heap + 0x100, ix[0], ix[1]);
+      for (int w = 0; w < 5; w++)
+        sim.store(Heap + 0x100 + 4 * w, 10 * w + 1);
+      sim.run(k.label(), 1000);
+      check("  stops on the return", sim.stop(), "return");
+      check("  k(a, " + ix[0] + ", " + ix[1] + ")", sim.get(9), 10 * ix[0] + 1 + ix[1] * ix[0] + ix[1]);
+    }
+
+    boolean on = level >= 1;
+    check("  MLA", count(code, Opcode.MLA), (on ? 1 : 0));
+    check("  scaled indexes", scaled(code), (on ? 1 : 0));
+    check("  reported", m.logSelection().startsWith(on ? "2 instructions saved" : "No instruction selection"), true);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    passes();
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
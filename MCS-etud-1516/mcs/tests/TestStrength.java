@@ -0,0 +1,107 @@
+/**
+ * Test of the strength reduction: from level 1, a multiplication by a power
+ * of 2 or a close constant is made with shifts and additions, a division or
+ * a modulo by a constant without SDIV; the results must be the ones of Java
+ * (which divides as C does) on all signs and the extreme values, at every
+ * level (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.setVerbose;
+import static mcs.tests.Check.count;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.IMachine;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.symtab.ConstantInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.VariableInfo;
+
+public class TestStrength {
+  private static final int Heap = 0x10000;
+
+  private static final int[] Values = { 0, 1, -1, 2, -2, 7, -7, 99, -99, 100, -100, 12345, -12345, 1 << 30,
+      Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1, 0x55555555, -0x55555555 };
+
+  /**
+   * p op c, as the machine computes it: a division by zero gives 0, and
+   * the modulo p
+   */
+  private static int expected(IMachine.Operator op, int p, int c) {
+    if (op != IMachine.Operator.MUL && c == 0)
+      return (op == IMachine.Operator.DIV ? 0 : p);
+    switch (op) {
+      case MUL: return p * c;
+      case DIV: return p / c;
+      default: return p % c;
+    }
+  }
+
+  /**
+   * int k(int p) { return p op c; }, or c op p
+   */
+  private static void operation(int level, IMachine.Operator op, int c, boolean left, boolean reduced)
+      throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), r = new RegisterWrapper();
+    FunctionInfo k = new FunctionInfo("k", new IntegerType(), ns, m.functionReturn());
+    k.add(new IntegerType());
+    VariableInfo p = new VariableInfo(new IntegerType(), k.displacement(0), ns);
+    m.bindParameter(k, 0, p);
+    Code body = new Code(m.generateLoadValue(p, a), m.generateLoadConstant(new ConstantInfo(new IntegerType(), c), b));
+    body.append(left ? m.generateOperation(op.value(), b.get(), a.get(), r)
+        : m.generateOperation(op.value(), a.get(), b.get(), r));
+    body.append(m.generateFunctionReturn(k, r.get()));
+    InstructionList code = m.generateFunctionDeclaration(k, body).instructions();
+
+    String what = (left ? c + " " + op + " p" : "p " + op + " " + c);
+    for (int v : Values) {
+      Simulator sim = new Simulator(code, m.defUse());
+      sim.set(12, Heap);
+      sim.set(0, v);
+      sim.run(k.label(), 1000);
+      check(what + ", stops on the return", sim.stop(), "return");
+      check(what + ", p = " + v, sim.get(9), (left ? expected(op, c, v) : expected(op, v, c)));
+    }
+    boolean on = level >= 1 && reduced;
+    check(what + ", multiplied", count(code, Opcode.MUL), (op == IMachine.Operator.MUL && !on ? 1 : 0));
+    check(what + ", divided", count(code, Opcode.SDIV), (op != IMachine.Operator.MUL && !on ? 1 : 0));
+    System.out.println("ok   " + what + (on ? ", reduced: " + (code.size() - count(code, Opcode.TEXT)) : ""));
+  }
+
+  private static void engine(int level) throws MCSException {
+    for (int c : new int[] { 2, 3, 5, 7, 8, 10, 12, 24, 1 << 20, -1, -4, -3 })
+      operation(level, IMachine.Operator.MUL, c, false, true);
+    operation(level, IMachine.Operator.MUL, 10, true, true);
+    operation(level, IMachine.Operator.MUL, 11, false, false);
+    operation(level, IMachine.Operator.MUL, -12, false, false);
+    for (IMachine.Operator op : new IMachine.Operator[] { IMachine.Operator.DIV, IMachine.Operator.MOD }) {
+      for (int c : new int[] { 2, 4, 8, 1024, 1 << 30, -2, -8, 3, 5, 6, 7, 10, 100, 641, -3, -10, 1000000007,
+          Integer.MAX_VALUE })
+        operation(level, op, c, false, true);
+      operation(level, op, 10, true, false);
+      operation(level, op, Integer.MIN_VALUE, false, false);
+    }
+  }
+
+  public static void main(String args[]) throws MCSException {
+    setVerbose(false);
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      engine(level);
+    }
+
+    done();
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Test of the calls in tail position: a function calling itself last loops,
+ * a function or a method called last is branched to, the caller's frame
+ * being undone, so that deep recursions run in a constant stack; a call
+ * whose result is used still returns (see Simulator)
+ */
+package mcs.tests;
+
+import static mcs.tests.Check.check;
+import static mcs.tests.Check.done;
+import static mcs.tests.Check.constant;
+import static mcs.tests.Check.operation;
+import static mcs.tests.Check.parameters;
+import static mcs.tests.Check.call;
+
+import mcs.compiler.MCSException;
+import mcs.gc.ARMEngine;
+import mcs.gc.Code;
+import mcs.gc.DisplacementList;
+import mcs.gc.IMachine;
+import mcs.gc.Register;
+import mcs.gc.RegisterWrapper;
+import mcs.ir.DefUse;
+import mcs.ir.Instruction;
+import mcs.ir.InstructionList;
+import mcs.ir.Opcode;
+import mcs.obj.Klass;
+import mcs.obj.MethodInfo;
+import mcs.symtab.DefaultNamespaceInfo;
+import mcs.symtab.FunctionInfo;
+import mcs.symtab.IntegerType;
+import mcs.symtab.NamespaceInfo;
+import mcs.symtab.PointerType;
+import mcs.symtab.VariableInfo;
+
+public class TestTailCall {
+  private static final int Heap = 0x10000, Instance = 0x20000, Depth = 10000;
+
+  /**
+   * Number of calls (BL) in a part of the code, from a label to another one
+   */
+  private static int calls(InstructionList code, String from, String to) {
+    int n = 0;
+    boolean in = false;
+    for (Instruction inst : code) {
+      if (inst.isLabel())
+        in = (in || inst.text().equals(from)) && !inst.text().equals(to);
+      if (in && inst.opcode() == Opcode.BL)
+        n++;
+    }
+    return n;
+  }
+
+  private static void run(int level) throws MCSException {
+    ARMEngine m = new ARMEngine();
+    m.setOptimize(level);
+    NamespaceInfo ns = new DefaultNamespaceInfo();
+    RegisterWrapper a = new RegisterWrapper(), b = new RegisterWrapper(), c = new RegisterWrapper();
+
+    // int sum(int n, int acc) { if (n < 1) return acc; return sum(n - 1, acc + n); }
+    FunctionInfo s = new FunctionInfo("sum", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] p = parameters(m, s, ns, new IntegerType(), new IntegerType());
+    Code body = new Code(m.generateLoadValue(p[0], a), constant(m, 1, b),
+        operation(m, IMachine.Operator.LT, a.get(), b.get(), c));
+    Register rc = c.get();
+    Code base = new Code(m.generateLoadValue(p[1], a), m.generateFunctionReturn(s, a.get()));
+    body.append(m.generateIfThenElse(rc, base, new Code()));
+    body.append(m.generateLoadValue(p[0], a), constant(m, 1, b), operation(m, IMachine.Operator.SUB, a.get(), b.get(), c));
+    Register n1 = c.get();
+    body.append(m.generateLoadValue(p[1], a), m.generateLoadValue(p[0], b), operation(m, IMachine.Operator.ADD, a.get(), b.get(), c));
+    body.append(call(m, s, a, n1, c.get()), m.generateFunctionReturn(s, a.get()));
+    InstructionList code = m.generateFunctionDeclaration(s, body).instructions();
+
+    // int fact(int n) { if (n < 2) return 1; return n * fact(n - 1); }
+    FunctionInfo f = new FunctionInfo("fact", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] q = parameters(m, f, ns, new IntegerType());
+    body = new Code(m.generateLoadValue(q[0], a), constant(m, 2, b), operation(m, IMachine.Operator.LT, a.get(), b.get(), c));
+    rc = c.get();
+    base = new Code(constant(m, 1, a), m.generateFunctionReturn(f, a.get()));
+    body.append(m.generateIfThenElse(rc, base, new Code()));
+    body.append(m.generateLoadValue(q[0], a), constant(m, 1, b), operation(m, IMachine.Operator.SUB, a.get(), b.get(), c));
+    body.append(call(m, f, b, c.get()), m.generateLoadValue(q[0], a),
+        operation(m, IMachine.Operator.MUL, a.get(), b.get(), c), m.generateFunctionReturn(f, c.get()));
+    code.addAll(m.generateFunctionDeclaration(f, body).instructions());
+
+    // class K { int id; int v; int get(int x) { return sum(x, this.v); } }
+    Klass k = new Klass(1, "K", null, ns);
+    MethodInfo h = new MethodInfo("get", null, new IntegerType(), k, m.functionReturn());
+    VariableInfo[] r = parameters(m, h, ns, new IntegerType());
+    RegisterWrapper self = new RegisterWrapper();
+    body = new Code(m.generateLoadValue(r[0], a), m.generateLoadFromStack(k.thisDisplacement(m), self),
+        m.generateLoadFromHeap(self.get(), 4, b));
+    body.append(call(m, s, c, a.get(), b.get()), m.generateFunctionReturn(h, c.get()));
+    code.addAll(m.generateMethodDeclaration(h, body).instructions());
+
+    // int twice(K o, int n) { return o.get(n + n); }
+    FunctionInfo t = new FunctionInfo("twice", new IntegerType(), ns, m.functionReturn());
+    VariableInfo[] u = parameters(m, t, ns, new PointerType(k), new IntegerType());
+    body = new Code(m.generateLoadValue(u[1], a), m.generateLoadValue(u[1], b),
+        operation(m, IMachine.Operator.ADD, a.get(), b.get(), c), m.generateFunctionPushArgument(c.get()));
+    body.append(m.generateLoadValue(u[0], a), m.generateMethodCall(h, a.get()),
+        m.generateMakeAddress(new DisplacementList(), h.register(), c, new RegisterWrapper()),
+        m.generateFunctionReturn(t, c.get()));
+    code.addAll(m.generateFunctionDeclaration(t, body).instructions());
+
+    // int main() { return twice(o, Depth / 2) + fact(10); }
+    FunctionInfo e = new FunctionInfo("main", new IntegerType(), ns, m.functionReturn());
+    body = new Code(constant(m, Instance, a), constant(m, Depth / 2, b));
+    body.append(call(m, t, c, a.get(), b.get()));
+    Register first = c.get();
+    body.append(constant(m, 10, a), call(m, f, b, a.get()), operation(m, IMachine.Operator.ADD, first, b.get(), c),
+        m.generateFunctionReturn(e, c.get()));
+    code.addAll(m.generateFunctionDeclaration(e, body).instructions());
+
+    Simulator sim = new Simulator(code, m.defUse());
+    sim.set(12, Heap);
+    // An object of a class without a virtual table entry: the method itself runs
+    sim.store(Instance, k.classId() + 1);
+    sim.store(Instance + 4, 1);
+    sim.run(e.label(), 1000000);
+    check("  stops on the return", sim.stop(), "return");
+    check("  result", sim.get(9), (Depth * (Depth + 1) / 2 + 1) + 3628800);
+    check("  stack pointer back", Integer.toHexString(sim.get(DefUse.SP)), Integer.toHexString(Simulator.Stack));
+    check("  stack base back", sim.get(11), 0);
+    // Ten frames of fact at most, whatever the depth of sum
+    check("  constant stack", Simulator.Stack - sim.lowest() <= 10 * 24, true);
+
+    check("  sum loops", calls(code, s.label(), f.label()), 0);
+    check("  fact still calls", calls(code, f.label(), h.label()), 1);
+    check("  get and twice branch", calls(code, h.label(), e.label()), 0);
+  }
+
+  public static void main(String args[]) throws MCSException {
+    for (int level = 0; level <= 1; level++) {
+      System.out.println("== level " + level);
+      run(level);
+    }
+
+    done();
+  }
+}